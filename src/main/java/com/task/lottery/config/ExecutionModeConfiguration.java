@@ -0,0 +1,93 @@
+package com.task.lottery.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.task.TaskExecutionAutoConfiguration;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.concurrent.ConcurrentTaskScheduler;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/**
+ * Runs the web requests, the scheduled jobs and the async work on virtual threads.
+ * The request threads spend most of their time waiting for the database, so with virtual threads the number
+ * of requests in progress is no longer capped by the Tomcat thread pool; the connection pool of the primary becomes
+ * the limit instead and is sized with "lottery.execution.virtual.db-pool-size". The replica keeps its own pool size.
+ * Enabled with the "lottery.execution.mode=virtual" property; "platform" keeps the Tomcat and Spring thread pools.
+ */
+@Configuration
+@ConditionalOnProperty(name = "lottery.execution.mode", havingValue = "virtual")
+public class ExecutionModeConfiguration {
+
+    /**
+     * Creates the executor of the web requests.
+     * @return an executor starting a virtual thread per request.
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService requestExecutor() {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("http-", 0).factory());
+    }
+
+
+    /**
+     * Makes Tomcat run the requests on virtual threads instead of its thread pool.
+     * @param requestExecutor the executor of the web requests.
+     * @return the customizer of the Tomcat connector.
+     */
+    @Bean
+    public TomcatProtocolHandlerCustomizer<?> virtualThreadProtocolHandlerCustomizer(ExecutorService requestExecutor) {
+        return protocolHandler -> protocolHandler.setExecutor(requestExecutor);
+    }
+
+
+    /**
+     * Creates the executor of the @Async methods and of the other application tasks.
+     * @return an executor starting a virtual thread per task.
+     */
+    @Bean(name = {TaskExecutionAutoConfiguration.APPLICATION_TASK_EXECUTOR_BEAN_NAME, "taskExecutor"})
+    public AsyncTaskExecutor applicationTaskExecutor() {
+        return new TaskExecutorAdapter(Executors.newThreadPerTaskExecutor(
+                Thread.ofVirtual().name("task-", 0).factory()));
+    }
+
+
+    /**
+     * Creates the scheduler of the @Scheduled jobs.
+     * @param poolSize the number of jobs which can run at the same time.
+     * @return a scheduler running the jobs on virtual threads.
+     */
+    @Bean
+    public TaskScheduler taskScheduler(@Value("${lottery.execution.virtual.scheduler-pool-size:4}") int poolSize) {
+        return new ConcurrentTaskScheduler(
+                Executors.newScheduledThreadPool(poolSize, Thread.ofVirtual().name("scheduling-", 0).factory()));
+    }
+
+
+    /**
+     * Sizes the connection pool of the primary for the number of requests virtual threads let in at once.
+     * @param poolSize the maximum number of database connections.
+     * @return the post processor of the data sources.
+     */
+    @Bean
+    public static BeanPostProcessor virtualThreadConnectionPoolSizer(
+            @Value("${lottery.execution.virtual.db-pool-size:50}") int poolSize) {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (bean instanceof HikariDataSource dataSource && !"replicaDataSource".equals(beanName)) {
+                    dataSource.setMaximumPoolSize(poolSize);
+                }
+                return bean;
+            }
+        };
+    }
+}
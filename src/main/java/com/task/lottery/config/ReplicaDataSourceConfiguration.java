@@ -0,0 +1,113 @@
+package com.task.lottery.config;
+
+import com.task.lottery.services.BallotService;
+import com.task.lottery.services.LotteryService;
+import com.task.lottery.services.ParticipantService;
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.util.List;
+
+
+/**
+ * Reads from a replica of the database: the read-only transactions of the lottery, ballot and participant services,
+ * like the lists and the winner lookups, use a pool of connections to the replica, and everything else the pool of
+ * the primary, configured by the usual "spring.datasource" properties. While the replica lags behind the primary
+ * more than "lottery.datasource.replica.max-lag", or its lag cannot be read, they use the primary too. The query
+ * measuring the lag depends on the database, so "lottery.datasource.replica.lag-query" has no default.
+ * Enabled with the "lottery.datasource.replica.enabled=true" property.
+ */
+@Configuration
+@ConditionalOnProperty(name = "lottery.datasource.replica.enabled", havingValue = "true")
+public class ReplicaDataSourceConfiguration {
+
+    /**
+     * The services whose read-only transactions read from the replica.
+     */
+    private static final List<Class<?>> REPLICA_READERS = List.of(
+            LotteryService.class, BallotService.class, ParticipantService.class);
+
+
+    /**
+     * Creates the pool of connections to the primary.
+     * @param properties the properties of the data source.
+     * @return the pool of the primary.
+     */
+    @Bean
+    @ConfigurationProperties(prefix = "spring.datasource.hikari")
+    public HikariDataSource primaryDataSource(DataSourceProperties properties) {
+        HikariDataSource dataSource = properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        dataSource.setPoolName("primary");
+        return dataSource;
+    }
+
+
+    /**
+     * Creates the pool of connections to the replica, which are all read-only.
+     * @param url the JDBC url of the replica.
+     * @param username the user of the replica.
+     * @param password the password of the user.
+     * @param poolSize the maximum number of connections to the replica.
+     * @return the pool of the replica.
+     */
+    @Bean
+    public HikariDataSource replicaDataSource(@Value("${lottery.datasource.replica.url}") String url,
+                                              @Value("${lottery.datasource.replica.username:sa}") String username,
+                                              @Value("${lottery.datasource.replica.password:}") String password,
+                                              @Value("${lottery.datasource.replica.pool-size:10}") int poolSize) {
+        HikariDataSource dataSource = DataSourceBuilder.create().type(HikariDataSource.class)
+                .url(url).username(username).password(password).build();
+        dataSource.setPoolName("replica");
+        dataSource.setMaximumPoolSize(poolSize);
+        dataSource.setReadOnly(true);
+        return dataSource;
+    }
+
+
+    /**
+     * Creates the monitor of the lag of the replica.
+     * @param replicaDataSource the pool of the replica.
+     * @param lagQuery the query returning the lag of the replica in milliseconds.
+     * @param maxLag the largest lag for which the replica is read.
+     * @return the monitor.
+     * @throws IllegalStateException if the lag query is blank.
+     */
+    @Bean
+    public ReplicaLagMonitor replicaLagMonitor(
+            @Qualifier("replicaDataSource") DataSource replicaDataSource,
+            @Value("${lottery.datasource.replica.lag-query}") String lagQuery,
+            @Value("${lottery.datasource.replica.max-lag:5s}") Duration maxLag) {
+        if (lagQuery.isBlank()) {
+            throw new IllegalStateException("The lag query of the replica must be set!");
+        }
+        return new ReplicaLagMonitor(replicaDataSource, lagQuery, maxLag);
+    }
+
+
+    /**
+     * Creates the data source of the application, which picks the pool of each transaction at its first statement.
+     * @param primaryDataSource the pool of the primary.
+     * @param replicaDataSource the pool of the replica.
+     * @param replicaLagMonitor the monitor of the lag of the replica.
+     * @return the data source.
+     */
+    @Bean
+    @Primary
+    public DataSource dataSource(@Qualifier("primaryDataSource") DataSource primaryDataSource,
+                                 @Qualifier("replicaDataSource") DataSource replicaDataSource,
+                                 ReplicaLagMonitor replicaLagMonitor) {
+        return new LazyConnectionDataSourceProxy(new ReplicaRoutingDataSource(primaryDataSource, replicaDataSource,
+                replicaLagMonitor, REPLICA_READERS));
+    }
+}
@@ -0,0 +1,76 @@
+package com.task.lottery.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+
+
+/**
+ * Measures how far the replica lags behind the primary, by running the "lottery.datasource.replica.lag-query"
+ * on the replica every "lottery.datasource.replica.lag-check-interval-ms". The replica is usable while its lag is
+ * at most the tolerated lag. It is not usable until the first check, nor while the lag cannot be read.
+ */
+public class ReplicaLagMonitor {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReplicaLagMonitor.class);
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final String lagQuery;
+
+    private final Duration maxLag;
+
+    private volatile boolean replicaUsable;
+
+
+    /**
+     * Instantiates a new ReplicaLagMonitor.
+     * @param replica the data source of the replica.
+     * @param lagQuery the query returning the lag of the replica in milliseconds.
+     * @param maxLag the largest lag for which the replica is read.
+     */
+    public ReplicaLagMonitor(DataSource replica, String lagQuery, Duration maxLag) {
+        this.jdbcTemplate = new JdbcTemplate(replica);
+        this.lagQuery = lagQuery;
+        this.maxLag = maxLag;
+    }
+
+
+    /**
+     * Reads the lag of the replica and decides whether it can be read.
+     */
+    @Scheduled(fixedDelayString = "${lottery.datasource.replica.lag-check-interval-ms:1000}")
+    public void check() {
+        boolean usable;
+        try {
+            Double lag = jdbcTemplate.queryForObject(lagQuery, Double.class);
+            usable = lag != null && lag <= maxLag.toMillis();
+            if (!usable && replicaUsable) {
+                logger.warn("The replica lags {} ms behind the primary, reading from the primary", lag);
+            }
+        } catch (DataAccessException e) {
+            usable = false;
+            if (replicaUsable) {
+                logger.warn("The lag of the replica could not be read, reading from the primary", e);
+            }
+        }
+        if (usable && !replicaUsable) {
+            logger.info("Reading from the replica");
+        }
+        replicaUsable = usable;
+    }
+
+
+    /**
+     * Tells whether the replica can be read.
+     * @return true if the last check found the replica within the tolerated lag.
+     */
+    public boolean isReplicaUsable() {
+        return replicaUsable;
+    }
+}
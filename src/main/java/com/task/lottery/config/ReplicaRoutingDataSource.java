@@ -0,0 +1,128 @@
+package com.task.lottery.config;
+
+import org.hibernate.CacheMode;
+import org.hibernate.Session;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.orm.jpa.EntityManagerHolder;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Sends the connections of the read-only transactions started by methods of the replica readers to the replica,
+ * and all the other connections to the primary, as well as every connection while the replica lags too much.
+ * The route depends on the current transaction, which the transaction manager only marks read-only after it got
+ * its connection, so this data source must sit behind a LazyConnectionDataSourceProxy, which fetches the real
+ * connection at the first statement.
+ * The Hibernate session of a transaction routed to the replica only reads the second-level cache and never puts in
+ * it, so that data up to the tolerated lag behind the primary is never cached for the other transactions. The
+ * application caches ask {@link #isReplicaTransaction()} for the same reason.
+ */
+public class ReplicaRoutingDataSource extends AbstractRoutingDataSource {
+
+    private enum Route { PRIMARY, REPLICA }
+
+    private static final Object REPLICA_TRANSACTION = Route.REPLICA;
+
+    private final ReplicaLagMonitor lagMonitor;
+
+    private final List<String> replicaReaders;
+
+
+    /**
+     * Instantiates a new ReplicaRoutingDataSource.
+     * @param primary the data source of the primary.
+     * @param replica the data source of the replica.
+     * @param lagMonitor the monitor telling whether the replica can be read.
+     * @param replicaReaders the classes whose read-only transactional methods read from the replica.
+     */
+    public ReplicaRoutingDataSource(DataSource primary,
+                                    DataSource replica,
+                                    ReplicaLagMonitor lagMonitor,
+                                    Collection<Class<?>> replicaReaders) {
+        this.lagMonitor = lagMonitor;
+        this.replicaReaders = replicaReaders.stream().map(reader -> reader.getName() + ".").toList();
+        setTargetDataSources(Map.<Object, Object>of(Route.PRIMARY, primary, Route.REPLICA, replica));
+        setDefaultTargetDataSource(primary);
+        afterPropertiesSet();
+    }
+
+
+    /**
+     * Tells whether the current transaction got its connection from the replica. A transaction which has not run
+     * a statement yet has no connection, so this is only known after its first read.
+     * @return true if the current transaction reads from the replica and false otherwise.
+     */
+    public static boolean isReplicaTransaction() {
+        return TransactionSynchronizationManager.hasResource(REPLICA_TRANSACTION);
+    }
+
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        if (!readsFromReplica()) {
+            return Route.PRIMARY;
+        }
+        markReplicaTransaction();
+        for (Object resource : TransactionSynchronizationManager.getResourceMap().values()) {
+            if (resource instanceof EntityManagerHolder holder) {
+                keepOutOfCache(holder.getEntityManager().unwrap(Session.class));
+            }
+        }
+        return Route.REPLICA;
+    }
+
+
+    private static void markReplicaTransaction() {
+        if (TransactionSynchronizationManager.hasResource(REPLICA_TRANSACTION)) {
+            return;
+        }
+        TransactionSynchronizationManager.bindResource(REPLICA_TRANSACTION, Boolean.TRUE);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                TransactionSynchronizationManager.unbindResourceIfPossible(REPLICA_TRANSACTION);
+            }
+        });
+    }
+
+
+    /**
+     * Stops a session from putting what it reads in the second-level cache until the current transaction ends,
+     * since the session may outlive it.
+     */
+    private static void keepOutOfCache(Session session) {
+        CacheMode previous = session.getCacheMode();
+        if (previous == CacheMode.GET) {
+            return;
+        }
+        session.setCacheMode(CacheMode.GET);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                if (session.isOpen()) {
+                    session.setCacheMode(previous);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Declarative transactions are named after the method which started them, so the name tells whether one of
+     * the replica readers started the current transaction.
+     */
+    private boolean readsFromReplica() {
+        if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            return false;
+        }
+        String transaction = TransactionSynchronizationManager.getCurrentTransactionName();
+        return transaction != null && replicaReaders.stream().anyMatch(transaction::startsWith)
+                && lagMonitor.isReplicaUsable();
+    }
+}
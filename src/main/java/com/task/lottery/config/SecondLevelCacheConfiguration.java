@@ -0,0 +1,159 @@
+package com.task.lottery.config;
+
+import com.github.benmanes.caffeine.jcache.configuration.CaffeineConfiguration;
+import com.github.benmanes.caffeine.jcache.spi.CaffeineCachingProvider;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.JCacheMetrics;
+import jakarta.persistence.SharedCacheMode;
+import org.hibernate.cache.jcache.ConfigSettings;
+import org.hibernate.cache.spi.RegionFactory;
+import org.hibernate.cfg.AvailableSettings;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import javax.cache.spi.CachingProvider;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+import java.util.OptionalLong;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Second-level cache of Hibernate: the lottery entities by id, and the lotteries by start date in the query cache,
+ * kept in local Caffeine caches through JCache. Each region keeps at most "lottery.l2-cache.size" entries for
+ * "lottery.l2-cache.ttl" after they were written; the TTL bounds how long a change made by another node can go
+ * unnoticed. Only the entities marked cacheable are cached, so the ballots never are, nor the participants, whose
+ * balances are changed by bulk updates on every purchase, each of which would evict the whole region.
+ * The hits, misses and hit ratio of each region are published as "cache.*" metrics.
+ */
+@Configuration
+public class SecondLevelCacheConfiguration {
+
+    public static final String LOTTERY_REGION = "lottery";
+
+    public static final String LOTTERY_BY_START_TIME_REGION = "lottery-by-start-time";
+
+    /**
+     * Each application context gets its own cache manager, so that the test contexts sharing the JVM, and the
+     * in-memory database, never see each other's entries.
+     */
+    private static final AtomicInteger cacheManagers = new AtomicInteger();
+
+
+    /**
+     * Creates the cache manager of the second-level cache and its regions. The update timestamps, one per table,
+     * tell when the cached query results are stale, so they are neither bounded nor expired.
+     * @param cacheSize the maximum number of entries of each region.
+     * @param cacheTtl the time an entry is kept after it was written.
+     * @return the cache manager.
+     */
+    @Bean(destroyMethod = "close")
+    public CacheManager secondLevelCacheManager(@Value("${lottery.l2-cache.size:10000}") long cacheSize,
+                                                @Value("${lottery.l2-cache.ttl:10m}") Duration cacheTtl) {
+        CachingProvider provider = Caching.getCachingProvider(CaffeineCachingProvider.class.getName());
+        CacheManager cacheManager = provider.getCacheManager(
+                URI.create("lottery:l2-cache-" + cacheManagers.incrementAndGet()), provider.getDefaultClassLoader());
+        for (String region : List.of(LOTTERY_REGION, LOTTERY_BY_START_TIME_REGION,
+                RegionFactory.DEFAULT_QUERY_RESULTS_REGION_UNQUALIFIED_NAME)) {
+            createCache(cacheManager, region, OptionalLong.of(cacheSize), OptionalLong.of(cacheTtl.toNanos()));
+        }
+        createCache(cacheManager, RegionFactory.DEFAULT_UPDATE_TIMESTAMPS_REGION_UNQUALIFIED_NAME,
+                OptionalLong.empty(), OptionalLong.empty());
+        return cacheManager;
+    }
+
+
+    /**
+     * Turns on the second-level and query caches of Hibernate, stored in the regions of the cache manager.
+     * A region missing from the cache manager fails the startup instead of being created unbounded.
+     * @param secondLevelCacheManager the cache manager of the second-level cache.
+     * @return the customizer of the Hibernate properties.
+     */
+    @Bean
+    public HibernatePropertiesCustomizer secondLevelCacheProperties(CacheManager secondLevelCacheManager) {
+        return properties -> {
+            properties.put(AvailableSettings.USE_SECOND_LEVEL_CACHE, true);
+            properties.put(AvailableSettings.USE_QUERY_CACHE, true);
+            properties.put(AvailableSettings.CACHE_REGION_FACTORY, "jcache");
+            properties.put(AvailableSettings.JAKARTA_SHARED_CACHE_MODE, SharedCacheMode.ENABLE_SELECTIVE);
+            properties.put(ConfigSettings.CACHE_MANAGER, secondLevelCacheManager);
+            properties.put(ConfigSettings.MISSING_CACHE_STRATEGY, "fail");
+        };
+    }
+
+
+    /**
+     * Publishes the gets, puts and removals of each region, and its hit ratio as "cache.hit.ratio".
+     * @param secondLevelCacheManager the cache manager of the second-level cache.
+     * @return the binder of the metrics.
+     */
+    @Bean
+    public MeterBinder secondLevelCacheMetrics(CacheManager secondLevelCacheManager) {
+        return registry -> {
+            for (String region : secondLevelCacheManager.getCacheNames()) {
+                Cache<Object, Object> cache = secondLevelCacheManager.getCache(region);
+                JCacheMetrics.monitor(registry, cache);
+                ObjectName statistics = statisticsName(secondLevelCacheManager, region);
+                Gauge.builder("cache.hit.ratio", statistics, SecondLevelCacheConfiguration::hitRatio)
+                        .tag("cache", region)
+                        .tag("cache.manager", secondLevelCacheManager.getURI().toString())
+                        .description("The ratio of the reads of the cache which found their entry")
+                        .register(registry);
+            }
+        };
+    }
+
+
+    /**
+     * Creates a region holding the entries by reference: Hibernate only caches immutable copies of the entities.
+     */
+    private static void createCache(CacheManager cacheManager, String region, OptionalLong size, OptionalLong ttl) {
+        CaffeineConfiguration<Object, Object> configuration = new CaffeineConfiguration<>();
+        configuration.setStoreByValue(false);
+        configuration.setMaximumSize(size);
+        configuration.setExpireAfterWrite(ttl);
+        configuration.setStatisticsEnabled(true);
+        cacheManager.createCache(region, configuration);
+        cacheManager.enableStatistics(region, true);
+    }
+
+
+    /**
+     * Builds the name of the statistics MBean which JCache registers for a cache.
+     */
+    private static ObjectName statisticsName(CacheManager cacheManager, String region) {
+        try {
+            return new ObjectName("javax.cache:type=CacheStatistics"
+                    + ",CacheManager=" + sanitize(cacheManager.getURI().toString())
+                    + ",Cache=" + sanitize(region));
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    private static String sanitize(String name) {
+        return name.replaceAll("[,:=\n]", ".");
+    }
+
+
+    private static double hitRatio(ObjectName statistics) {
+        try {
+            Number percentage = (Number) ManagementFactory.getPlatformMBeanServer()
+                    .getAttribute(statistics, "CacheHitPercentage");
+            return percentage.doubleValue() / 100;
+        } catch (JMException e) {
+            return Double.NaN;
+        }
+    }
+}
@@ -1,14 +1,23 @@
 package com.task.lottery.controllers;
 
 
+import com.task.lottery.dtos.BallotBatchRequest;
+import com.task.lottery.dtos.BallotTicket;
+import com.task.lottery.dtos.BallotView;
 import com.task.lottery.entities.Ballot;
+import com.task.lottery.services.BallotIngestionService;
+import com.task.lottery.services.BallotJournalService;
 import com.task.lottery.services.BallotService;
+import com.task.lottery.services.ConcurrencyRetry;
+import com.task.lottery.services.IdempotencyService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
 
-import java.util.List;
+import java.time.LocalDate;
 import java.util.Optional;
 
 @Controller
@@ -18,30 +27,111 @@ public class BallotController {
     @Autowired
     transient BallotService service;
 
+    @Autowired(required = false)
+    transient BallotIngestionService ingestionService;
+
+    @Autowired(required = false)
+    transient BallotJournalService journalService;
+
+    @Autowired
+    transient IdempotencyService idempotencyService;
+
+    @Autowired
+    transient ConcurrencyRetry concurrencyRetry;
+
     /**
      * Receives a POST mapping to save a ballot instance into the database.
+     * In the asynchronous ingestion mode the ballot is only validated and queued, and a ticket is returned instead.
+     * In the journal ingestion mode the ballot is paid and journaled, and a ticket is returned once it is on disk.
+     * If the request has an Idempotency-Key header, retries with the same key and body get the first response back
+     * and don't buy the ballot again, and a key reused by the participant for another ballot gets 422.
      * @param ballot the ballot to save.
-     * @return ResponseEntity with ok message and ballot as its body if the ballot was successfully saved.
+     * @param idempotencyKey the optional idempotency key of the request.
+     * @return ResponseEntity with ok message and ballot as its body if the ballot was successfully saved,
+     * or ResponseEntity with accepted message and the ticket as its body if the ballot was queued or journaled.
+     * ResponseEntity with tooManyRequests status if the queue is full.
+     * ResponseEntity with unprocessableEntity if the idempotency key was used for another ballot.
      * Otherwise, return ResponseEntity with badRequest message and the error message as its body.
      */
     @PostMapping(path = "/ballot")
     public @ResponseBody
     ResponseEntity<?> createBallot(
-            @RequestBody Ballot ballot) {
-        try {return ResponseEntity.ok(service.save(ballot)); }
-        catch (Exception e) {
+            @RequestBody Ballot ballot,
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey) {
+        try {
+            if (idempotencyKey != null) {
+                return idempotencyService.execute(ballot.getParticipantId(), idempotencyKey, ballot,
+                        () -> purchase(ballot));
+            }
+            return purchase(ballot);
+        } catch (Exception e) {
             return ResponseEntity.badRequest().body("Ballot can't be created!");
         }
     }
 
 
     /**
-     * Receives a GET mapping to return all the ballots in the database.
-     * @return ResponseEntity containing a list of all the ballots in the database.
+     * Receives a GET mapping to find the outcome of a ballot purchase made in the asynchronous or journal
+     * ingestion mode.
+     * @param id the id of the ticket.
+     * @return ResponseEntity with the ticket if it is known.
+     * Otherwise, ResponseEntity with unprocessableEntity and the error message in the body.
+     */
+    @GetMapping(path = "/ticket/{id}")
+    public ResponseEntity<?> getTicket(
+            @PathVariable Long id) {
+        Optional<BallotTicket> ticket = ingestionService != null ? ingestionService.findTicket(id)
+                : journalService != null ? journalService.findTicket(id) : Optional.empty();
+        if (ticket.isPresent()) {
+            return ResponseEntity.ok(ticket.get());
+        } else {
+            return ResponseEntity.unprocessableEntity()
+                    .body("The ticket was not found.");
+        }
+    }
+
+
+    /**
+     * Receives a POST mapping to save several ballots of a participant in a lottery at once.
+     * @param request the participant, the lottery and the guesses of the ballots.
+     * @return ResponseEntity with ok message and the outcome of each guess as its body if the batch was processed.
+     * Otherwise, return ResponseEntity with badRequest message and the error message as its body.
+     */
+    @PostMapping(path = "/batch")
+    public @ResponseBody
+    ResponseEntity<?> createBallotBatch(
+            @RequestBody BallotBatchRequest request) {
+        try {return ResponseEntity.ok(concurrencyRetry.execute("purchase", () -> service.saveBatch(request))); }
+        catch (Exception e) {
+            return ResponseEntity.badRequest().body("Ballot batch can't be created!");
+        }
+    }
+
+
+    /**
+     * Receives a GET mapping to return a page of the ballots in the database, in the order of their ids.
+     * @param token the continuation token returned with the previous page, absent for the first page.
+     * @param size the page size.
+     * @param lotteryId the optional id of the lottery of the ballots.
+     * @param participantId the optional id of the participant of the ballots.
+     * @param from the optional first start date of the lotteries of the ballots.
+     * @param to the optional last start date of the lotteries of the ballots.
+     * @return ResponseEntity containing the page of ballots and the token of the next page.
+     * Otherwise, ResponseEntity with badRequest if the token or the size is invalid.
      */
     @GetMapping(path = "/list")
-    public @ResponseBody ResponseEntity<List<Ballot>> getAllBallots() {
-        return ResponseEntity.ok(service.findAll());
+    public @ResponseBody ResponseEntity<?> getAllBallots(
+            @RequestParam(required = false) String token,
+            @RequestParam(required = false) Integer size,
+            @RequestParam(required = false) Long lotteryId,
+            @RequestParam(required = false) Long participantId,
+            @RequestParam(required = false) @DateTimeFormat(pattern = "yyyy-MM-dd") LocalDate from,
+            @RequestParam(required = false) @DateTimeFormat(pattern = "yyyy-MM-dd") LocalDate to) {
+        try {
+            return ResponseEntity.ok(service.findPage(token, size, lotteryId, participantId, from, to));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
     }
 
 
@@ -62,6 +152,34 @@ public class BallotController {
     }
 
 
+    /**
+     * Buys a ballot synchronously, queues it in the asynchronous ingestion mode or journals it in the journal
+     * ingestion mode.
+     * A synchronous purchase which conflicts with a concurrent one is retried.
+     * @param ballot the ballot to buy.
+     * @return the response of the purchase.
+     * @throws Exception if the ballot can't be bought.
+     */
+    private ResponseEntity<?> purchase(Ballot ballot) throws Exception {
+        if (ingestionService != null) {
+            Optional<BallotTicket> ticket = ingestionService.submit(ballot);
+            if (ticket.isEmpty()) {
+                return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                        .body("Too many ballots, try again later!");
+            }
+            return ResponseEntity.accepted().body(ticket.get());
+        }
+        if (journalService != null) {
+            Optional<BallotTicket> ticket = journalService.submit(ballot);
+            if (ticket.isEmpty()) {
+                return ResponseEntity.badRequest().body("Ballot can't be created!");
+            }
+            return ResponseEntity.accepted().body(ticket.get());
+        }
+        return ResponseEntity.ok(concurrencyRetry.execute("purchase", () -> service.save(ballot)));
+    }
+
+
     /**
      * Receives a GET mapping to find a ballot from the database by its id and return it.
      * @param id the id of the ballot.
@@ -71,9 +189,9 @@ public class BallotController {
     @GetMapping(path = "/ballot/{id}")
     public ResponseEntity<?> getBallot(
             @PathVariable Long id) {
-        Optional<Ballot> lottery = service.findById(id);
-        if (lottery.isPresent()) {
-            return ResponseEntity.ok(lottery.get());
+        Optional<BallotView> ballot = service.findById(id);
+        if (ballot.isPresent()) {
+            return ResponseEntity.ok(ballot.get());
         } else {
             return ResponseEntity.unprocessableEntity()
                     .body("The element was not found in the db.");
@@ -1,17 +1,28 @@
 package com.task.lottery.controllers;
 
 
+import com.task.lottery.dtos.GuessCount;
+import com.task.lottery.dtos.GuessLiability;
+import com.task.lottery.dtos.LotteryStats;
+import com.task.lottery.dtos.LotteryView;
 import com.task.lottery.entities.Lottery;
+import com.task.lottery.services.GuessHistogramService;
 import com.task.lottery.services.LotteryService;
+import com.task.lottery.services.LotteryStatsService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.time.LocalDate;
 import java.util.List;
+import java.util.Locale;
 import java.util.Optional;
+import java.util.zip.GZIPOutputStream;
 
 @Controller
 @RestController
@@ -21,6 +32,16 @@ public class LotteryController {
     @Autowired
     transient LotteryService service;
 
+    @Autowired
+    transient LotteryStatsService statsService;
+
+    @Autowired
+    transient GuessHistogramService histogramService;
+
+    private static final MediaType NDJSON = MediaType.parseMediaType("application/x-ndjson");
+
+    private static final int EXPORT_BUFFER_SIZE = 8192;
+
 
     /**
      * Receives a POST mapping to save a lottery instance into the database.
@@ -40,12 +61,25 @@ public class LotteryController {
 
 
     /**
-     * Receives a GET mapping to return all the lotteries in the database.
-     * @return ResponseEntity containing a list of all the lotteries in the database.
+     * Receives a GET mapping to return a page of the lotteries in the database, in the order of their ids.
+     * @param token the continuation token returned with the previous page, absent for the first page.
+     * @param size the page size.
+     * @param from the optional first start date of the lotteries.
+     * @param to the optional last start date of the lotteries.
+     * @return ResponseEntity containing the page of lotteries and the token of the next page.
+     * Otherwise, ResponseEntity with badRequest if the token or the size is invalid.
      */
     @GetMapping(path = "/list")
-    public @ResponseBody ResponseEntity<List<Lottery>> getAllLotteries() {
-        return ResponseEntity.ok(service.findAll());
+    public @ResponseBody ResponseEntity<?> getAllLotteries(
+            @RequestParam(required = false) String token,
+            @RequestParam(required = false) Integer size,
+            @RequestParam(required = false) @DateTimeFormat(pattern = "yyyy-MM-dd") LocalDate from,
+            @RequestParam(required = false) @DateTimeFormat(pattern = "yyyy-MM-dd") LocalDate to) {
+        try {
+            return ResponseEntity.ok(service.findPage(token, size, from, to));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
     }
 
 
@@ -75,7 +109,7 @@ public class LotteryController {
     @GetMapping(path = "/lottery/{id}")
     public ResponseEntity<?> getLottery(
             @PathVariable Long id) {
-        Optional<Lottery> lottery = service.findById(id);
+        Optional<LotteryView> lottery = service.findById(id);
         if (lottery.isPresent()) {
             return ResponseEntity.ok(lottery.get());
         } else {
@@ -84,6 +118,152 @@ public class LotteryController {
         }
     }
 
+    /**
+     * Receives a GET mapping to get the sales figures of a lottery: its ballot count, revenue, approximate number
+     * of distinct participants and ballots bought per hour. The figures are kept in memory, not queried.
+     * @param id the id of the lottery.
+     * @return ResponseEntity with the figures if the lottery exists.
+     * Otherwise, ResponseEntity with unprocessableEntity and the error message in the body.
+     */
+    @GetMapping(path = "/lottery/{id}/stats")
+    public ResponseEntity<?> getStats(
+            @PathVariable Long id) {
+        Optional<LotteryStats> stats = statsService.getStats(id);
+        if (stats.isPresent()) {
+            return ResponseEntity.ok(stats.get());
+        } else {
+            return ResponseEntity.unprocessableEntity()
+                    .body("The element was not found in the db.");
+        }
+    }
+
+    /**
+     * Receives a GET mapping to find the most played guesses of a lottery, from the guess counts kept in memory.
+     * @param id the id of the lottery.
+     * @param k the number of guesses to find.
+     * @return ResponseEntity with the guesses and their ballot counts, most played first, if the lottery exists.
+     * ResponseEntity with badRequest if k is out of range.
+     * Otherwise, ResponseEntity with unprocessableEntity and the error message in the body.
+     */
+    @GetMapping(path = "/lottery/{id}/guesses/top")
+    public ResponseEntity<?> getTopGuesses(
+            @PathVariable Long id,
+            @RequestParam(defaultValue = "10") int k) {
+        try {
+            Optional<List<GuessCount>> top = histogramService.findTop(id, k);
+            if (top.isPresent()) {
+                return ResponseEntity.ok(top.get());
+            }
+            return ResponseEntity.unprocessableEntity()
+                    .body("The element was not found in the db.");
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    /**
+     * Receives a GET mapping to find what a lottery would pay if a number was drawn, by the prize tiers of the
+     * guess draws, from the guess counts kept in memory.
+     * @param id the id of the lottery.
+     * @param number the drawn number.
+     * @return ResponseEntity with the winning ballots of each tier and the payout if the lottery exists.
+     * ResponseEntity with badRequest if the number is invalid.
+     * Otherwise, ResponseEntity with unprocessableEntity and the error message in the body.
+     */
+    @GetMapping(path = "/lottery/{id}/liability")
+    public ResponseEntity<?> getLiability(
+            @PathVariable Long id,
+            @RequestParam String number) {
+        try {
+            Optional<GuessLiability> liability = histogramService.findLiability(id, number);
+            if (liability.isPresent()) {
+                return ResponseEntity.ok(liability.get());
+            }
+            return ResponseEntity.unprocessableEntity()
+                    .body("The element was not found in the db.");
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    /**
+     * Receives a GET mapping to export all the ballots of a lottery as newline delimited JSON.
+     * The ballots are streamed to the client as they are read from the database. The response is compressed
+     * with gzip if the client accepts it, by name or with "*", with a q-value above 0.
+     * @param id the id of the lottery.
+     * @param acceptEncoding the encodings accepted by the client.
+     * @return ResponseEntity streaming the ballots if the lottery exists.
+     * Otherwise, ResponseEntity with unprocessableEntity and the error message in the body.
+     */
+    @GetMapping(path = "/lottery/{id}/ballots.ndjson")
+    public ResponseEntity<?> exportBallots(
+            @PathVariable Long id,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
+        if (!service.existsById(id)) {
+            return ResponseEntity.unprocessableEntity()
+                    .body("The element was not found in the db.");
+        }
+        boolean gzip = acceptsGzip(acceptEncoding);
+        StreamingResponseBody body = out -> {
+            if (gzip) {
+                GZIPOutputStream compressed = new GZIPOutputStream(out, EXPORT_BUFFER_SIZE);
+                service.exportBallots(id, compressed);
+                compressed.finish();
+            } else {
+                service.exportBallots(id, out);
+            }
+        };
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .contentType(NDJSON)
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (gzip) {
+            response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        return response.body(body);
+    }
+
+
+    /**
+     * Checks whether an Accept-Encoding header accepts gzip. The q-value of gzip decides when it is listed, and
+     * otherwise the one of "*"; an encoding with q=0, or with a q-value which cannot be read, is not accepted.
+     * @param acceptEncoding the header, or null if the client sent none.
+     * @return true if the response may be compressed with gzip and false otherwise.
+     */
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        Double gzip = null;
+        Double any = null;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parameters = element.split(";");
+            String coding = parameters[0].trim().toLowerCase(Locale.ROOT);
+            double quality = 1;
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.regionMatches(true, 0, "q=", 0, 2)) {
+                    quality = quality(parameter.substring(2).trim());
+                }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                gzip = gzip == null ? quality : Math.max(gzip, quality);
+            } else if (coding.equals("*")) {
+                any = quality;
+            }
+        }
+        return gzip != null ? gzip > 0 : any != null && any > 0;
+    }
+
+
+    private static double quality(String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+
     /**
      * Receives a GET mapping to find and return the winner ballot of a date.
      * @param date the date to look for the winner.
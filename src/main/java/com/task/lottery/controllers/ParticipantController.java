@@ -1,13 +1,15 @@
 package com.task.lottery.controllers;
 
+import com.task.lottery.dtos.ParticipantView;
 import com.task.lottery.entities.Participant;
+import com.task.lottery.services.BallotService;
 import com.task.lottery.services.ParticipantService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
 
-import java.util.List;
 import java.util.Optional;
 
 @Controller
@@ -18,6 +20,9 @@ public class ParticipantController {
     @Autowired
     transient ParticipantService service;
 
+    @Autowired
+    transient BallotService ballotService;
+
 
     /**
      * Receives a POST mapping to save a participant instance into the database.
@@ -27,19 +32,56 @@ public class ParticipantController {
      */
     @PostMapping(path = "/participant")
     public @ResponseBody
-    ResponseEntity<Participant> addNewParticipant(
+    ResponseEntity<?> addNewParticipant(
             @RequestBody Participant participant) {
-        return ResponseEntity.ok(service.save(participant));
+        try { return ResponseEntity.ok(service.save(participant)); }
+        catch (DataIntegrityViolationException e) {
+            return ResponseEntity.badRequest().body("A participant with this email already exists!");
+        }
     }
 
 
     /**
-     * Receives a GET mapping to return all the participants in the database.
-     * @return ResponseEntity containing a list of all the participants in the database.
+     * Receives a GET mapping to return a page of the participants in the database, in the order of their ids.
+     * @param token the continuation token returned with the previous page, absent for the first page.
+     * @param size the page size.
+     * @param lotteryId the optional id of a lottery the participants played.
+     * @return ResponseEntity containing the page of participants and the token of the next page.
+     * Otherwise, ResponseEntity with badRequest if the token or the size is invalid.
      */
     @GetMapping(path = "/list")
-    public @ResponseBody ResponseEntity<List<Participant>> getAllContracts() {
-        return ResponseEntity.ok(service.findAll());
+    public @ResponseBody ResponseEntity<?> getAllContracts(
+            @RequestParam(required = false) String token,
+            @RequestParam(required = false) Integer size,
+            @RequestParam(required = false) Long lotteryId) {
+        try {
+            return ResponseEntity.ok(service.findPage(token, size, lotteryId));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+
+    /**
+     * Receives a GET mapping to return a page of the ballots of a participant, in the order of their ids.
+     * @param id the id of the participant.
+     * @param lotteryId the optional id of the lottery of the ballots.
+     * @param token the continuation token returned with the previous page, absent for the first page.
+     * @param size the page size.
+     * @return ResponseEntity containing the page of ballots and the token of the next page.
+     * Otherwise, ResponseEntity with badRequest if the token or the size is invalid.
+     */
+    @GetMapping(path = "/participant/{id}/ballots")
+    public @ResponseBody ResponseEntity<?> getParticipantBallots(
+            @PathVariable Long id,
+            @RequestParam(required = false) Long lotteryId,
+            @RequestParam(required = false) String token,
+            @RequestParam(required = false) Integer size) {
+        try {
+            return ResponseEntity.ok(ballotService.findByParticipant(id, lotteryId, token, size));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
     }
 
 
@@ -69,7 +111,7 @@ public class ParticipantController {
     @GetMapping(path = "/participant/{id}")
     public ResponseEntity<?> getParticipant(
             @PathVariable Long id) {
-        Optional<Participant> participant = service.findById(id);
+        Optional<ParticipantView> participant = service.findById(id);
         if (participant.isPresent()) {
             return ResponseEntity.ok(participant.get());
         } else {
@@ -0,0 +1,25 @@
+package com.task.lottery.dtos;
+
+import java.time.LocalDateTime;
+
+
+/**
+ * A ballot as it is kept in the archive of its lottery, which holds the ballots of one lottery only.
+ * @param id the id of the ballot.
+ * @param participantId the id of the participant.
+ * @param guessValue the guess as the number it spells.
+ * @param guessLength the number of digits of the guess.
+ * @param purchaseTime the time the ballot was bought, null for the ballots bought before it was recorded.
+ */
+public record ArchivedBallot(Long id, Long participantId, int guessValue, Integer guessLength,
+                             LocalDateTime purchaseTime) {
+
+    /**
+     * Gets the view of the ballot, as it is returned by the read endpoints.
+     * @param lotteryId the id of the lottery of the archive.
+     * @return the view of the ballot.
+     */
+    public BallotView toView(Long lotteryId) {
+        return new BallotView(id, lotteryId, participantId, guessValue, guessLength);
+    }
+}
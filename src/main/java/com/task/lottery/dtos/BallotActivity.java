@@ -0,0 +1,14 @@
+package com.task.lottery.dtos;
+
+import java.time.LocalDateTime;
+
+
+/**
+ * Who bought a ballot in which lottery and when, without the rest of the ballot.
+ * @param id the id of the ballot.
+ * @param lotteryId the id of the lottery.
+ * @param participantId the id of the participant.
+ * @param purchaseTime the time the ballot was bought, null for the ballots bought before it was recorded.
+ */
+public record BallotActivity(Long id, Long lotteryId, Long participantId, LocalDateTime purchaseTime) {
+}
@@ -0,0 +1,12 @@
+package com.task.lottery.dtos;
+
+import java.util.List;
+
+/**
+ * Request body to buy several ballots of a lottery for one participant at once.
+ * @param participantId the id of the Participant who plays the ballots.
+ * @param lotteryId the id of the Lottery the ballots are played in.
+ * @param guesses the guesses of the ballots, one ballot per guess.
+ */
+public record BallotBatchRequest(Long participantId, Long lotteryId, List<String> guesses) {
+}
@@ -0,0 +1,11 @@
+package com.task.lottery.dtos;
+
+
+/**
+ * The guess of a ballot as it is stored, without the rest of the ballot.
+ * @param id the id of the ballot.
+ * @param guessValue the guess as the number it spells.
+ * @param guessLength the number of digits of the guess.
+ */
+public record BallotGuess(Long id, int guessValue, int guessLength) {
+}
@@ -0,0 +1,19 @@
+package com.task.lottery.dtos;
+
+/**
+ * Outcome of the purchase of a single ballot in a batch.
+ * @param guess the guess of the ballot.
+ * @param success true if the ballot was saved and false otherwise.
+ * @param ballotId the id of the saved ballot, null if the purchase failed.
+ * @param error the reason of the failure, null if the purchase succeeded.
+ */
+public record BallotPurchaseResult(String guess, boolean success, Long ballotId, String error) {
+
+    public static BallotPurchaseResult succeeded(String guess, Long ballotId) {
+        return new BallotPurchaseResult(guess, true, ballotId, null);
+    }
+
+    public static BallotPurchaseResult failed(String guess, String error) {
+        return new BallotPurchaseResult(guess, false, null, error);
+    }
+}
@@ -0,0 +1,27 @@
+package com.task.lottery.dtos;
+
+/**
+ * Ticket given for a ballot purchase that is processed asynchronously.
+ * @param id the id of the ticket.
+ * @param status the state of the purchase.
+ * @param ballotId the id of the saved ballot, null until the purchase is accepted.
+ * @param error the reason of the rejection, null unless the purchase is rejected.
+ */
+public record BallotTicket(long id, Status status, Long ballotId, String error) {
+
+    public enum Status {
+        PENDING,
+        ACCEPTED,
+        REJECTED
+    }
+
+    public static BallotTicket pending(long id) {
+        return new BallotTicket(id, Status.PENDING, null, null);
+    }
+
+    public static BallotTicket of(long id, BallotPurchaseResult result) {
+        return result.success()
+                ? new BallotTicket(id, Status.ACCEPTED, result.ballotId(), null)
+                : new BallotTicket(id, Status.REJECTED, null, result.error());
+    }
+}
@@ -0,0 +1,36 @@
+package com.task.lottery.dtos;
+
+import com.task.lottery.entities.Ballot;
+import com.task.lottery.utils.GuessCodec;
+
+/**
+ * A ballot as it is returned by the read endpoints and the exports, read without loading the ballot entity.
+ * @param id the id of the ballot.
+ * @param lotteryId the id of the Lottery the ballot was played in.
+ * @param participantId the id of the Participant who played the ballot.
+ * @param guess the guess of the ballot.
+ */
+public record BallotView(Long id, Long lotteryId, Long participantId, String guess) {
+
+    /**
+     * Instantiates a new BallotView from the stored form of the guess.
+     * @param id the id of the ballot.
+     * @param lotteryId the id of the lottery.
+     * @param participantId the id of the participant.
+     * @param guessValue the guess as the number it spells.
+     * @param guessLength the number of digits of the guess.
+     */
+    public BallotView(Long id, Long lotteryId, Long participantId, int guessValue, Integer guessLength) {
+        this(id, lotteryId, participantId, GuessCodec.decode(guessValue, guessLength));
+    }
+
+
+    /**
+     * Gets the view of a ballot entity.
+     * @param ballot the ballot.
+     * @return the view of the ballot.
+     */
+    public static BallotView of(Ballot ballot) {
+        return new BallotView(ballot.getId(), ballot.getLotteryId(), ballot.getParticipantId(), ballot.getGuess());
+    }
+}
@@ -0,0 +1,10 @@
+package com.task.lottery.dtos;
+
+
+/**
+ * How many ballots of a lottery played a guess.
+ * @param guess the guess.
+ * @param ballots the number of ballots with the guess.
+ */
+public record GuessCount(String guess, int ballots) {
+}
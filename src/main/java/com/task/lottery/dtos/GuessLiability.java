@@ -0,0 +1,15 @@
+package com.task.lottery.dtos;
+
+import java.util.SortedMap;
+
+
+/**
+ * What a lottery would pay if a number was drawn, by the prize tiers of the guess draws.
+ * @param lotteryId the id of the lottery.
+ * @param number the drawn number.
+ * @param winningBallots the number of ballots in each prize tier, by the number of matching positions.
+ * @param payout the total prize paid to the winning ballots.
+ */
+public record GuessLiability(Long lotteryId, String number, SortedMap<Integer, Long> winningBallots,
+                             double payout) {
+}
@@ -0,0 +1,12 @@
+package com.task.lottery.dtos;
+
+import java.util.List;
+
+/**
+ * A page of a list ordered by id.
+ * @param items the items of the page.
+ * @param next the opaque token of the next page, null if this is the last page.
+ * @param <T> the type of the items.
+ */
+public record KeysetPage<T>(List<T> items, String next) {
+}
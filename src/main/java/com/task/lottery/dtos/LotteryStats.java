@@ -0,0 +1,20 @@
+package com.task.lottery.dtos;
+
+import java.time.LocalDateTime;
+import java.util.SortedMap;
+
+
+/**
+ * The sales figures of a lottery.
+ * @param lotteryId the id of the lottery.
+ * @param ballotCount the number of ballots bought.
+ * @param revenue the price paid for the ballots.
+ * @param uniqueParticipants the approximate number of distinct participants who bought the ballots.
+ * @param ballotsPerHour the number of ballots bought in each hour, by the start of the hour.
+ */
+public record LotteryStats(Long lotteryId,
+                           long ballotCount,
+                           double revenue,
+                           long uniqueParticipants,
+                           SortedMap<LocalDateTime, Long> ballotsPerHour) {
+}
@@ -0,0 +1,68 @@
+package com.task.lottery.dtos;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.task.lottery.entities.Lottery;
+
+import java.time.LocalDate;
+
+/**
+ * A lottery as it is returned by the read endpoints, read without loading the lottery entity.
+ * @param id the id of the lottery.
+ * @param startTime the date of the lottery.
+ * @param isOpen whether ballots can be bought.
+ * @param isDrawn whether the winner was drawn.
+ * @param ballotCount the number of ballots bought, which is not stored with the lottery.
+ * @param winnerId the id of the winner ballot, null until the lottery is drawn.
+ * @param winningNumber the drawn number in the guess draw mode, null otherwise.
+ * @param prize the prize of the lottery.
+ * @param ballotPrice the price of a ballot.
+ */
+public record LotteryView(Long id,
+                          LocalDate startTime,
+                          @JsonProperty("isOpen") boolean isOpen,
+                          @JsonProperty("isDrawn") boolean isDrawn,
+                          int ballotCount,
+                          Long winnerId,
+                          String winningNumber,
+                          double prize,
+                          double ballotPrice) {
+
+    /**
+     * Instantiates a new LotteryView without its ballot count.
+     * @param id the id of the lottery.
+     * @param startTime the date of the lottery.
+     * @param isOpen whether ballots can be bought.
+     * @param isDrawn whether the winner was drawn.
+     * @param winnerId the id of the winner ballot.
+     * @param winningNumber the drawn number.
+     * @param prize the prize of the lottery.
+     * @param ballotPrice the price of a ballot.
+     */
+    public LotteryView(Long id, LocalDate startTime, boolean isOpen, boolean isDrawn, Long winnerId,
+                       String winningNumber, double prize, double ballotPrice) {
+        this(id, startTime, isOpen, isDrawn, 0, winnerId, winningNumber, prize, ballotPrice);
+    }
+
+
+    /**
+     * Gets a copy of this view with the given ballot count.
+     * @param ballotCount the ballot count.
+     * @return the copy.
+     */
+    public LotteryView withBallotCount(int ballotCount) {
+        return new LotteryView(id, startTime, isOpen, isDrawn, ballotCount, winnerId, winningNumber, prize,
+                ballotPrice);
+    }
+
+
+    /**
+     * Gets the view of a lottery entity.
+     * @param lottery the lottery.
+     * @return the view of the lottery.
+     */
+    public static LotteryView of(Lottery lottery) {
+        return new LotteryView(lottery.getId(), lottery.getStartTime(), lottery.getIsOpen(), lottery.getIsDrawn(),
+                lottery.getBallotCount(), lottery.getWinnerId(), lottery.getWinningNumber(), lottery.getPrize(),
+                lottery.getBallotPrice());
+    }
+}
@@ -0,0 +1,34 @@
+package com.task.lottery.dtos;
+
+import com.task.lottery.entities.Participant;
+
+/**
+ * A participant as it is returned by the read endpoints, read without loading the participant entity.
+ * @param id the id of the participant.
+ * @param firstName the first name of the participant.
+ * @param lastName the last name of the participant.
+ * @param email the email of the participant.
+ * @param balance the balance of the participant.
+ */
+public record ParticipantView(Long id, String firstName, String lastName, String email, double balance) {
+
+    /**
+     * Gets a copy of this view with the given balance.
+     * @param balance the balance.
+     * @return the copy.
+     */
+    public ParticipantView withBalance(double balance) {
+        return new ParticipantView(id, firstName, lastName, email, balance);
+    }
+
+
+    /**
+     * Gets the view of a participant entity.
+     * @param participant the participant.
+     * @return the view of the participant.
+     */
+    public static ParticipantView of(Participant participant) {
+        return new ParticipantView(participant.getId(), participant.getFirstName(), participant.getLastName(),
+                participant.getEmail(), participant.getBalance());
+    }
+}
@@ -1,16 +1,35 @@
 package com.task.lottery.entities;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.task.lottery.utils.GuessCodec;
 import jakarta.persistence.*;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
 
 
+import java.time.LocalDateTime;
 import java.util.Objects;
 
 @Entity
+@Table(
+        name = "ballot",
+        indexes = {
+                @Index(name = "idx_ballot_lottery", columnList = "lottery_id"),
+                @Index(name = "idx_ballot_participant_lottery", columnList = "participant_id, lottery_id")
+        }
+)
 public class Ballot {
 
     @Id
     @GeneratedValue(
-            strategy = GenerationType.AUTO
+            strategy = GenerationType.SEQUENCE,
+            generator = "ballot_sequence"
+    )
+    @GenericGenerator(
+            name = "ballot_sequence",
+            strategy = "com.task.lottery.entities.PooledSequenceGenerator",
+            parameters = @Parameter(name = SequenceStyleGenerator.SEQUENCE_PARAM, value = "ballot_seq")
     )
     @Column(
             name = "ballot_id",
@@ -35,8 +54,24 @@ public class Ballot {
 
 
     @Column(
-            name = "guess"
+            name = "guess",
+            updatable = false
+    )
+    private int guessValue;
+
+    @Column(
+            name = "guess_length",
+            updatable = false
+    )
+    private byte guessLength;
+
+    @Column(
+            name = "purchase_time",
+            updatable = false
     )
+    private LocalDateTime purchaseTime;
+
+    @Transient
     private String guess;
 
     /**
@@ -50,7 +85,7 @@ public class Ballot {
         this.id = id;
         this.lotteryId = lotteryId;
         this.participantId = participantId;
-        this.guess = guess;
+        setGuess(guess);
     }
 
     public Ballot() {
@@ -95,6 +130,63 @@ public class Ballot {
      */
     public void setGuess(String guess) {
         this.guess = guess;
+        if (GuessCodec.isEncodable(guess)) {
+            this.guessValue = GuessCodec.encode(guess);
+            this.guessLength = (byte) guess.length();
+        } else {
+            this.guessValue = 0;
+            this.guessLength = 0;
+        }
+    }
+
+    /**
+     * Gets the guess as the number it spells, which is how it is stored.
+     * @return the value of the guess.
+     */
+    @JsonIgnore
+    public int getGuessValue() {
+        return guessValue;
+    }
+
+    /**
+     * Gets the number of digits of the guess, which keeps its leading zeros.
+     * @return the length of the guess.
+     */
+    @JsonIgnore
+    public int getGuessLength() {
+        return guessLength;
+    }
+
+    /**
+     * Gets the time the Ballot was bought, set when it is inserted.
+     * @return the purchase time, or null if the Ballot was not saved yet.
+     */
+    @JsonIgnore
+    public LocalDateTime getPurchaseTime() {
+        return purchaseTime;
+    }
+
+    /**
+     * Sets the time the Ballot was bought, when it was accepted before it is inserted.
+     * @param purchaseTime - The purchase time.
+     */
+    public void setPurchaseTime(LocalDateTime purchaseTime) {
+        this.purchaseTime = purchaseTime;
+    }
+
+    @PrePersist
+    private void beforeInsert() {
+        if (!GuessCodec.isEncodable(guess)) {
+            throw new IllegalStateException("Invalid guess!");
+        }
+        if (purchaseTime == null) {
+            purchaseTime = LocalDateTime.now();
+        }
+    }
+
+    @PostLoad
+    private void decodeGuess() {
+        this.guess = GuessCodec.decode(guessValue, guessLength);
     }
 
 
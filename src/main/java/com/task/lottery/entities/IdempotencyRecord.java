@@ -0,0 +1,166 @@
+package com.task.lottery.entities;
+
+import jakarta.persistence.*;
+import org.springframework.data.domain.Persistable;
+
+import java.time.Instant;
+import java.util.Objects;
+
+
+/**
+ * The response given to a request sent with an idempotency key, kept to answer the retries of the request.
+ * The key is scoped by the participant who sent the request, and the hash of the request body is kept so that
+ * a key sent again with another body is refused. A record is inserted as pending when a request claims its key,
+ * and gets the response once the request is done.
+ */
+@Entity
+@Table(
+        name = "idempotency_record",
+        indexes = @Index(name = "idx_idempotency_record_created_at", columnList = "created_at")
+)
+public class IdempotencyRecord implements Persistable<String> {
+
+    /**
+     * The status of a record whose request is still running.
+     */
+    public static final int PENDING = 0;
+
+    @Id
+    @Column(
+            name = "idempotency_key",
+            updatable = false,
+            length = 160
+    )
+    private String key;
+
+    @Column(
+            name = "request_hash",
+            updatable = false,
+            length = 64
+    )
+    private String requestHash;
+
+    @Column(
+            name = "status"
+    )
+    private int status;
+
+    @Column(
+            name = "content_type"
+    )
+    private String contentType;
+
+    @Column(
+            name = "body",
+            length = 4000
+    )
+    private String body;
+
+    @Column(
+            name = "created_at"
+    )
+    private Instant createdAt;
+
+    /**
+     * Instantiates a new IdempotencyRecord
+     * @param key - The idempotency key of the request, scoped by the participant.
+     * @param requestHash - The hash of the request body.
+     * @param status - The HTTP status of the response.
+     * @param contentType - The content type of the response body.
+     * @param body - The response body.
+     * @param createdAt - The time the response was given.
+     */
+    public IdempotencyRecord(String key, String requestHash, int status, String contentType, String body,
+                             Instant createdAt) {
+        this.key = key;
+        this.requestHash = requestHash;
+        this.status = status;
+        this.contentType = contentType;
+        this.body = body;
+        this.createdAt = createdAt;
+    }
+
+    public IdempotencyRecord() {
+
+    }
+
+    /**
+     * Gets the idempotency key.
+     * @return the idempotency key.
+     */
+    @Override
+    public String getId() {
+        return key;
+    }
+
+    /**
+     * Records are only inserted by a save, without reading them first; the response is stored by an update query.
+     * @return true.
+     */
+    @Override
+    public boolean isNew() {
+        return true;
+    }
+
+    /**
+     * Checks whether the request which claimed the key is still running, in which case there is no response yet.
+     * @return true if the record is pending and false otherwise.
+     */
+    public boolean isPending() {
+        return status == PENDING;
+    }
+
+    /**
+     * Gets the hash of the request body.
+     * @return the request hash.
+     */
+    public String getRequestHash() {
+        return requestHash;
+    }
+
+    /**
+     * Gets the HTTP status of the response.
+     * @return the status.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Gets the content type of the response body.
+     * @return the content type.
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Gets the response body.
+     * @return the body.
+     */
+    public String getBody() {
+        return body;
+    }
+
+    /**
+     * Gets the time the response was given.
+     * @return the creation time.
+     */
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        IdempotencyRecord that = (IdempotencyRecord) o;
+        return status == that.status && Objects.equals(key, that.key) && Objects.equals(requestHash, that.requestHash) && Objects.equals(contentType, that.contentType) && Objects.equals(body, that.body) && Objects.equals(createdAt, that.createdAt);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(key, requestHash, status, contentType, body, createdAt);
+    }
+}
@@ -0,0 +1,82 @@
+package com.task.lottery.entities;
+
+import jakarta.persistence.*;
+
+import java.util.Objects;
+
+
+/**
+ * The sequence of the last journal record saved into the database, updated in the same transaction as the
+ * records, so that replaying the journal after a crash skips exactly the records which were already saved.
+ */
+@Entity
+@Table(
+        name = "journal_checkpoint"
+)
+public class JournalCheckpoint {
+
+    @Id
+    @Column(
+            name = "journal",
+            updatable = false,
+            length = 64
+    )
+    private String journal;
+
+    @Column(
+            name = "last_sequence"
+    )
+    private long sequence;
+
+    /**
+     * Instantiates a new JournalCheckpoint
+     * @param journal - The name of the journal.
+     * @param sequence - The sequence of the last saved record.
+     */
+    public JournalCheckpoint(String journal, long sequence) {
+        this.journal = journal;
+        this.sequence = sequence;
+    }
+
+    public JournalCheckpoint() {
+
+    }
+
+    /**
+     * Gets the name of the journal.
+     * @return the name of the journal.
+     */
+    public String getJournal() {
+        return journal;
+    }
+
+    /**
+     * Gets the sequence of the last saved record.
+     * @return the sequence.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Sets the sequence of the last saved record.
+     * @param sequence - The sequence.
+     */
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        JournalCheckpoint that = (JournalCheckpoint) o;
+        return sequence == that.sequence && Objects.equals(journal, that.journal);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(journal, sequence);
+    }
+}
@@ -1,15 +1,42 @@
 package com.task.lottery.entities;
 
+import com.task.lottery.config.SecondLevelCacheConfiguration;
 import jakarta.persistence.*;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
 
 import java.time.LocalDate;
 import java.util.Objects;
 
+/**
+ * A lottery. Kept in the second-level cache with the read-write strategy: a lottery is versioned, so a stale
+ * copy read from the cache would fail the next save of the lottery, and read-write locks the cached copy while
+ * a transaction changes it instead of serving it until the commit. The draw claims and the other bulk updates
+ * of the table evict the whole region.
+ */
 @Entity
+@Cacheable
+@Cache(
+        usage = CacheConcurrencyStrategy.READ_WRITE,
+        region = SecondLevelCacheConfiguration.LOTTERY_REGION
+)
+@Table(
+        name = "lottery",
+        indexes = @Index(name = "idx_lottery_start_time", columnList = "start_time")
+)
 public class Lottery {
     @Id
     @GeneratedValue(
-            strategy = GenerationType.AUTO
+            strategy = GenerationType.SEQUENCE,
+            generator = "lottery_sequence"
+    )
+    @GenericGenerator(
+            name = "lottery_sequence",
+            strategy = "com.task.lottery.entities.PooledSequenceGenerator",
+            parameters = @Parameter(name = SequenceStyleGenerator.SEQUENCE_PARAM, value = "lottery_seq")
     )
     @Column(
             name = "lottery_id",
@@ -28,8 +55,11 @@ public class Lottery {
     private boolean isOpen;
 
     @Column(
-            name = "ballot_count"
+            name = "is_drawn"
     )
+    private boolean isDrawn;
+
+    @Transient
     private int ballotCount;
 
     @Column(
@@ -37,6 +67,11 @@ public class Lottery {
     )
     private Long winnerBallotId;
 
+    @Column(
+            name = "winning_number"
+    )
+    private String winningNumber;
+
 
     @Column(
             name = "prize"
@@ -49,6 +84,12 @@ public class Lottery {
     )
     private double ballotPrice;
 
+    @Version
+    @Column(
+            name = "version"
+    )
+    private long version;
+
     public double getBallotPrice() {
         return ballotPrice;
     }
@@ -129,6 +170,24 @@ public class Lottery {
     }
 
 
+    /**
+     * Gets whether the winner of the Lottery was drawn.
+     * @return true if the Lottery was drawn and false otherwise.
+     */
+    public boolean getIsDrawn() {
+        return isDrawn;
+    }
+
+
+    /**
+     * Sets whether the winner of the Lottery was drawn.
+     * @param isDrawn new state to set.
+     */
+    public void setIsDrawn(boolean isDrawn) {
+        this.isDrawn = isDrawn;
+    }
+
+
     /**
      * Gets the prize of the Lottery.
      * @return the prize of the Lottery.
@@ -149,6 +208,7 @@ public class Lottery {
 
     /**
      * Gets the current played ballot count in the Lottery.
+     * The count is not stored in the Lottery table, it is the sum of the LotteryCounter stripes of the Lottery.
      * @return the ballot count in the Lottery.
      */
     public int getBallotCount() {
@@ -183,16 +243,34 @@ public class Lottery {
     }
 
 
+    /**
+     * Gets the winning number of the Lottery, drawn when the Lottery is drawn by guess.
+     * @return the winning number, or null if the Lottery was not drawn by guess.
+     */
+    public String getWinningNumber() {
+        return winningNumber;
+    }
+
+
+    /**
+     * Sets the winning number of the Lottery.
+     * @param winningNumber - the winning number to set.
+     */
+    public void setWinningNumber(String winningNumber) {
+        this.winningNumber = winningNumber;
+    }
+
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Lottery lottery = (Lottery) o;
-        return isOpen == lottery.isOpen && ballotCount == lottery.ballotCount && Double.compare(lottery.prize, prize) == 0 && Double.compare(lottery.ballotPrice, ballotPrice) == 0 && Objects.equals(id, lottery.id) && Objects.equals(startTime, lottery.startTime) && Objects.equals(winnerBallotId, lottery.winnerBallotId);
+        return isOpen == lottery.isOpen && isDrawn == lottery.isDrawn && ballotCount == lottery.ballotCount && Double.compare(lottery.prize, prize) == 0 && Double.compare(lottery.ballotPrice, ballotPrice) == 0 && Objects.equals(id, lottery.id) && Objects.equals(startTime, lottery.startTime) && Objects.equals(winnerBallotId, lottery.winnerBallotId) && Objects.equals(winningNumber, lottery.winningNumber);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(id, startTime, isOpen, ballotCount, winnerBallotId, prize, ballotPrice);
+        return Objects.hash(id, startTime, isOpen, isDrawn, ballotCount, winnerBallotId, winningNumber, prize, ballotPrice);
     }
 }
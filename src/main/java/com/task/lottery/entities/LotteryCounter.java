@@ -0,0 +1,118 @@
+package com.task.lottery.entities;
+
+import jakarta.persistence.*;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+
+import java.util.Objects;
+
+
+/**
+ * One stripe of the ballot count of a Lottery.
+ * The ballot count is split over several rows so that concurrent purchases update different rows
+ * instead of all waiting for the same one. The ballot count of a Lottery is the sum of its stripes.
+ */
+@Entity
+@Table(
+        name = "lottery_counter",
+        uniqueConstraints = @UniqueConstraint(columnNames = {"lottery_id", "stripe"})
+)
+public class LotteryCounter {
+
+    @Id
+    @GeneratedValue(
+            strategy = GenerationType.SEQUENCE,
+            generator = "lottery_counter_sequence"
+    )
+    @GenericGenerator(
+            name = "lottery_counter_sequence",
+            strategy = "com.task.lottery.entities.PooledSequenceGenerator",
+            parameters = @Parameter(name = SequenceStyleGenerator.SEQUENCE_PARAM, value = "lottery_counter_seq")
+    )
+    @Column(
+            name = "lottery_counter_id",
+            updatable = false
+    )
+    private Long id;
+
+    @Column(
+            name = "lottery_id",
+            updatable = false,
+            nullable = false
+    )
+    private Long lotteryId;
+
+    @Column(
+            name = "stripe",
+            updatable = false,
+            nullable = false
+    )
+    private int stripe;
+
+    @Column(
+            name = "ballot_count",
+            nullable = false
+    )
+    private long ballotCount;
+
+    /**
+     * Instantiates a new LotteryCounter
+     * @param lotteryId - The id of the Lottery the stripe belongs to.
+     * @param stripe - The index of the stripe.
+     */
+    public LotteryCounter(Long lotteryId, int stripe) {
+        this.lotteryId = lotteryId;
+        this.stripe = stripe;
+    }
+
+    public LotteryCounter() {
+
+    }
+
+    /**
+     * Gets the LotteryCounter id.
+     * @return the LotteryCounter id.
+     */
+    public Long getId() {
+        return id;
+    }
+
+    /**
+     * Gets the id of the Lottery the stripe belongs to.
+     * @return the Lottery id.
+     */
+    public Long getLotteryId() {
+        return lotteryId;
+    }
+
+    /**
+     * Gets the index of the stripe.
+     * @return the stripe.
+     */
+    public int getStripe() {
+        return stripe;
+    }
+
+    /**
+     * Gets the number of ballots counted by the stripe.
+     * @return the ballot count of the stripe.
+     */
+    public long getBallotCount() {
+        return ballotCount;
+    }
+
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        LotteryCounter that = (LotteryCounter) o;
+        return stripe == that.stripe && ballotCount == that.ballotCount && Objects.equals(id, that.id) && Objects.equals(lotteryId, that.lotteryId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, lotteryId, stripe, ballotCount);
+    }
+}
@@ -1,14 +1,27 @@
 package com.task.lottery.entities;
 import jakarta.persistence.*;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
 
 import java.util.Objects;
 
 
 @Entity
+@Table(
+        name = "participant",
+        indexes = @Index(name = "uk_participant_email", columnList = "email", unique = true)
+)
 public class Participant {
     @Id
     @GeneratedValue(
-            strategy = GenerationType.AUTO
+            strategy = GenerationType.SEQUENCE,
+            generator = "participant_sequence"
+    )
+    @GenericGenerator(
+            name = "participant_sequence",
+            strategy = "com.task.lottery.entities.PooledSequenceGenerator",
+            parameters = @Parameter(name = SequenceStyleGenerator.SEQUENCE_PARAM, value = "participant_seq")
     )
     @Column(
             name = "id",
@@ -39,6 +52,12 @@ public class Participant {
     )
     private double balance;
 
+    @Version
+    @Column(
+            name = "version"
+    )
+    private long version;
+
     /**
      * Instantiates a new Participant
      * @param id Id of the Participant - Unique to each.
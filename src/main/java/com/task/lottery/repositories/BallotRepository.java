@@ -1,10 +1,23 @@
 package com.task.lottery.repositories;
 
+import com.task.lottery.dtos.ArchivedBallot;
+import com.task.lottery.dtos.BallotActivity;
+import com.task.lottery.dtos.BallotView;
+import com.task.lottery.dtos.BallotGuess;
 import com.task.lottery.entities.Ballot;
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.time.LocalDate;
 import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
 
 
 /**
@@ -12,5 +25,202 @@ import java.util.List;
  */
 @Repository("BallotRepository")
 public interface BallotRepository extends JpaRepository<Ballot, Long> {
+
+    /**
+     * Selects a ballot as a BallotView instead of an entity, so it is neither managed nor dirty checked.
+     */
+    String VIEW = "select new com.task.lottery.dtos.BallotView(b.id, b.lotteryId, b.participantId, " +
+            "b.guessValue, cast(b.guessLength as Integer))";
+
     List<Ballot> findByLotteryId(Long lotteryId);
+
+    long countByLotteryId(Long lotteryId);
+
+    /**
+     * Finds a page of the ballots of a lottery in the order of their ids.
+     * With a page size of 1, the page number is the offset of the ballot among the ballots of the lottery.
+     * @param lotteryId the id of the lottery.
+     * @param pageable the page to find.
+     * @return the ballots of the page.
+     */
+    List<Ballot> findByLotteryIdOrderByIdAsc(Long lotteryId, Pageable pageable);
+
+    /**
+     * Finds a ballot by its id, without loading the ballot entity.
+     * @param id the id of the ballot.
+     * @return an optional of the ballot.
+     */
+    @Query(VIEW + " from Ballot b where b.id = :id")
+    Optional<BallotView> findViewById(@Param("id") Long id);
+
+    /**
+     * Finds the ballots of a participant after an id, in the order of their ids.
+     * The query is served by the (participant_id, lottery_id) index.
+     * @param participantId the id of the participant.
+     * @param afterId the id after which the ballots are found.
+     * @param limit the maximum number of ballots.
+     * @return the ballots.
+     */
+    @Query(VIEW + " from Ballot b where b.participantId = :participantId and b.id > :afterId order by b.id")
+    List<BallotView> findViewsByParticipant(@Param("participantId") Long participantId,
+                                            @Param("afterId") Long afterId,
+                                            Pageable limit);
+
+    /**
+     * Finds the ballots of a participant in a lottery after an id, in the order of their ids.
+     * The query is served by the (participant_id, lottery_id) index.
+     * @param participantId the id of the participant.
+     * @param lotteryId the id of the lottery.
+     * @param afterId the id after which the ballots are found.
+     * @param limit the maximum number of ballots.
+     * @return the ballots.
+     */
+    @Query(VIEW + " from Ballot b where b.participantId = :participantId and b.lotteryId = :lotteryId " +
+            "and b.id > :afterId order by b.id")
+    List<BallotView> findViewsByParticipantAndLottery(@Param("participantId") Long participantId,
+                                                      @Param("lotteryId") Long lotteryId,
+                                                      @Param("afterId") Long afterId,
+                                                      Pageable limit);
+
+    /**
+     * Streams the guesses of the ballots of a lottery without loading the ballots.
+     * The stream must be consumed and closed inside a transaction.
+     * @param lotteryId the id of the lottery.
+     * @return the guesses of the ballots.
+     */
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "1000"))
+    @Query("select new com.task.lottery.dtos.BallotGuess(b.id, b.guessValue, cast(b.guessLength as Integer)) " +
+            "from Ballot b where b.lotteryId = :lotteryId")
+    Stream<BallotGuess> streamGuessesByLotteryId(@Param("lotteryId") Long lotteryId);
+
+    /**
+     * Streams the guesses of the ballots of a lottery whose ids are above an id, without loading the ballots.
+     * The stream must be consumed and closed inside a transaction.
+     * @param lotteryId the id of the lottery.
+     * @param afterId the id above which the ballots are read.
+     * @return the guesses of the ballots.
+     */
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "1000"))
+    @Query("select new com.task.lottery.dtos.BallotGuess(b.id, b.guessValue, cast(b.guessLength as Integer)) " +
+            "from Ballot b where b.lotteryId = :lotteryId and b.id > :afterId")
+    Stream<BallotGuess> streamGuessesByLotteryIdAfter(@Param("lotteryId") Long lotteryId,
+                                                      @Param("afterId") Long afterId);
+
+    /**
+     * Streams the ballots of a lottery in the order of their ids, as views which are not managed entities,
+     * so the persistence context doesn't grow with the number of ballots.
+     * The stream must be consumed and closed inside a transaction.
+     * @param lotteryId the id of the lottery.
+     * @return the ballots.
+     */
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "1000"))
+    @Query(VIEW + " from Ballot b where b.lotteryId = :lotteryId order by b.id")
+    Stream<BallotView> streamExportByLotteryId(@Param("lotteryId") Long lotteryId);
+
+    /**
+     * Streams who bought every ballot, in which lottery and when, in one pass over the ballot table.
+     * The stream must be consumed and closed inside a transaction.
+     * @return the purchases of all the ballots.
+     */
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "1000"))
+    @Query("select new com.task.lottery.dtos.BallotActivity(b.id, b.lotteryId, b.participantId, b.purchaseTime) " +
+            "from Ballot b")
+    Stream<BallotActivity> streamActivity();
+
+    /**
+     * Streams who bought the ballots of a lottery and when.
+     * The stream must be consumed and closed inside a transaction.
+     * @param lotteryId the id of the lottery.
+     * @return the purchases of the ballots of the lottery.
+     */
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "1000"))
+    @Query("select new com.task.lottery.dtos.BallotActivity(b.id, b.lotteryId, b.participantId, b.purchaseTime) " +
+            "from Ballot b where b.lotteryId = :lotteryId")
+    Stream<BallotActivity> streamActivityByLotteryId(@Param("lotteryId") Long lotteryId);
+
+    /**
+     * Streams the ballots of a lottery in the order of their ids, in the form they are archived in.
+     * The stream must be consumed and closed inside a transaction.
+     * @param lotteryId the id of the lottery.
+     * @return the ballots.
+     */
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "1000"))
+    @Query("select new com.task.lottery.dtos.ArchivedBallot(b.id, b.participantId, b.guessValue, " +
+            "cast(b.guessLength as Integer), b.purchaseTime) " +
+            "from Ballot b where b.lotteryId = :lotteryId order by b.id")
+    Stream<ArchivedBallot> streamArchiveByLotteryId(@Param("lotteryId") Long lotteryId);
+
+    /**
+     * Finds the lotteries drawn before a date which still have ballots in the ballot table.
+     * @param before the date before which the lotteries started.
+     * @return the ids of the lotteries.
+     */
+    @Query("select distinct b.lotteryId from Ballot b where b.lotteryId in " +
+            "(select l.id from Lottery l where l.isDrawn = true and l.startTime < :before)")
+    List<Long> findDrawnLotteryIdsBefore(@Param("before") LocalDate before);
+
+    /**
+     * Finds the ids of the first ballots of a lottery, in the order of their ids.
+     * @param lotteryId the id of the lottery.
+     * @param limit the maximum number of ids.
+     * @return the ids.
+     */
+    @Query("select b.id from Ballot b where b.lotteryId = :lotteryId order by b.id")
+    List<Long> findIdsByLotteryId(@Param("lotteryId") Long lotteryId, Pageable limit);
+
+    /**
+     * Finds the ballots after an id, in the order of their ids.
+     * @param afterId the id after which the ballots are found.
+     * @param limit the maximum number of ballots.
+     * @return the ballots.
+     */
+    @Query(VIEW + " from Ballot b where b.id > :afterId order by b.id")
+    List<BallotView> findPage(@Param("afterId") Long afterId, Pageable limit);
+
+    /**
+     * Finds the ballots of a lottery after an id, in the order of their ids.
+     * The query is served by the lottery_id index.
+     * @param lotteryId the id of the lottery.
+     * @param afterId the id after which the ballots are found.
+     * @param limit the maximum number of ballots.
+     * @return the ballots.
+     */
+    @Query(VIEW + " from Ballot b where b.lotteryId = :lotteryId and b.id > :afterId order by b.id")
+    List<BallotView> findViewsByLottery(@Param("lotteryId") Long lotteryId,
+                                        @Param("afterId") Long afterId,
+                                        Pageable limit);
+
+    /**
+     * Finds the ballots of the lotteries which started between two dates after an id, in the order of their ids.
+     * The lotteries are found with the start_time index.
+     * @param afterId the id after which the ballots are found.
+     * @param from the first start date of the lotteries of the ballots.
+     * @param to the last start date of the lotteries of the ballots.
+     * @param limit the maximum number of ballots.
+     * @return the ballots.
+     */
+    @Query(VIEW + " from Ballot b where b.id > :afterId and b.lotteryId in " +
+            "(select l.id from Lottery l where l.startTime between :from and :to) order by b.id")
+    List<BallotView> findPageStartingBetween(@Param("afterId") Long afterId,
+                                             @Param("from") LocalDate from,
+                                             @Param("to") LocalDate to,
+                                             Pageable limit);
+
+    /**
+     * Finds the ballots of a participant in the lotteries which started between two dates after an id, in the
+     * order of their ids. The query is served by the (participant_id, lottery_id) index.
+     * @param participantId the id of the participant.
+     * @param afterId the id after which the ballots are found.
+     * @param from the first start date of the lotteries of the ballots.
+     * @param to the last start date of the lotteries of the ballots.
+     * @param limit the maximum number of ballots.
+     * @return the ballots.
+     */
+    @Query(VIEW + " from Ballot b where b.participantId = :participantId and b.id > :afterId and b.lotteryId in " +
+            "(select l.id from Lottery l where l.startTime between :from and :to) order by b.id")
+    List<BallotView> findViewsByParticipantStartingBetween(@Param("participantId") Long participantId,
+                                                           @Param("afterId") Long afterId,
+                                                           @Param("from") LocalDate from,
+                                                           @Param("to") LocalDate to,
+                                                           Pageable limit);
 }
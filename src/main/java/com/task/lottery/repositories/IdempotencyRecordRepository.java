@@ -0,0 +1,66 @@
+package com.task.lottery.repositories;
+
+import com.task.lottery.entities.IdempotencyRecord;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
+
+
+/**
+ * Repository used to access the IdempotencyRecord table in the lottery database.
+ */
+@Repository("IdempotencyRecordRepository")
+public interface IdempotencyRecordRepository extends JpaRepository<IdempotencyRecord, String> {
+
+    /**
+     * Removes the records created before the given time.
+     * @param createdAt the time.
+     * @return the number of removed records.
+     */
+    @Transactional
+    @Modifying
+    @Query("delete from IdempotencyRecord r where r.createdAt < :createdAt")
+    int deleteOlderThan(@Param("createdAt") Instant createdAt);
+
+    /**
+     * Removes the record of a key if it was created before the given time.
+     * @param key the idempotency key.
+     * @param createdAt the time.
+     * @return the number of removed records, 1 if the record was removed and 0 otherwise.
+     */
+    @Transactional
+    @Modifying
+    @Query("delete from IdempotencyRecord r where r.key = :key and r.createdAt < :createdAt")
+    int deleteIfOlderThan(@Param("key") String key, @Param("createdAt") Instant createdAt);
+
+    /**
+     * Stores the response of the request which claimed a key, in a single statement.
+     * @param key the idempotency key.
+     * @param status the HTTP status of the response.
+     * @param contentType the content type of the response body.
+     * @param body the response body.
+     * @param createdAt the time the response was given.
+     * @return the number of updated rows, 1 if the key was still claimed and 0 otherwise.
+     */
+    @Transactional
+    @Modifying
+    @Query("update IdempotencyRecord r set r.status = :status, r.contentType = :contentType, r.body = :body, " +
+            "r.createdAt = :createdAt where r.key = :key and r.status = " + IdempotencyRecord.PENDING)
+    int complete(@Param("key") String key, @Param("status") int status, @Param("contentType") String contentType,
+                 @Param("body") String body, @Param("createdAt") Instant createdAt);
+
+    /**
+     * Removes the claim of a key whose request stored no response, so that the key can be used again.
+     * @param key the idempotency key.
+     * @return the number of removed records, 1 if the key was still claimed and 0 otherwise.
+     */
+    @Transactional
+    @Modifying
+    @Query("delete from IdempotencyRecord r where r.key = :key and r.status = " + IdempotencyRecord.PENDING)
+    int deletePending(@Param("key") String key);
+}
@@ -0,0 +1,13 @@
+package com.task.lottery.repositories;
+
+import com.task.lottery.entities.JournalCheckpoint;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+
+/**
+ * Repository used to access the JournalCheckpoint table in the lottery database.
+ */
+@Repository("JournalCheckpointRepository")
+public interface JournalCheckpointRepository extends JpaRepository<JournalCheckpoint, String> {
+}
@@ -0,0 +1,68 @@
+package com.task.lottery.repositories;
+
+import com.task.lottery.entities.LotteryCounter;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+
+
+/**
+ * Repository used to access the LotteryCounter table in the lottery database.
+ */
+@Repository("LotteryCounterRepository")
+public interface LotteryCounterRepository extends JpaRepository<LotteryCounter, Long> {
+
+    /**
+     * Finds the stripes which already exist for a lottery.
+     * @param lotteryId the id of the lottery.
+     * @return the indexes of the stripes.
+     */
+    @Query("select c.stripe from LotteryCounter c where c.lotteryId = :lotteryId")
+    List<Integer> findStripesByLotteryId(@Param("lotteryId") Long lotteryId);
+
+    /**
+     * Checks whether a stripe of a lottery exists.
+     * @param lotteryId the id of the lottery.
+     * @param stripe the index of the stripe.
+     * @return true if the stripe exists and false otherwise.
+     */
+    boolean existsByLotteryIdAndStripe(Long lotteryId, int stripe);
+
+    /**
+     * Adds ballots to one stripe of the ballot count of a lottery if the lottery is open.
+     * Only the stripe row is locked, the lottery row is just read.
+     * @param lotteryId the id of the lottery.
+     * @param stripe the index of the stripe.
+     * @param quantity the number of ballots to add.
+     * @return the number of updated rows, 1 if the lottery is open and 0 otherwise.
+     */
+    @Transactional
+    @Modifying
+    @Query("update LotteryCounter c set c.ballotCount = c.ballotCount + :quantity " +
+            "where c.lotteryId = :lotteryId and c.stripe = :stripe " +
+            "and exists (select l.id from Lottery l where l.id = :lotteryId and l.isOpen = true)")
+    int increment(@Param("lotteryId") Long lotteryId, @Param("stripe") int stripe,
+                  @Param("quantity") int quantity);
+
+    /**
+     * Sums the stripes of the ballot count of a lottery.
+     * @param lotteryId the id of the lottery.
+     * @return the ballot count of the lottery.
+     */
+    @Query("select coalesce(sum(c.ballotCount), 0) from LotteryCounter c where c.lotteryId = :lotteryId")
+    long sumByLotteryId(@Param("lotteryId") Long lotteryId);
+
+    /**
+     * Deletes the stripes of a lottery.
+     * @param lotteryId the id of the lottery.
+     */
+    @Transactional
+    @Modifying
+    @Query("delete from LotteryCounter c where c.lotteryId = :lotteryId")
+    void deleteByLotteryId(@Param("lotteryId") Long lotteryId);
+}
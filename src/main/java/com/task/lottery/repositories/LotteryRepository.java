@@ -1,8 +1,18 @@
 package com.task.lottery.repositories;
 
+import com.task.lottery.config.SecondLevelCacheConfiguration;
+import com.task.lottery.dtos.LotteryView;
 import com.task.lottery.entities.Lottery;
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDate;
 import java.util.List;
@@ -13,5 +23,82 @@ import java.util.List;
  */
 @Repository("LotteryRepository")
 public interface LotteryRepository extends JpaRepository<Lottery, Long> {
+
+    /**
+     * Selects a lottery as a LotteryView instead of an entity, so it is neither managed nor dirty checked.
+     */
+    String VIEW = "select new com.task.lottery.dtos.LotteryView(l.id, l.startTime, l.isOpen, l.isDrawn, " +
+            "l.winnerBallotId, l.winningNumber, l.prize, l.ballotPrice)";
+
+    /**
+     * The start dates which stand for a missing bound of a range of start dates, so that a range with one bound
+     * is still one predicate on the start_time index.
+     */
+    LocalDate FIRST_START_TIME = LocalDate.of(1, 1, 1);
+
+    LocalDate LAST_START_TIME = LocalDate.of(9999, 12, 31);
+
+    /**
+     * Finds the lotteries of a date. The results are kept in the query cache until the lottery table changes,
+     * and the lotteries themselves in the second-level cache.
+     * @param startTime the start date of the lotteries.
+     * @return the lotteries.
+     */
+    @QueryHints({
+            @QueryHint(name = HibernateHints.HINT_CACHEABLE, value = "true"),
+            @QueryHint(name = HibernateHints.HINT_CACHE_REGION,
+                    value = SecondLevelCacheConfiguration.LOTTERY_BY_START_TIME_REGION)
+    })
     List<Lottery> findByStartTime(LocalDate startTime);
+
+    List<Lottery> findByStartTimeBeforeAndIsDrawnFalse(LocalDate startTime);
+
+    /**
+     * Finds the lotteries of a date, without loading the lottery entities. The results are kept in the query
+     * cache until the lottery table changes.
+     * @param startTime the start date of the lotteries.
+     * @return the lotteries.
+     */
+    @QueryHints({
+            @QueryHint(name = HibernateHints.HINT_CACHEABLE, value = "true"),
+            @QueryHint(name = HibernateHints.HINT_CACHE_REGION,
+                    value = SecondLevelCacheConfiguration.LOTTERY_BY_START_TIME_REGION)
+    })
+    @Query(VIEW + " from Lottery l where l.startTime = :startTime")
+    List<LotteryView> findViewsByStartTime(@Param("startTime") LocalDate startTime);
+
+    /**
+     * Finds the lotteries after an id, in the order of their ids.
+     * @param afterId the id after which the lotteries are found.
+     * @param limit the maximum number of lotteries.
+     * @return the lotteries.
+     */
+    @Query(VIEW + " from Lottery l where l.id > :afterId order by l.id")
+    List<LotteryView> findPage(@Param("afterId") Long afterId, Pageable limit);
+
+    /**
+     * Finds the lotteries which started between two dates after an id, in the order of their ids.
+     * @param afterId the id after which the lotteries are found.
+     * @param from the first start date.
+     * @param to the last start date.
+     * @param limit the maximum number of lotteries.
+     * @return the lotteries.
+     */
+    @Query(VIEW + " from Lottery l where l.id > :afterId and l.startTime between :from and :to order by l.id")
+    List<LotteryView> findPageStartingBetween(@Param("afterId") Long afterId,
+                                              @Param("from") LocalDate from,
+                                              @Param("to") LocalDate to,
+                                              Pageable limit);
+
+    /**
+     * Claims the draw of a lottery: closes it and marks it drawn if it is not drawn yet.
+     * The lottery row stays locked until the transaction ends, so concurrent claims wait and then don't match.
+     * @param lotteryId the id of the lottery.
+     * @return the number of updated rows, 1 if the lottery was claimed and 0 if it was already drawn.
+     */
+    @Transactional
+    @Modifying
+    @Query("update Lottery l set l.isDrawn = true, l.isOpen = false, l.version = l.version + 1 " +
+            "where l.id = :lotteryId and l.isDrawn = false")
+    int claimDraw(@Param("lotteryId") Long lotteryId);
 }
@@ -1,9 +1,16 @@
 package com.task.lottery.repositories;
 
+import com.task.lottery.dtos.ParticipantView;
 import com.task.lottery.entities.Participant;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.util.List;
 import java.util.Optional;
 
 
@@ -12,5 +19,89 @@ import java.util.Optional;
  */
 @Repository("ParticipantRepository")
 public interface ParticipantRepository extends JpaRepository<Participant, Long> {
+
+    /**
+     * Selects a participant as a ParticipantView instead of an entity, so it is neither managed nor dirty checked.
+     */
+    String VIEW = "select new com.task.lottery.dtos.ParticipantView(p.id, p.firstName, p.lastName, p.email, " +
+            "p.balance)";
+
     Optional<Participant> findParticipantByEmail(String eMail);
+
+    /**
+     * Finds a participant by its id, without loading the participant entity.
+     * @param id the id of the participant.
+     * @return an optional of the participant.
+     */
+    @Query(VIEW + " from Participant p where p.id = :id")
+    Optional<ParticipantView> findViewById(@Param("id") Long id);
+
+    /**
+     * Finds the participants after an id, in the order of their ids.
+     * @param afterId the id after which the participants are found.
+     * @param limit the maximum number of participants.
+     * @return the participants.
+     */
+    @Query(VIEW + " from Participant p where p.id > :afterId order by p.id")
+    List<ParticipantView> findPage(@Param("afterId") Long afterId, Pageable limit);
+
+    /**
+     * Finds the participants who played a lottery after an id, in the order of their ids.
+     * Each participant is checked with the (participant_id, lottery_id) index.
+     * @param afterId the id after which the participants are found.
+     * @param lotteryId the id of the lottery the participants played.
+     * @param limit the maximum number of participants.
+     * @return the participants.
+     */
+    @Query(VIEW + " from Participant p where p.id > :afterId and exists " +
+            "(select b.id from Ballot b where b.participantId = p.id and b.lotteryId = :lotteryId) " +
+            "order by p.id")
+    List<ParticipantView> findPageByLottery(@Param("afterId") Long afterId,
+                                            @Param("lotteryId") Long lotteryId,
+                                            Pageable limit);
+
+    /**
+     * Debits the ballot price of an open lottery from the participant balance in a single statement.
+     * The update only matches if the lottery exists and is open and the participant can afford the ballots.
+     * Like the other balance updates, it increments the version so that a participant read before it
+     * cannot be saved over it.
+     * @param participantId the id of the participant.
+     * @param lotteryId the id of the lottery the ballots are bought for.
+     * @param quantity the number of ballots to pay for.
+     * @return the number of updated rows, 1 if the debit succeeded and 0 otherwise.
+     */
+    @Transactional
+    @Modifying
+    @Query("update Participant p set p.version = p.version + 1, p.balance = p.balance - :quantity * " +
+            "(select l.ballotPrice from Lottery l where l.id = :lotteryId and l.isOpen = true) " +
+            "where p.id = :participantId and p.balance >= :quantity * " +
+            "(select l.ballotPrice from Lottery l where l.id = :lotteryId and l.isOpen = true)")
+    int debitBallotPrice(@Param("participantId") Long participantId,
+                         @Param("lotteryId") Long lotteryId,
+                         @Param("quantity") int quantity);
+
+
+    /**
+     * Debits an amount from the participant balance in a single statement if the balance is enough.
+     * @param participantId the id of the participant.
+     * @param amount the amount to debit.
+     * @return the number of updated rows, 1 if the debit succeeded and 0 otherwise.
+     */
+    @Transactional
+    @Modifying
+    @Query("update Participant p set p.version = p.version + 1, p.balance = p.balance - :amount " +
+            "where p.id = :participantId and p.balance >= :amount")
+    int debitBalance(@Param("participantId") Long participantId, @Param("amount") double amount);
+
+    /**
+     * Credits an amount to the participant balance in a single statement.
+     * @param participantId the id of the participant.
+     * @param amount the amount to credit.
+     * @return the number of updated rows, 1 if the participant exists and 0 otherwise.
+     */
+    @Transactional
+    @Modifying
+    @Query("update Participant p set p.version = p.version + 1, p.balance = p.balance + :amount " +
+            "where p.id = :participantId")
+    int creditBalance(@Param("participantId") Long participantId, @Param("amount") double amount);
 }
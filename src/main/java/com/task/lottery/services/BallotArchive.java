@@ -0,0 +1,504 @@
+package com.task.lottery.services;
+
+import com.task.lottery.dtos.ArchivedBallot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * The ballots of one lottery, moved out of the ballot table into a compact read-only file.
+ * The ballots are stored in the order of their ids, in blocks of a fixed number of ballots. A block holds its
+ * columns one after the other: the ids as deltas from the previous id and the participant ids as signed deltas,
+ * both in variable length integers, the guesses as ints, the guess lengths as bytes, and the purchase times to the
+ * second as signed deltas. Each block is deflated on its own and followed by a bloom filter of its participant ids,
+ * and an index of the blocks and a trailer end the file. The file is memory-mapped, and a read only inflates the
+ * blocks holding the ballots it looks for; a read of the ballots of a participant skips the blocks whose filter
+ * does not hold the participant without inflating them.
+ */
+final class BallotArchive {
+
+    private static final int MAGIC = 0x4C424132;
+
+    private static final int INDEX_ENTRY_SIZE = 2 * Long.BYTES + 6 * Integer.BYTES;
+
+    /**
+     * The bits of a participant filter per ballot and the number of bits set per participant, for about one block
+     * in a hundred read in vain.
+     */
+    private static final int FILTER_BITS_PER_BALLOT = 10;
+
+    private static final int FILTER_HASHES = 7;
+
+    private static final int TRAILER_SIZE = 2 * Long.BYTES + 3 * Integer.BYTES;
+
+    /**
+     * The largest size of a ballot before compression: three variable length longs, an int and a byte.
+     */
+    private static final int MAX_BALLOT_SIZE = 3 * 10 + Integer.BYTES + 1;
+
+    private final Path path;
+
+    private final MappedByteBuffer file;
+
+    private final long lotteryId;
+
+    private final long size;
+
+    private final long[] firstIds;
+
+    private final long[] lastIds;
+
+    private final int[] offsets;
+
+    private final int[] lengths;
+
+    private final int[] rawLengths;
+
+    private final int[] counts;
+
+    private final int[] filterOffsets;
+
+    private final int[] filterBits;
+
+
+    private BallotArchive(Path path, MappedByteBuffer file) throws IOException {
+        this.path = path;
+        this.file = file;
+        int trailer = file.limit() - TRAILER_SIZE;
+        if (file.getInt(trailer + 2 * Long.BYTES + 2 * Integer.BYTES) != MAGIC) {
+            throw new IOException("Not a ballot archive: " + path);
+        }
+        this.lotteryId = file.getLong(trailer);
+        this.size = file.getLong(trailer + Long.BYTES);
+        int indexOffset = file.getInt(trailer + 2 * Long.BYTES);
+        int blockCount = file.getInt(trailer + 2 * Long.BYTES + Integer.BYTES);
+        this.firstIds = new long[blockCount];
+        this.lastIds = new long[blockCount];
+        this.offsets = new int[blockCount];
+        this.lengths = new int[blockCount];
+        this.rawLengths = new int[blockCount];
+        this.counts = new int[blockCount];
+        this.filterOffsets = new int[blockCount];
+        this.filterBits = new int[blockCount];
+        for (int block = 0; block < blockCount; block++) {
+            int entry = indexOffset + block * INDEX_ENTRY_SIZE;
+            firstIds[block] = file.getLong(entry);
+            lastIds[block] = file.getLong(entry + 8);
+            offsets[block] = file.getInt(entry + 16);
+            lengths[block] = file.getInt(entry + 20);
+            rawLengths[block] = file.getInt(entry + 24);
+            counts[block] = file.getInt(entry + 28);
+            filterOffsets[block] = file.getInt(entry + 32);
+            filterBits[block] = file.getInt(entry + 36);
+        }
+    }
+
+
+    /**
+     * Writes the archive of a lottery. The file is written under a temporary name and renamed once it is on the
+     * disk, so the archive either exists whole or not at all.
+     * @param path the path of the archive.
+     * @param lotteryId the id of the lottery.
+     * @param ballots the ballots of the lottery, in the order of their ids.
+     * @param blockSize the number of ballots of a block.
+     * @throws IOException if the archive cannot be written.
+     */
+    static void write(Path path, long lotteryId, Iterator<ArchivedBallot> ballots, int blockSize) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+            DataOutputStream index = new DataOutputStream(indexBytes);
+            List<ArchivedBallot> block = new ArrayList<>(blockSize);
+            long size = 0;
+            int blockCount = 0;
+            while (ballots.hasNext()) {
+                block.add(ballots.next());
+                if (block.size() == blockSize || !ballots.hasNext()) {
+                    writeBlock(channel, block, deflater, index);
+                    size += block.size();
+                    blockCount++;
+                    block.clear();
+                }
+            }
+            long indexOffset = channel.position();
+            if (indexOffset + indexBytes.size() + TRAILER_SIZE > Integer.MAX_VALUE) {
+                throw new IOException("The archive of lottery " + lotteryId + " is too large!");
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE).putLong(lotteryId).putLong(size)
+                    .putInt((int) indexOffset).putInt(blockCount).putInt(MAGIC).flip();
+            writeFully(channel, ByteBuffer.wrap(indexBytes.toByteArray()));
+            writeFully(channel, trailer);
+            channel.force(true);
+        } finally {
+            deflater.end();
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+
+    /**
+     * Opens an archive.
+     * @param path the path of the archive.
+     * @return the archive.
+     * @throws IOException if the file cannot be read or is not an archive.
+     */
+    static BallotArchive open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < TRAILER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Not a ballot archive: " + path);
+            }
+            return new BallotArchive(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+
+    /**
+     * Gets the path of the archive.
+     * @return the path.
+     */
+    Path path() {
+        return path;
+    }
+
+
+    /**
+     * Gets the id of the lottery of the archive.
+     * @return the id of the lottery.
+     */
+    long lotteryId() {
+        return lotteryId;
+    }
+
+
+    /**
+     * Gets the number of ballots of the archive.
+     * @return the number of ballots.
+     */
+    long size() {
+        return size;
+    }
+
+
+    /**
+     * Gets the id of the first ballot.
+     * @return the smallest id, or Long.MAX_VALUE if the archive is empty.
+     */
+    long firstId() {
+        return firstIds.length == 0 ? Long.MAX_VALUE : firstIds[0];
+    }
+
+
+    /**
+     * Gets the id of the last ballot.
+     * @return the largest id, or Long.MIN_VALUE if the archive is empty.
+     */
+    long lastId() {
+        return lastIds.length == 0 ? Long.MIN_VALUE : lastIds[lastIds.length - 1];
+    }
+
+
+    /**
+     * Finds a ballot by its id, inflating only the block which may hold it.
+     * @param id the id of the ballot.
+     * @return an optional of the ballot.
+     */
+    Optional<ArchivedBallot> find(long id) {
+        int block = blockOf(id);
+        if (block == firstIds.length || firstIds[block] > id) {
+            return Optional.empty();
+        }
+        Block decoded = decode(block);
+        int position = Arrays.binarySearch(decoded.ids, id);
+        return position < 0 ? Optional.empty() : Optional.of(decoded.get(position));
+    }
+
+
+    /**
+     * Finds the ballots after an id, in the order of their ids, starting at the block holding that id.
+     * With a participant, only the blocks whose filter may hold the participant are inflated.
+     * @param afterId the id after which the ballots are found.
+     * @param participantId the id of the participant of the ballots, or null for any participant.
+     * @param limit the maximum number of ballots.
+     * @return the ballots.
+     */
+    List<ArchivedBallot> findAfter(long afterId, Long participantId, int limit) {
+        List<ArchivedBallot> found = new ArrayList<>();
+        for (int block = blockOf(afterId + 1); block < firstIds.length && found.size() < limit; block++) {
+            if (participantId != null && !mayHold(block, participantId)) {
+                continue;
+            }
+            Block decoded = decode(block);
+            for (int i = 0; i < decoded.ids.length && found.size() < limit; i++) {
+                if (decoded.ids[i] > afterId
+                        && (participantId == null || decoded.participantIds[i] == participantId)) {
+                    found.add(decoded.get(i));
+                }
+            }
+        }
+        return found;
+    }
+
+
+    /**
+     * Reads all the ballots in the order of their ids, one block at a time.
+     * @param consumer the consumer of the ballots.
+     */
+    void forEach(Consumer<ArchivedBallot> consumer) {
+        for (int block = 0; block < firstIds.length; block++) {
+            Block decoded = decode(block);
+            for (int i = 0; i < decoded.ids.length; i++) {
+                consumer.accept(decoded.get(i));
+            }
+        }
+    }
+
+
+    /**
+     * Finds the first block whose last id is at least the given id.
+     */
+    private int blockOf(long id) {
+        int low = 0;
+        int high = lastIds.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (lastIds[middle] < id) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+
+    /**
+     * Checks the participant filter of a block.
+     * @return false if no ballot of the block belongs to the participant, and true if one may.
+     */
+    private boolean mayHold(int block, long participantId) {
+        long first = mix(participantId);
+        long step = mix(~participantId) | 1;
+        for (int i = 0; i < FILTER_HASHES; i++) {
+            int bit = (int) Long.remainderUnsigned(first + i * step, filterBits[block]);
+            if ((file.getLong(filterOffsets[block] + (bit >>> 6) * Long.BYTES) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private Block decode(int block) {
+        byte[] raw = new byte[rawLengths[block]];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(file.slice(offsets[block], lengths[block]));
+            int read = 0;
+            while (read < raw.length) {
+                int inflated = inflater.inflate(raw, read, raw.length - read);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IllegalStateException("Corrupt ballot archive: " + path);
+                }
+                read += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt ballot archive: " + path, e);
+        } finally {
+            inflater.end();
+        }
+        ByteBuffer in = ByteBuffer.wrap(raw);
+        Block decoded = new Block(counts[block]);
+        long previous = firstIds[block];
+        for (int i = 0; i < decoded.ids.length; i++) {
+            previous += getVarLong(in);
+            decoded.ids[i] = previous;
+        }
+        previous = 0;
+        for (int i = 0; i < decoded.ids.length; i++) {
+            previous += unZigZag(getVarLong(in));
+            decoded.participantIds[i] = previous;
+        }
+        for (int i = 0; i < decoded.ids.length; i++) {
+            decoded.guessValues[i] = in.getInt();
+        }
+        for (int i = 0; i < decoded.ids.length; i++) {
+            decoded.guessLengths[i] = in.get();
+        }
+        previous = 0;
+        for (int i = 0; i < decoded.ids.length; i++) {
+            long value = getVarLong(in);
+            if (value != 0) {
+                previous += unZigZag(value - 1);
+                decoded.purchaseTimes[i] = LocalDateTime.ofEpochSecond(previous, 0, ZoneOffset.UTC);
+            }
+        }
+        return decoded;
+    }
+
+
+    private static void writeBlock(FileChannel channel, List<ArchivedBallot> block, Deflater deflater,
+                                   DataOutputStream index) throws IOException {
+        ByteBuffer raw = ByteBuffer.allocate(block.size() * MAX_BALLOT_SIZE);
+        long previous = block.get(0).id();
+        for (ArchivedBallot ballot : block) {
+            putVarLong(raw, ballot.id() - previous);
+            previous = ballot.id();
+        }
+        previous = 0;
+        for (ArchivedBallot ballot : block) {
+            putVarLong(raw, zigZag(ballot.participantId() - previous));
+            previous = ballot.participantId();
+        }
+        for (ArchivedBallot ballot : block) {
+            raw.putInt(ballot.guessValue());
+        }
+        for (ArchivedBallot ballot : block) {
+            raw.put(ballot.guessLength().byteValue());
+        }
+        previous = 0;
+        for (ArchivedBallot ballot : block) {
+            if (ballot.purchaseTime() == null) {
+                putVarLong(raw, 0);
+            } else {
+                long second = ballot.purchaseTime().toEpochSecond(ZoneOffset.UTC);
+                putVarLong(raw, zigZag(second - previous) + 1);
+                previous = second;
+            }
+        }
+
+        deflater.reset();
+        deflater.setInput(raw.array(), 0, raw.position());
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.position() / 2 + 64);
+        byte[] chunk = new byte[8192];
+        while (!deflater.finished()) {
+            compressed.write(chunk, 0, deflater.deflate(chunk));
+        }
+        long offset = channel.position();
+        if (offset + compressed.size() > Integer.MAX_VALUE) {
+            throw new IOException("The archive is too large!");
+        }
+        writeFully(channel, ByteBuffer.wrap(compressed.toByteArray()));
+        long[] filter = new long[(block.size() * FILTER_BITS_PER_BALLOT + Long.SIZE - 1) / Long.SIZE];
+        int bits = filter.length * Long.SIZE;
+        for (ArchivedBallot ballot : block) {
+            long first = mix(ballot.participantId());
+            long step = mix(~ballot.participantId()) | 1;
+            for (int i = 0; i < FILTER_HASHES; i++) {
+                int bit = (int) Long.remainderUnsigned(first + i * step, bits);
+                filter[bit >>> 6] |= 1L << bit;
+            }
+        }
+        long filterOffset = channel.position();
+        if (filterOffset + (long) filter.length * Long.BYTES > Integer.MAX_VALUE) {
+            throw new IOException("The archive is too large!");
+        }
+        ByteBuffer filterBytes = ByteBuffer.allocate(filter.length * Long.BYTES);
+        filterBytes.asLongBuffer().put(filter);
+        writeFully(channel, filterBytes);
+        index.writeLong(block.get(0).id());
+        index.writeLong(block.get(block.size() - 1).id());
+        index.writeInt((int) offset);
+        index.writeInt(compressed.size());
+        index.writeInt(raw.position());
+        index.writeInt(block.size());
+        index.writeInt((int) filterOffset);
+        index.writeInt(bits);
+    }
+
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+
+    private static void putVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+
+    private static long getVarLong(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+
+    /**
+     * Spreads the bits of a participant id, as in the finalizer of MurmurHash3.
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 33)) * 0xFF51AFD7ED558CCDL;
+        value = (value ^ (value >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return value ^ (value >>> 33);
+    }
+
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+
+    /**
+     * The columns of an inflated block.
+     */
+    private static final class Block {
+        private final long[] ids;
+        private final long[] participantIds;
+        private final int[] guessValues;
+        private final byte[] guessLengths;
+        private final LocalDateTime[] purchaseTimes;
+
+        private Block(int count) {
+            ids = new long[count];
+            participantIds = new long[count];
+            guessValues = new int[count];
+            guessLengths = new byte[count];
+            purchaseTimes = new LocalDateTime[count];
+        }
+
+        private ArchivedBallot get(int i) {
+            return new ArchivedBallot(ids[i], participantIds[i], guessValues[i], (int) guessLengths[i],
+                    purchaseTimes[i]);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.task.lottery.services;
+
+import com.task.lottery.dtos.ArchivedBallot;
+import com.task.lottery.dtos.BallotView;
+import com.task.lottery.repositories.BallotRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+
+/**
+ * Moves the ballots of the drawn lotteries out of the ballot table into one compact archive file per lottery,
+ * so that the table only holds the ballots of the recent lotteries. Every night, the lotteries which started more
+ * than "lottery.archive.after-days" days ago and are drawn are archived: their ballots are streamed into the
+ * archive, which is renamed into place once it is on disk, then deleted from the table in chunks of
+ * "lottery.archive.delete-chunk-size" ballots, each in its own transaction. A lottery is read from its archive as
+ * soon as the archive exists, so a crash before the last chunk only leaves rows which the next run deletes.
+ * The archives are read-only and memory-mapped; they are opened when the application starts.
+ * Enabled with the "lottery.archive.enabled=true" property.
+ */
+@Service
+@ConditionalOnProperty(name = "lottery.archive.enabled", havingValue = "true")
+public class BallotArchiveService {
+
+    private static final Logger logger = LoggerFactory.getLogger(BallotArchiveService.class);
+
+    private static final String PREFIX = "lottery-";
+
+    private static final String SUFFIX = ".ballots";
+
+    private final BallotRepository ballotRepository;
+
+    private final TransactionTemplate readTransaction;
+
+    private final TransactionTemplate writeTransaction;
+
+    private final Path directory;
+
+    private final int blockSize;
+
+    private final int deleteChunkSize;
+
+    private final int afterDays;
+
+    private final Map<Long, BallotArchive> archives = new ConcurrentHashMap<>();
+
+
+    /**
+     * Instantiates a new BallotArchiveService and opens the archives written by the previous runs.
+     * @param ballotRepository the ballot repository.
+     * @param transactionManager the transaction manager used to read and delete the archived ballots.
+     * @param archiveDirectory the directory of the archives.
+     * @param blockSize the number of ballots of an archive block, the unit which is inflated to read a ballot.
+     * @param deleteChunkSize the number of archived ballots deleted from the table in one transaction.
+     * @param afterDays the number of days after its start a drawn lottery is archived.
+     * @throws IOException if the archives cannot be opened.
+     */
+    @Autowired
+    public BallotArchiveService(BallotRepository ballotRepository,
+                                PlatformTransactionManager transactionManager,
+                                @Value("${lottery.archive.dir:data/archive}") String archiveDirectory,
+                                @Value("${lottery.archive.block-size:4096}") int blockSize,
+                                @Value("${lottery.archive.delete-chunk-size:1000}") int deleteChunkSize,
+                                @Value("${lottery.archive.after-days:7}") int afterDays) throws IOException {
+        this.ballotRepository = ballotRepository;
+        this.readTransaction = new TransactionTemplate(transactionManager);
+        this.readTransaction.setReadOnly(true);
+        this.writeTransaction = new TransactionTemplate(transactionManager);
+        this.directory = Files.createDirectories(Paths.get(archiveDirectory));
+        this.blockSize = blockSize;
+        this.deleteChunkSize = deleteChunkSize;
+        this.afterDays = afterDays;
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path path : files.toList()) {
+                String name = path.getFileName().toString();
+                if (name.startsWith(PREFIX) && name.endsWith(SUFFIX + ".tmp")) {
+                    Files.delete(path);
+                } else if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                    BallotArchive archive = BallotArchive.open(path);
+                    archives.put(archive.lotteryId(), archive);
+                }
+            }
+        }
+        if (!archives.isEmpty()) {
+            logger.info("Opened the ballot archives of {} lotteries", archives.size());
+        }
+    }
+
+
+    /**
+     * Archives the ballots of the lotteries drawn more than "lottery.archive.after-days" days ago.
+     * Scheduled to run each night.
+     */
+    @Scheduled(cron = "${lottery.archive.cron:0 30 3 * * ?}", zone = "CET")
+    public void archiveDrawnLotteries() {
+        List<Long> lotteryIds = readTransaction.execute(status ->
+                ballotRepository.findDrawnLotteryIdsBefore(LocalDate.now().minusDays(afterDays)));
+        for (Long lotteryId : lotteryIds) {
+            try {
+                archive(lotteryId);
+            } catch (Exception e) {
+                logger.warn("Could not archive the ballots of lottery {}", lotteryId, e);
+            }
+        }
+    }
+
+
+    /**
+     * Archives the ballots of a drawn lottery, unless its archive exists already, and deletes them from the
+     * ballot table. Only the ballots up to the last archived id are deleted.
+     * @param lotteryId the id of the lottery.
+     * @throws IOException if the archive cannot be written.
+     */
+    public synchronized void archive(Long lotteryId) throws IOException {
+        BallotArchive archive = archives.get(lotteryId);
+        if (archive == null) {
+            Path path = directory.resolve(PREFIX + lotteryId + SUFFIX);
+            readTransaction.executeWithoutResult(status -> {
+                try (Stream<ArchivedBallot> ballots = ballotRepository.streamArchiveByLotteryId(lotteryId)) {
+                    BallotArchive.write(path, lotteryId, ballots.iterator(), blockSize);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            archive = BallotArchive.open(path);
+            archives.put(lotteryId, archive);
+            logger.info("Archived {} ballots of lottery {}", archive.size(), lotteryId);
+        }
+        long lastId = archive.lastId();
+        int deleted;
+        do {
+            deleted = writeTransaction.execute(status -> {
+                List<Long> ids = new ArrayList<>(ballotRepository.findIdsByLotteryId(lotteryId,
+                        PageRequest.of(0, deleteChunkSize)));
+                if (ids.removeIf(id -> id > lastId)) {
+                    logger.warn("Lottery {} has ballots which are not archived, they are kept", lotteryId);
+                }
+                ballotRepository.deleteAllByIdInBatch(ids);
+                return ids.size();
+            });
+        } while (deleted == deleteChunkSize);
+    }
+
+
+    /**
+     * Checks whether the ballots of a lottery are archived.
+     * @param lotteryId the id of the lottery.
+     * @return true if the lottery has an archive and false otherwise.
+     */
+    public boolean isArchived(Long lotteryId) {
+        return lotteryId != null && archives.containsKey(lotteryId);
+    }
+
+
+    /**
+     * Gets the ids of the archived lotteries.
+     * @return the ids of the lotteries.
+     */
+    public Set<Long> archivedLotteryIds() {
+        return Set.copyOf(archives.keySet());
+    }
+
+
+    /**
+     * Finds an archived ballot by its id.
+     * @param id the id of the ballot.
+     * @return an optional of the ballot, empty if no archive holds it.
+     */
+    public Optional<BallotView> findById(long id) {
+        for (BallotArchive archive : archives.values()) {
+            if (archive.firstId() <= id && id <= archive.lastId()) {
+                Optional<ArchivedBallot> ballot = archive.find(id);
+                if (ballot.isPresent()) {
+                    return Optional.of(ballot.get().toView(archive.lotteryId()));
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+
+    /**
+     * Adds the archived ballots to a page read from the ballot table. Both are ordered by id, so the page keeps the
+     * smallest ids of the two, and the archives starting after the last id of a full page are not read.
+     * The rows of the table which an archive holds already, left until the archiving deletes them, are skipped.
+     * @param ballots the ballots read from the table after the id, in the order of their ids.
+     * @param afterId the id after which the page starts.
+     * @param lotteries the filter of the lotteries whose archives are read.
+     * @param participantId the id of the participant of the ballots, or null for any participant.
+     * @param limit the maximum number of ballots of the page.
+     * @return the ballots of the page, in the order of their ids.
+     */
+    public List<BallotView> mergePage(List<BallotView> ballots, long afterId, Predicate<Long> lotteries,
+                                      Long participantId, int limit) {
+        List<BallotArchive> candidates = archives.values().stream()
+                .filter(archive -> archive.lastId() > afterId && lotteries.test(archive.lotteryId()))
+                .sorted(Comparator.comparingLong(BallotArchive::firstId))
+                .toList();
+        List<BallotView> page = new ArrayList<>(ballots.size());
+        for (BallotView ballot : ballots) {
+            BallotArchive archive = archives.get(ballot.lotteryId());
+            if (archive == null || ballot.id() > archive.lastId() || !lotteries.test(archive.lotteryId())) {
+                page.add(ballot);
+            }
+        }
+        for (BallotArchive archive : candidates) {
+            if (page.size() >= limit && archive.firstId() > page.get(limit - 1).id()) {
+                break;
+            }
+            archive.findAfter(afterId, participantId, limit)
+                    .forEach(ballot -> page.add(ballot.toView(archive.lotteryId())));
+            page.sort(Comparator.comparingLong(BallotView::id));
+            if (page.size() > limit) {
+                page.subList(limit, page.size()).clear();
+            }
+        }
+        return page;
+    }
+
+
+    /**
+     * Reads the archived ballots of a lottery, in the order of their ids.
+     * @param lotteryId the id of the lottery.
+     * @param consumer the consumer of the ballots.
+     */
+    public void forEach(Long lotteryId, Consumer<ArchivedBallot> consumer) {
+        BallotArchive archive = archives.get(lotteryId);
+        if (archive != null) {
+            archive.forEach(consumer);
+        }
+    }
+
+
+    /**
+     * Deletes the archive of a lottery which was deleted.
+     * @param lotteryId the id of the lottery.
+     */
+    public synchronized void delete(Long lotteryId) {
+        BallotArchive archive = archives.remove(lotteryId);
+        if (archive != null) {
+            try {
+                Files.deleteIfExists(archive.path());
+            } catch (IOException e) {
+                logger.warn("Could not delete the ballot archive of lottery {}", lotteryId, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.task.lottery.services;
+
+import com.task.lottery.entities.LotteryCounter;
+import com.task.lottery.repositories.LotteryCounterRepository;
+import com.task.lottery.utils.BoundedCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * Counts the ballots of the lotteries with striped counters.
+ * Each lottery has "lottery.counter.stripes" counter rows and a purchase increments a random one of them,
+ * so that concurrent purchases, even from different nodes, rarely wait for each other. The stripes missing for a
+ * lottery, such as the ones added by raising "lottery.counter.stripes", are created by the first purchase which
+ * picks them.
+ * The ballot count of a lottery is the sum of its stripes, kept in memory for "lottery.counter.cache-ttl".
+ */
+@Service
+public class BallotCounterService {
+
+    private final LotteryCounterRepository lotteryCounterRepository;
+
+    private final TransactionTemplate newTransaction;
+
+    private final int stripes;
+
+    private final BoundedCache<Long, Integer> counts;
+
+
+    /**
+     * Instantiates a new BallotCounterService.
+     * @param lotteryCounterRepository the lottery counter repository.
+     * @param transactionManager the transaction manager used to create the missing stripes.
+     * @param stripes the number of stripes per lottery.
+     * @param cacheSize the maximum number of ballot counts kept in memory.
+     * @param cacheTtl the time a ballot count is kept in memory.
+     */
+    @Autowired
+    public BallotCounterService(LotteryCounterRepository lotteryCounterRepository,
+                                PlatformTransactionManager transactionManager,
+                                @Value("${lottery.counter.stripes:16}") int stripes,
+                                @Value("${lottery.counter.cache-size:10000}") int cacheSize,
+                                @Value("${lottery.counter.cache-ttl:1s}") Duration cacheTtl) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("There must be at least one stripe!");
+        }
+        this.lotteryCounterRepository = lotteryCounterRepository;
+        this.newTransaction = new TransactionTemplate(transactionManager);
+        this.newTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.stripes = stripes;
+        this.counts = new BoundedCache<>(cacheSize, cacheTtl);
+    }
+
+
+    /**
+     * Creates the stripes of a lottery which don't exist yet.
+     * @param lotteryId the id of the lottery.
+     */
+    @Transactional
+    public void createCounters(Long lotteryId) {
+        Set<Integer> existing = new HashSet<>(lotteryCounterRepository.findStripesByLotteryId(lotteryId));
+        List<LotteryCounter> missing = new ArrayList<>();
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            if (!existing.contains(stripe)) {
+                missing.add(new LotteryCounter(lotteryId, stripe));
+            }
+        }
+        lotteryCounterRepository.saveAll(missing);
+    }
+
+
+    /**
+     * Adds ballots to a random stripe of an open lottery.
+     * If the stripe does not exist, the missing stripes of the lottery are created in their own transaction, so
+     * that a concurrent purchase creating them too does not fail the purchase, and the increment is retried.
+     * @param lotteryId the id of the lottery.
+     * @param quantity the number of ballots to add.
+     * @return true if the lottery is open and the ballots were counted, false otherwise.
+     */
+    public boolean increment(Long lotteryId, int quantity) {
+        int stripe = ThreadLocalRandom.current().nextInt(stripes);
+        if (lotteryCounterRepository.increment(lotteryId, stripe, quantity) == 1) {
+            return true;
+        }
+        if (lotteryCounterRepository.existsByLotteryIdAndStripe(lotteryId, stripe)) {
+            return false;
+        }
+        try {
+            newTransaction.executeWithoutResult(status -> createCounters(lotteryId));
+        } catch (DataIntegrityViolationException e) {
+            // created by a concurrent purchase
+        }
+        return lotteryCounterRepository.increment(lotteryId, stripe, quantity) == 1;
+    }
+
+
+    /**
+     * Gets the ballot count of a lottery.
+     * The count is read from the database at most once per cache TTL, so it may miss the latest purchases.
+     * @param lotteryId the id of the lottery.
+     * @return the ballot count of the lottery.
+     */
+    public int count(Long lotteryId) {
+        Integer count = counts.get(lotteryId);
+        if (count == null) {
+            count = (int) lotteryCounterRepository.sumByLotteryId(lotteryId);
+            counts.put(lotteryId, count);
+        }
+        return count;
+    }
+
+
+    /**
+     * Deletes the stripes of a lottery.
+     * @param lotteryId the id of the lottery.
+     */
+    public void deleteCounters(Long lotteryId) {
+        lotteryCounterRepository.deleteByLotteryId(lotteryId);
+        counts.remove(lotteryId);
+    }
+}
@@ -0,0 +1,217 @@
+package com.task.lottery.services;
+
+import com.task.lottery.dtos.BallotBatchRequest;
+import com.task.lottery.dtos.BallotPurchaseResult;
+import com.task.lottery.dtos.BallotTicket;
+import com.task.lottery.entities.Ballot;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Accepts ballot purchases without waiting for the database.
+ * Validated purchases are put into a bounded ring buffer and the caller gets a ticket right away.
+ * A single consumer thread drains the buffer and saves the purchases in batches of at most "batch-size"
+ * purchases or whatever arrived within "batch-timeout-ms" of the first one.
+ * Enabled with the "lottery.ingestion.mode=async" property.
+ */
+@Service
+@ConditionalOnProperty(name = "lottery.ingestion.mode", havingValue = "async")
+public class BallotIngestionService {
+
+    private static final Logger logger = LoggerFactory.getLogger(BallotIngestionService.class);
+
+    private final BallotService ballotService;
+
+    private final ConcurrencyRetry concurrencyRetry;
+
+    private final BlockingQueue<Purchase> buffer;
+
+    private final Map<Long, BallotTicket> tickets = new ConcurrentHashMap<>();
+
+    private final AtomicLong ticketIds = new AtomicLong();
+
+    private final int batchSize;
+
+    private final long batchTimeoutNanos;
+
+    private final int retainedTickets;
+
+    private final Thread consumer;
+
+    private volatile boolean running = true;
+
+
+    /**
+     * Instantiates a new BallotIngestionService and starts its consumer.
+     * @param ballotService the ballot service used to save the purchases.
+     * @param concurrencyRetry the retry of the purchases which conflict with concurrent changes.
+     * @param bufferSize the number of purchases the buffer can hold.
+     * @param batchSize the maximum number of purchases saved together.
+     * @param batchTimeoutMillis the time to wait for a batch to fill up.
+     * @param retainedTickets the number of most recent tickets whose outcome is kept.
+     */
+    @Autowired
+    public BallotIngestionService(BallotService ballotService,
+                                  ConcurrencyRetry concurrencyRetry,
+                                  @Value("${lottery.ingestion.buffer-size:8192}") int bufferSize,
+                                  @Value("${lottery.ingestion.batch-size:200}") int batchSize,
+                                  @Value("${lottery.ingestion.batch-timeout-ms:10}") long batchTimeoutMillis,
+                                  @Value("${lottery.ingestion.retained-tickets:100000}") int retainedTickets) {
+        this.ballotService = ballotService;
+        this.concurrencyRetry = concurrencyRetry;
+        this.buffer = new ArrayBlockingQueue<>(bufferSize);
+        this.batchSize = Math.min(batchSize, BallotService.MAX_BATCH_SIZE);
+        this.batchTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(batchTimeoutMillis);
+        this.retainedTickets = retainedTickets;
+        this.consumer = new Thread(this::consume, "ballot-ingestion");
+        this.consumer.setDaemon(true);
+        this.consumer.start();
+    }
+
+
+    /**
+     * Validates a ballot purchase and puts it into the buffer.
+     * @param ballot the ballot to buy.
+     * @return the pending ticket of the purchase, or an empty optional if the buffer is full.
+     * @throws IllegalArgumentException if the purchase is not valid.
+     */
+    public Optional<BallotTicket> submit(Ballot ballot) {
+        if (!ballotService.isValidPurchase(ballot)) {
+            throw new IllegalArgumentException("Invalid ballot!");
+        }
+        BallotTicket ticket = BallotTicket.pending(ticketIds.incrementAndGet());
+        tickets.put(ticket.id(), ticket);
+        if (!running || !buffer.offer(new Purchase(ticket.id(), ballot))) {
+            tickets.remove(ticket.id());
+            return Optional.empty();
+        }
+        tickets.remove(ticket.id() - retainedTickets);
+        return Optional.of(ticket);
+    }
+
+
+    /**
+     * Finds the ticket of a purchase.
+     * @param id the id of the ticket.
+     * @return an optional of the ticket, empty if the ticket is unknown or too old.
+     */
+    public Optional<BallotTicket> findTicket(long id) {
+        return Optional.ofNullable(tickets.get(id));
+    }
+
+
+    /**
+     * Stops accepting purchases and saves the ones left in the buffer.
+     */
+    @PreDestroy
+    public void close() {
+        running = false;
+        try {
+            consumer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private void consume() {
+        List<Purchase> batch = new ArrayList<>(batchSize);
+        while (running || !buffer.isEmpty()) {
+            try {
+                Purchase first = buffer.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + batchTimeoutNanos;
+                while (batch.size() < batchSize) {
+                    Purchase next = buffer.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    buffer.drainTo(batch, batchSize - batch.size());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+            }
+            save(batch);
+            batch.clear();
+        }
+    }
+
+
+    /**
+     * Saves a batch of purchases, grouped by participant and lottery so that each group is paid at once.
+     * If a group cannot be paid as a whole, its purchases are saved one by one, as they would have been
+     * without the buffer.
+     * @param batch the purchases.
+     */
+    private void save(List<Purchase> batch) {
+        Map<List<Long>, List<Purchase>> groups = new LinkedHashMap<>();
+        for (Purchase purchase : batch) {
+            groups.computeIfAbsent(List.of(purchase.ballot().getParticipantId(), purchase.ballot().getLotteryId()),
+                    key -> new ArrayList<>()).add(purchase);
+        }
+        for (Map.Entry<List<Long>, List<Purchase>> group : groups.entrySet()) {
+            List<Purchase> purchases = group.getValue();
+            try {
+                BallotBatchRequest request = new BallotBatchRequest(group.getKey().get(0), group.getKey().get(1),
+                        purchases.stream().map(purchase -> purchase.ballot().getGuess()).toList());
+                List<BallotPurchaseResult> results = concurrencyRetry.execute("purchase",
+                        () -> ballotService.saveBatch(request));
+                if (purchases.size() > 1 && results.stream().noneMatch(BallotPurchaseResult::success)) {
+                    purchases.forEach(this::saveOne);
+                    continue;
+                }
+                for (int i = 0; i < purchases.size(); i++) {
+                    complete(purchases.get(i), results.get(i));
+                }
+            } catch (Exception e) {
+                logger.warn("Could not save a batch of ballots", e);
+                purchases.forEach(purchase -> complete(purchase,
+                        BallotPurchaseResult.failed(purchase.ballot().getGuess(), "Ballot can't be created!")));
+            }
+        }
+    }
+
+
+    private void saveOne(Purchase purchase) {
+        try {
+            complete(purchase, BallotPurchaseResult.succeeded(purchase.ballot().getGuess(),
+                    concurrencyRetry.execute("purchase", () -> ballotService.save(purchase.ballot())).getId()));
+        } catch (Exception e) {
+            complete(purchase, BallotPurchaseResult.failed(purchase.ballot().getGuess(), "Ballot can't be created!"));
+        }
+    }
+
+
+    private void complete(Purchase purchase, BallotPurchaseResult result) {
+        tickets.replace(purchase.ticketId(), BallotTicket.of(purchase.ticketId(), result));
+    }
+
+
+    /**
+     * A purchase waiting in the buffer.
+     */
+    private record Purchase(long ticketId, Ballot ballot) {
+    }
+}
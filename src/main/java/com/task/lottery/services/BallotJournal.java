@@ -0,0 +1,310 @@
+package com.task.lottery.services;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+
+/**
+ * Append-only journal of the accepted ballot purchases, written into memory-mapped segment files of a fixed size.
+ * Each record holds one ballot and the amount debited for it, under a sequence number which grows by one per
+ * record. Appending a record only copies it into the mapped memory; it survives a crash of the machine once
+ * {@link #force()} wrote it to the disk. A record ends with a checksum, so a record torn by a crash ends the replay.
+ * A segment is named after the sequence of its first record and is deleted once a snapshot covers all its records.
+ * The snapshot holds the sequence up to which the segments may be deleted, which is never past the checkpoint
+ * committed in the database; a restart replays the records after that checkpoint.
+ */
+class BallotJournal implements Closeable {
+
+    static final int RECORD_SIZE = 4 * Long.BYTES + Double.BYTES + 3 * Integer.BYTES;
+
+    private static final String PREFIX = "ballots-";
+
+    private static final String SNAPSHOT = "ballots.snapshot";
+
+    private final Path directory;
+
+    private final int segmentSize;
+
+    private final CRC32 checksum = new CRC32();
+
+    private final List<MappedByteBuffer> unforced = new ArrayList<>();
+
+    private MappedByteBuffer segment;
+
+    private int forcedPosition;
+
+    private long nextSequence = 1;
+
+
+    /**
+     * A journaled purchase.
+     * @param sequence the sequence number of the record.
+     * @param participantId the id of the participant.
+     * @param lotteryId the id of the lottery.
+     * @param amount the amount debited from the participant.
+     * @param purchaseTime the time the purchase was accepted, in milliseconds since the epoch in UTC.
+     * @param guessValue the guess, as the number it spells.
+     * @param guessLength the number of digits of the guess.
+     */
+    record Entry(long sequence, long participantId, long lotteryId, double amount, long purchaseTime,
+                 int guessValue, int guessLength) {
+    }
+
+
+    /**
+     * Instantiates the journal.
+     * @param directory the directory of the segment files and of the snapshot.
+     * @param segmentRecords the number of records of a segment.
+     * @throws IOException if the directory cannot be created.
+     */
+    BallotJournal(Path directory, int segmentRecords) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentRecords * RECORD_SIZE;
+    }
+
+
+    /**
+     * Reads the records after a sequence, oldest first, and opens the journal for appending after the last one.
+     * Reading stops at the first missing or torn record: every record after it was written after the last sync,
+     * so it was never acknowledged. The rest of its segment is cleared and the later segments are deleted, so that
+     * such records never come back in a later replay.
+     * @param afterSequence the sequence after which the records are read.
+     * @param consumer the consumer of the records.
+     * @throws IOException if a segment cannot be read or written, or if the oldest segment starts after the
+     * sequence, which means that records which are not saved were deleted.
+     */
+    void replay(long afterSequence, Consumer<Entry> consumer) throws IOException {
+        nextSequence = afterSequence + 1;
+        List<Path> segments = segments();
+        for (int i = 0; i < segments.size(); i++) {
+            Path path = segments.get(i);
+            long first = firstSequence(path);
+            if (i == 0 && first > nextSequence) {
+                throw new IOException("The ballot journal starts at " + first + ", records after " + afterSequence
+                        + " are missing");
+            }
+            if (first > nextSequence) {
+                deleteFrom(segments, i);
+                return;
+            }
+            MappedByteBuffer records = map(path, (int) Files.size(path));
+            long sequence = first;
+            while (records.remaining() >= RECORD_SIZE) {
+                Entry entry = read(records, sequence);
+                if (entry == null) {
+                    break;
+                }
+                if (sequence > afterSequence) {
+                    consumer.accept(entry);
+                }
+                sequence++;
+            }
+            if (records.remaining() >= RECORD_SIZE) {
+                deleteFrom(segments, i + 1);
+                if (sequence < nextSequence) {
+                    Files.delete(path);
+                    return;
+                }
+                int end = records.position();
+                while (records.hasRemaining()) {
+                    records.put((byte) 0);
+                }
+                records.force();
+                records.position(end);
+                segment = records;
+                forcedPosition = end;
+                nextSequence = sequence;
+                return;
+            }
+            nextSequence = Math.max(nextSequence, sequence);
+        }
+    }
+
+
+    /**
+     * Appends a purchase.
+     * @param participantId the id of the participant.
+     * @param lotteryId the id of the lottery.
+     * @param amount the amount debited from the participant.
+     * @param purchaseTime the time the purchase was accepted, in milliseconds since the epoch in UTC.
+     * @param guessValue the guess, as the number it spells.
+     * @param guessLength the number of digits of the guess.
+     * @return the record, with its sequence number.
+     * @throws IOException if a new segment cannot be created.
+     */
+    synchronized Entry append(long participantId, long lotteryId, double amount, long purchaseTime,
+                              int guessValue, int guessLength) throws IOException {
+        if (segment == null || segment.remaining() < RECORD_SIZE) {
+            roll();
+        }
+        Entry entry = new Entry(nextSequence++, participantId, lotteryId, amount, purchaseTime,
+                guessValue, guessLength);
+        int start = segment.position();
+        segment.putLong(entry.sequence()).putLong(participantId).putLong(lotteryId).putDouble(amount)
+                .putLong(purchaseTime).putInt(guessValue).putInt(guessLength);
+        segment.putInt(checksum(segment, start));
+        return entry;
+    }
+
+
+    /**
+     * Writes the records appended so far to the disk. Appends can go on while the records are written.
+     * @return the sequence of the last record written.
+     * @throws IOException if the records cannot be written.
+     */
+    long force() throws IOException {
+        List<MappedByteBuffer> sealed;
+        MappedByteBuffer current;
+        int from;
+        int to;
+        long lastSequence;
+        synchronized (this) {
+            sealed = new ArrayList<>(unforced);
+            unforced.clear();
+            current = segment;
+            from = forcedPosition;
+            to = segment == null ? 0 : segment.position();
+            forcedPosition = to;
+            lastSequence = nextSequence - 1;
+        }
+        for (MappedByteBuffer buffer : sealed) {
+            buffer.force();
+        }
+        if (current != null && to > from) {
+            current.force(from, to - from);
+        }
+        return lastSequence;
+    }
+
+
+    /**
+     * Reads the snapshot.
+     * @return the sequence up to which the records are saved in the database, 0 if there is no snapshot.
+     * @throws IOException if the snapshot cannot be read.
+     */
+    long readSnapshot() throws IOException {
+        Path path = directory.resolve(SNAPSHOT);
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        return ByteBuffer.wrap(Files.readAllBytes(path)).getLong();
+    }
+
+
+    /**
+     * Writes a snapshot and deletes the segments whose records are all covered by it.
+     * The snapshot is written to a temporary file which then replaces the previous one, so a crash leaves
+     * either of them whole.
+     * @param appliedSequence the sequence up to which the records are saved in the database, which must not be
+     * past the checkpoint committed in the database.
+     * @throws IOException if the snapshot cannot be written or a segment cannot be deleted.
+     */
+    void snapshot(long appliedSequence) throws IOException {
+        Path temporary = directory.resolve(SNAPSHOT + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.allocate(Long.BYTES).putLong(0, appliedSequence));
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        List<Path> segments = segments();
+        for (int i = 0; i + 1 < segments.size(); i++) {
+            if (firstSequence(segments.get(i + 1)) - 1 <= appliedSequence) {
+                Files.delete(segments.get(i));
+            }
+        }
+    }
+
+
+    /**
+     * Lists the segment files, oldest first.
+     * @return the paths of the segments.
+     * @throws IOException if the directory cannot be listed.
+     */
+    List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> segments = new ArrayList<>(files
+                    .filter(path -> path.getFileName().toString().startsWith(PREFIX))
+                    .toList());
+            segments.sort(Comparator.comparingLong(this::firstSequence));
+            return segments;
+        }
+    }
+
+
+    /**
+     * The mapped segments are released by the garbage collector; there is nothing to close but the pending writes.
+     */
+    @Override
+    public void close() throws IOException {
+        force();
+    }
+
+
+    private void roll() throws IOException {
+        if (segment != null) {
+            unforced.add(segment);
+        }
+        segment = map(directory.resolve(PREFIX + nextSequence), segmentSize);
+        forcedPosition = 0;
+    }
+
+
+    private MappedByteBuffer map(Path path, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+
+    /**
+     * Reads the record at the position of the buffer, or returns null if it is missing or torn.
+     */
+    private Entry read(MappedByteBuffer records, long expectedSequence) {
+        int start = records.position();
+        long sequence = records.getLong(start);
+        records.position(start + RECORD_SIZE - Integer.BYTES);
+        int stored = records.getInt();
+        if (sequence != expectedSequence || stored != checksum(records, start)) {
+            records.position(start);
+            return null;
+        }
+        return new Entry(sequence, records.getLong(start + 8), records.getLong(start + 16),
+                records.getDouble(start + 24), records.getLong(start + 32), records.getInt(start + 40),
+                records.getInt(start + 44));
+    }
+
+
+    private int checksum(MappedByteBuffer records, int start) {
+        checksum.reset();
+        checksum.update(records.slice(start, RECORD_SIZE - Integer.BYTES));
+        return (int) checksum.getValue();
+    }
+
+
+    private void deleteFrom(List<Path> segments, int index) throws IOException {
+        for (int i = index; i < segments.size(); i++) {
+            Files.delete(segments.get(i));
+        }
+    }
+
+
+    private long firstSequence(Path path) {
+        return Long.parseLong(path.getFileName().toString().substring(PREFIX.length()));
+    }
+}
@@ -0,0 +1,534 @@
+package com.task.lottery.services;
+
+import com.task.lottery.dtos.BallotTicket;
+import com.task.lottery.dtos.LotteryView;
+import com.task.lottery.entities.Ballot;
+import com.task.lottery.entities.JournalCheckpoint;
+import com.task.lottery.entities.Participant;
+import com.task.lottery.repositories.JournalCheckpointRepository;
+import com.task.lottery.repositories.ParticipantRepository;
+import com.task.lottery.utils.GuessCodec;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Accepts ballot purchases once they are written to an append-only journal, before they reach the database.
+ * A purchase is priced and checked against the balance of the participant in memory, appended to the journal and
+ * acknowledged with a ticket once a sync thread wrote it to the disk; concurrent purchases share one sync.
+ * An applier thread then saves the synced purchases in batches, each in one transaction which also records the
+ * sequence of its last record as the checkpoint of the journal. A snapshot of the applied sequence is written
+ * periodically, never past the committed checkpoint, after which the journal segments it covers are deleted.
+ * On startup, the records after the checkpoint are saved before any purchase is accepted. A record is only
+ * rejected when the ballot service refuses it; a failure of the database is retried without moving the checkpoint.
+ * Enabled with the "lottery.ingestion.mode=journal" property; it cannot be combined with the wallet nor with an
+ * in-memory database, whose checkpoint would not survive the restart which replays the journal.
+ */
+@Service
+@ConditionalOnProperty(name = "lottery.ingestion.mode", havingValue = "journal")
+public class BallotJournalService {
+
+    private static final Logger logger = LoggerFactory.getLogger(BallotJournalService.class);
+
+    private static final String CHECKPOINT = "ballots";
+
+    private static final long MAX_RETRY_DELAY_MS = 30000;
+
+    private final BallotService ballotService;
+
+    private final LotteryService lotteryService;
+
+    private final ParticipantRepository participantRepository;
+
+    private final JournalCheckpointRepository checkpointRepository;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final BallotJournal journal;
+
+    private final int applyBatchSize;
+
+    private final int retainedTickets;
+
+    private final Map<Long, BallotTicket> tickets = new ConcurrentHashMap<>();
+
+    /**
+     * The balances of the participants with purchases which are not saved yet, guarded by itself.
+     */
+    private final Map<Long, Account> accounts = new HashMap<>();
+
+    /**
+     * The appended records which are not synced yet, in the order of their sequence, guarded by itself.
+     */
+    private final Deque<BallotJournal.Entry> unsynced = new ArrayDeque<>();
+
+    private final BlockingQueue<BallotJournal.Entry> unapplied = new LinkedBlockingQueue<>();
+
+    private final Object syncMonitor = new Object();
+
+    private final Thread syncer;
+
+    private final Thread applier;
+
+    /**
+     * Incremented whenever an account leaves the ledger, so that a balance read from the database meanwhile is
+     * known to be stale.
+     */
+    private long ledgerVersion;
+
+    private volatile long syncedSequence;
+
+    private volatile long appliedSequence;
+
+    private volatile boolean running = true;
+
+
+    /**
+     * Instantiates a new BallotJournalService, saves the records left in the journal by a previous run and starts
+     * its threads.
+     * @param ballotService the ballot service used to save the purchases.
+     * @param lotteryService the lottery service used to price the purchases.
+     * @param participantService the participant service, only checked for the wallet.
+     * @param participantRepository the participant repository used to read the balances.
+     * @param checkpointRepository the repository of the journal checkpoint.
+     * @param transactionManager the transaction manager used to save the purchases.
+     * @param datasourceUrl the url of the database, which must not be an in-memory one.
+     * @param journalDirectory the directory of the journal files.
+     * @param segmentRecords the number of records of a journal segment.
+     * @param applyBatchSize the maximum number of records saved in one transaction.
+     * @param retainedTickets the number of most recent tickets whose outcome is kept.
+     * @throws IOException if the journal cannot be replayed.
+     * @throws IllegalStateException if the database is in memory or behind the snapshot of the journal.
+     */
+    @Autowired
+    public BallotJournalService(BallotService ballotService,
+                                LotteryService lotteryService,
+                                ParticipantService participantService,
+                                ParticipantRepository participantRepository,
+                                JournalCheckpointRepository checkpointRepository,
+                                PlatformTransactionManager transactionManager,
+                                @Value("${spring.datasource.url:}") String datasourceUrl,
+                                @Value("${lottery.journal.dir:data/ballots}") String journalDirectory,
+                                @Value("${lottery.journal.segment-records:1048576}") int segmentRecords,
+                                @Value("${lottery.journal.apply-batch-size:500}") int applyBatchSize,
+                                @Value("${lottery.ingestion.retained-tickets:100000}") int retainedTickets)
+            throws IOException {
+        if (participantService.usesWallet()) {
+            throw new IllegalStateException("The ballot journal cannot be used with the wallet!");
+        }
+        if (datasourceUrl.startsWith("jdbc:h2:mem:")) {
+            throw new IllegalStateException("The ballot journal cannot be used with an in-memory database!");
+        }
+        this.ballotService = ballotService;
+        this.lotteryService = lotteryService;
+        this.participantRepository = participantRepository;
+        this.checkpointRepository = checkpointRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.journal = new BallotJournal(Paths.get(journalDirectory), segmentRecords);
+        this.applyBatchSize = applyBatchSize;
+        this.retainedTickets = retainedTickets;
+        appliedSequence = readCheckpoint();
+        long snapshot = journal.readSnapshot();
+        if (snapshot > appliedSequence) {
+            throw new IllegalStateException("The ballot journal was saved up to " + snapshot
+                    + " but the database only up to " + appliedSequence + ", the records between are lost!");
+        }
+        syncedSequence = appliedSequence;
+        List<BallotJournal.Entry> replayed = new ArrayList<>();
+        journal.replay(appliedSequence, replayed::add);
+        for (int from = 0; from < replayed.size(); from += applyBatchSize) {
+            apply(replayed.subList(from, Math.min(from + applyBatchSize, replayed.size())));
+        }
+        if (!replayed.isEmpty()) {
+            logger.info("Saved {} ballots left in the journal", replayed.size());
+            syncedSequence = replayed.get(replayed.size() - 1).sequence();
+        }
+        this.syncer = new Thread(this::sync, "ballot-journal-sync");
+        this.syncer.setDaemon(true);
+        this.applier = new Thread(this::applySynced, "ballot-journal-apply");
+        this.applier.setDaemon(true);
+        this.syncer.start();
+        this.applier.start();
+    }
+
+
+    /**
+     * Validates a ballot purchase, reserves its price from the balance of the participant and journals it.
+     * Returns once the purchase is written to the disk, so an acknowledged purchase survives a crash.
+     * @param ballot the ballot to buy.
+     * @return the pending ticket of the purchase, or an empty optional if the lottery is not open,
+     * the participant cannot pay or the service is stopping.
+     * @throws IllegalArgumentException if the purchase is not valid.
+     */
+    public Optional<BallotTicket> submit(Ballot ballot) {
+        if (!ballotService.isValidPurchase(ballot)) {
+            throw new IllegalArgumentException("Invalid ballot!");
+        }
+        Optional<LotteryView> lottery = lotteryService.findById(ballot.getLotteryId());
+        if (lottery.isEmpty() || !lottery.get().isOpen()) {
+            return Optional.empty();
+        }
+        long participantId = ballot.getParticipantId();
+        double price = lottery.get().ballotPrice();
+        if (!reserve(participantId, price)) {
+            return Optional.empty();
+        }
+        long purchaseTime = LocalDateTime.now().toInstant(ZoneOffset.UTC).toEpochMilli();
+        BallotJournal.Entry entry;
+        synchronized (unsynced) {
+            if (!running) {
+                release(participantId, price);
+                return Optional.empty();
+            }
+            try {
+                entry = journal.append(participantId, ballot.getLotteryId(), price, purchaseTime,
+                        GuessCodec.encode(ballot.getGuess()), ballot.getGuess().length());
+            } catch (IOException e) {
+                release(participantId, price);
+                throw new UncheckedIOException(e);
+            }
+            unsynced.add(entry);
+            tickets.putIfAbsent(entry.sequence(), BallotTicket.pending(entry.sequence()));
+            unsynced.notify();
+        }
+        awaitSync(entry.sequence());
+        return Optional.of(BallotTicket.pending(entry.sequence()));
+    }
+
+
+    /**
+     * Finds the ticket of a purchase.
+     * @param id the id of the ticket, which is the sequence of the purchase in the journal.
+     * @return an optional of the ticket, empty if the ticket is unknown or too old.
+     */
+    public Optional<BallotTicket> findTicket(long id) {
+        return Optional.ofNullable(tickets.get(id));
+    }
+
+
+    /**
+     * Writes a snapshot of the sequence up to which the journal is saved and deletes the segments it covers.
+     * The sequence is bounded by the checkpoint read back from the database, so no segment is deleted unless
+     * its records are committed.
+     */
+    @Scheduled(fixedDelayString = "${lottery.journal.snapshot-interval-ms:10000}")
+    public synchronized void snapshot() {
+        try {
+            journal.snapshot(Math.min(appliedSequence, readCheckpoint()));
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Could not write the snapshot of the ballot journal", e);
+        }
+    }
+
+
+    /**
+     * Stops accepting purchases, saves the journaled ones and writes a last snapshot.
+     */
+    @PreDestroy
+    public void close() {
+        synchronized (unsynced) {
+            running = false;
+            unsynced.notify();
+        }
+        try {
+            syncer.join();
+            applier.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        snapshot();
+        try {
+            journal.close();
+        } catch (IOException e) {
+            logger.warn("Could not close the ballot journal", e);
+        }
+    }
+
+
+    /**
+     * Reserves an amount from the balance of a participant. The balance is read from the database when the
+     * participant has no purchase waiting to be saved, and kept in memory until all its purchases are saved.
+     */
+    private boolean reserve(long participantId, double amount) {
+        while (true) {
+            long version;
+            synchronized (accounts) {
+                Account account = accounts.get(participantId);
+                if (account != null) {
+                    if (account.balance < amount) {
+                        return false;
+                    }
+                    account.balance -= amount;
+                    account.pending++;
+                    return true;
+                }
+                version = ledgerVersion;
+            }
+            Optional<Double> balance = participantRepository.findById(participantId).map(Participant::getBalance);
+            if (balance.isEmpty() || balance.get() < amount) {
+                return false;
+            }
+            synchronized (accounts) {
+                if (version == ledgerVersion && !accounts.containsKey(participantId)) {
+                    Account account = new Account();
+                    account.balance = balance.get() - amount;
+                    account.pending = 1;
+                    accounts.put(participantId, account);
+                    return true;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Ends a reservation, giving the amount back unless the purchase was saved.
+     */
+    private void release(long participantId, double amount) {
+        synchronized (accounts) {
+            Account account = accounts.get(participantId);
+            if (account == null) {
+                return;
+            }
+            account.balance += amount;
+            if (--account.pending == 0) {
+                accounts.remove(participantId);
+                ledgerVersion++;
+            }
+        }
+    }
+
+
+    private long readCheckpoint() {
+        return checkpointRepository.findById(CHECKPOINT).map(JournalCheckpoint::getSequence).orElse(0L);
+    }
+
+
+    /**
+     * Waits until a record is written to the disk.
+     * @throws IllegalStateException if the thread is interrupted first, as the purchase is not durable yet.
+     */
+    private void awaitSync(long sequence) {
+        synchronized (syncMonitor) {
+            while (syncedSequence < sequence) {
+                try {
+                    syncMonitor.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted before ticket " + sequence
+                            + " was written to the disk, its outcome is unknown", e);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Writes the appended records to the disk as long as there are some, wakes up the purchases waiting for them
+     * and hands them to the applier.
+     */
+    private void sync() {
+        List<BallotJournal.Entry> synced = new ArrayList<>();
+        while (true) {
+            synchronized (unsynced) {
+                while (running && unsynced.isEmpty()) {
+                    try {
+                        unsynced.wait(100);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (!running && unsynced.isEmpty()) {
+                    return;
+                }
+            }
+            long forced;
+            try {
+                forced = journal.force();
+            } catch (IOException e) {
+                logger.error("Could not write the ballot journal to the disk, retrying", e);
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                continue;
+            }
+            synchronized (unsynced) {
+                while (!unsynced.isEmpty() && unsynced.peek().sequence() <= forced) {
+                    synced.add(unsynced.poll());
+                }
+            }
+            unapplied.addAll(synced);
+            synced.clear();
+            synchronized (syncMonitor) {
+                syncedSequence = forced;
+                syncMonitor.notifyAll();
+            }
+        }
+    }
+
+
+    /**
+     * Saves the synced records in batches until the sync thread stopped and every record is saved.
+     * A batch which cannot be saved because the database is unavailable is retried from its first unsaved record,
+     * waiting twice as long after each failure in a row.
+     */
+    private void applySynced() {
+        List<BallotJournal.Entry> batch = new ArrayList<>(applyBatchSize);
+        long retryDelay = 0;
+        while (syncer.isAlive() || !unapplied.isEmpty() || !batch.isEmpty()) {
+            try {
+                if (batch.isEmpty()) {
+                    BallotJournal.Entry first = unapplied.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    unapplied.drainTo(batch, applyBatchSize - 1);
+                }
+                apply(batch);
+                batch.clear();
+                retryDelay = 0;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                batch.removeIf(entry -> entry.sequence() <= appliedSequence);
+                if (!running) {
+                    logger.warn("Could not save the journaled ballots, they stay in the journal", e);
+                    return;
+                }
+                retryDelay = Math.min(Math.max(2 * retryDelay, 1000), MAX_RETRY_DELAY_MS);
+                logger.warn("Could not save the journaled ballots, retrying in {} ms", retryDelay, e);
+                try {
+                    Thread.sleep(retryDelay);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Saves a batch of records in one transaction. If the transaction fails, the records are saved one by one,
+     * so that the checkpoint moves past the records before the one which fails.
+     * @param batch the records, in the order of their sequence.
+     * @throws RuntimeException if a record cannot be saved on its own; the checkpoint stays before it.
+     */
+    private void apply(List<BallotJournal.Entry> batch) {
+        try {
+            complete(batch, save(batch));
+        } catch (RuntimeException e) {
+            if (batch.size() == 1) {
+                throw e;
+            }
+            logger.warn("Could not save a batch of journaled ballots, saving them one by one", e);
+            for (BallotJournal.Entry entry : batch) {
+                complete(List.of(entry), save(List.of(entry)));
+            }
+        }
+    }
+
+
+    /**
+     * Saves records grouped by participant and lottery, so that each group is paid at once, and moves the
+     * checkpoint of the journal to the last of them.
+     * @param entries the records, in the order of their sequence.
+     * @return the ids of the saved ballots by the sequence of their records.
+     */
+    private Map<Long, Long> save(List<BallotJournal.Entry> entries) {
+        return transactionTemplate.execute(status -> {
+            Map<Long, Long> ballotIds = new HashMap<>();
+            Map<List<Long>, List<BallotJournal.Entry>> groups = new LinkedHashMap<>();
+            for (BallotJournal.Entry entry : entries) {
+                groups.computeIfAbsent(List.of(entry.participantId(), entry.lotteryId()),
+                        key -> new ArrayList<>()).add(entry);
+            }
+            for (Map.Entry<List<Long>, List<BallotJournal.Entry>> group : groups.entrySet()) {
+                List<BallotJournal.Entry> records = group.getValue();
+                List<Ballot> saved = ballotService.saveJournaled(group.getKey().get(0), group.getKey().get(1),
+                        records.stream().map(BallotJournalService::toBallot).toList(),
+                        records.stream().mapToDouble(BallotJournal.Entry::amount).sum());
+                for (int i = 0; i < saved.size(); i++) {
+                    ballotIds.put(records.get(i).sequence(), saved.get(i).getId());
+                }
+            }
+            checkpointRepository.save(new JournalCheckpoint(CHECKPOINT, entries.get(entries.size() - 1).sequence()));
+            return ballotIds;
+        });
+    }
+
+
+    /**
+     * Completes the tickets and the reservations of saved records.
+     * @param entries the records, in the order of their sequence.
+     * @param ballotIds the ids of the saved ballots by the sequence of their records; the others were rejected.
+     */
+    private void complete(List<BallotJournal.Entry> entries, Map<Long, Long> ballotIds) {
+        appliedSequence = entries.get(entries.size() - 1).sequence();
+        for (BallotJournal.Entry entry : entries) {
+            Long ballotId = ballotIds.get(entry.sequence());
+            if (ballotId == null) {
+                release(entry.participantId(), entry.amount());
+                tickets.put(entry.sequence(), new BallotTicket(entry.sequence(), BallotTicket.Status.REJECTED, null,
+                        "Not enough balance or lottery not open!"));
+            } else {
+                release(entry.participantId(), 0);
+                tickets.put(entry.sequence(), new BallotTicket(entry.sequence(), BallotTicket.Status.ACCEPTED,
+                        ballotId, null));
+            }
+            tickets.remove(entry.sequence() - retainedTickets);
+        }
+    }
+
+
+    private static Ballot toBallot(BallotJournal.Entry entry) {
+        Ballot ballot = new Ballot(null, entry.lotteryId(), entry.participantId(),
+                GuessCodec.decode(entry.guessValue(), entry.guessLength()));
+        ballot.setPurchaseTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(entry.purchaseTime()), ZoneOffset.UTC));
+        return ballot;
+    }
+
+
+    /**
+     * The balance of a participant less the price of its purchases which are not saved yet.
+     */
+    private static final class Account {
+
+        private double balance;
+
+        private int pending;
+    }
+}
@@ -1,12 +1,25 @@
 package com.task.lottery.services;
 
+import com.task.lottery.dtos.BallotBatchRequest;
+import com.task.lottery.dtos.BallotPurchaseResult;
+import com.task.lottery.dtos.BallotView;
+import com.task.lottery.dtos.KeysetPage;
+import com.task.lottery.dtos.LotteryView;
 import com.task.lottery.entities.Ballot;
-import com.task.lottery.entities.Lottery;
-import com.task.lottery.entities.Participant;
 import com.task.lottery.repositories.BallotRepository;
+import com.task.lottery.repositories.LotteryRepository;
+import com.task.lottery.utils.GuessCodec;
+import com.task.lottery.utils.Keyset;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
 
@@ -16,7 +29,22 @@ public class BallotService {
     private BallotRepository ballotRepository;
     private LotteryService lotteryService;
     private ParticipantService participantService;
+    private WinnerCache winnerCache;
+    private LotteryStatsService lotteryStatsService;
+    private GuessHistogramService guessHistogramService;
 
+    @Autowired(required = false)
+    private GuessIndexService guessIndexService;
+
+    @Autowired(required = false)
+    private BallotArchiveService ballotArchiveService;
+
+    public static final int MAX_BATCH_SIZE = 500;
+
+    /**
+     * The number of digits of the guesses, the same as of the drawn numbers.
+     */
+    @Value("${lottery.draw.digits:6}")
     int guessLength = 6;
 
     /**
@@ -24,67 +52,300 @@ public class BallotService {
      * @param ballotRepository the ballot repository
      * @param lotteryService the lottery service
      * @param participantService the participant service
+     * @param winnerCache the cache of the winner ballots
+     * @param lotteryStatsService the sales figures of the lotteries
+     * @param guessHistogramService the counts of the guesses of the lotteries
      */
     @Autowired
     public BallotService(BallotRepository ballotRepository,
                          LotteryService lotteryService,
-                         ParticipantService participantService) {
+                         ParticipantService participantService,
+                         WinnerCache winnerCache,
+                         LotteryStatsService lotteryStatsService,
+                         GuessHistogramService guessHistogramService) {
         this.ballotRepository = ballotRepository;
         this.lotteryService = lotteryService;
         this.participantService = participantService;
+        this.winnerCache = winnerCache;
+        this.lotteryStatsService = lotteryStatsService;
+        this.guessHistogramService = guessHistogramService;
     }
 
 
     /**
      * Saves a new Ballot to the database.
      * A ballot entry can only be created if it is played by an existing participant with enough balance in an open lottery.
+     * The purchase runs in one transaction: a conditional debit that also checks the lottery is open,
+     * a guarded ballot count increment and the ballot insert. Nothing is read before the updates.
      *
      * @param ballot the Ballot to save.
      * @return the Ballot
      * @throws Exception ballot cannot be played if the lottery or participant does not exist and
      * if the participant does not have enough balance.
      */
+    @Transactional(rollbackFor = Exception.class)
     public Ballot save(Ballot ballot) throws Exception {
-        if (lotteryService.findById(ballot.getLotteryId()).isPresent()
-                && participantService.findById(ballot.getParticipantId()).isPresent()){
-            Lottery lottery = lotteryService.findById(ballot.getLotteryId()).get();
-            Participant participant = participantService.findById(ballot.getParticipantId()).get();
-            if (lottery.getIsOpen() && participant.getBalance() >= lottery.getBallotPrice()
-                    && ballot.getGuess().matches("[0-9]+") && ballot.getGuess().length() == guessLength){
-                lottery.setBallotCount(lottery.getBallotCount() + 1);
-                lotteryService.updateFields(lottery);
-                participant.setBalance(participant.getBalance() - lottery.getBallotPrice());
-                participantService.save(participant);
-                return ballotRepository.save(ballot);
-            }
+        if (isValidPurchase(ballot)
+                && pay(ballot.getParticipantId(), ballot.getLotteryId(), 1)
+                && lotteryService.incrementBallotCount(ballot.getLotteryId(), 1)) {
+            Ballot saved = ballotRepository.save(ballot);
+            afterSave(List.of(saved));
+            return saved;
         }
         throw new Exception("Ballot not present!");
     }
 
 
     /**
-     * Finds all the ballots.
-     * @return a list of all ballots.
+     * Saves a batch of ballots played by one participant in one lottery.
+     * The balance is debited and the ballot count is incremented once for all the valid guesses,
+     * then the ballots are inserted together so that the inserts can be sent as a JDBC batch.
+     *
+     * @param request the participant, the lottery and the guesses of the ballots.
+     * @return the outcome of each guess, in the order of the request.
+     * @throws IllegalArgumentException if the participant, the lottery or the guesses are missing
+     * or if there are more guesses than allowed in a batch.
+     */
+    @Transactional(rollbackFor = Exception.class)
+    public List<BallotPurchaseResult> saveBatch(BallotBatchRequest request) {
+        if (request.participantId() == null || request.lotteryId() == null || request.guesses() == null
+                || request.guesses().isEmpty() || request.guesses().size() > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("Invalid ballot batch!");
+        }
+        List<Ballot> ballots = new ArrayList<>(request.guesses().size());
+        for (String guess : request.guesses()) {
+            if (isValidGuess(guess)) {
+                ballots.add(new Ballot(null, request.lotteryId(), request.participantId(), guess));
+            }
+        }
+        boolean paid = false;
+        if (!ballots.isEmpty()) {
+            paid = pay(request.participantId(), request.lotteryId(), ballots.size());
+            if (paid && !lotteryService.incrementBallotCount(request.lotteryId(), ballots.size())) {
+                TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+                paid = false;
+            }
+        }
+        List<Ballot> savedBallots = paid ? ballotRepository.saveAll(ballots) : Collections.emptyList();
+        afterSave(savedBallots);
+        Iterator<Ballot> saved = savedBallots.iterator();
+        List<BallotPurchaseResult> results = new ArrayList<>(request.guesses().size());
+        for (String guess : request.guesses()) {
+            if (!isValidGuess(guess)) {
+                results.add(BallotPurchaseResult.failed(guess, "Invalid guess!"));
+            } else if (!paid) {
+                results.add(BallotPurchaseResult.failed(guess, "Not enough balance or lottery not open!"));
+            } else {
+                results.add(BallotPurchaseResult.succeeded(guess, saved.next().getId()));
+            }
+        }
+        return results;
+    }
+
+
+    /**
+     * Saves ballots of one participant in one lottery which were accepted and journaled before reaching the
+     * database. They were priced when they were accepted, so the participant is debited the journaled amount.
+     * Runs in the transaction of the caller, which also records how far the journal is saved.
+     *
+     * @param participantId the id of the participant.
+     * @param lotteryId the id of the lottery.
+     * @param ballots the ballots, with their purchase times.
+     * @param amount the amount paid for the ballots.
+     * @return the saved ballots, or an empty list if the participant can no longer pay or the lottery is closed.
      */
-    public List<Ballot> findAll() {
-        return ballotRepository.findAll();
+    @Transactional(rollbackFor = Exception.class)
+    public List<Ballot> saveJournaled(Long participantId, Long lotteryId, List<Ballot> ballots, double amount) {
+        if (ballots.isEmpty() || !participantService.debit(participantId, amount)) {
+            return Collections.emptyList();
+        }
+        if (!lotteryService.incrementBallotCount(lotteryId, ballots.size())) {
+            participantService.credit(participantId, amount);
+            return Collections.emptyList();
+        }
+        List<Ballot> saved = ballotRepository.saveAll(ballots);
+        afterSave(saved);
+        return saved;
     }
 
+
     /**
-     * Finds a ballot by its id.
+     * Finds a page of the ballots, in the order of their ids, including the archived ones.
+     * Only the given filters are part of the query, so that each one is served by its index. When a lottery is
+     * given, its start date is checked in the lottery cache instead.
+     * @param token the continuation token of the page, or null for the first page.
+     * @param size the page size, or null for the default size.
+     * @param lotteryId the id of the lottery of the ballots, or null for any lottery.
+     * @param participantId the id of the participant of the ballots, or null for any participant.
+     * @param from the first start date of the lotteries of the ballots, or null.
+     * @param to the last start date of the lotteries of the ballots, or null.
+     * @return the page of ballots.
+     * @throws IllegalArgumentException if the token or the size is invalid.
+     */
+    @Transactional(readOnly = true)
+    public KeysetPage<BallotView> findPage(String token, Integer size, Long lotteryId, Long participantId,
+                                           LocalDate from, LocalDate to) {
+        int pageSize = Keyset.pageSize(size);
+        long afterId = Keyset.afterId(token);
+        List<BallotView> ballots;
+        if (lotteryId != null && !startsBetween(lotteryId, from, to)) {
+            ballots = List.of();
+        } else if (lotteryId != null) {
+            ballots = participantId == null
+                    ? ballotRepository.findViewsByLottery(lotteryId, afterId, Keyset.limit(pageSize))
+                    : ballotRepository.findViewsByParticipantAndLottery(participantId, lotteryId, afterId,
+                            Keyset.limit(pageSize));
+        } else if (from == null && to == null) {
+            ballots = participantId == null
+                    ? ballotRepository.findPage(afterId, Keyset.limit(pageSize))
+                    : ballotRepository.findViewsByParticipant(participantId, afterId, Keyset.limit(pageSize));
+        } else {
+            LocalDate first = from == null ? LotteryRepository.FIRST_START_TIME : from;
+            LocalDate last = to == null ? LotteryRepository.LAST_START_TIME : to;
+            ballots = participantId == null
+                    ? ballotRepository.findPageStartingBetween(afterId, first, last, Keyset.limit(pageSize))
+                    : ballotRepository.findViewsByParticipantStartingBetween(participantId, afterId, first, last,
+                            Keyset.limit(pageSize));
+        }
+        if (ballotArchiveService != null) {
+            ballots = ballotArchiveService.mergePage(ballots, afterId,
+                    archived -> (lotteryId == null || lotteryId.equals(archived)) && startsBetween(archived, from, to),
+                    participantId, Keyset.limit(pageSize).getPageSize());
+        }
+        return Keyset.page(ballots, pageSize, BallotView::id);
+    }
+
+    /**
+     * Finds a page of the ballots of a participant, in the order of their ids, including the archived ones.
+     * @param participantId the id of the participant.
+     * @param lotteryId the id of the lottery of the ballots, or null for any lottery.
+     * @param token the continuation token of the page, or null for the first page.
+     * @param size the page size, or null for the default size.
+     * @return the page of ballots.
+     * @throws IllegalArgumentException if the token or the size is invalid.
+     */
+    @Transactional(readOnly = true)
+    public KeysetPage<BallotView> findByParticipant(long participantId, Long lotteryId, String token, Integer size) {
+        int pageSize = Keyset.pageSize(size);
+        long afterId = Keyset.afterId(token);
+        List<BallotView> ballots = lotteryId == null
+                ? ballotRepository.findViewsByParticipant(participantId, afterId, Keyset.limit(pageSize))
+                : ballotRepository.findViewsByParticipantAndLottery(participantId, lotteryId, afterId,
+                        Keyset.limit(pageSize));
+        if (ballotArchiveService != null) {
+            ballots = ballotArchiveService.mergePage(ballots, afterId,
+                    archived -> lotteryId == null || lotteryId.equals(archived),
+                    participantId, Keyset.limit(pageSize).getPageSize());
+        }
+        return Keyset.page(ballots, pageSize, BallotView::id);
+    }
+
+
+    /**
+     * Finds a ballot by its id, in the ballot table or else in the archives.
      * @param id the id of the ballot to find.
      * @return the ballot.
      */
-    public Optional<Ballot> findById(long id) {
-        return ballotRepository.findById(id);
+    @Transactional(readOnly = true)
+    public Optional<BallotView> findById(long id) {
+        Optional<BallotView> ballot = ballotRepository.findViewById(id);
+        if (ballot.isEmpty() && ballotArchiveService != null) {
+            return ballotArchiveService.findById(id);
+        }
+        return ballot;
     }
 
 
     /**
      * Finds a ballot by its id and removes it from the database.
+     * The ballot may be a winner, and deletions are rare, so the whole winner cache is cleared.
      * @param id the id of the ballot to remove from the database.
      */
     public void deleteById(long id) {
-        ballotRepository.deleteAll(ballotRepository.findAllById(List.of(id)));
+        List<Ballot> ballots = ballotRepository.findAllById(List.of(id));
+        ballotRepository.deleteAll(ballots);
+        if (!ballots.isEmpty()) {
+            winnerCache.clear();
+        }
+        if (guessIndexService != null) {
+            ballots.forEach(ballot -> guessIndexService.invalidate(ballot.getLotteryId()));
+        }
+        ballots.forEach(ballot -> {
+            lotteryStatsService.invalidate(ballot.getLotteryId());
+            guessHistogramService.invalidate(ballot.getLotteryId());
+        });
+    }
+
+
+    /**
+     * Debits the price of the ballots from the participant balance if the lottery is open.
+     * Without the wallet this is a single conditional update. With the wallet the lottery is read to get its
+     * state and price and the balance is debited in memory.
+     * @param participantId the id of the participant.
+     * @param lotteryId the id of the lottery.
+     * @param quantity the number of ballots.
+     * @return true if the ballots were paid and false otherwise.
+     */
+    private boolean pay(Long participantId, Long lotteryId, int quantity) {
+        if (!participantService.usesWallet()) {
+            return participantService.debitBallotPrice(participantId, lotteryId, quantity);
+        }
+        Optional<LotteryView> lottery = lotteryService.findById(lotteryId);
+        return lottery.isPresent() && lottery.get().isOpen()
+                && participantService.debit(participantId, quantity * lottery.get().ballotPrice());
+    }
+
+
+    /**
+     * Checks whether a lottery started between two dates, read from the lottery cache.
+     * @param lotteryId the id of the lottery.
+     * @param from the first date, or null.
+     * @param to the last date, or null.
+     * @return true if the lottery exists and started between the dates, or if there are no dates.
+     */
+    private boolean startsBetween(Long lotteryId, LocalDate from, LocalDate to) {
+        if (from == null && to == null) {
+            return true;
+        }
+        Optional<LocalDate> start = lotteryService.findById(lotteryId).map(LotteryView::startTime);
+        return start.isPresent() && (from == null || !start.get().isBefore(from))
+                && (to == null || !start.get().isAfter(to));
+    }
+
+
+    /**
+     * Checks the fields of a ballot purchase without accessing the database.
+     * @param ballot the ballot to buy.
+     * @return true if the lottery and the participant are given and the guess is valid, false otherwise.
+     */
+    public boolean isValidPurchase(Ballot ballot) {
+        return ballot.getLotteryId() != null && ballot.getParticipantId() != null && isValidGuess(ballot.getGuess());
+    }
+
+
+    /**
+     * Adds saved ballots to the sales figures and the guess counts of their lottery and, in the guess draw mode,
+     * to the guess index, once the purchase commits.
+     * @param ballots the saved ballots.
+     */
+    private void afterSave(List<Ballot> ballots) {
+        if (ballots.isEmpty()) {
+            return;
+        }
+        lotteryStatsService.recordAfterCommit(ballots);
+        guessHistogramService.recordAfterCommit(ballots);
+        if (guessIndexService != null) {
+            guessIndexService.addAfterCommit(ballots);
+        }
+    }
+
+
+    /**
+     * Checks whether a guess is composed of digits only and has the expected length.
+     * @param guess the guess.
+     * @return true if the guess is valid and false otherwise.
+     */
+    private boolean isValidGuess(String guess) {
+        return GuessCodec.isValid(guess, guessLength);
     }
 }
@@ -0,0 +1,104 @@
+package com.task.lottery.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * Runs an operation again when it fails because of a concurrent change.
+ * Optimistic locking failures, lock timeouts and deadlocks are retried up to "max-attempts" times, waiting a
+ * random time below an exponentially growing bound between the attempts so that the conflicting callers don't
+ * collide again. Conflicts, retries and operations which ran out of attempts are counted per operation in the
+ * "lottery.concurrency.conflicts", "lottery.concurrency.retries" and "lottery.concurrency.exhausted" metrics.
+ * The operation must start its own transaction, since a transaction that failed cannot be retried: when it is
+ * called inside a transaction already, the operation runs once and the conflict is left to the caller, which
+ * retries its whole transaction.
+ */
+@Service
+public class ConcurrencyRetry {
+
+    private final MeterRegistry meterRegistry;
+
+    private final int maxAttempts;
+
+    private final long initialBackoffMillis;
+
+    private final long maxBackoffMillis;
+
+
+    /**
+     * Instantiates a new ConcurrencyRetry.
+     * @param meterRegistry the registry of the metrics.
+     * @param maxAttempts the maximum number of times an operation is run.
+     * @param initialBackoffMillis the upper bound of the wait before the first retry.
+     * @param maxBackoffMillis the upper bound of the wait before any retry.
+     */
+    @Autowired
+    public ConcurrencyRetry(MeterRegistry meterRegistry,
+                            @Value("${lottery.retry.max-attempts:5}") int maxAttempts,
+                            @Value("${lottery.retry.initial-backoff-ms:5}") long initialBackoffMillis,
+                            @Value("${lottery.retry.max-backoff-ms:200}") long maxBackoffMillis) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("There must be at least one attempt!");
+        }
+        this.meterRegistry = meterRegistry;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+
+    /**
+     * Runs an operation, retrying it while it fails because of a concurrent change.
+     * @param operation the name of the operation, used to tag the metrics.
+     * @param action the operation.
+     * @param <T> the type of the result.
+     * @return the result of the operation.
+     * @throws ConcurrencyFailureException if the last attempt failed because of a concurrent change.
+     * @throws Exception if the operation failed for another reason.
+     */
+    public <T> T execute(String operation, Callable<T> action) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return action.call();
+            } catch (ConcurrencyFailureException e) {
+                counter("lottery.concurrency.conflicts", operation).increment();
+                if (TransactionSynchronizationManager.isActualTransactionActive()) {
+                    throw e;
+                }
+                if (attempt >= maxAttempts) {
+                    counter("lottery.concurrency.exhausted", operation).increment();
+                    throw e;
+                }
+                counter("lottery.concurrency.retries", operation).increment();
+                Thread.sleep(backoff(attempt));
+            }
+        }
+    }
+
+
+    /**
+     * Picks the wait before a retry, a random time up to a bound which doubles with each attempt.
+     * @param attempt the number of the attempt which failed, starting from 1.
+     * @return the wait in milliseconds.
+     */
+    private long backoff(int attempt) {
+        long bound = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt - 1, 30));
+        return ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+
+    private Counter counter(String name, String operation) {
+        return Counter.builder(name)
+                .tag("operation", operation)
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,125 @@
+package com.task.lottery.services;
+
+import com.task.lottery.entities.Ballot;
+import com.task.lottery.entities.Lottery;
+import com.task.lottery.repositories.BallotRepository;
+import com.task.lottery.utils.GuessCodec;
+import com.task.lottery.utils.PrizeTiers;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * Draws the lotteries by guess: a winning number is drawn and the ballots matching enough of its digit
+ * positions share the prize.
+ * The prize tiers are configured with "lottery.draw.tiers" as a list of "matches:share" pairs, e.g. "6:0.7"
+ * gives 70% of the prize to the ballots matching all 6 positions. The share of a tier is split evenly between
+ * its ballots, and the share of a tier without ballots is not paid.
+ * Enabled with the "lottery.draw.mode=guess" property.
+ */
+@Service
+@ConditionalOnProperty(name = "lottery.draw.mode", havingValue = "guess")
+public class GuessDrawService {
+
+    private static final int MAX_IDS_PER_QUERY = 1000;
+
+    private final GuessIndexService guessIndexService;
+
+    private final BallotRepository ballotRepository;
+
+    private final int digits;
+
+    private final Map<Integer, Double> tiers;
+
+
+    /**
+     * Instantiates a new GuessDrawService.
+     * @param guessIndexService the index of the guesses.
+     * @param ballotRepository the ballot repository.
+     * @param digits the number of digits of the winning number.
+     * @param tiers the prize tiers, as "matches:share" pairs separated by commas.
+     */
+    @Autowired
+    public GuessDrawService(GuessIndexService guessIndexService,
+                            BallotRepository ballotRepository,
+                            @Value("${lottery.draw.digits:6}") int digits,
+                            @Value("${lottery.draw.tiers:6:0.7,5:0.2,4:0.1}") String tiers) {
+        this.guessIndexService = guessIndexService;
+        this.ballotRepository = ballotRepository;
+        this.digits = digits;
+        this.tiers = PrizeTiers.parse(tiers, digits);
+    }
+
+
+    /**
+     * Draws a winning number for a lottery and finds what each winner gets.
+     * The winning number and the winner, the first ballot of the highest tier with ballots, are set on the
+     * lottery; nothing is saved or paid.
+     * @param lottery the lottery to draw.
+     * @return the draw.
+     */
+    public Draw draw(Lottery lottery) {
+        int winningNumber = ThreadLocalRandom.current().nextInt(pow10(digits));
+        lottery.setWinningNumber(GuessCodec.decode(winningNumber, digits));
+        Map<Integer, List<Long>> matches = guessIndexService.match(lottery.getId(), winningNumber, tiers.keySet());
+        Map<Long, Double> payouts = new HashMap<>();
+        Long winnerId = null;
+        Ballot winner = null;
+        for (Map.Entry<Integer, List<Long>> tier : matches.entrySet()) {
+            List<Long> ballotIds = tier.getValue();
+            if (ballotIds.isEmpty()) {
+                continue;
+            }
+            if (winnerId == null) {
+                winnerId = Collections.min(ballotIds);
+            }
+            double prize = lottery.getPrize() * tiers.get(tier.getKey()) / ballotIds.size();
+            for (int from = 0; from < ballotIds.size(); from += MAX_IDS_PER_QUERY) {
+                List<Long> chunk = ballotIds.subList(from, Math.min(from + MAX_IDS_PER_QUERY, ballotIds.size()));
+                for (Ballot ballot : ballotRepository.findAllById(chunk)) {
+                    payouts.merge(ballot.getParticipantId(), prize, Double::sum);
+                    if (ballot.getId().equals(winnerId)) {
+                        winner = ballot;
+                    }
+                }
+            }
+        }
+        lottery.setWinnerId(winnerId);
+        return new Draw(winner, payouts);
+    }
+
+
+    /**
+     * Forgets the guesses of a lottery once it is drawn.
+     * @param lotteryId the id of the lottery.
+     */
+    public void release(Long lotteryId) {
+        guessIndexService.invalidate(lotteryId);
+    }
+
+
+    private int pow10(int exponent) {
+        int value = 1;
+        for (int i = 0; i < exponent; i++) {
+            value *= 10;
+        }
+        return value;
+    }
+
+
+    /**
+     * The outcome of a draw.
+     * @param winner the first ballot of the highest tier with ballots, or null if no ballot won.
+     * @param payouts the amount won by each winning participant.
+     */
+    public record Draw(Ballot winner, Map<Long, Double> payouts) {
+    }
+}
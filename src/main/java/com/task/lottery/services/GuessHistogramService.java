@@ -0,0 +1,414 @@
+package com.task.lottery.services;
+
+import com.task.lottery.dtos.BallotGuess;
+import com.task.lottery.dtos.GuessCount;
+import com.task.lottery.dtos.GuessLiability;
+import com.task.lottery.dtos.LotteryView;
+import com.task.lottery.entities.Ballot;
+import com.task.lottery.repositories.BallotRepository;
+import com.task.lottery.utils.GuessCodec;
+import com.task.lottery.utils.PrizeTiers;
+import com.task.lottery.utils.SingleFlightCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+
+/**
+ * Exact counts of the guesses played in the lotteries, used to find the most popular guesses and what a lottery
+ * would pay for a drawn number without reading its ballots.
+ * There are only 10^digits possible guesses, so each lottery has a dense array of one count per guess, 4 MB for
+ * 6 digits, and the "lottery.guesses.top-size" most played guesses are kept sorted as the counts grow.
+ * At most "lottery.guesses.max-lotteries" lotteries are kept in memory, the least recently read are dropped.
+ * The counts of a lottery are built when it opens, and at startup for the lotteries which are open, then updated
+ * as the purchases commit, so that reading them never reads the ballot table. The counts of a lottery dropped from
+ * memory are built again from the guesses of the ballot table when read. The purchases which commit while the counts
+ * are built are kept aside and added once the guesses are read, unless the read found them or their id is at most
+ * the highest id read, in which case it may have found them. Like the sales figures, the counts are rebuilt when
+ * their number of ballots, which includes the ballots whose guess has another number of digits, differs from the
+ * ballot counters, at most once per "lottery.stats.resync-interval".
+ */
+@Service
+public class GuessHistogramService {
+
+    /**
+     * The most digits of the guesses for which the counts are kept, 40 MB per lottery.
+     */
+    public static final int MAX_DIGITS = 7;
+
+    private static final Logger logger = LoggerFactory.getLogger(GuessHistogramService.class);
+
+    private final BallotRepository ballotRepository;
+
+    private final LotteryCache lotteryCache;
+
+    private final BallotCounterService ballotCounterService;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final int digits;
+
+    private final Map<Integer, Double> tiers;
+
+    private final int topSize;
+
+    private final Duration resyncInterval;
+
+    private final SingleFlightCache<Long, Histogram> histograms;
+
+    /**
+     * The counts being built, by lottery, until they are in the cache.
+     */
+    private final Map<Long, Build> builds = new ConcurrentHashMap<>();
+
+    @Autowired(required = false)
+    private BallotArchiveService ballotArchiveService;
+
+
+    /**
+     * Instantiates a new GuessHistogramService.
+     * @param ballotRepository the ballot repository.
+     * @param lotteryCache the lottery cache, to get the prizes.
+     * @param ballotCounterService the ballot counters, to detect the purchases made on other nodes.
+     * @param transactionManager the transaction manager used to read the guesses when building the counts.
+     * @param digits the number of digits of the guesses.
+     * @param tiers the prize tiers of the guess draws, as "matches:share" pairs separated by commas.
+     * @param maxLotteries the maximum number of lotteries whose counts are kept in memory.
+     * @param topSize the number of most played guesses kept sorted, the largest k of the top guesses.
+     * @param resyncInterval the minimum time between two rebuilds of the counts of a lottery.
+     */
+    @Autowired
+    public GuessHistogramService(BallotRepository ballotRepository,
+                                 LotteryCache lotteryCache,
+                                 BallotCounterService ballotCounterService,
+                                 PlatformTransactionManager transactionManager,
+                                 @Value("${lottery.draw.digits:6}") int digits,
+                                 @Value("${lottery.draw.tiers:6:0.7,5:0.2,4:0.1}") String tiers,
+                                 @Value("${lottery.guesses.max-lotteries:4}") int maxLotteries,
+                                 @Value("${lottery.guesses.top-size:100}") int topSize,
+                                 @Value("${lottery.stats.resync-interval:5m}") Duration resyncInterval) {
+        if (digits < 1 || digits > MAX_DIGITS) {
+            throw new IllegalArgumentException("The guesses must have between 1 and " + MAX_DIGITS + " digits!");
+        }
+        this.ballotRepository = ballotRepository;
+        this.lotteryCache = lotteryCache;
+        this.ballotCounterService = ballotCounterService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setReadOnly(true);
+        this.digits = digits;
+        this.tiers = PrizeTiers.parse(tiers, digits);
+        this.topSize = topSize;
+        this.resyncInterval = resyncInterval;
+        this.histograms = new SingleFlightCache<>(maxLotteries, Duration.ZERO);
+    }
+
+
+    /**
+     * Adds the guesses of saved ballots to the counts of their lotteries once the current transaction commits,
+     * or right away if there is no transaction. The lotteries whose counts were dropped from memory are skipped,
+     * they are built from the ballot table when read.
+     * @param ballots the saved ballots.
+     */
+    public void recordAfterCommit(Collection<Ballot> ballots) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    ballots.forEach(GuessHistogramService.this::record);
+                }
+            });
+        } else {
+            ballots.forEach(this::record);
+        }
+    }
+
+
+    /**
+     * Builds the counts of a lottery which opens, or which is open at startup, so that they are in memory before
+     * its purchases commit. A lottery which just opened has no ballots, so this reads nothing. If the counts cannot
+     * be built, they are built when read instead.
+     * @param lotteryId the id of the lottery.
+     */
+    public void open(Long lotteryId) {
+        try {
+            load(lotteryId);
+        } catch (RuntimeException e) {
+            logger.warn("Could not build the guess counts of lottery {}, they are built when read", lotteryId, e);
+        }
+    }
+
+
+    /**
+     * Finds the most played guesses of a lottery.
+     * @param lotteryId the id of the lottery.
+     * @param k the number of guesses to find.
+     * @return an optional of the k most played guesses, most played first, empty if the lottery doesn't exist.
+     * @throws IllegalArgumentException if k is not between 1 and the top size.
+     */
+    public Optional<List<GuessCount>> findTop(Long lotteryId, int k) {
+        if (k < 1 || k > topSize) {
+            throw new IllegalArgumentException("k must be between 1 and " + topSize + "!");
+        }
+        return lotteryCache.findById(lotteryId).map(lottery -> histogram(lottery).top(k));
+    }
+
+
+    /**
+     * Finds what a lottery would pay if a number was drawn: the ballots of each prize tier and the sum of the
+     * shares of the prize of the tiers which have ballots.
+     * @param lotteryId the id of the lottery.
+     * @param number the drawn number.
+     * @return an optional of the liability, empty if the lottery doesn't exist.
+     * @throws IllegalArgumentException if the number doesn't have the number of digits of the guesses.
+     */
+    public Optional<GuessLiability> findLiability(Long lotteryId, String number) {
+        if (!GuessCodec.isValid(number, digits)) {
+            throw new IllegalArgumentException("Invalid number!");
+        }
+        int value = GuessCodec.encode(number);
+        int[] winning = new int[digits];
+        for (int position = 0; position < digits; position++) {
+            winning[position] = GuessCodec.digitAt(value, digits, position);
+        }
+        return lotteryCache.findById(lotteryId).map(lottery -> {
+            Histogram histogram = histogram(lottery);
+            SortedMap<Integer, Long> winningBallots = new TreeMap<>(Collections.reverseOrder());
+            double share = 0;
+            for (Map.Entry<Integer, Double> tier : tiers.entrySet()) {
+                long ballots = histogram.countMatching(winning, tier.getKey());
+                winningBallots.put(tier.getKey(), ballots);
+                if (ballots > 0) {
+                    share += tier.getValue();
+                }
+            }
+            return new GuessLiability(lotteryId, number, Collections.unmodifiableSortedMap(winningBallots),
+                    lottery.prize() * share);
+        });
+    }
+
+
+    /**
+     * Drops the counts of a lottery which was deleted or lost ballots, so that they are rebuilt when read.
+     * @param lotteryId the id of the lottery.
+     */
+    public void invalidate(Long lotteryId) {
+        histograms.invalidate(lotteryId);
+        builds.remove(lotteryId);
+    }
+
+
+    private void record(Ballot ballot) {
+        Build build = builds.get(ballot.getLotteryId());
+        if (build != null) {
+            build.record(ballot);
+            return;
+        }
+        Histogram histogram = histograms.getIfPresent(ballot.getLotteryId());
+        if (histogram != null) {
+            histogram.add(ballot.getGuessValue(), ballot.getGuessLength());
+        }
+    }
+
+
+    private Histogram histogram(LotteryView lottery) {
+        Histogram histogram = histograms.getIfPresent(lottery.id());
+        if (histogram != null && histogram.isStale(ballotCounterService.count(lottery.id()), resyncInterval)) {
+            histograms.invalidate(lottery.id());
+        }
+        return load(lottery.id());
+    }
+
+
+    /**
+     * Gets the counts of a lottery, building them if they are not in memory. Once they are in the cache, the
+     * purchases go to them directly instead of through their build.
+     */
+    private Histogram load(Long lotteryId) {
+        Histogram built = histograms.get(lotteryId, this::build);
+        builds.computeIfPresent(lotteryId, (id, build) -> build.histogram == built ? null : build);
+        return built;
+    }
+
+
+    /**
+     * Builds the counts of a lottery from the guesses stored in the database, streaming them so that the
+     * ballots are never all held in memory. The guesses of an archived lottery are read from its archive.
+     * The purchases recorded meanwhile are added at the end, except those which the read found.
+     * @param lotteryId the id of the lottery.
+     * @return the counts.
+     */
+    private Histogram build(Long lotteryId) {
+        Histogram histogram = new Histogram(digits, topSize);
+        Build build = new Build(histogram);
+        builds.put(lotteryId, build);
+        try {
+            if (ballotArchiveService != null && ballotArchiveService.isArchived(lotteryId)) {
+                ballotArchiveService.forEach(lotteryId, ballot -> {
+                    build.read(ballot.id());
+                    histogram.add(ballot.guessValue(), ballot.guessLength());
+                });
+            } else {
+                transactionTemplate.executeWithoutResult(status -> {
+                    try (Stream<BallotGuess> guesses = ballotRepository.streamGuessesByLotteryId(lotteryId)) {
+                        guesses.forEach(guess -> {
+                            build.read(guess.id());
+                            histogram.add(guess.guessValue(), guess.guessLength());
+                        });
+                    }
+                });
+            }
+        } catch (RuntimeException e) {
+            builds.remove(lotteryId, build);
+            throw e;
+        }
+        build.finish();
+        return histogram;
+    }
+
+
+    /**
+     * The counts of a lottery being built and the purchases recorded meanwhile, which are added to the counts
+     * once the guesses are read; the purchases recorded afterwards go straight to the counts.
+     * A purchase recorded after the read passed its id may have been read already, so like the guess index, the
+     * purchases up to the highest id read are ignored. Those the read did not find leave the counts short of the
+     * ballot counters, which rebuilds them.
+     */
+    private static final class Build {
+        private final Histogram histogram;
+        private final Map<Long, Ballot> recorded = new HashMap<>();
+        private long readId;
+        private boolean finished;
+
+        private Build(Histogram histogram) {
+            this.histogram = histogram;
+        }
+
+        private synchronized void record(Ballot ballot) {
+            if (finished) {
+                histogram.add(ballot.getGuessValue(), ballot.getGuessLength());
+            } else if (ballot.getId() > readId) {
+                recorded.put(ballot.getId(), ballot);
+            }
+        }
+
+        private synchronized void read(long ballotId) {
+            readId = Math.max(readId, ballotId);
+            if (!recorded.isEmpty()) {
+                recorded.remove(ballotId);
+            }
+        }
+
+        private synchronized void finish() {
+            recorded.values().forEach(ballot -> histogram.add(ballot.getGuessValue(), ballot.getGuessLength()));
+            recorded.clear();
+            finished = true;
+        }
+    }
+
+
+    /**
+     * The counts of the guesses of one lottery.
+     * The most played guesses are kept in a sorted set of keys holding the count in their high half and the
+     * guess in their low half, ordered so that the smaller guess comes first among equal counts. The counts only
+     * grow, so a guess enters the set when its count passes the smallest one in it, which it then replaces.
+     */
+    private static final class Histogram {
+        private final int[] counts;
+        private final int digits;
+        private final int topSize;
+        private final TreeSet<Long> top = new TreeSet<>();
+        private final long createdAt = System.nanoTime();
+        private long ballotCount;
+
+        private Histogram(int digits, int topSize) {
+            int size = 1;
+            for (int i = 0; i < digits; i++) {
+                size *= 10;
+            }
+            this.counts = new int[size];
+            this.digits = digits;
+            this.topSize = topSize;
+        }
+
+        private static long key(int count, int guess) {
+            return ((long) count << 32) | (Integer.MAX_VALUE - guess);
+        }
+
+        private synchronized void add(int guessValue, int guessLength) {
+            ballotCount++;
+            if (guessLength != digits) {
+                return;
+            }
+            int count = ++counts[guessValue];
+            long key = key(count, guessValue);
+            if (top.remove(key(count - 1, guessValue)) || top.size() < topSize) {
+                top.add(key);
+            } else if (key > top.first()) {
+                top.pollFirst();
+                top.add(key);
+            }
+        }
+
+        private synchronized boolean isStale(long storedCount, Duration resyncInterval) {
+            return ballotCount != storedCount && System.nanoTime() - createdAt >= resyncInterval.toNanos();
+        }
+
+        private synchronized List<GuessCount> top(int k) {
+            List<GuessCount> guesses = new ArrayList<>(Math.min(k, top.size()));
+            Iterator<Long> keys = top.descendingIterator();
+            while (keys.hasNext() && guesses.size() < k) {
+                long key = keys.next();
+                int guess = Integer.MAX_VALUE - (int) key;
+                guesses.add(new GuessCount(GuessCodec.decode(guess, digits), (int) (key >>> 32)));
+            }
+            return guesses;
+        }
+
+        /**
+         * Counts the ballots whose guess matches the winning digits on exactly "matches" positions, by visiting
+         * every guess which differs from the winning number on the other positions.
+         */
+        private synchronized long countMatching(int[] winning, int matches) {
+            return countMatching(winning, 0, 0, digits - matches);
+        }
+
+        private long countMatching(int[] winning, int position, int guess, int mismatches) {
+            if (position == digits) {
+                return mismatches == 0 ? counts[guess] : 0;
+            }
+            if (digits - position < mismatches) {
+                return 0;
+            }
+            long total = countMatching(winning, position + 1, guess * 10 + winning[position], mismatches);
+            if (mismatches > 0) {
+                for (int digit = 0; digit < 10; digit++) {
+                    if (digit != winning[position]) {
+                        total += countMatching(winning, position + 1, guess * 10 + digit, mismatches - 1);
+                    }
+                }
+            }
+            return total;
+        }
+    }
+}
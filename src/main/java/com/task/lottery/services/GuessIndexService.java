@@ -0,0 +1,254 @@
+package com.task.lottery.services;
+
+import com.task.lottery.dtos.BallotGuess;
+import com.task.lottery.entities.Ballot;
+import com.task.lottery.repositories.BallotRepository;
+import com.task.lottery.utils.GuessCodec;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongConsumer;
+import java.util.stream.Stream;
+
+
+/**
+ * Index of the ballot guesses of the open lotteries, used to find the ballots matching a winning number.
+ * For each lottery, every ballot gets an ordinal and there is one bitmap per digit position and digit value,
+ * in which the bit of a ballot is set if its guess has that digit at that position. The ballots matching the
+ * winning number on exactly k positions are then found with intersections of the bitmaps, without reading the
+ * ballots.
+ * The ballots are added as their purchases commit. The index of a node only sees the purchases made on it,
+ * so before a draw it is compared with the ballot count of the database, for example after a restart or when
+ * several nodes sell ballots. If they differ, the ballots above the highest id the index read from the database
+ * are added to it, and only if it still misses ballots, whose ids were taken before that id but committed after
+ * it was read, is it rebuilt from all the guesses.
+ * Enabled with the "lottery.draw.mode=guess" property.
+ */
+@Service
+@ConditionalOnProperty(name = "lottery.draw.mode", havingValue = "guess")
+public class GuessIndexService {
+
+    private final BallotRepository ballotRepository;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final int digits;
+
+    private final Map<Long, LotteryIndex> indexes = new ConcurrentHashMap<>();
+
+
+    /**
+     * Instantiates a new GuessIndexService.
+     * @param ballotRepository the ballot repository.
+     * @param transactionManager the transaction manager used to read the guesses when rebuilding an index.
+     * @param digits the number of digits of the guesses and of the winning numbers.
+     */
+    @Autowired
+    public GuessIndexService(BallotRepository ballotRepository,
+                             PlatformTransactionManager transactionManager,
+                             @Value("${lottery.draw.digits:6}") int digits) {
+        this.ballotRepository = ballotRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setReadOnly(true);
+        this.digits = digits;
+    }
+
+
+    /**
+     * Adds ballots to the index of their lotteries once the current transaction commits,
+     * or right away if there is no transaction.
+     * @param ballots the saved ballots.
+     */
+    public void addAfterCommit(Collection<Ballot> ballots) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    ballots.forEach(GuessIndexService.this::add);
+                }
+            });
+        } else {
+            ballots.forEach(this::add);
+        }
+    }
+
+
+    /**
+     * Finds the ballots of a lottery which match a winning number on exactly the given numbers of positions.
+     * @param lotteryId the id of the lottery.
+     * @param winningNumber the winning number, as the number it spells.
+     * @param matches the numbers of matching positions to look for.
+     * @return the ids of the matching ballots for each number of matching positions, highest first.
+     */
+    public Map<Integer, List<Long>> match(Long lotteryId, int winningNumber, Collection<Integer> matches) {
+        long stored = ballotRepository.countByLotteryId(lotteryId);
+        LotteryIndex index = indexes.computeIfAbsent(lotteryId, id -> new LotteryIndex(digits));
+        if (index.size() != stored) {
+            read(lotteryId, index);
+        }
+        if (index.size() != stored) {
+            index = new LotteryIndex(digits);
+            indexes.put(lotteryId, index);
+            read(lotteryId, index);
+        }
+        int[] winning = new int[digits];
+        for (int position = 0; position < digits; position++) {
+            winning[position] = GuessCodec.digitAt(winningNumber, digits, position);
+        }
+        Map<Integer, List<Long>> result = new TreeMap<>((a, b) -> Integer.compare(b, a));
+        for (int match : matches) {
+            result.put(match, index.match(winning, match));
+        }
+        return result;
+    }
+
+
+    /**
+     * Drops the index of a lottery, after its draw or when its ballots changed in a way the index can't follow.
+     * @param lotteryId the id of the lottery.
+     */
+    public void invalidate(Long lotteryId) {
+        indexes.remove(lotteryId);
+    }
+
+
+    private void add(Ballot ballot) {
+        indexes.computeIfAbsent(ballot.getLotteryId(), id -> new LotteryIndex(digits))
+                .commit(ballot.getId(), ballot.getGuessValue(), ballot.getGuessLength());
+    }
+
+
+    /**
+     * Adds to an index the guesses stored in the database above the highest id it read, streaming them so that
+     * the ballots are never all held in memory. A new index reads all the guesses of the lottery.
+     * @param lotteryId the id of the lottery.
+     * @param index the index.
+     */
+    private void read(Long lotteryId, LotteryIndex index) {
+        transactionTemplate.executeWithoutResult(status -> index.read(afterId -> {
+            try (Stream<BallotGuess> guesses = ballotRepository.streamGuessesByLotteryIdAfter(lotteryId, afterId)) {
+                guesses.forEach(index::readGuess);
+            }
+        }));
+    }
+
+
+    /**
+     * The bitmaps of one lottery.
+     * Every ballot gets an ordinal, but only the guesses with the number of digits of the index are in the
+     * bitmaps. The ballots read from the database go up to the highest id read, and the ballots committed since
+     * are above it: those are the ones a later read may find again.
+     */
+    private static final class LotteryIndex {
+        private final BitSet[][] bitmaps;
+        private final BitSet indexed = new BitSet();
+        private long[] ballotIds = new long[1024];
+        private int size;
+        private long readId;
+        private int readSize;
+        private long[] committedSinceRead;
+
+        private LotteryIndex(int digits) {
+            this.bitmaps = new BitSet[digits][10];
+            for (BitSet[] position : bitmaps) {
+                for (int digit = 0; digit < 10; digit++) {
+                    position[digit] = new BitSet();
+                }
+            }
+        }
+
+        private synchronized int size() {
+            return size;
+        }
+
+        /**
+         * Adds a ballot whose purchase committed. A ballot up to the highest id read was committed after that read
+         * although its id was taken before: it is left out, and the count check rebuilds the index.
+         */
+        private synchronized void commit(long ballotId, int guessValue, int guessLength) {
+            if (ballotId > readId) {
+                append(ballotId, guessValue, guessLength);
+            }
+        }
+
+        /**
+         * Reads the ballots above the highest id read, holding the index so that no purchase is added meanwhile.
+         * The ballots committed since the previous read are skipped, they are in the index already.
+         */
+        private synchronized void read(LongConsumer reader) {
+            committedSinceRead = Arrays.copyOfRange(ballotIds, readSize, size);
+            Arrays.sort(committedSinceRead);
+            try {
+                reader.accept(readId);
+            } finally {
+                committedSinceRead = null;
+                readSize = size;
+            }
+        }
+
+        private synchronized void readGuess(BallotGuess guess) {
+            if (Arrays.binarySearch(committedSinceRead, guess.id()) < 0) {
+                append(guess.id(), guess.guessValue(), guess.guessLength());
+            }
+            readId = Math.max(readId, guess.id());
+        }
+
+        private void append(long ballotId, int guessValue, int guessLength) {
+            if (size == ballotIds.length) {
+                ballotIds = Arrays.copyOf(ballotIds, size * 2);
+            }
+            int ordinal = size++;
+            ballotIds[ordinal] = ballotId;
+            if (guessLength != bitmaps.length) {
+                return;
+            }
+            indexed.set(ordinal);
+            for (int position = 0; position < bitmaps.length; position++) {
+                bitmaps[position][GuessCodec.digitAt(guessValue, guessLength, position)].set(ordinal);
+            }
+        }
+
+        /**
+         * Finds the ballots matching exactly "match" positions: for each set of "match" positions, the bitmaps
+         * of the winning digits at those positions are intersected and the ones of the other positions removed.
+         */
+        private synchronized List<Long> match(int[] winning, int match) {
+            BitSet matching = new BitSet();
+            int positions = bitmaps.length;
+            for (int subset = 0; subset < 1 << positions; subset++) {
+                if (Integer.bitCount(subset) != match) {
+                    continue;
+                }
+                BitSet candidates = (BitSet) indexed.clone();
+                for (int position = 0; position < positions; position++) {
+                    BitSet bitmap = bitmaps[position][winning[position]];
+                    if ((subset & (1 << position)) != 0) {
+                        candidates.and(bitmap);
+                    } else {
+                        candidates.andNot(bitmap);
+                    }
+                }
+                matching.or(candidates);
+            }
+            List<Long> ids = new ArrayList<>(matching.cardinality());
+            for (int ordinal = matching.nextSetBit(0); ordinal >= 0; ordinal = matching.nextSetBit(ordinal + 1)) {
+                ids.add(ballotIds[ordinal]);
+            }
+            return ids;
+        }
+    }
+}
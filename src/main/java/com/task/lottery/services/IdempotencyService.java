@@ -0,0 +1,329 @@
+package com.task.lottery.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.task.lottery.entities.IdempotencyRecord;
+import com.task.lottery.repositories.IdempotencyRecordRepository;
+import com.task.lottery.utils.BoundedCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Makes requests sent with an Idempotency-Key header safe to retry.
+ * The response given to the first request with a key is kept, and the retries with the same key get that
+ * response back without running the request again. Keys are scoped by participant, and a key sent again with
+ * another request body is refused with 422. A request first claims its key by inserting a pending record in its
+ * own transaction, so that the same key sent to another node at the same time is answered with 409 instead of
+ * running the request twice, even when the request has effects which are not rolled back with its transaction.
+ * The response is then stored over the claim in the transaction of the request, so a request is never committed
+ * without its response. Recent responses are kept in a cache bounded by size and
+ * time; older ones are read from the idempotency_record table until they pass the retention period.
+ */
+@Service
+public class IdempotencyService {
+
+    private static final Logger logger = LoggerFactory.getLogger(IdempotencyService.class);
+
+    private final IdempotencyRecordRepository idempotencyRecordRepository;
+
+    private final ObjectMapper objectMapper;
+
+    private final ConcurrencyRetry concurrencyRetry;
+
+    private final TransactionTemplate transaction;
+
+    private final BoundedCache<String, IdempotencyRecord> cache;
+
+    private final Map<String, CompletableFuture<IdempotencyRecord>> inFlight = new ConcurrentHashMap<>();
+
+    private final Duration retention;
+
+
+    /**
+     * Instantiates a new IdempotencyService.
+     * @param idempotencyRecordRepository the idempotency record repository.
+     * @param objectMapper the object mapper used to store the response bodies.
+     * @param concurrencyRetry the retry of the requests which conflict with a concurrent change.
+     * @param transactionManager the transaction manager of the requests.
+     * @param cacheSize the maximum number of responses kept in memory.
+     * @param cacheTtl the time a response is kept in memory.
+     * @param retention the time a response is kept in the database.
+     */
+    @Autowired
+    public IdempotencyService(IdempotencyRecordRepository idempotencyRecordRepository,
+                              ObjectMapper objectMapper,
+                              ConcurrencyRetry concurrencyRetry,
+                              PlatformTransactionManager transactionManager,
+                              @Value("${lottery.idempotency.cache-size:100000}") int cacheSize,
+                              @Value("${lottery.idempotency.cache-ttl:10m}") Duration cacheTtl,
+                              @Value("${lottery.idempotency.retention:24h}") Duration retention) {
+        this.idempotencyRecordRepository = idempotencyRecordRepository;
+        this.objectMapper = objectMapper;
+        this.concurrencyRetry = concurrencyRetry;
+        this.transaction = new TransactionTemplate(transactionManager);
+        this.cache = new BoundedCache<>(cacheSize, cacheTtl);
+        this.retention = retention;
+    }
+
+
+    /**
+     * Runs a request once per idempotency key of a participant.
+     * If the key was already used with the same request body, the stored response is returned, and if it was used
+     * with another body, the request is refused with 422. If a request with the same key is running on this node,
+     * this waits for it, and if it is running on another node, the request is refused with 409. The key is claimed
+     * before the request runs in a transaction which also stores its response, and the whole transaction is
+     * retried when it conflicts with a concurrent change. Responses which are worth retrying, such as 429 and
+     * server errors, are not stored, and neither are the requests which fail with an exception, since they
+     * changed nothing: their claim is removed so that the key can be used again.
+     * @param participantId the id of the participant who sent the request.
+     * @param key the idempotency key.
+     * @param requestBody the body of the request.
+     * @param request the request to run.
+     * @return the response of the request.
+     * @throws Exception if the request failed.
+     */
+    public ResponseEntity<?> execute(Long participantId, String key, Object requestBody,
+                                     Callable<ResponseEntity<?>> request) throws Exception {
+        String scopedKey = participantId + ":" + key;
+        String requestHash = hash(requestBody);
+        IdempotencyRecord stored = find(scopedKey);
+        if (stored != null) {
+            return toResponse(stored, requestHash);
+        }
+        CompletableFuture<IdempotencyRecord> running = new CompletableFuture<>();
+        CompletableFuture<IdempotencyRecord> other = inFlight.putIfAbsent(scopedKey, running);
+        if (other != null) {
+            IdempotencyRecord record = other.join();
+            return record != null ? toResponse(record, requestHash)
+                    : execute(participantId, key, requestBody, request);
+        }
+        AtomicReference<IdempotencyRecord> record = new AtomicReference<>();
+        try {
+            IdempotencyRecord holder = claim(scopedKey, requestHash, true);
+            if (holder != null) {
+                return toResponse(holder, requestHash);
+            }
+            try {
+                ResponseEntity<?> response = concurrencyRetry.execute("idempotent-request", () ->
+                        transaction.execute(status -> {
+                            record.set(null);
+                            ResponseEntity<?> result = call(request);
+                            if (isFinal(result.getStatusCode().value())) {
+                                record.set(newRecord(scopedKey, requestHash, result));
+                                complete(record.get());
+                            }
+                            return result;
+                        }));
+                if (record.get() != null) {
+                    cache.put(scopedKey, record.get());
+                }
+                return response;
+            } catch (RuntimeException e) {
+                record.set(null);
+                throw e;
+            } finally {
+                if (record.get() == null) {
+                    idempotencyRecordRepository.deletePending(scopedKey);
+                }
+            }
+        } catch (RequestFailedException e) {
+            throw e.getCause();
+        } finally {
+            inFlight.remove(scopedKey);
+            running.complete(record.get());
+        }
+    }
+
+
+    /**
+     * Removes the responses which passed the retention period from the database.
+     */
+    @Scheduled(fixedDelayString = "${lottery.idempotency.purge-interval-ms:600000}")
+    public void purge() {
+        cache.purge();
+        idempotencyRecordRepository.deleteOlderThan(expiry());
+    }
+
+
+    /**
+     * Finds the record of a key in the cache or in the database. The pending records are not cached, since their
+     * response is still to come.
+     * @param key the scoped idempotency key.
+     * @return the record, or null if there is none within the retention period.
+     */
+    private IdempotencyRecord find(String key) {
+        IdempotencyRecord record = cache.get(key);
+        if (record == null) {
+            Optional<IdempotencyRecord> persisted = idempotencyRecordRepository.findById(key);
+            if (persisted.isPresent() && !isExpired(persisted.get())) {
+                record = persisted.get();
+                if (!record.isPending()) {
+                    cache.put(key, record);
+                }
+            }
+        }
+        return record;
+    }
+
+
+    /**
+     * Claims a key by inserting a pending record in its own transaction, before the request runs.
+     * A record of the key which passed the retention period but was not purged yet is replaced, and a claim which
+     * was removed meanwhile is tried once more.
+     * @param key the scoped idempotency key.
+     * @param requestHash the hash of the request body.
+     * @param again whether the claim may be tried once more.
+     * @return null if the key was claimed, or the record of the request which holds it.
+     */
+    private IdempotencyRecord claim(String key, String requestHash, boolean again) {
+        try {
+            transaction.executeWithoutResult(status -> idempotencyRecordRepository.saveAndFlush(
+                    new IdempotencyRecord(key, requestHash, IdempotencyRecord.PENDING, null, null, Instant.now())));
+            return null;
+        } catch (DataIntegrityViolationException e) {
+            IdempotencyRecord holder = idempotencyRecordRepository.findById(key).orElse(null);
+            if (holder != null && !isExpired(holder)) {
+                return holder;
+            }
+            if (!again) {
+                throw e;
+            }
+            if (holder != null) {
+                idempotencyRecordRepository.deleteIfOlderThan(key, expiry());
+            }
+            return claim(key, requestHash, false);
+        }
+    }
+
+
+    /**
+     * Stores the response of a request over the claim of its key, in the transaction of the request.
+     * @param record the record of the response.
+     * @throws IllegalStateException if the key is not claimed anymore, which rolls the request back.
+     */
+    private void complete(IdempotencyRecord record) {
+        if (idempotencyRecordRepository.complete(record.getId(), record.getStatus(), record.getContentType(),
+                record.getBody(), record.getCreatedAt()) != 1) {
+            throw new IllegalStateException("The claim of idempotency key " + record.getId() + " was lost!");
+        }
+    }
+
+
+    /**
+     * Runs a request inside the transaction callback, wrapping the checked exceptions so that they roll the
+     * transaction back.
+     * @param request the request.
+     * @return the response of the request.
+     */
+    private ResponseEntity<?> call(Callable<ResponseEntity<?>> request) {
+        try {
+            return request.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RequestFailedException(e);
+        }
+    }
+
+
+    private IdempotencyRecord newRecord(String key, String requestHash, ResponseEntity<?> response) {
+        Object body = response.getBody();
+        try {
+            return body instanceof String text
+                    ? new IdempotencyRecord(key, requestHash, response.getStatusCode().value(),
+                            MediaType.TEXT_PLAIN_VALUE, text, Instant.now())
+                    : new IdempotencyRecord(key, requestHash, response.getStatusCode().value(),
+                            MediaType.APPLICATION_JSON_VALUE, objectMapper.writeValueAsString(body), Instant.now());
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Could not store the response of idempotency key " + key, e);
+        }
+    }
+
+
+    /**
+     * Hashes a request body with SHA-256, over its JSON form.
+     * @param requestBody the request body.
+     * @return the hash as hexadecimal digits.
+     */
+    private String hash(Object requestBody) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256")
+                    .digest(objectMapper.writeValueAsBytes(requestBody)));
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("The request body cannot be hashed!", e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    private boolean isExpired(IdempotencyRecord record) {
+        return !record.getCreatedAt().isAfter(expiry());
+    }
+
+
+    private Instant expiry() {
+        return Instant.now().minus(retention);
+    }
+
+
+    private boolean isFinal(int status) {
+        return status < 500 && status != HttpStatus.TOO_MANY_REQUESTS.value();
+    }
+
+
+    private ResponseEntity<?> toResponse(IdempotencyRecord record, String requestHash) {
+        if (!requestHash.equals(record.getRequestHash())) {
+            logger.debug("Idempotency key {} was sent again with another request", record.getId());
+            return ResponseEntity.unprocessableEntity()
+                    .body("The Idempotency-Key was already used for another request!");
+        }
+        if (record.isPending()) {
+            return ResponseEntity.status(HttpStatus.CONFLICT)
+                    .body("A request with the same Idempotency-Key is still running!");
+        }
+        return ResponseEntity.status(record.getStatus())
+                .contentType(MediaType.parseMediaType(record.getContentType()))
+                .body(record.getBody());
+    }
+
+
+    /**
+     * A checked exception thrown by a request, carried out of the transaction callback.
+     */
+    private static class RequestFailedException extends RuntimeException {
+
+        RequestFailedException(Exception cause) {
+            super(cause);
+        }
+
+
+        @Override
+        public synchronized Exception getCause() {
+            return (Exception) super.getCause();
+        }
+    }
+}
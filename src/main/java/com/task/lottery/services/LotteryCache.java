@@ -0,0 +1,119 @@
+package com.task.lottery.services;
+
+import com.task.lottery.config.ReplicaRoutingDataSource;
+import com.task.lottery.dtos.LotteryView;
+import com.task.lottery.repositories.LotteryRepository;
+import com.task.lottery.utils.SingleFlightCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Optional;
+
+
+/**
+ * Read-through cache of the lotteries by id and by start date.
+ * A burst of misses of the same key loads it with one query. The lotteries change rarely and every change
+ * made by this node invalidates them, so "lottery.cache.ttl" only bounds how long a change made by another
+ * node can go unnoticed. The lotteries are cached as immutable views, without their ballot counts.
+ * A lottery missing here is read in the transaction of the caller, or in a read-only transaction when there is
+ * none, so that a miss never needs a second connection; Hibernate serves it from its second-level cache when it
+ * holds it. A lottery read in a transaction routed to the replica is returned but not kept, so what is cached here
+ * is never behind the primary.
+ */
+@Service
+public class LotteryCache {
+
+    private final LotteryRepository lotteryRepository;
+
+    private final TransactionTemplate loadTransaction;
+
+    private final SingleFlightCache<Long, LotteryView> byId;
+
+    private final SingleFlightCache<LocalDate, List<LotteryView>> byStartTime;
+
+
+    /**
+     * Instantiates a new LotteryCache.
+     * @param lotteryRepository the lottery repository.
+     * @param transactionManager the transaction manager used to load the lotteries missing here outside of a
+     * transaction.
+     * @param cacheSize the maximum number of lotteries, and of dates, kept in memory.
+     * @param cacheTtl the time a lottery is kept in memory.
+     */
+    @Autowired
+    public LotteryCache(LotteryRepository lotteryRepository,
+                        PlatformTransactionManager transactionManager,
+                        @Value("${lottery.cache.size:1000}") int cacheSize,
+                        @Value("${lottery.cache.ttl:30s}") Duration cacheTtl) {
+        this.lotteryRepository = lotteryRepository;
+        this.loadTransaction = new TransactionTemplate(transactionManager);
+        this.loadTransaction.setReadOnly(true);
+        this.byId = new SingleFlightCache<>(cacheSize, cacheTtl);
+        this.byStartTime = new SingleFlightCache<>(cacheSize, cacheTtl);
+    }
+
+
+    /**
+     * Finds a lottery by its id.
+     * @param id the id of the lottery.
+     * @return an optional of the lottery.
+     */
+    public Optional<LotteryView> findById(Long id) {
+        return Optional.ofNullable(byId.get(id, key -> loadTransaction.execute(status ->
+                lotteryRepository.findById(key).map(LotteryView::of).orElse(null)), LotteryCache::readPrimary));
+    }
+
+
+    /**
+     * Finds the lotteries of a date.
+     * @param startTime the start date of the lotteries.
+     * @return the lotteries of the date, possibly none.
+     */
+    public List<LotteryView> findByStartTime(LocalDate startTime) {
+        return byStartTime.get(startTime, key -> loadTransaction.execute(status ->
+                List.copyOf(lotteryRepository.findViewsByStartTime(key))), LotteryCache::readPrimary);
+    }
+
+
+    /**
+     * Forgets a lottery which is changed or deleted, now and again once the current transaction commits,
+     * so that a read between the change and the commit doesn't cache the old lottery.
+     * The lotteries by date are all forgotten, since the start date of the lottery may have changed.
+     * @param lotteryId the id of the lottery.
+     */
+    public void invalidate(Long lotteryId) {
+        evict(lotteryId);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    evict(lotteryId);
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Tells whether a lottery just loaded was read from the primary, and may be kept.
+     */
+    private static boolean readPrimary() {
+        return !ReplicaRoutingDataSource.isReplicaTransaction();
+    }
+
+
+    private void evict(Long lotteryId) {
+        if (lotteryId != null) {
+            byId.invalidate(lotteryId);
+        }
+        byStartTime.invalidateAll();
+    }
+}
@@ -0,0 +1,207 @@
+package com.task.lottery.services;
+
+import com.task.lottery.dtos.BallotView;
+import com.task.lottery.entities.Ballot;
+import com.task.lottery.entities.Lottery;
+import com.task.lottery.repositories.BallotRepository;
+import com.task.lottery.repositories.LotteryRepository;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * Draws the lotteries, many at a time, on a fork-join pool of "lottery.draw.parallelism" threads.
+ * Each draw runs in its own transaction and starts by claiming the lottery with a conditional update, so a
+ * lottery is drawn and paid once even if the draw is retried, run again after a restart or run by several
+ * nodes at the same time.
+ */
+@Service
+public class LotteryDrawService {
+
+    private static final Logger logger = LoggerFactory.getLogger(LotteryDrawService.class);
+
+    private static final int MAX_DRAW_ATTEMPTS = 3;
+
+    private final LotteryRepository lotteryRepository;
+
+    private final BallotRepository ballotRepository;
+
+    private final ParticipantService participantService;
+
+    private final ConcurrencyRetry concurrencyRetry;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final WinnerCache winnerCache;
+
+    private final LotteryCache lotteryCache;
+
+    private final ForkJoinPool pool;
+
+    @Autowired(required = false)
+    private GuessDrawService guessDrawService;
+
+
+    /**
+     * Instantiates a new LotteryDrawService.
+     * @param lotteryRepository the lottery repository.
+     * @param ballotRepository the ballot repository.
+     * @param participantService the participant service used to pay the winners.
+     * @param concurrencyRetry the retry of the draws which conflict with concurrent changes.
+     * @param transactionManager the transaction manager of the draws.
+     * @param winnerCache the cache of the winners, filled by the draws.
+     * @param lotteryCache the cache of the lotteries, invalidated by the draws.
+     * @param parallelism the number of lotteries drawn at the same time, 0 for the number of processors.
+     */
+    @Autowired
+    public LotteryDrawService(LotteryRepository lotteryRepository,
+                              BallotRepository ballotRepository,
+                              ParticipantService participantService,
+                              ConcurrencyRetry concurrencyRetry,
+                              PlatformTransactionManager transactionManager,
+                              WinnerCache winnerCache,
+                              LotteryCache lotteryCache,
+                              @Value("${lottery.draw.parallelism:0}") int parallelism) {
+        this.lotteryRepository = lotteryRepository;
+        this.ballotRepository = ballotRepository;
+        this.participantService = participantService;
+        this.concurrencyRetry = concurrencyRetry;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.winnerCache = winnerCache;
+        this.lotteryCache = lotteryCache;
+        this.pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+    }
+
+
+    /**
+     * Draws lotteries in parallel and waits for all the draws to end.
+     * A draw which fails is logged and doesn't stop the others; its lottery stays undrawn.
+     * @param lotteryIds the ids of the lotteries.
+     * @return the number of lotteries drawn by this call.
+     */
+    public int drawAll(Collection<Long> lotteryIds) {
+        List<Callable<Boolean>> draws = lotteryIds.stream()
+                .map(lotteryId -> (Callable<Boolean>) () -> drawSafely(lotteryId))
+                .toList();
+        int drawn = 0;
+        for (Future<Boolean> draw : pool.invokeAll(draws)) {
+            try {
+                if (draw.get()) {
+                    drawn++;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                logger.warn("A lottery draw failed", e.getCause());
+            }
+        }
+        return drawn;
+    }
+
+
+    /**
+     * Draws a lottery in its own transaction, retrying it if it conflicts with a concurrent change.
+     * @param lotteryId the id of the lottery.
+     * @return true if this call drew the lottery, false if it was already drawn.
+     * @throws Exception if the lottery cannot be drawn.
+     */
+    public boolean draw(Long lotteryId) throws Exception {
+        return concurrencyRetry.execute("payout",
+                () -> Boolean.TRUE.equals(transactionTemplate.execute(status -> claimAndPay(lotteryId))));
+    }
+
+
+    /**
+     * Stops the pool of the draws.
+     */
+    @PreDestroy
+    public void close() {
+        pool.shutdown();
+    }
+
+
+    private boolean drawSafely(Long lotteryId) {
+        try {
+            return draw(lotteryId);
+        } catch (Exception e) {
+            logger.warn("Could not draw lottery {}", lotteryId, e);
+            return false;
+        }
+    }
+
+
+    /**
+     * Claims a lottery and credits the prize to the owner of a random ballot.
+     * The claim closes the lottery and marks it drawn in one conditional update, which only matches a lottery
+     * that is not drawn yet and locks it until the transaction ends. A lottery without ballots is closed without
+     * a winner. The winner is cached once the transaction commits. In the guess draw mode, a winning number is drawn instead and the prize is shared by the tiers.
+     * @param lotteryId the id of the lottery.
+     * @return true if the lottery was claimed and paid, false if it was already drawn.
+     */
+    private boolean claimAndPay(Long lotteryId) {
+        if (lotteryRepository.claimDraw(lotteryId) == 0) {
+            return false;
+        }
+        lotteryCache.invalidate(lotteryId);
+        Lottery lottery = lotteryRepository.findById(lotteryId).orElseThrow();
+        if (guessDrawService != null) {
+            GuessDrawService.Draw draw = guessDrawService.draw(lottery);
+            lotteryRepository.saveAndFlush(lottery);
+            draw.payouts().forEach((participantId, amount) -> participantService.credit(participantId, amount));
+            if (draw.winner() != null) {
+                winnerCache.putAfterCommit(lottery.getStartTime(), BallotView.of(draw.winner()));
+            }
+            guessDrawService.release(lotteryId);
+            return true;
+        }
+        Ballot winner = drawBallot(lotteryId);
+        if (winner == null) {
+            logger.info("Lottery {} had no ballots, it is closed without a winner", lotteryId);
+            return true;
+        }
+        lottery.setWinnerId(winner.getId());
+        lotteryRepository.saveAndFlush(lottery);
+        participantService.credit(winner.getParticipantId(), lottery.getPrize());
+        winnerCache.putAfterCommit(lottery.getStartTime(), BallotView.of(winner));
+        return true;
+    }
+
+
+    /**
+     * Draws a ballot of a lottery uniformly at random without loading the other ballots.
+     * The ballots are counted, and only the ballot at a random offset in the order of the ids is read.
+     * If that ballot disappears between the two queries, because ballots were deleted, the draw is repeated.
+     * @param lotteryId the id of the lottery.
+     * @return the drawn ballot, or null if the lottery has no ballots.
+     */
+    private Ballot drawBallot(Long lotteryId) {
+        for (int attempt = 0; attempt < MAX_DRAW_ATTEMPTS; attempt++) {
+            long count = ballotRepository.countByLotteryId(lotteryId);
+            if (count == 0) {
+                return null;
+            }
+            int offset = Math.toIntExact(ThreadLocalRandom.current().nextLong(count));
+            List<Ballot> drawn = ballotRepository.findByLotteryIdOrderByIdAsc(lotteryId, PageRequest.of(offset, 1));
+            if (!drawn.isEmpty()) {
+                return drawn.get(0);
+            }
+        }
+        throw new IllegalStateException("Could not draw a ballot of lottery " + lotteryId);
+    }
+}
@@ -1,21 +1,36 @@
 package com.task.lottery.services;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.task.lottery.dtos.BallotView;
+import com.task.lottery.dtos.KeysetPage;
+import com.task.lottery.dtos.LotteryView;
 import com.task.lottery.entities.Ballot;
 import com.task.lottery.entities.Lottery;
-import com.task.lottery.entities.Participant;
 import com.task.lottery.repositories.BallotRepository;
 import com.task.lottery.repositories.LotteryRepository;
-import com.task.lottery.repositories.ParticipantRepository;
+import com.task.lottery.utils.Keyset;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.cglib.core.Local;
+import org.springframework.context.event.EventListener;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.time.LocalDate;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
-import java.util.Random;
+import java.util.stream.Stream;
 
 @Service
 @EnableScheduling
@@ -28,7 +43,36 @@ public class LotteryService {
     transient BallotRepository ballotRepository;
 
     @Autowired
-    transient ParticipantRepository participantRepository;
+    transient ParticipantService participantService;
+
+    @Autowired
+    transient BallotCounterService ballotCounterService;
+
+    @Autowired
+    transient LotteryDrawService lotteryDrawService;
+
+    @Autowired
+    transient WinnerCache winnerCache;
+
+    @Autowired
+    transient LotteryCache lotteryCache;
+
+    @Autowired
+    transient LotteryStatsService lotteryStatsService;
+
+    @Autowired
+    transient GuessHistogramService guessHistogramService;
+
+    @Autowired(required = false)
+    transient BallotArchiveService ballotArchiveService;
+
+    private static final Logger logger = LoggerFactory.getLogger(LotteryService.class);
+
+    private static final ObjectWriter EXPORT_WRITER = new ObjectMapper()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+            .writerFor(BallotView.class)
+            .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE)
+            .withRootValueSeparator("\n");
 
     /**
      * Saves a new Lottery into the database.
@@ -52,61 +96,134 @@ public class LotteryService {
         if (lotteryExists(lottery.getStartTime())){
             throw new IllegalArgumentException("Lottery already exists!");
         }
-        return lotteryRepository.save(lottery);
+        Lottery saved = lotteryRepository.save(lottery);
+        lotteryCache.invalidate(saved.getId());
+        ballotCounterService.createCounters(saved.getId());
+        if (saved.getIsOpen()) {
+            guessHistogramService.open(saved.getId());
+        }
+        return saved;
     }
 
 
     /**
      * Saves a lottery into the database.
      * This method is used to update the fields of the lottery entries that already exist in the database.
+     * The cached lottery is forgotten before the update and again once it is saved, which also forgets a lottery
+     * read from the database while the update was in progress. Inside a transaction of the caller, it is
+     * forgotten once more when that transaction commits.
      * @param lottery the lottery to update the fields and save back into the database.
      * @return the lottery.
      */
     public Lottery updateFields (Lottery lottery){
-        return lotteryRepository.save(lottery);
+        lotteryCache.invalidate(lottery.getId());
+        Lottery saved = lotteryRepository.save(lottery);
+        lotteryCache.invalidate(lottery.getId());
+        return saved;
     }
 
 
     /**
-     * Finds all the existing lotteries.
-     * @return a list of all lotteries.
+     * Increments the ballot count of an open lottery without reading the lottery first.
+     * @param lotteryId the id of the lottery.
+     * @param quantity the number of ballots to add.
+     * @return true if the lottery is open and the count was incremented, false otherwise.
      */
-    public List<Lottery> findAll() {
-        return lotteryRepository.findAll();
+    public boolean incrementBallotCount(Long lotteryId, int quantity) {
+        return ballotCounterService.increment(lotteryId, quantity);
     }
 
-    public Optional<Lottery> findById(Long id) {
-        return lotteryRepository.findById(id);
+
+    /**
+     * Finds a page of the lotteries, in the order of their ids.
+     * @param token the continuation token of the page, or null for the first page.
+     * @param size the page size, or null for the default size.
+     * @param from the first start date of the lotteries, or null.
+     * @param to the last start date of the lotteries, or null.
+     * @return the page of lotteries.
+     * @throws IllegalArgumentException if the token or the size is invalid.
+     */
+    @Transactional(readOnly = true)
+    public KeysetPage<LotteryView> findPage(String token, Integer size, LocalDate from, LocalDate to) {
+        int pageSize = Keyset.pageSize(size);
+        long afterId = Keyset.afterId(token);
+        List<LotteryView> lotteries = from == null && to == null
+                ? lotteryRepository.findPage(afterId, Keyset.limit(pageSize))
+                : lotteryRepository.findPageStartingBetween(afterId,
+                        from == null ? LotteryRepository.FIRST_START_TIME : from,
+                        to == null ? LotteryRepository.LAST_START_TIME : to, Keyset.limit(pageSize));
+        KeysetPage<LotteryView> page = Keyset.page(lotteries, pageSize, LotteryView::id);
+        return new KeysetPage<>(page.items().stream().map(this::withBallotCount).toList(), page.next());
+    }
+
+
+    /**
+     * Finds a lottery by its id, from the lottery cache.
+     * @param id the id of the lottery.
+     * @return an optional of the lottery.
+     */
+    public Optional<LotteryView> findById(Long id) {
+        return lotteryCache.findById(id).map(this::withBallotCount);
     }
 
+
+    /**
+     * Deletes a lottery, its ballot counters, its sales figures, its guess counts, its cached winner
+     * and its ballot archive.
+     * @param id the id of the lottery.
+     */
     public void deleteById(Long id) {
-        lotteryRepository.deleteAll(lotteryRepository.findAllById(List.of(id)));
+        List<Lottery> lotteries = lotteryRepository.findAllById(List.of(id));
+        lotteryRepository.deleteAll(lotteries);
+        lotteryCache.invalidate(id);
+        ballotCounterService.deleteCounters(id);
+        lotteryStatsService.invalidate(id);
+        guessHistogramService.invalidate(id);
+        lotteries.forEach(lottery -> winnerCache.evict(lottery.getStartTime()));
+        if (ballotArchiveService != null) {
+            ballotArchiveService.delete(id);
+        }
     }
 
 
     /**
-     * Closes the open lottery and picks a random winner.
+     * Closes the open lotteries of the day and draws their winners, in parallel.
      * Scheduled to run each day at midnight.
      */
     @Scheduled(cron = "0 59 23 * * ?", zone="CET")
     public void pickWinner() {
-        List<Lottery> lotteryList = lotteryRepository.findByStartTime(LocalDate.now());
-        for (Lottery lottery : lotteryList){
-            List<Ballot> ballots = ballotRepository.findByLotteryId(lottery.getId());
-            Random rand = new Random();
-            Ballot winner = ballots.get(rand.nextInt(ballots.size()));
-            lottery.setIsOpen(false);
-            lottery.setWinnerId(winner.getId());
-            updateFields(lottery);
-            Participant winnerParticipant = participantRepository.findById(winner.getParticipantId()).get();
-            winnerParticipant.setBalance(winnerParticipant.getBalance() + lottery.getPrize());
-            participantRepository.save(winnerParticipant);
+        List<LotteryView> lotteryList = lotteryCache.findByStartTime(LocalDate.now());
+        lotteryDrawService.drawAll(lotteryList.stream().map(LotteryView::id).toList());
+    }
+
+
+    /**
+     * Catches up with the work missed while the application was down: starts the lotteries of the day
+     * and draws every past lottery which was not drawn yet. Then warms the lottery cache with the lotteries
+     * of today and tomorrow, which are the ones the purchases look up, and builds the guess counts of the open ones.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void catchUp() {
+        startLotteries();
+        List<Lottery> missed = lotteryRepository.findByStartTimeBeforeAndIsDrawnFalse(LocalDate.now());
+        if (!missed.isEmpty()) {
+            int drawn = lotteryDrawService.drawAll(missed.stream().map(Lottery::getId).toList());
+            logger.info("Drew {} of the {} past lotteries which were not drawn", drawn, missed.size());
+        }
+        for (LocalDate date : List.of(LocalDate.now(), LocalDate.now().plusDays(1))) {
+            for (LotteryView lottery : lotteryCache.findByStartTime(date)) {
+                lotteryCache.findById(lottery.id());
+                if (lottery.isOpen()) {
+                    guessHistogramService.open(lottery.id());
+                }
+            }
         }
     }
 
 
     /**
-     * Starts the scheduled lotteries if the current date matches their start date.
+     * Starts the scheduled lotteries if the current date matches their start date, and builds their guess counts.
+     * The lotteries are read from the database, not the cache, since they are updated.
      * Scheduled to run at the midnight of each day.
      */
     @Scheduled(cron = "0 0 0 * * ?", zone="CET")
@@ -114,8 +231,11 @@ public class LotteryService {
         List<Lottery> lotteryList = lotteryRepository.findByStartTime(LocalDate.now());
         if (!lotteryList.isEmpty()){
             for (Lottery lottery : lotteryList) {
-                lottery.setIsOpen(true);
-                updateFields(lottery);
+                if (!lottery.getIsOpen() && !lottery.getIsDrawn()) {
+                    lottery.setIsOpen(true);
+                    updateFields(lottery);
+                    guessHistogramService.open(lottery.getId());
+                }
             }
         }
     }
@@ -123,18 +243,28 @@ public class LotteryService {
 
     /**
      * Gets the ballot that won the lottery of a specific date.
+     * The winner of a drawn lottery never changes, so it is served from the winner cache once it is known.
+     * The winner ballot of an archived lottery is read from its archive.
      * @param date the date
      * @return the winner ballot of the date
      * @throws Exception if the date entered is in the future, winner can't be returned.
      */
-    public Ballot getWinner(LocalDate date) throws Exception{
-        Ballot winner = null;
+    @Transactional(readOnly = true)
+    public BallotView getWinner(LocalDate date) throws Exception{
+        BallotView winner = null;
         if (date.isAfter(LocalDate.now()) || date.isEqual(LocalDate.now())){
             throw new IllegalArgumentException("Lottery not played yet!");
         }
-        List<Lottery> lotteryList = lotteryRepository.findByStartTime(date);
-        for (Lottery lottery : lotteryList) {
-            winner = ballotRepository.findById(lottery.getWinnerId()).get();
+        winner = winnerCache.get(date);
+        if (winner != null) {
+            return winner;
+        }
+        List<LotteryView> lotteryList = lotteryCache.findByStartTime(date);
+        for (LotteryView lottery : lotteryList) {
+            winner = findBallot(lottery.winnerId()).get();
+        }
+        if (winner != null) {
+            winnerCache.put(date, winner);
         }
         return winner;
     }
@@ -150,13 +280,75 @@ public class LotteryService {
     }
 
 
+    /**
+     * Writes all the ballots of a lottery as newline delimited JSON, one ballot per line in the order of their ids.
+     * The ballots are streamed from the database and written as they are read, so the memory used doesn't depend
+     * on the number of ballots.
+     * The ballots of an archived lottery are read from its archive, one block at a time.
+     * @param lotteryId the lottery id
+     * @param out the stream to write to, which is flushed but not closed.
+     * @throws IOException if the ballots cannot be written.
+     */
+    @Transactional(readOnly = true)
+    public void exportBallots(Long lotteryId, OutputStream out) throws IOException {
+        if (ballotArchiveService != null && ballotArchiveService.isArchived(lotteryId)) {
+            try (JsonGenerator generator = EXPORT_WRITER.createGenerator(out)) {
+                ballotArchiveService.forEach(lotteryId, ballot -> {
+                    try {
+                        EXPORT_WRITER.writeValue(generator, ballot.toView(lotteryId));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return;
+        }
+        try (Stream<BallotView> ballots = ballotRepository.streamExportByLotteryId(lotteryId);
+             JsonGenerator generator = EXPORT_WRITER.createGenerator(out)) {
+            Iterator<BallotView> iterator = ballots.iterator();
+            while (iterator.hasNext()) {
+                EXPORT_WRITER.writeValue(generator, iterator.next());
+            }
+        }
+    }
+
+
+    /**
+     * Checks whether a lottery exists.
+     * @param id the id of the lottery.
+     * @return true if the lottery exists and false otherwise.
+     */
+    public boolean existsById(Long id) {
+        return lotteryCache.findById(id).isPresent();
+    }
+
+
     /**
      * Checks whether a lottery already exists in the given date.
      * @param date the date.
      * @return true if there is a lottery in the given date and false otherwise.
      */
     public boolean lotteryExists(LocalDate date){
-        return !lotteryRepository.findByStartTime(date).isEmpty();
+        return !lotteryCache.findByStartTime(date).isEmpty();
+    }
+
+
+    /**
+     * Finds a ballot in the ballot table or else in the archives.
+     */
+    private Optional<BallotView> findBallot(Long id) {
+        Optional<BallotView> ballot = ballotRepository.findViewById(id);
+        if (ballot.isEmpty() && ballotArchiveService != null) {
+            return ballotArchiveService.findById(id);
+        }
+        return ballot;
+    }
+
+
+    private LotteryView withBallotCount(LotteryView lottery) {
+        return lottery.withBallotCount(ballotCounterService.count(lottery.id()));
     }
 
 }
@@ -0,0 +1,337 @@
+package com.task.lottery.services;
+
+import com.task.lottery.dtos.BallotActivity;
+import com.task.lottery.dtos.LotteryStats;
+import com.task.lottery.dtos.LotteryView;
+import com.task.lottery.entities.Ballot;
+import com.task.lottery.repositories.BallotRepository;
+import com.task.lottery.utils.HyperLogLog;
+import com.task.lottery.utils.SingleFlightCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+
+/**
+ * Keeps the sales figures of the lotteries in memory, so that they are read without querying the ballots:
+ * the ballot count, the ballots bought in each hour and the distinct participants, counted approximately with
+ * a HyperLogLog of "lottery.stats.precision" bits. The revenue is the ballot count times the ballot price.
+ * The figures are updated as the purchases commit, and those of the lotteries which are not drawn are rebuilt
+ * from the ballot table in one streaming pass when the application starts. At most "lottery.stats.max-lotteries"
+ * lotteries are kept in memory, the least recently read are dropped and rebuilt from their ballots when read
+ * again. A node only sees its own purchases, so when the ballot count of a lottery differs from its counters in
+ * the database, its figures are rebuilt from its ballots, at most once per "lottery.stats.resync-interval".
+ */
+@Service
+public class LotteryStatsService {
+
+    private static final Logger logger = LoggerFactory.getLogger(LotteryStatsService.class);
+
+    private final BallotRepository ballotRepository;
+
+    private final LotteryCache lotteryCache;
+
+    private final BallotCounterService ballotCounterService;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final int precision;
+
+    private final Duration resyncInterval;
+
+    private final SingleFlightCache<Long, Tally> tallies;
+
+    private final Map<Long, Build> builds = new ConcurrentHashMap<>();
+
+    @Autowired(required = false)
+    private BallotArchiveService ballotArchiveService;
+
+
+    /**
+     * Instantiates a new LotteryStatsService.
+     * @param ballotRepository the ballot repository.
+     * @param lotteryCache the lottery cache, to get the ballot prices.
+     * @param ballotCounterService the ballot counters, to detect the purchases made on other nodes.
+     * @param transactionManager the transaction manager used to read the ballots when rebuilding the figures.
+     * @param precision the precision of the distinct participant counts.
+     * @param maxLotteries the maximum number of lotteries whose figures are kept in memory.
+     * @param resyncInterval the minimum time between two rebuilds of the figures of a lottery.
+     */
+    @Autowired
+    public LotteryStatsService(BallotRepository ballotRepository,
+                               LotteryCache lotteryCache,
+                               BallotCounterService ballotCounterService,
+                               PlatformTransactionManager transactionManager,
+                               @Value("${lottery.stats.precision:14}") int precision,
+                               @Value("${lottery.stats.max-lotteries:1000}") int maxLotteries,
+                               @Value("${lottery.stats.resync-interval:5m}") Duration resyncInterval) {
+        this.ballotRepository = ballotRepository;
+        this.lotteryCache = lotteryCache;
+        this.ballotCounterService = ballotCounterService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setReadOnly(true);
+        this.precision = precision;
+        this.tallies = new SingleFlightCache<>(maxLotteries, Duration.ZERO);
+        this.resyncInterval = resyncInterval;
+    }
+
+
+    /**
+     * Adds saved ballots to the figures of their lotteries once the current transaction commits,
+     * or right away if there is no transaction. The purchases of a lottery whose figures are being rebuilt are
+     * kept until the rebuild ends, the lotteries whose figures are not in memory are skipped, they are rebuilt
+     * from the ballot table when read.
+     * @param ballots the saved ballots.
+     */
+    public void recordAfterCommit(Collection<Ballot> ballots) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    ballots.forEach(LotteryStatsService.this::record);
+                }
+            });
+        } else {
+            ballots.forEach(this::record);
+        }
+    }
+
+
+    /**
+     * Gets the sales figures of a lottery.
+     * @param lotteryId the id of the lottery.
+     * @return an optional of the figures, empty if the lottery doesn't exist.
+     */
+    public Optional<LotteryStats> getStats(Long lotteryId) {
+        Optional<LotteryView> lottery = lotteryCache.findById(lotteryId);
+        if (lottery.isEmpty()) {
+            tallies.invalidate(lotteryId);
+            return Optional.empty();
+        }
+        Tally tally = tallies.getIfPresent(lotteryId);
+        if (tally != null && tally.isStale(ballotCounterService.count(lotteryId), resyncInterval)) {
+            tallies.invalidate(lotteryId);
+        }
+        return Optional.of(load(lotteryId).toStats(lotteryId, lottery.get().ballotPrice()));
+    }
+
+
+    /**
+     * Rebuilds the figures of the lotteries which are not drawn, those which still sell ballots, from the ballot
+     * table in one streaming pass. The figures which were rebuilt by a read meanwhile are kept, with the
+     * purchases recorded since. The purchases of a lottery recorded once the pass found its first ballot are
+     * counted like those of a rebuild by a read.
+     * Runs when the application is ready.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuildAll() {
+        Map<Long, Build> rebuilt = new HashMap<>();
+        Map<Long, Boolean> selling = new HashMap<>();
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                try (Stream<BallotActivity> ballots = ballotRepository.streamActivity()) {
+                    ballots.filter(ballot -> selling.computeIfAbsent(ballot.lotteryId(), this::isSelling))
+                            .forEach(ballot -> rebuilt.computeIfAbsent(ballot.lotteryId(), this::startBuild)
+                                    .read(ballot));
+                }
+            });
+        } catch (RuntimeException e) {
+            rebuilt.forEach(builds::remove);
+            throw e;
+        }
+        rebuilt.forEach((lotteryId, build) -> {
+            build.finish();
+            tallies.get(lotteryId, id -> build.tally);
+            builds.remove(lotteryId, build);
+        });
+        logger.info("Rebuilt the sales figures of {} lotteries", rebuilt.size());
+    }
+
+
+    /**
+     * Drops the figures of a lottery which was deleted or lost ballots, so that they are rebuilt when read.
+     * @param lotteryId the id of the lottery.
+     */
+    public void invalidate(Long lotteryId) {
+        tallies.invalidate(lotteryId);
+        builds.remove(lotteryId);
+    }
+
+
+    /**
+     * Adds a purchase to the figures of its lottery in memory, or to their rebuild when they are being rebuilt.
+     */
+    private void record(Ballot ballot) {
+        Tally tally = tallies.getIfPresent(ballot.getLotteryId());
+        if (tally != null) {
+            tally.add(ballot.getParticipantId(), ballot.getPurchaseTime());
+            return;
+        }
+        Build build = builds.get(ballot.getLotteryId());
+        if (build != null) {
+            build.record(ballot);
+        }
+    }
+
+
+    /**
+     * Gets the figures of a lottery, rebuilding them if they are not in memory. Once they are in the cache, the
+     * purchases go to them directly instead of through their rebuild.
+     */
+    private Tally load(Long lotteryId) {
+        Tally loaded = tallies.get(lotteryId, this::rebuild);
+        builds.computeIfPresent(lotteryId, (id, build) -> build.tally == loaded ? null : build);
+        return loaded;
+    }
+
+
+    /**
+     * Rebuilds the figures of a lottery from its ballots, streaming them so that they are never all held
+     * in memory. The ballots of an archived lottery are read from its archive.
+     * The purchases recorded meanwhile are added at the end, except those which the read found.
+     * @param lotteryId the id of the lottery.
+     * @return the new figures.
+     */
+    private Tally rebuild(Long lotteryId) {
+        Build build = startBuild(lotteryId);
+        try {
+            if (isArchived(lotteryId)) {
+                ballotArchiveService.forEach(lotteryId, ballot -> build.read(ballot.id(), ballot.participantId(),
+                        ballot.purchaseTime()));
+            } else {
+                transactionTemplate.executeWithoutResult(status -> {
+                    try (Stream<BallotActivity> ballots = ballotRepository.streamActivityByLotteryId(lotteryId)) {
+                        ballots.forEach(build::read);
+                    }
+                });
+            }
+        } catch (RuntimeException e) {
+            builds.remove(lotteryId, build);
+            throw e;
+        }
+        build.finish();
+        return build.tally;
+    }
+
+
+    private Build startBuild(Long lotteryId) {
+        Build build = new Build(new Tally(precision));
+        builds.put(lotteryId, build);
+        return build;
+    }
+
+
+    private boolean isArchived(Long lotteryId) {
+        return ballotArchiveService != null && ballotArchiveService.isArchived(lotteryId);
+    }
+
+
+    private boolean isSelling(Long lotteryId) {
+        return !isArchived(lotteryId) && lotteryCache.findById(lotteryId).filter(lottery -> !lottery.isDrawn())
+                .isPresent();
+    }
+
+
+    /**
+     * The figures of a lottery being rebuilt and the purchases recorded meanwhile, which are added to the figures
+     * once the ballots are read; the purchases recorded afterwards go straight to the figures.
+     * As for the guess counts, the purchases up to the highest ballot id read are ignored, since the read may have
+     * found them. Those it did not find leave the ballot count short of the counters, which rebuilds the figures.
+     */
+    private static final class Build {
+        private final Tally tally;
+        private final Map<Long, Ballot> recorded = new HashMap<>();
+        private long readId;
+        private boolean finished;
+
+        private Build(Tally tally) {
+            this.tally = tally;
+        }
+
+        private synchronized void record(Ballot ballot) {
+            if (finished) {
+                tally.add(ballot.getParticipantId(), ballot.getPurchaseTime());
+            } else if (ballot.getId() > readId) {
+                recorded.put(ballot.getId(), ballot);
+            }
+        }
+
+        private void read(BallotActivity ballot) {
+            read(ballot.id(), ballot.participantId(), ballot.purchaseTime());
+        }
+
+        private synchronized void read(long ballotId, Long participantId, LocalDateTime purchaseTime) {
+            readId = Math.max(readId, ballotId);
+            if (!recorded.isEmpty()) {
+                recorded.remove(ballotId);
+            }
+            tally.add(participantId, purchaseTime);
+        }
+
+        private synchronized void finish() {
+            recorded.values().forEach(ballot -> tally.add(ballot.getParticipantId(), ballot.getPurchaseTime()));
+            recorded.clear();
+            finished = true;
+        }
+    }
+
+
+    /**
+     * The running figures of one lottery.
+     */
+    private static final class Tally {
+        private final HyperLogLog participants;
+        private final TreeMap<LocalDateTime, Long> perHour = new TreeMap<>();
+        private final long createdAt = System.nanoTime();
+        private long ballotCount;
+
+        private Tally(int precision) {
+            this.participants = new HyperLogLog(precision);
+        }
+
+        /**
+         * Counts a ballot. The ballots bought before the purchase times were recorded are not in any hour.
+         */
+        private synchronized void add(Long participantId, LocalDateTime purchaseTime) {
+            ballotCount++;
+            participants.add(participantId);
+            if (purchaseTime != null) {
+                perHour.merge(purchaseTime.truncatedTo(ChronoUnit.HOURS), 1L, Long::sum);
+            }
+        }
+
+        private synchronized boolean isStale(long storedCount, Duration resyncInterval) {
+            return ballotCount != storedCount && System.nanoTime() - createdAt >= resyncInterval.toNanos();
+        }
+
+        /**
+         * Copies the figures. The distinct participants never outnumber the ballots, which the estimate could
+         * otherwise do by its error.
+         */
+        private synchronized LotteryStats toStats(Long lotteryId, double ballotPrice) {
+            return new LotteryStats(lotteryId, ballotCount, ballotCount * ballotPrice,
+                    Math.min(participants.estimate(), ballotCount),
+                    Collections.unmodifiableSortedMap(new TreeMap<>(perHour)));
+        }
+    }
+}
@@ -1,9 +1,17 @@
 package com.task.lottery.services;
 
+import com.task.lottery.dtos.KeysetPage;
+import com.task.lottery.dtos.ParticipantView;
 import com.task.lottery.entities.Participant;
 import com.task.lottery.repositories.ParticipantRepository;
+import com.task.lottery.utils.Keyset;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.util.List;
 import java.util.Optional;
@@ -11,8 +19,13 @@ import java.util.Optional;
 @Service
 public class ParticipantService {
 
+    private static final Logger logger = LoggerFactory.getLogger(ParticipantService.class);
+
     private final ParticipantRepository participantRepository;
 
+    @Autowired(required = false)
+    private WalletService walletService;
+
 
     /**
      * Instantiates a new Participant Service.
@@ -30,16 +43,31 @@ public class ParticipantService {
      * @return the participant.
      */
     public Participant save(Participant participant) {
-        return participantRepository.save(participant);
+        Participant saved = participantRepository.save(participant);
+        if (walletService != null) {
+            walletService.reset(saved.getId(), saved.getBalance());
+        }
+        return saved;
     }
 
 
     /**
-     * Finds all the participants.
-     * @return a list of all the participants.
+     * Finds a page of the participants, in the order of their ids.
+     * @param token the continuation token of the page, or null for the first page.
+     * @param size the page size, or null for the default size.
+     * @param lotteryId the id of a lottery the participants played, or null for all the participants.
+     * @return the page of participants.
+     * @throws IllegalArgumentException if the token or the size is invalid.
      */
-    public List<Participant> findAll() {
-        return participantRepository.findAll();
+    @Transactional(readOnly = true)
+    public KeysetPage<ParticipantView> findPage(String token, Integer size, Long lotteryId) {
+        int pageSize = Keyset.pageSize(size);
+        long afterId = Keyset.afterId(token);
+        List<ParticipantView> participants = lotteryId == null
+                ? participantRepository.findPage(afterId, Keyset.limit(pageSize))
+                : participantRepository.findPageByLottery(afterId, lotteryId, Keyset.limit(pageSize));
+        KeysetPage<ParticipantView> page = Keyset.page(participants, pageSize, ParticipantView::id);
+        return new KeysetPage<>(page.items().stream().map(this::withWalletBalance).toList(), page.next());
     }
 
 
@@ -48,8 +76,106 @@ public class ParticipantService {
      * @param id the id of the participant.
      * @return an optional of the participant.
      */
-    public Optional<Participant> findById(long id) {
-        return participantRepository.findById(id);
+    @Transactional(readOnly = true)
+    public Optional<ParticipantView> findById(long id) {
+        return participantRepository.findViewById(id).map(this::withWalletBalance);
+    }
+
+
+    /**
+     * Debits the price of the given number of ballots of an open lottery from the participant balance.
+     * The lottery state and the balance are checked by the update itself, so no entity is read beforehand.
+     * @param participantId the id of the participant.
+     * @param lotteryId the id of the lottery.
+     * @param quantity the number of ballots to pay for.
+     * @return true if the balance was debited and false otherwise.
+     */
+    public boolean debitBallotPrice(long participantId, long lotteryId, int quantity) {
+        return participantRepository.debitBallotPrice(participantId, lotteryId, quantity) == 1;
+    }
+
+
+    /**
+     * Checks whether the balances are held by the wallet instead of being updated in the database directly.
+     * @return true if the wallet is enabled and false otherwise.
+     */
+    public boolean usesWallet() {
+        return walletService != null;
+    }
+
+
+    /**
+     * Debits an amount from the participant balance if the balance is enough.
+     * When the wallet is enabled and the debit happens inside a transaction, the amount is only held until that
+     * transaction ends: it is debited and journaled once the transaction commits, and released otherwise.
+     * @param participantId the id of the participant.
+     * @param amount the amount to debit.
+     * @return true if the balance was debited and false otherwise.
+     */
+    public boolean debit(long participantId, double amount) {
+        if (walletService == null) {
+            return participantRepository.debitBalance(participantId, amount) == 1;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return walletService.debit(participantId, amount);
+        }
+        if (!walletService.hold(participantId, amount)) {
+            return false;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                try {
+                    if (!walletService.confirm(participantId, amount)) {
+                        logger.error("Participant {} was deleted before its debit of {} was confirmed",
+                                participantId, amount);
+                    }
+                } catch (RuntimeException e) {
+                    logger.error("Could not journal the debit of {} of participant {}, whose purchase committed",
+                            amount, participantId, e);
+                    throw e;
+                }
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status != STATUS_COMMITTED) {
+                    walletService.release(participantId, amount);
+                }
+            }
+        });
+        return true;
+    }
+
+
+    /**
+     * Credits an amount to the participant balance.
+     * When the wallet is enabled and the credit happens inside a transaction, it is applied and journaled once
+     * that transaction commits, so a rolled back transaction never leaves a credit in the journal.
+     * @param participantId the id of the participant.
+     * @param amount the amount to credit.
+     * @return true if the participant exists and false otherwise.
+     */
+    public boolean credit(long participantId, double amount) {
+        if (walletService == null) {
+            return participantRepository.creditBalance(participantId, amount) == 1;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return walletService.credit(participantId, amount);
+        }
+        if (walletService.balanceOf(participantId) == null && !participantRepository.existsById(participantId)) {
+            return false;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                if (!walletService.credit(participantId, amount)) {
+                    logger.error("Participant {} was deleted before its credit of {} was applied",
+                            participantId, amount);
+                }
+            }
+        });
+        return true;
     }
 
 
@@ -59,6 +185,23 @@ public class ParticipantService {
      */
     public void deleteById(long id) {
         participantRepository.deleteAll(participantRepository.findAllById(List.of(id)));
+        if (walletService != null) {
+            walletService.remove(id);
+        }
     }
 
+
+    /**
+     * Replaces the balance of a participant read from the database with the newer one held by the wallet.
+     * @param participant the participant.
+     */
+    private ParticipantView withWalletBalance(ParticipantView participant) {
+        if (walletService != null) {
+            Double balance = walletService.balanceOf(participant.id());
+            if (balance != null) {
+                return participant.withBalance(balance);
+            }
+        }
+        return participant;
+    }
 }
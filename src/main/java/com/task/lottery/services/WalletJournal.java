@@ -0,0 +1,189 @@
+package com.task.lottery.services;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+
+/**
+ * Append-only journal of the balances of one wallet shard.
+ * Each record holds the balance of a participant after a change, so replaying the journal is idempotent:
+ * the last record of a participant is its latest acknowledged balance. A participant deleted from the database
+ * gets a last record without a balance, so that its earlier records are dropped.
+ * The journal is split into segments; a segment is deleted once its balances are saved into the database.
+ */
+class WalletJournal implements Closeable {
+
+    private static final int RECORD_SIZE = Long.BYTES + Double.BYTES;
+
+    private static final double REMOVED = Double.NaN;
+
+    private final Path directory;
+
+    private final String prefix;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+
+    private long segment;
+
+    private FileChannel channel;
+
+
+    /**
+     * Instantiates the journal of a shard.
+     * @param directory the directory of the journal files.
+     * @param shard the index of the shard.
+     * @throws IOException if the directory cannot be created.
+     */
+    WalletJournal(Path directory, int shard) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.prefix = "wallet-" + shard + "-";
+    }
+
+
+    /**
+     * Reads the existing segments of the shard in order.
+     * A trailing partial record, left by a crash during a write, is ignored since it was never acknowledged.
+     * @return the latest balance of each participant found in the journal.
+     * @throws IOException if a segment cannot be read.
+     */
+    Map<Long, Double> replay() throws IOException {
+        Map<Long, Double> balances = new HashMap<>();
+        for (Path path : segments()) {
+            ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(path));
+            while (records.remaining() >= RECORD_SIZE) {
+                long participantId = records.getLong();
+                double balance = records.getDouble();
+                if (Double.isNaN(balance)) {
+                    balances.remove(participantId);
+                } else {
+                    balances.put(participantId, balance);
+                }
+            }
+            segment = Math.max(segment, segmentNumber(path) + 1);
+        }
+        return balances;
+    }
+
+
+    /**
+     * Lists the segment files of the shard, oldest first.
+     * @return the paths of the segments.
+     * @throws IOException if the directory cannot be listed.
+     */
+    List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> segments = new ArrayList<>(files
+                    .filter(path -> path.getFileName().toString().startsWith(prefix))
+                    .toList());
+            segments.sort(Comparator.comparingLong(this::segmentNumber));
+            return segments;
+        }
+    }
+
+
+    /**
+     * Opens a new segment to append records to.
+     * @throws IOException if the segment cannot be created.
+     */
+    void open() throws IOException {
+        channel = FileChannel.open(directory.resolve(prefix + segment),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+
+    /**
+     * Appends the new balance of a participant to the current segment.
+     * The record is only durable after the next call to {@link #force()}.
+     * @param participantId the id of the participant.
+     * @param balance the balance of the participant after the change.
+     * @throws IOException if the record cannot be written.
+     */
+    void append(long participantId, double balance) throws IOException {
+        buffer.clear();
+        buffer.putLong(participantId).putDouble(balance).flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+
+    /**
+     * Appends the removal of a participant to the current segment.
+     * The record is only durable after the next call to {@link #force()}.
+     * @param participantId the id of the participant.
+     * @throws IOException if the record cannot be written.
+     */
+    void remove(long participantId) throws IOException {
+        append(participantId, REMOVED);
+    }
+
+
+    /**
+     * Forces the appended records to the disk.
+     * @throws IOException if the records cannot be synced.
+     */
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+
+    /**
+     * Gets the end of the current segment, to which the records appended after it can be rolled back.
+     * @return the position of the next record in the current segment.
+     * @throws IOException if the position cannot be read.
+     */
+    long position() throws IOException {
+        return channel.position();
+    }
+
+
+    /**
+     * Removes the records appended to the current segment after a position, so that records which could not be
+     * synced never come back in a replay.
+     * @param position the position returned by {@link #position()}.
+     * @throws IOException if the segment cannot be truncated or synced.
+     */
+    void truncate(long position) throws IOException {
+        channel.truncate(position);
+        channel.force(true);
+    }
+
+
+    /**
+     * Forces the current segment, closes it and opens the next one.
+     * @return the path of the closed segment.
+     * @throws IOException if the segments cannot be synced, closed or opened.
+     */
+    Path rotate() throws IOException {
+        Path sealed = directory.resolve(prefix + segment);
+        channel.force(false);
+        channel.close();
+        segment++;
+        open();
+        return sealed;
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+
+    private long segmentNumber(Path path) {
+        return Long.parseLong(path.getFileName().toString().substring(prefix.length()));
+    }
+}
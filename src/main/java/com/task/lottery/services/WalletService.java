@@ -0,0 +1,591 @@
+package com.task.lottery.services;
+
+import com.task.lottery.entities.Participant;
+import com.task.lottery.repositories.ParticipantRepository;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+
+/**
+ * Keeps the participant balances in memory so that purchases don't read and rewrite the participant rows.
+ * The balances are sharded by participant id and each shard has a single writer thread, which applies the
+ * changes in order, journals them and syncs the journal once per batch before acknowledging them.
+ * A purchase made in a database transaction only holds its amount in memory, and the debit is journaled once the
+ * transaction commits, so the journal never holds a debit whose purchase was rolled back.
+ * The changed balances are saved into the database periodically, after which their journal segment is deleted.
+ * Enabled with the "lottery.wallet.enabled" property.
+ */
+@Service
+@ConditionalOnProperty(name = "lottery.wallet.enabled", havingValue = "true")
+public class WalletService {
+
+    private static final Logger logger = LoggerFactory.getLogger(WalletService.class);
+
+    private static final int MAX_BATCH_SIZE = 256;
+
+    private final ParticipantRepository participantRepository;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final Shard[] shards;
+
+
+    /**
+     * Instantiates a new WalletService.
+     * The balances left in the journal by a previous run are saved into the database before the shards start.
+     * @param participantRepository the participant repository.
+     * @param transactionManager the transaction manager used to save the balances.
+     * @param shardCount the number of shards.
+     * @param journalDirectory the directory of the journal files.
+     * @throws IOException if the journal cannot be replayed.
+     * @throws IllegalStateException if the journal holds balances of participants which are not in the database,
+     * like after the database was recreated without deleting the journal.
+     */
+    @Autowired
+    public WalletService(ParticipantRepository participantRepository,
+                         PlatformTransactionManager transactionManager,
+                         @Value("${lottery.wallet.shards:4}") int shardCount,
+                         @Value("${lottery.wallet.journal-dir:data/wallet}") String journalDirectory)
+            throws IOException {
+        this.participantRepository = participantRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            WalletJournal journal = new WalletJournal(Paths.get(journalDirectory), i);
+            Map<Long, Double> balances = journal.replay();
+            List<Path> segments = journal.segments();
+            persist(balances);
+            for (Path segment : segments) {
+                Files.delete(segment);
+            }
+            journal.open();
+            shards[i] = new Shard(i, journal);
+        }
+    }
+
+
+    /**
+     * Debits an amount from the balance of a participant.
+     * The balance is first checked without going through the shard, so a purchase the participant cannot afford
+     * is rejected without waiting, and a participant the wallet has not loaded yet is read from the database on
+     * the calling thread. The debit is acknowledged only once it is synced to the journal.
+     * @param participantId the id of the participant.
+     * @param amount the amount to debit.
+     * @return true if the participant exists and had enough balance and false otherwise.
+     */
+    public boolean debit(long participantId, double amount) {
+        Shard shard = shardOf(participantId);
+        Account account = load(shard, participantId);
+        if (account == null || account.available() < amount) {
+            return false;
+        }
+        return shard.execute(state -> state.debit(participantId, account, amount));
+    }
+
+
+    /**
+     * Holds an amount of the balance of a participant for a purchase whose transaction has not committed yet.
+     * The held amount cannot be spent by other purchases, but it is not journaled: the purchase either confirms
+     * it once its transaction commits or releases it.
+     * @param participantId the id of the participant.
+     * @param amount the amount to hold.
+     * @return true if the participant exists and had enough balance and false otherwise.
+     */
+    public boolean hold(long participantId, double amount) {
+        Shard shard = shardOf(participantId);
+        Account account = load(shard, participantId);
+        if (account == null || account.available() < amount) {
+            return false;
+        }
+        return shard.execute(state -> state.hold(participantId, account, amount));
+    }
+
+
+    /**
+     * Debits an amount held by {@link #hold(long, double)} from the balance of a participant.
+     * Like a debit, it is acknowledged only once it is synced to the journal. If it cannot be, the amount is
+     * released and the participant is not debited.
+     * @param participantId the id of the participant.
+     * @param amount the held amount.
+     * @return true if the participant is still held by the wallet and false otherwise.
+     */
+    public boolean confirm(long participantId, double amount) {
+        return shardOf(participantId).execute(state -> state.confirm(participantId, amount));
+    }
+
+
+    /**
+     * Releases an amount held by {@link #hold(long, double)} without debiting it.
+     * @param participantId the id of the participant.
+     * @param amount the held amount.
+     */
+    public void release(long participantId, double amount) {
+        shardOf(participantId).execute(state -> state.release(participantId, amount));
+    }
+
+
+    /**
+     * Credits an amount to the balance of a participant.
+     * @param participantId the id of the participant.
+     * @param amount the amount to credit.
+     * @return true if the participant exists and false otherwise.
+     */
+    public boolean credit(long participantId, double amount) {
+        Shard shard = shardOf(participantId);
+        Account account = load(shard, participantId);
+        if (account == null) {
+            return false;
+        }
+        return shard.execute(state -> state.credit(participantId, account, amount));
+    }
+
+
+    /**
+     * Replaces the balance of a participant held by the wallet, if any, after it was saved into the database.
+     * @param participantId the id of the participant.
+     * @param balance the new balance.
+     */
+    public void reset(long participantId, double balance) {
+        shardOf(participantId).execute(state -> state.reset(participantId, balance));
+    }
+
+
+    /**
+     * Forgets a participant which was deleted from the database, so that its balance is never saved again.
+     * A removal is journaled, so that a replay does not restore the balances journaled before it either.
+     * @param participantId the id of the participant.
+     */
+    public synchronized void remove(long participantId) {
+        Shard shard = shardOf(participantId);
+        try {
+            shard.execute(state -> state.remove(participantId));
+        } finally {
+            shard.unflushed.forEach(snapshot -> snapshot.balances().remove(participantId));
+        }
+    }
+
+
+    /**
+     * Gets the current balance of a participant if it is held by the wallet.
+     * @param participantId the id of the participant.
+     * @return the balance, or null if the wallet has not loaded the participant.
+     */
+    public Double balanceOf(long participantId) {
+        Account account = shardOf(participantId).accounts.get(participantId);
+        return account == null ? null : account.balance;
+    }
+
+
+    /**
+     * Saves the balances changed since the last flush into the database and deletes their journal segments.
+     * If saving fails, the segments are kept and the balances are saved again by the next flush.
+     */
+    @Scheduled(fixedDelayString = "${lottery.wallet.flush-interval-ms:1000}")
+    public synchronized void flush() {
+        for (Shard shard : shards) {
+            try {
+                Snapshot snapshot = shard.execute(State::seal);
+                if (snapshot != null) {
+                    shard.unflushed.add(snapshot);
+                }
+                while (!shard.unflushed.isEmpty()) {
+                    persist(shard.unflushed.peek().balances());
+                    Files.delete(shard.unflushed.poll().segment());
+                }
+            } catch (Exception e) {
+                logger.warn("Could not save the balances of wallet shard {}", shard.index, e);
+            }
+        }
+    }
+
+
+    /**
+     * Stops the shard writers and saves the remaining balances.
+     */
+    @PreDestroy
+    public synchronized void close() {
+        for (Shard shard : shards) {
+            shard.running = false;
+        }
+        for (Shard shard : shards) {
+            try {
+                shard.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Shard shard : shards) {
+            try {
+                Snapshot snapshot = shard.state.seal();
+                if (snapshot != null) {
+                    shard.unflushed.add(snapshot);
+                }
+                while (!shard.unflushed.isEmpty()) {
+                    persist(shard.unflushed.peek().balances());
+                    Files.delete(shard.unflushed.poll().segment());
+                }
+                shard.state.journal.close();
+            } catch (Exception e) {
+                logger.warn("Could not save the balances of wallet shard {}, they stay in the journal",
+                        shard.index, e);
+            }
+        }
+    }
+
+
+    private Shard shardOf(long participantId) {
+        return shards[Math.floorMod(participantId, shards.length)];
+    }
+
+
+    /**
+     * Gets the account of a participant, or reads its balance from the database into a new account if the shard
+     * does not hold it yet. The read happens on the calling thread, so that the writer of the shard never waits
+     * for the database; the writer adds the new account unless another command added one first.
+     * @return the account, or null if the participant does not exist.
+     */
+    private Account load(Shard shard, long participantId) {
+        Account account = shard.accounts.get(participantId);
+        if (account != null) {
+            return account;
+        }
+        return participantRepository.findViewById(participantId)
+                .map(participant -> new Account(participant.balance()))
+                .orElse(null);
+    }
+
+
+    /**
+     * Saves balances into the database. A balance whose participant is missing fails the whole save, so that its
+     * journal segment is kept instead of the balance being dropped.
+     */
+    private void persist(Map<Long, Double> balances) {
+        if (balances.isEmpty()) {
+            return;
+        }
+        transactionTemplate.executeWithoutResult(status -> {
+            List<Participant> participants = participantRepository.findAllById(balances.keySet());
+            if (participants.size() != balances.size()) {
+                Set<Long> missing = new TreeSet<>(balances.keySet());
+                participants.forEach(participant -> missing.remove(participant.getId()));
+                throw new IllegalStateException("The wallet journal holds the balances of the participants "
+                        + missing + ", which are not in the database!");
+            }
+            for (Participant participant : participants) {
+                participant.setBalance(balances.get(participant.getId()));
+            }
+        });
+    }
+
+
+    /**
+     * A balance held by the wallet and the part of it held by purchases which have not committed yet.
+     * It is only written by the writer thread of its shard.
+     */
+    private static final class Account {
+        private volatile double balance;
+        private volatile double held;
+
+        private Account(double balance) {
+            this.balance = balance;
+        }
+
+        private double available() {
+            return balance - held;
+        }
+    }
+
+
+    /**
+     * The balances changed since the previous flush and the journal segment that holds them.
+     */
+    private record Snapshot(Map<Long, Double> balances, Path segment) {
+    }
+
+
+    /**
+     * A command waiting to be applied by the writer thread of a shard.
+     */
+    private static final class Task<T> {
+        private final Function<State, T> command;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private T result;
+        private RuntimeException error;
+
+        private Task(Function<State, T> command) {
+            this.command = command;
+        }
+
+        private void apply(State state) {
+            try {
+                result = command.apply(state);
+            } catch (RuntimeException e) {
+                error = e;
+            }
+        }
+
+        private void complete() {
+            if (error != null) {
+                future.completeExceptionally(error);
+            } else {
+                future.complete(result);
+            }
+        }
+    }
+
+
+    /**
+     * The state of a shard, only accessed by its writer thread.
+     */
+    private final class State {
+        private final Map<Long, Account> accounts;
+        private final WalletJournal journal;
+        private final Map<Long, Double> dirty = new HashMap<>();
+        private final Map<Long, Double> undo = new HashMap<>();
+        private final Set<Long> removed = new HashSet<>();
+        private boolean sealed;
+
+        private State(Map<Long, Account> accounts, WalletJournal journal) {
+            this.accounts = accounts;
+            this.journal = journal;
+        }
+
+        /**
+         * Gets the account of a participant, adding the one loaded by the caller if there is none yet.
+         * A participant removed since the caller loaded it has no account, since participant ids are never reused.
+         */
+        private Account account(long participantId, Account loaded) {
+            if (removed.contains(participantId)) {
+                return null;
+            }
+            return accounts.computeIfAbsent(participantId, id -> loaded);
+        }
+
+        private boolean debit(long participantId, Account loaded, double amount) {
+            Account account = account(participantId, loaded);
+            if (account == null || account.available() < amount) {
+                return false;
+            }
+            update(participantId, account, account.balance - amount);
+            return true;
+        }
+
+        private boolean hold(long participantId, Account loaded, double amount) {
+            Account account = account(participantId, loaded);
+            if (account == null || account.available() < amount) {
+                return false;
+            }
+            account.held += amount;
+            return true;
+        }
+
+        private boolean confirm(long participantId, double amount) {
+            Account account = accounts.get(participantId);
+            if (account == null) {
+                return false;
+            }
+            account.held -= amount;
+            update(participantId, account, account.balance - amount);
+            return true;
+        }
+
+        private Void release(long participantId, double amount) {
+            Account account = accounts.get(participantId);
+            if (account != null) {
+                account.held -= amount;
+            }
+            return null;
+        }
+
+        private boolean credit(long participantId, Account loaded, double amount) {
+            Account account = account(participantId, loaded);
+            if (account == null) {
+                return false;
+            }
+            update(participantId, account, account.balance + amount);
+            return true;
+        }
+
+        private Void remove(long participantId) {
+            removed.add(participantId);
+            if (accounts.remove(participantId) == null) {
+                return null;
+            }
+            dirty.remove(participantId);
+            undo.remove(participantId);
+            try {
+                journal.remove(participantId);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return null;
+        }
+
+        private Void reset(long participantId, double balance) {
+            Account account = accounts.get(participantId);
+            if (account != null) {
+                update(participantId, account, balance);
+            }
+            return null;
+        }
+
+        private void update(long participantId, Account account, double balance) {
+            try {
+                journal.append(participantId, balance);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            undo.putIfAbsent(participantId, account.balance);
+            account.balance = balance;
+            dirty.put(participantId, balance);
+        }
+
+        private Snapshot seal() {
+            if (dirty.isEmpty()) {
+                return null;
+            }
+            try {
+                Snapshot snapshot = new Snapshot(new HashMap<>(dirty), journal.rotate());
+                dirty.clear();
+                sealed = true;
+                return snapshot;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+
+    /**
+     * A shard of the wallet with its single writer thread.
+     * The writer takes the waiting commands in batches, applies them, syncs the journal once for the whole batch
+     * and only then acknowledges them. A seal syncs the segment it closes, so the commands before it are
+     * acknowledged at once. If the journal cannot be synced the rest of the batch is undone, its records are
+     * truncated from the segment and it is failed; if even the truncation fails the shard stops, as its journal
+     * may hold balances which were never acknowledged.
+     */
+    private final class Shard implements Runnable {
+        private final int index;
+        private final Map<Long, Account> accounts = new ConcurrentHashMap<>();
+        private final State state;
+        private final BlockingQueue<Task<?>> queue = new LinkedBlockingQueue<>();
+        private final Deque<Snapshot> unflushed = new ArrayDeque<>();
+        private final Thread thread;
+        private volatile boolean running = true;
+        private boolean broken;
+
+        private Shard(int index, WalletJournal journal) {
+            this.index = index;
+            this.state = new State(accounts, journal);
+            this.thread = new Thread(this, "wallet-shard-" + index);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        private <T> T execute(Function<State, T> command) {
+            if (!running) {
+                throw new IllegalStateException("Wallet is stopped!");
+            }
+            Task<T> task = new Task<>(command);
+            queue.add(task);
+            if (!running && queue.remove(task)) {
+                throw new IllegalStateException("Wallet is stopped!");
+            }
+            return task.future.join();
+        }
+
+        @Override
+        public void run() {
+            List<Task<?>> batch = new ArrayList<>(MAX_BATCH_SIZE);
+            while ((running || !queue.isEmpty()) && !broken) {
+                try {
+                    Task<?> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                apply(batch);
+                batch.clear();
+            }
+            running = false;
+            Task<?> left;
+            while ((left = queue.poll()) != null) {
+                left.future.completeExceptionally(new IllegalStateException("Wallet is stopped!"));
+            }
+        }
+
+        private void apply(List<Task<?>> batch) {
+            long mark;
+            try {
+                mark = state.journal.position();
+            } catch (IOException e) {
+                batch.forEach(task -> task.future.completeExceptionally(e));
+                return;
+            }
+            int acknowledged = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).apply(state);
+                if (state.sealed) {
+                    state.sealed = false;
+                    state.undo.clear();
+                    batch.subList(acknowledged, i + 1).forEach(Task::complete);
+                    acknowledged = i + 1;
+                    mark = 0;
+                }
+            }
+            List<Task<?>> rest = batch.subList(acknowledged, batch.size());
+            try {
+                state.journal.force();
+                rest.forEach(Task::complete);
+            } catch (IOException e) {
+                for (Map.Entry<Long, Double> entry : state.undo.entrySet()) {
+                    accounts.get(entry.getKey()).balance = entry.getValue();
+                    state.dirty.put(entry.getKey(), entry.getValue());
+                }
+                try {
+                    state.journal.truncate(mark);
+                } catch (IOException truncation) {
+                    logger.error("Could not roll back the journal of wallet shard {}, stopping it", index, truncation);
+                    running = false;
+                    broken = true;
+                }
+                rest.forEach(task -> task.future.completeExceptionally(e));
+            }
+            state.undo.clear();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.task.lottery.services;
+
+import com.task.lottery.dtos.BallotView;
+import com.task.lottery.utils.BoundedCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.time.LocalDate;
+
+
+/**
+ * Keeps the winner ballots of the drawn lotteries in memory, by the date of the lottery.
+ * The winner of a lottery never changes once it is drawn, so the entries don't expire; they are only evicted
+ * when the cache holds more than "lottery.winner.cache-size" dates, or when a lottery or ballot is deleted.
+ */
+@Service
+public class WinnerCache {
+
+    private final BoundedCache<LocalDate, BallotView> winners;
+
+
+    /**
+     * Instantiates a new WinnerCache.
+     * @param cacheSize the maximum number of dates kept in memory.
+     */
+    @Autowired
+    public WinnerCache(@Value("${lottery.winner.cache-size:1000}") int cacheSize) {
+        this.winners = new BoundedCache<>(cacheSize, Duration.ZERO);
+    }
+
+
+    /**
+     * Gets the winner ballot of a date.
+     * @param date the date of the lottery.
+     * @return the winner ballot, or null if it is not in memory.
+     */
+    public BallotView get(LocalDate date) {
+        return winners.get(date);
+    }
+
+
+    /**
+     * Keeps the winner ballot of a date.
+     * @param date the date of the lottery.
+     * @param winner the winner ballot.
+     */
+    public void put(LocalDate date, BallotView winner) {
+        winners.put(date, winner);
+    }
+
+
+    /**
+     * Keeps the winner ballot of a date once the current transaction commits, so that the winner of a draw
+     * which is rolled back is never served. Without a transaction, the winner is kept at once.
+     * @param date the date of the lottery.
+     * @param winner the winner ballot.
+     */
+    public void putAfterCommit(LocalDate date, BallotView winner) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    put(date, winner);
+                }
+            });
+        } else {
+            put(date, winner);
+        }
+    }
+
+
+    /**
+     * Forgets the winner ballot of a date.
+     * @param date the date of the lottery.
+     */
+    public void evict(LocalDate date) {
+        winners.remove(date);
+    }
+
+
+    /**
+     * Forgets all the winner ballots.
+     */
+    public void clear() {
+        winners.clear();
+    }
+}
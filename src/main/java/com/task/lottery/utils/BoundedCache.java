@@ -0,0 +1,132 @@
+package com.task.lottery.utils;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+
+/**
+ * Small in-memory cache bounded both by size and by time.
+ * When the cache is full the least recently used entry is evicted, and entries older than the time to live
+ * are treated as missing. A zero time to live keeps the entries until they are evicted by size.
+ * @param <K> the type of the keys.
+ * @param <V> the type of the values.
+ */
+public class BoundedCache<K, V> {
+
+    private final int maxSize;
+
+    private final long ttlNanos;
+
+    private final LongSupplier clock;
+
+    private final LinkedHashMap<K, Entry<V>> entries;
+
+
+    /**
+     * Instantiates a new BoundedCache.
+     * @param maxSize the maximum number of entries.
+     * @param ttl the time to live of an entry, or zero to keep the entries until they are evicted.
+     */
+    public BoundedCache(int maxSize, Duration ttl) {
+        this(maxSize, ttl, System::nanoTime);
+    }
+
+
+    /**
+     * Instantiates a new BoundedCache with the given clock.
+     * @param maxSize the maximum number of entries.
+     * @param ttl the time to live of an entry, or zero to keep the entries until they are evicted.
+     * @param clock the clock in nanoseconds.
+     */
+    public BoundedCache(int maxSize, Duration ttl, LongSupplier clock) {
+        this.maxSize = maxSize;
+        this.ttlNanos = ttl.toNanos();
+        this.clock = clock;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size() > BoundedCache.this.maxSize;
+            }
+        };
+    }
+
+
+    /**
+     * Gets the value of a key.
+     * @param key the key.
+     * @return the value, or null if there is no value or it expired.
+     */
+    public synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (isExpired(entry, clock.getAsLong())) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.value();
+    }
+
+
+    /**
+     * Puts the value of a key, replacing the previous one.
+     * @param key the key.
+     * @param value the value.
+     */
+    public synchronized void put(K key, V value) {
+        entries.put(key, new Entry<>(value, clock.getAsLong()));
+    }
+
+
+    /**
+     * Removes the value of a key.
+     * @param key the key.
+     */
+    public synchronized void remove(K key) {
+        entries.remove(key);
+    }
+
+
+    /**
+     * Removes all the values.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+
+    /**
+     * Removes the expired values.
+     */
+    public synchronized void purge() {
+        long now = clock.getAsLong();
+        Iterator<Entry<V>> values = entries.values().iterator();
+        while (values.hasNext()) {
+            if (isExpired(values.next(), now)) {
+                values.remove();
+            }
+        }
+    }
+
+
+    /**
+     * Gets the number of values, including the expired ones which were not removed yet.
+     * @return the number of values.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+
+    private boolean isExpired(Entry<V> entry, long now) {
+        return ttlNanos > 0 && now - entry.createdAt() >= ttlNanos;
+    }
+
+
+    private record Entry<V>(V value, long createdAt) {
+    }
+}
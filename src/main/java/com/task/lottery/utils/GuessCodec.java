@@ -0,0 +1,103 @@
+package com.task.lottery.utils;
+
+
+/**
+ * Validates ballot guesses and converts them to and from their integer form.
+ * A guess is a fixed length sequence of digits, so it is stored as the number it spells together with its
+ * length, which keeps the leading zeros. Validation and encoding only look at the characters and don't allocate.
+ */
+public final class GuessCodec {
+
+    /**
+     * The longest guess whose value always fits into an int.
+     */
+    public static final int MAX_LENGTH = 9;
+
+    private GuessCodec() {
+
+    }
+
+
+    /**
+     * Checks whether a guess is composed of digits only and has the given length.
+     * @param guess the guess.
+     * @param length the expected length.
+     * @return true if the guess is valid and false otherwise.
+     */
+    public static boolean isValid(CharSequence guess, int length) {
+        if (guess == null || guess.length() != length) {
+            return false;
+        }
+        return isDigits(guess);
+    }
+
+
+    /**
+     * Checks whether a guess can be encoded, which means it has between 1 and MAX_LENGTH digits only.
+     * @param guess the guess.
+     * @return true if the guess can be encoded and false otherwise.
+     */
+    public static boolean isEncodable(CharSequence guess) {
+        return guess != null && guess.length() > 0 && guess.length() <= MAX_LENGTH && isDigits(guess);
+    }
+
+
+    /**
+     * Encodes a guess into the number it spells.
+     * @param guess the guess.
+     * @return the value of the guess.
+     * @throws IllegalArgumentException if the guess cannot be encoded.
+     */
+    public static int encode(CharSequence guess) {
+        if (!isEncodable(guess)) {
+            throw new IllegalArgumentException("Invalid guess!");
+        }
+        int value = 0;
+        for (int i = 0; i < guess.length(); i++) {
+            value = value * 10 + (guess.charAt(i) - '0');
+        }
+        return value;
+    }
+
+
+    /**
+     * Decodes a guess from its value and length, padding it with leading zeros.
+     * @param value the value of the guess.
+     * @param length the length of the guess.
+     * @return the guess.
+     */
+    public static String decode(int value, int length) {
+        char[] digits = new char[length];
+        for (int i = length - 1; i >= 0; i--) {
+            digits[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return new String(digits);
+    }
+
+
+    /**
+     * Gets the digit of a guess at a position, counting from the left.
+     * @param value the value of the guess.
+     * @param length the length of the guess.
+     * @param position the position of the digit, 0 being the leftmost one.
+     * @return the digit.
+     */
+    public static int digitAt(int value, int length, int position) {
+        for (int i = length - 1; i > position; i--) {
+            value /= 10;
+        }
+        return value % 10;
+    }
+
+
+    private static boolean isDigits(CharSequence guess) {
+        for (int i = 0; i < guess.length(); i++) {
+            char c = guess.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,85 @@
+package com.task.lottery.utils;
+
+
+/**
+ * Estimates the number of distinct values added to it in a fixed amount of memory, with the HyperLogLog
+ * algorithm. Each value is hashed; the first "precision" bits of the hash pick one of 2^precision registers,
+ * which keeps the longest run of leading zeros seen in the rest of the hash. The standard error of the
+ * estimate is about 1.04 / sqrt(2^precision), so 0.8% with the default precision of 14, which takes 16 KB.
+ * Adding a value twice doesn't change the estimate. Not thread safe.
+ */
+public class HyperLogLog {
+
+    public static final int DEFAULT_PRECISION = 14;
+
+    private final int precision;
+
+    private final byte[] registers;
+
+
+    /**
+     * Instantiates a new HyperLogLog.
+     * @param precision the number of bits of the hash picking the register, between 4 and 18.
+     * @throws IllegalArgumentException if the precision is out of range.
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 18) {
+            throw new IllegalArgumentException("The precision must be between 4 and 18!");
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+
+    /**
+     * Adds a value.
+     * @param value the value.
+     */
+    public void add(long value) {
+        long hash = mix(value);
+        int register = (int) (hash >>> (64 - precision));
+        long rest = hash << precision;
+        int rank = rest == 0 ? 64 - precision + 1 : Long.numberOfLeadingZeros(rest) + 1;
+        if (rank > registers[register]) {
+            registers[register] = (byte) rank;
+        }
+    }
+
+
+    /**
+     * Estimates the number of distinct values added.
+     * Small cardinalities, for which some registers are still empty, are estimated with linear counting.
+     * @return the estimated number of distinct values.
+     */
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int empty = 0;
+        for (byte rank : registers) {
+            sum += 1.0 / (1L << rank);
+            if (rank == 0) {
+                empty++;
+            }
+        }
+        double estimate = 0.7213 / (1 + 1.079 / m) * m * m / sum;
+        if (estimate <= 2.5 * m && empty > 0) {
+            estimate = m * Math.log((double) m / empty);
+        }
+        return Math.round(estimate);
+    }
+
+
+    /**
+     * Spreads the bits of a value over the whole hash, with the finalizer of MurmurHash3, so that consecutive
+     * ids land in unrelated registers.
+     */
+    private static long mix(long value) {
+        long hash = value;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
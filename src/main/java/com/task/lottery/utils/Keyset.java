@@ -0,0 +1,106 @@
+package com.task.lottery.utils;
+
+import com.task.lottery.dtos.KeysetPage;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+
+/**
+ * Keyset pagination on ids. A page holds the rows whose id is greater than the last id of the previous page,
+ * so reading a page costs the same wherever it is in the table, unlike an offset which skips every row before it.
+ * The last id is handed to the client as an opaque continuation token.
+ */
+public final class Keyset {
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    private static final String TOKEN_PREFIX = "id:";
+
+    private Keyset() {
+
+    }
+
+
+    /**
+     * Gets the page size to use for a requested size.
+     * @param size the requested size, or null for the default size.
+     * @return the page size, at most MAX_PAGE_SIZE.
+     * @throws IllegalArgumentException if the size is not positive.
+     */
+    public static int pageSize(Integer size) {
+        if (size == null) {
+            return DEFAULT_PAGE_SIZE;
+        }
+        if (size < 1) {
+            throw new IllegalArgumentException("The page size must be positive!");
+        }
+        return Math.min(size, MAX_PAGE_SIZE);
+    }
+
+
+    /**
+     * Gets the limit of the query of a page: one row more than the page size, to know whether a next page exists.
+     * @param pageSize the page size.
+     * @return the limit of the query.
+     */
+    public static Pageable limit(int pageSize) {
+        return PageRequest.of(0, pageSize + 1);
+    }
+
+
+    /**
+     * Gets the id after which a page starts.
+     * @param token the continuation token, or null for the first page.
+     * @return the last id of the previous page, or 0 for the first page.
+     * @throws IllegalArgumentException if the token is not a valid continuation token.
+     */
+    public static long afterId(String token) {
+        if (token == null || token.isEmpty()) {
+            return 0L;
+        }
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            if (decoded.startsWith(TOKEN_PREFIX)) {
+                return Long.parseLong(decoded.substring(TOKEN_PREFIX.length()));
+            }
+        } catch (IllegalArgumentException e) {
+            // reported below, a malformed number is an IllegalArgumentException too
+        }
+        throw new IllegalArgumentException("Invalid page token!");
+    }
+
+
+    /**
+     * Gets the continuation token of the page which starts after an id.
+     * @param lastId the last id of the current page.
+     * @return the continuation token.
+     */
+    public static String token(long lastId) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((TOKEN_PREFIX + lastId).getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    /**
+     * Builds a page from the rows of a query limited by {@link #limit(int)}.
+     * @param rows the rows, ordered by id.
+     * @param pageSize the page size.
+     * @param id the id of a row.
+     * @param <T> the type of the rows.
+     * @return the page, with a continuation token if there are more rows.
+     */
+    public static <T> KeysetPage<T> page(List<T> rows, int pageSize, ToLongFunction<T> id) {
+        if (rows.size() <= pageSize) {
+            return new KeysetPage<>(rows, null);
+        }
+        List<T> items = List.copyOf(rows.subList(0, pageSize));
+        return new KeysetPage<>(items, token(id.applyAsLong(items.get(pageSize - 1))));
+    }
+}
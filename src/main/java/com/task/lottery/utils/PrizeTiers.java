@@ -0,0 +1,45 @@
+package com.task.lottery.utils;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Parses the prize tiers of the guess draws, configured as "matches:share" pairs separated by commas.
+ * "6:0.7,5:0.2" gives 70% of the prize to the ballots matching all 6 positions of the winning number and 20%
+ * to the ones matching 5 of them.
+ */
+public final class PrizeTiers {
+
+    private PrizeTiers() {
+
+    }
+
+
+    /**
+     * Parses prize tiers.
+     * @param tiers the prize tiers, as "matches:share" pairs separated by commas.
+     * @param digits the number of digits of the winning number.
+     * @return the share of the prize of each number of matching positions, in the configured order.
+     * @throws IllegalArgumentException if a tier is invalid or the tiers share more than the prize.
+     */
+    public static Map<Integer, Double> parse(String tiers, int digits) {
+        Map<Integer, Double> shares = new LinkedHashMap<>();
+        double total = 0;
+        for (String tier : tiers.split(",")) {
+            String[] parts = tier.trim().split(":");
+            int matches = Integer.parseInt(parts[0].trim());
+            double share = Double.parseDouble(parts[1].trim());
+            if (matches < 1 || matches > digits || share < 0) {
+                throw new IllegalArgumentException("Invalid prize tier " + tier);
+            }
+            shares.put(matches, share);
+            total += share;
+        }
+        if (total > 1) {
+            throw new IllegalArgumentException("The prize tiers share more than the prize!");
+        }
+        return Collections.unmodifiableMap(shares);
+    }
+}
@@ -0,0 +1,135 @@
+package com.task.lottery.utils;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+
+/**
+ * Read-through cache which loads each missing key once, however many threads miss it at the same time.
+ * The first thread which misses a key loads it, and the others wait for its result instead of loading it again.
+ * A value loaded while the cache was invalidated is returned to the waiting threads but not kept, so an
+ * invalidation is never overwritten by an older value. Null values are not kept.
+ * @param <K> the type of the keys.
+ * @param <V> the type of the values.
+ */
+public class SingleFlightCache<K, V> {
+
+    private final BoundedCache<K, V> values;
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> loading = new ConcurrentHashMap<>();
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+
+    /**
+     * Instantiates a new SingleFlightCache.
+     * @param maxSize the maximum number of values.
+     * @param ttl the time to live of a value, or zero to keep the values until they are evicted.
+     */
+    public SingleFlightCache(int maxSize, Duration ttl) {
+        this.values = new BoundedCache<>(maxSize, ttl);
+    }
+
+
+    /**
+     * Gets the value of a key, loading it if it is missing.
+     * @param key the key.
+     * @param loader the loader of the value, called at most once at a time per key.
+     * @return the value, or null if the loader found none.
+     * @throws RuntimeException the exception thrown by the loader, also to the threads waiting for it.
+     */
+    public V get(K key, Function<K, V> loader) {
+        return get(key, loader, () -> true);
+    }
+
+
+    /**
+     * Gets the value of a key, loading it if it is missing, and keeps a loaded value only if a condition holds
+     * once it is loaded. The threads waiting for the load get the value either way.
+     * @param key the key.
+     * @param loader the loader of the value, called at most once at a time per key.
+     * @param keep tells, after the load, whether the loaded value may be kept.
+     * @return the value, or null if the loader found none.
+     * @throws RuntimeException the exception thrown by the loader, also to the threads waiting for it.
+     */
+    public V get(K key, Function<K, V> loader, BooleanSupplier keep) {
+        V value = values.get(key);
+        if (value != null) {
+            return value;
+        }
+        CompletableFuture<V> load = new CompletableFuture<>();
+        CompletableFuture<V> inFlight = loading.putIfAbsent(key, load);
+        if (inFlight != null) {
+            return await(inFlight);
+        }
+        long invalidation = invalidations.get();
+        try {
+            value = values.get(key);
+            if (value == null) {
+                // the load which was in flight when the key was missed may have ended since
+                value = loader.apply(key);
+                if (value != null && invalidations.get() == invalidation && keep.getAsBoolean()) {
+                    values.put(key, value);
+                }
+            }
+            load.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, load);
+        }
+    }
+
+
+    /**
+     * Gets the value of a key without loading it.
+     * @param key the key.
+     * @return the value, or null if it is missing.
+     */
+    public V getIfPresent(K key) {
+        return values.get(key);
+    }
+
+
+    /**
+     * Removes the value of a key. A load of the key which is in flight is not kept.
+     * @param key the key.
+     */
+    public void invalidate(K key) {
+        invalidations.incrementAndGet();
+        loading.remove(key);
+        values.remove(key);
+    }
+
+
+    /**
+     * Removes all the values. The loads in flight are not kept.
+     */
+    public void invalidateAll() {
+        invalidations.incrementAndGet();
+        loading.clear();
+        values.clear();
+    }
+
+
+    private V await(CompletableFuture<V> inFlight) {
+        try {
+            return inFlight.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            if (e.getCause() instanceof Error cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -1,11 +1,22 @@
 package com.task.lottery.controllerTests;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.task.lottery.controllers.BallotController;
+import com.task.lottery.dtos.BallotBatchRequest;
+import com.task.lottery.dtos.BallotPurchaseResult;
+import com.task.lottery.dtos.BallotTicket;
+import com.task.lottery.dtos.BallotView;
+import com.task.lottery.dtos.KeysetPage;
 import com.task.lottery.entities.Ballot;
+import com.task.lottery.repositories.IdempotencyRecordRepository;
+import com.task.lottery.services.BallotIngestionService;
 import com.task.lottery.services.BallotService;
+import com.task.lottery.services.ConcurrencyRetry;
+import com.task.lottery.services.IdempotencyService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.InjectMocks;
@@ -19,9 +30,13 @@ import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.transaction.PlatformTransactionManager;
 
+import java.time.Duration;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
@@ -55,6 +70,8 @@ public class BallotControllerTest {
         objectMapper = new ObjectMapper();
         objectMapper.registerModule(new JavaTimeModule());
         objectMapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        ReflectionTestUtils.setField(ballotController, "concurrencyRetry",
+                new ConcurrencyRetry(new SimpleMeterRegistry(), 3, 0, 0));
         this.mockMvc = MockMvcBuilders.standaloneSetup(ballotController).build();
     }
 
@@ -96,23 +113,177 @@ public class BallotControllerTest {
 
 
     /**
-     * Test the find all end point.
+     * Test that a retry of the save end point with the same idempotency key doesn't buy the ballot again.
+     */
+    @Test
+    void testCreateNewBallotIdempotencyKey() throws Exception {
+        IdempotencyRecordRepository idempotencyRecordRepository = mock(IdempotencyRecordRepository.class);
+        when(idempotencyRecordRepository.findById(any(String.class))).thenReturn(Optional.empty());
+        when(idempotencyRecordRepository.complete(any(), anyInt(), any(), any(), any())).thenReturn(1);
+        ReflectionTestUtils.setField(ballotController, "idempotencyService", new IdempotencyService(
+                idempotencyRecordRepository, objectMapper, new ConcurrencyRetry(new SimpleMeterRegistry(), 3, 0, 0),
+                mock(PlatformTransactionManager.class), 10, Duration.ofMinutes(10), Duration.ofHours(24)));
+        when(this.ballotService.save(any(Ballot.class))).thenReturn(b1);
+
+        for (int i = 0; i < 2; i++) {
+            MvcResult result = mockMvc.perform(
+                    MockMvcRequestBuilders.post("/ballots/ballot")
+                            .header("Idempotency-Key", "retry-1")
+                            .content(objectMapper.writeValueAsString(b1))
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .accept(MediaType.APPLICATION_JSON)
+            ).andExpect(MockMvcResultMatchers.status().isOk()).andReturn();
+
+            assertEquals(b1, objectMapper.readValue(result.getResponse().getContentAsString(), Ballot.class));
+        }
+        verify(ballotService, times(1)).save(any(Ballot.class));
+    }
+
+
+    /**
+     * Test the save end point in the asynchronous ingestion mode, where a ticket is returned.
+     */
+    @Test
+    void testCreateNewBallotAsync() throws Exception {
+        BallotIngestionService ingestionService = mock(BallotIngestionService.class);
+        ReflectionTestUtils.setField(ballotController, "ingestionService", ingestionService);
+        when(ingestionService.submit(any(Ballot.class))).thenReturn(Optional.of(BallotTicket.pending(1L)));
+        MvcResult result = mockMvc.perform(
+                MockMvcRequestBuilders.post("/ballots/ballot")
+                        .content(objectMapper.writeValueAsString(b1))
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .accept(MediaType.APPLICATION_JSON)
+        ).andExpect(MockMvcResultMatchers.status().isAccepted()).andReturn();
+
+        BallotTicket ticket = objectMapper
+                .readValue(result.getResponse().getContentAsString(), BallotTicket.class);
+
+        assertEquals(BallotTicket.pending(1L), ticket);
+        verify(ballotService, never()).save(any(Ballot.class));
+    }
+
+
+    /**
+     * Test the save end point in the asynchronous ingestion mode when the buffer is full.
+     */
+    @Test
+    void testCreateNewBallotAsyncBufferFull() throws Exception {
+        BallotIngestionService ingestionService = mock(BallotIngestionService.class);
+        ReflectionTestUtils.setField(ballotController, "ingestionService", ingestionService);
+        when(ingestionService.submit(any(Ballot.class))).thenReturn(Optional.empty());
+        mockMvc.perform(
+                MockMvcRequestBuilders.post("/ballots/ballot")
+                        .content(objectMapper.writeValueAsString(b1))
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .accept(MediaType.APPLICATION_JSON)
+        ).andExpect(MockMvcResultMatchers.status().isTooManyRequests());
+    }
+
+
+    /**
+     * Test the ticket end point.
+     */
+    @Test
+    void testGetTicket() throws Exception {
+        BallotIngestionService ingestionService = mock(BallotIngestionService.class);
+        ReflectionTestUtils.setField(ballotController, "ingestionService", ingestionService);
+        BallotTicket accepted = new BallotTicket(1L, BallotTicket.Status.ACCEPTED, 5L, null);
+        when(ingestionService.findTicket(1L)).thenReturn(Optional.of(accepted));
+        MvcResult result = mockMvc.perform(MockMvcRequestBuilders.get("/ballots/ticket/1")
+                        .accept(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.status().isOk()).andReturn();
+
+        assertEquals(accepted, objectMapper.readValue(result.getResponse().getContentAsString(), BallotTicket.class));
+    }
+
+
+    /**
+     * Test the ticket end point when the ingestion is synchronous.
+     */
+    @Test
+    void testGetTicketSyncMode() throws Exception {
+        mockMvc.perform(MockMvcRequestBuilders.get("/ballots/ticket/1")
+                        .accept(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.status().isUnprocessableEntity());
+    }
+
+
+    /**
+     * Test the batch save end point.
+     */
+    @Test
+    void testCreateBallotBatch() throws Exception {
+        BallotBatchRequest request = new BallotBatchRequest(1L, 2L, List.of("123456", "12345"));
+        List<BallotPurchaseResult> results = List.of(BallotPurchaseResult.succeeded("123456", 1L),
+                BallotPurchaseResult.failed("12345", "Invalid guess!"));
+        when(this.ballotService.saveBatch(any(BallotBatchRequest.class))).thenReturn(results);
+        MvcResult result = mockMvc.perform(
+                MockMvcRequestBuilders.post("/ballots/batch")
+                        .content(objectMapper.writeValueAsString(request))
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .accept(MediaType.APPLICATION_JSON)
+        ).andExpect(MockMvcResultMatchers.status().isOk()).andReturn();
+
+        BallotPurchaseResult[] res = objectMapper
+                .readValue(result.getResponse().getContentAsString(), BallotPurchaseResult[].class);
+
+        assertArrayEquals(results.toArray(), res);
+        verify(ballotService, times(1)).saveBatch(any(BallotBatchRequest.class));
+    }
+
+
+    /**
+     * Test the batch save end point in the case the batch is rejected by the service.
+     */
+    @Test
+    void testCreateBallotBatchError() throws Exception {
+        when(this.ballotService.saveBatch(any(BallotBatchRequest.class))).thenThrow(new IllegalArgumentException());
+        mockMvc.perform(
+                MockMvcRequestBuilders.post("/ballots/batch")
+                        .content(objectMapper.writeValueAsString(new BallotBatchRequest(1L, 2L, List.of())))
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .accept(MediaType.APPLICATION_JSON)
+        ).andExpect(MockMvcResultMatchers.status().isBadRequest());
+    }
+
+
+    /**
+     * Test the list end point, which returns a page of ballots and the token of the next page.
      */
     @Test
     void testFindAll() throws Exception {
         Ballot b2 = new Ballot(2L, 2L, 1L, "198456");
         Ballot[] ballots = new Ballot[] {b1, b2};
 
-        when(this.ballotService.findAll()).thenReturn(Arrays.asList(ballots));
+        when(this.ballotService.findPage(null, 2, 2L, null, null, null))
+                .thenReturn(new KeysetPage<>(Arrays.stream(ballots).map(BallotView::of).toList(), "next"));
         MvcResult result = mockMvc.perform(
                 MockMvcRequestBuilders.get("/ballots/list")
+                        .param("size", "2")
+                        .param("lotteryId", "2")
                         .accept(MediaType.APPLICATION_JSON)
         ).andExpect(MockMvcResultMatchers.status().isOk()).andReturn();
 
-        Ballot[] res = objectMapper
-                .readValue(result.getResponse().getContentAsString(), Ballot[].class);
+        JsonNode page = objectMapper.readTree(result.getResponse().getContentAsString());
+        Ballot[] res = objectMapper.treeToValue(page.get("items"), Ballot[].class);
 
         assertArrayEquals(ballots, res);
+        assertEquals("next", page.get("next").asText());
+    }
+
+
+    /**
+     * Test the list end point in the case the continuation token is invalid.
+     */
+    @Test
+    void testFindAllInvalidToken() throws Exception {
+        when(this.ballotService.findPage("bad", null, null, null, null, null))
+                .thenThrow(new IllegalArgumentException("Invalid page token!"));
+        mockMvc.perform(
+                MockMvcRequestBuilders.get("/ballots/list")
+                        .param("token", "bad")
+                        .accept(MediaType.APPLICATION_JSON)
+        ).andExpect(MockMvcResultMatchers.status().isBadRequest());
     }
 
 
@@ -121,7 +292,7 @@ public class BallotControllerTest {
      */
     @Test
     void testFindById() throws Exception {
-        when(ballotService.findById(1L)).thenReturn(Optional.of(b1));
+        when(ballotService.findById(1L)).thenReturn(Optional.of(BallotView.of(b1)));
         MvcResult result = mockMvc.perform(MockMvcRequestBuilders.get("/ballots/ballot/1")
                         .accept(MediaType.APPLICATION_JSON))
                 .andExpect(MockMvcResultMatchers.status().isOk()).andReturn();
@@ -1,12 +1,21 @@
 package com.task.lottery.controllerTests;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.task.lottery.controllers.LotteryController;
+import com.task.lottery.dtos.BallotView;
+import com.task.lottery.dtos.GuessCount;
+import com.task.lottery.dtos.GuessLiability;
+import com.task.lottery.dtos.KeysetPage;
+import com.task.lottery.dtos.LotteryStats;
+import com.task.lottery.dtos.LotteryView;
 import com.task.lottery.entities.Ballot;
 import com.task.lottery.entities.Lottery;
+import com.task.lottery.services.GuessHistogramService;
 import com.task.lottery.services.LotteryService;
+import com.task.lottery.services.LotteryStatsService;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.InjectMocks;
@@ -15,6 +24,7 @@ import org.mockito.MockitoAnnotations;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
@@ -22,13 +32,23 @@ import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 @SpringBootTest
@@ -41,6 +61,12 @@ public class LotteryControllerTest {
     @Mock
     private transient LotteryService lotteryService;
 
+    @Mock
+    private transient LotteryStatsService lotteryStatsService;
+
+    @Mock
+    private transient GuessHistogramService guessHistogramService;
+
     @InjectMocks
     private transient LotteryController lotteryController;
 
@@ -48,6 +74,9 @@ public class LotteryControllerTest {
 
     private ObjectMapper objectMapper;
 
+    private static final String EXPORT = "{\"id\":1,\"lotteryId\":1,\"participantId\":1,\"guess\":\"123456\"}\n"
+            + "{\"id\":2,\"lotteryId\":1,\"participantId\":2,\"guess\":\"000042\"}\n";
+
 
 
     @BeforeEach
@@ -104,7 +133,7 @@ public class LotteryControllerTest {
     @Test
     void testGetWinner() throws Exception {
         Ballot ballot = new Ballot (1L, 1L, 1L, "123456");
-        when(this.lotteryService.getWinner(any(LocalDate.class))).thenReturn(ballot);
+        when(this.lotteryService.getWinner(any(LocalDate.class))).thenReturn(BallotView.of(ballot));
         MvcResult result = mockMvc.perform(
                 MockMvcRequestBuilders.get("/lotteries/lottery/winner")
                         .content(objectMapper.writeValueAsString(LocalDate.now()))
@@ -136,7 +165,7 @@ public class LotteryControllerTest {
 
 
     /**
-     * Test the find all end point.
+     * Test the list end point, which returns the last page of the lotteries in a date range.
      */
     @Test
     void testFindAll() throws Exception {
@@ -144,18 +173,19 @@ public class LotteryControllerTest {
                 null, 100.0, 5.0);
         Lottery[] lotteries = new Lottery[] {l1, l2};
 
-        when(this.lotteryService.findAll()).thenReturn(Arrays.asList(lotteries));
+        when(this.lotteryService.findPage(null, null, LocalDate.of(2023, 1, 1), null))
+                .thenReturn(new KeysetPage<>(Arrays.stream(lotteries).map(LotteryView::of).toList(), null));
         MvcResult result = mockMvc.perform(
                 MockMvcRequestBuilders.get("/lotteries/list")
-                        .content(objectMapper.writeValueAsString(LocalDate.now()))
-                        .contentType(MediaType.APPLICATION_JSON)
+                        .param("from", "2023-01-01")
                         .accept(MediaType.APPLICATION_JSON)
         ).andExpect(MockMvcResultMatchers.status().isOk()).andReturn();
 
-        Lottery[] res = objectMapper
-                .readValue(result.getResponse().getContentAsString(), Lottery[].class);
+        JsonNode page = objectMapper.readTree(result.getResponse().getContentAsString());
+        Lottery[] res = objectMapper.treeToValue(page.get("items"), Lottery[].class);
 
         assertArrayEquals(lotteries, res);
+        assertTrue(page.get("next").isNull());
     }
 
 
@@ -164,7 +194,7 @@ public class LotteryControllerTest {
      */
     @Test
     void testFindById() throws Exception {
-        when(lotteryService.findById(1L)).thenReturn(Optional.of(l1));
+        when(lotteryService.findById(1L)).thenReturn(Optional.of(LotteryView.of(l1)));
         MvcResult result = mockMvc.perform(MockMvcRequestBuilders.get("/lotteries/lottery/1")
                         .accept(MediaType.APPLICATION_JSON))
                 .andExpect(MockMvcResultMatchers.status().isOk()).andReturn();
@@ -189,4 +219,194 @@ public class LotteryControllerTest {
                 .andExpect(MockMvcResultMatchers.status().isUnprocessableEntity()).andReturn();
     }
 
+
+    /**
+     * Test the stats end point, which returns the sales figures of a lottery.
+     */
+    @Test
+    void testGetStats() throws Exception {
+        LocalDateTime hour = LocalDate.now().atTime(10, 0);
+        when(lotteryStatsService.getStats(1L)).thenReturn(Optional.of(
+                new LotteryStats(1L, 3, 15.0, 2, new TreeMap<>(Map.of(hour, 3L)))));
+        MvcResult result = mockMvc.perform(MockMvcRequestBuilders.get("/lotteries/lottery/1/stats")
+                        .accept(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.status().isOk()).andReturn();
+
+        JsonNode stats = objectMapper.readTree(result.getResponse().getContentAsString());
+
+        assertEquals(3, stats.get("ballotCount").asLong());
+        assertEquals(15.0, stats.get("revenue").asDouble());
+        assertEquals(2, stats.get("uniqueParticipants").asLong());
+        assertEquals(3, stats.get("ballotsPerHour").get(hour.toString()).asLong());
+    }
+
+
+    /**
+     * Test the stats end point in the case when there is not a lottery with the given id.
+     */
+    @Test
+    void testGetStatsNoLottery() throws Exception {
+        when(lotteryStatsService.getStats(1L)).thenReturn(Optional.empty());
+        mockMvc.perform(MockMvcRequestBuilders.get("/lotteries/lottery/1/stats")
+                        .accept(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.status().isUnprocessableEntity());
+    }
+
+
+    /**
+     * Test the top guesses end point, which returns the most played guesses of a lottery.
+     */
+    @Test
+    void testGetTopGuesses() throws Exception {
+        when(guessHistogramService.findTop(1L, 2)).thenReturn(Optional.of(
+                List.of(new GuessCount("123456", 5), new GuessCount("000042", 3))));
+        MvcResult result = mockMvc.perform(MockMvcRequestBuilders.get("/lotteries/lottery/1/guesses/top")
+                        .param("k", "2")
+                        .accept(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.status().isOk()).andReturn();
+
+        JsonNode top = objectMapper.readTree(result.getResponse().getContentAsString());
+
+        assertEquals(2, top.size());
+        assertEquals("123456", top.get(0).get("guess").asText());
+        assertEquals(5, top.get(0).get("ballots").asInt());
+    }
+
+
+    /**
+     * Test the top guesses end point in the case k is out of range.
+     */
+    @Test
+    void testGetTopGuessesInvalidK() throws Exception {
+        when(guessHistogramService.findTop(1L, 1000)).thenThrow(new IllegalArgumentException("Invalid k!"));
+        mockMvc.perform(MockMvcRequestBuilders.get("/lotteries/lottery/1/guesses/top")
+                        .param("k", "1000")
+                        .accept(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
+    }
+
+
+    /**
+     * Test the liability end point, which returns what a lottery would pay for a drawn number.
+     */
+    @Test
+    void testGetLiability() throws Exception {
+        when(guessHistogramService.findLiability(1L, "123456")).thenReturn(Optional.of(
+                new GuessLiability(1L, "123456", new TreeMap<>(Map.of(6, 1L, 5, 0L)), 70.0)));
+        MvcResult result = mockMvc.perform(MockMvcRequestBuilders.get("/lotteries/lottery/1/liability")
+                        .param("number", "123456")
+                        .accept(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.status().isOk()).andReturn();
+
+        JsonNode liability = objectMapper.readTree(result.getResponse().getContentAsString());
+
+        assertEquals(70.0, liability.get("payout").asDouble());
+        assertEquals(1, liability.get("winningBallots").get("6").asLong());
+    }
+
+
+    /**
+     * Test the liability end point in the case when there is not a lottery with the given id.
+     */
+    @Test
+    void testGetLiabilityNoLottery() throws Exception {
+        when(guessHistogramService.findLiability(1L, "123456")).thenReturn(Optional.empty());
+        mockMvc.perform(MockMvcRequestBuilders.get("/lotteries/lottery/1/liability")
+                        .param("number", "123456")
+                        .accept(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.status().isUnprocessableEntity());
+    }
+
+
+    /**
+     * Test the export end point, which streams the ballots as newline delimited JSON.
+     */
+    @Test
+    void testExportBallots() throws Exception {
+        when(lotteryService.existsById(1L)).thenReturn(true);
+        doAnswer(invocation -> {
+            invocation.<OutputStream>getArgument(1).write(EXPORT.getBytes(StandardCharsets.UTF_8));
+            return null;
+        }).when(lotteryService).exportBallots(eq(1L), any(OutputStream.class));
+
+        MvcResult started = mockMvc.perform(MockMvcRequestBuilders.get("/lotteries/lottery/1/ballots.ndjson"))
+                .andExpect(MockMvcResultMatchers.request().asyncStarted()).andReturn();
+        MvcResult result = mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(started))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.content().contentType("application/x-ndjson"))
+                .andExpect(MockMvcResultMatchers.header().doesNotExist(HttpHeaders.CONTENT_ENCODING))
+                .andReturn();
+
+        assertEquals(EXPORT, result.getResponse().getContentAsString());
+    }
+
+
+    /**
+     * Test the export end point in the case the client accepts gzip.
+     */
+    @Test
+    void testExportBallotsGzip() throws Exception {
+        when(lotteryService.existsById(1L)).thenReturn(true);
+        doAnswer(invocation -> {
+            invocation.<OutputStream>getArgument(1).write(EXPORT.getBytes(StandardCharsets.UTF_8));
+            return null;
+        }).when(lotteryService).exportBallots(eq(1L), any(OutputStream.class));
+
+        MvcResult started = mockMvc.perform(MockMvcRequestBuilders.get("/lotteries/lottery/1/ballots.ndjson")
+                        .header(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate"))
+                .andExpect(MockMvcResultMatchers.request().asyncStarted()).andReturn();
+        MvcResult result = mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(started))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.CONTENT_ENCODING, "gzip"))
+                .andReturn();
+
+        try (GZIPInputStream in = new GZIPInputStream(
+                new ByteArrayInputStream(result.getResponse().getContentAsByteArray()))) {
+            assertEquals(EXPORT, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+
+    /**
+     * Test that the export is not compressed when the client refuses gzip with q=0, even if it accepts "*", and
+     * that it is compressed when gzip is only accepted through "*".
+     */
+    @Test
+    void testExportBallotsGzipRefused() throws Exception {
+        when(lotteryService.existsById(1L)).thenReturn(true);
+        doAnswer(invocation -> {
+            invocation.<OutputStream>getArgument(1).write(EXPORT.getBytes(StandardCharsets.UTF_8));
+            return null;
+        }).when(lotteryService).exportBallots(eq(1L), any(OutputStream.class));
+
+        MvcResult started = mockMvc.perform(MockMvcRequestBuilders.get("/lotteries/lottery/1/ballots.ndjson")
+                        .header(HttpHeaders.ACCEPT_ENCODING, "gzip;q=0, *"))
+                .andExpect(MockMvcResultMatchers.request().asyncStarted()).andReturn();
+        MvcResult result = mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(started))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.header().doesNotExist(HttpHeaders.CONTENT_ENCODING))
+                .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING))
+                .andReturn();
+        assertEquals(EXPORT, result.getResponse().getContentAsString());
+
+        started = mockMvc.perform(MockMvcRequestBuilders.get("/lotteries/lottery/1/ballots.ndjson")
+                        .header(HttpHeaders.ACCEPT_ENCODING, "br;q=1.0, *;q=0.5"))
+                .andExpect(MockMvcResultMatchers.request().asyncStarted()).andReturn();
+        mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(started))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.CONTENT_ENCODING, "gzip"));
+    }
+
+
+    /**
+     * Test the export end point in the case the lottery does not exist.
+     */
+    @Test
+    void testExportBallotsNoLottery() throws Exception {
+        when(lotteryService.existsById(1L)).thenReturn(false);
+        mockMvc.perform(MockMvcRequestBuilders.get("/lotteries/lottery/1/ballots.ndjson"))
+                .andExpect(MockMvcResultMatchers.status().isUnprocessableEntity());
+        verify(lotteryService, never()).exportBallots(any(), any());
+    }
+
 }
@@ -1,10 +1,16 @@
 package com.task.lottery.controllerTests;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.task.lottery.controllers.ParticipantController;
+import com.task.lottery.dtos.BallotView;
+import com.task.lottery.dtos.KeysetPage;
+import com.task.lottery.dtos.ParticipantView;
+import com.task.lottery.entities.Ballot;
 import com.task.lottery.entities.Participant;
+import com.task.lottery.services.BallotService;
 import com.task.lottery.services.ParticipantService;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -14,6 +20,7 @@ import org.mockito.MockitoAnnotations;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
@@ -40,6 +47,9 @@ public class ParticipantControllerTest {
     @Mock
     private transient ParticipantService participantService;
 
+    @Mock
+    private transient BallotService ballotService;
+
     @InjectMocks
     private transient ParticipantController participantController;
 
@@ -81,23 +91,66 @@ public class ParticipantControllerTest {
 
 
     /**
-     * Test the find all end point.
+     * Test the save end point in the case the email is already used by another participant.
+     */
+    @Test
+    void testSaveParticipantDuplicateEmail() throws Exception {
+        when(this.participantService.save(any(Participant.class)))
+                .thenThrow(new DataIntegrityViolationException("uk_participant_email"));
+        mockMvc.perform(
+                MockMvcRequestBuilders.post("/participants/participant")
+                        .content(objectMapper.writeValueAsString(p1))
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .accept(MediaType.APPLICATION_JSON)
+        ).andExpect(MockMvcResultMatchers.status().isBadRequest());
+    }
+
+
+    /**
+     * Test the ballots end point, which returns a page of the ballots of a participant.
+     */
+    @Test
+    void testGetParticipantBallots() throws Exception {
+        Ballot[] ballots = new Ballot[] {new Ballot(1L, 2L, 1L, "123456"), new Ballot(2L, 2L, 1L, "654321")};
+        when(this.ballotService.findByParticipant(1L, 2L, null, 2))
+                .thenReturn(new KeysetPage<>(Arrays.stream(ballots).map(BallotView::of).toList(), "next"));
+        MvcResult result = mockMvc.perform(
+                MockMvcRequestBuilders.get("/participants/participant/1/ballots")
+                        .param("lotteryId", "2")
+                        .param("size", "2")
+                        .accept(MediaType.APPLICATION_JSON)
+        ).andExpect(MockMvcResultMatchers.status().isOk()).andReturn();
+
+        JsonNode page = objectMapper.readTree(result.getResponse().getContentAsString());
+
+        assertArrayEquals(ballots, objectMapper.treeToValue(page.get("items"), Ballot[].class));
+        assertEquals("next", page.get("next").asText());
+    }
+
+
+    /**
+     * Test the list end point, which returns a page of participants and the token of the next page.
      */
     @Test
     void testFindAll() throws Exception {
         Participant p2 = new Participant(2L, "p", "2", "email2", 10.0);
         Participant[] participants = new Participant[] {p1, p2};
 
-        when(this.participantService.findAll()).thenReturn(Arrays.asList(participants));
+        when(this.participantService.findPage("abc", 2, 5L))
+                .thenReturn(new KeysetPage<>(Arrays.stream(participants).map(ParticipantView::of).toList(), "next"));
         MvcResult result = mockMvc.perform(
                 MockMvcRequestBuilders.get("/participants/list")
+                        .param("token", "abc")
+                        .param("size", "2")
+                        .param("lotteryId", "5")
                         .accept(MediaType.APPLICATION_JSON)
         ).andExpect(MockMvcResultMatchers.status().isOk()).andReturn();
 
-        Participant[] res = objectMapper
-                .readValue(result.getResponse().getContentAsString(), Participant[].class);
+        JsonNode page = objectMapper.readTree(result.getResponse().getContentAsString());
+        Participant[] res = objectMapper.treeToValue(page.get("items"), Participant[].class);
 
         assertArrayEquals(participants, res);
+        assertEquals("next", page.get("next").asText());
     }
 
 
@@ -106,7 +159,7 @@ public class ParticipantControllerTest {
      */
     @Test
     void testFindById() throws Exception {
-        when(participantService.findById(1L)).thenReturn(Optional.of(p1));
+        when(participantService.findById(1L)).thenReturn(Optional.of(ParticipantView.of(p1)));
         MvcResult result = mockMvc.perform(MockMvcRequestBuilders.get("/participants/participant/1")
                         .accept(MediaType.APPLICATION_JSON))
                 .andExpect(MockMvcResultMatchers.status().isOk()).andReturn();
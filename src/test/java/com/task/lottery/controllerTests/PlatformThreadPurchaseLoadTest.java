@@ -0,0 +1,8 @@
+package com.task.lottery.controllerTests;
+
+import org.springframework.test.context.TestPropertySource;
+
+
+@TestPropertySource(properties = "lottery.execution.mode=platform")
+public class PlatformThreadPurchaseLoadTest extends PurchaseLoadTest {
+}
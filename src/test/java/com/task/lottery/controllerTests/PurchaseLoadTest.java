@@ -0,0 +1,105 @@
+package com.task.lottery.controllerTests;
+
+import com.task.lottery.entities.Lottery;
+import com.task.lottery.entities.Participant;
+import com.task.lottery.repositories.LotteryRepository;
+import com.task.lottery.repositories.ParticipantRepository;
+import com.task.lottery.services.BallotCounterService;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Load test of the purchase end point, run once per execution mode by its subclasses to compare them.
+ * Tomcat gets a small thread pool so that the difference between the modes shows with a few clients.
+ * Run with the benchmark task.
+ */
+@Tag("benchmark")
+@SpringBootTest(
+        webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = "server.tomcat.threads.max=16"
+)
+public abstract class PurchaseLoadTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(PurchaseLoadTest.class);
+
+    private static final int REQUESTS = 5_000;
+
+    private static final int CLIENTS = 200;
+
+    private static final int PARTICIPANTS = 100;
+
+    @LocalServerPort
+    private int port;
+
+    @Value("${lottery.execution.mode}")
+    private String mode;
+
+    @Autowired
+    private LotteryRepository lotteryRepository;
+
+    @Autowired
+    private ParticipantRepository participantRepository;
+
+    @Autowired
+    private BallotCounterService ballotCounterService;
+
+
+    @Test
+    void testPurchaseThroughput() throws Exception {
+        Lottery lottery = lotteryRepository.save(new Lottery(null, true, LocalDate.now().plusYears(20), 0,
+                null, 100.0, 1.0));
+        ballotCounterService.createCounters(lottery.getId());
+        List<Long> participantIds = new ArrayList<>();
+        for (int i = 0; i < PARTICIPANTS; i++) {
+            Participant participant = new Participant();
+            participant.setEmail("load-" + lottery.getId() + "-" + i + "@lottery.test");
+            participant.setBalance(REQUESTS);
+            participantIds.add(participantRepository.save(participant).getId());
+        }
+
+        HttpClient client = HttpClient.newHttpClient();
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        List<Future<Integer>> statuses = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < REQUESTS; i++) {
+                HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/ballots/ballot"))
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofString(String.format(
+                                "{\"lotteryId\":%d,\"participantId\":%d,\"guess\":\"%06d\"}",
+                                lottery.getId(), participantIds.get(i % PARTICIPANTS), i)))
+                        .build();
+                statuses.add(clients.submit(() -> client.send(request, HttpResponse.BodyHandlers.discarding())
+                        .statusCode()));
+            }
+            for (Future<Integer> status : statuses) {
+                assertEquals(200, status.get());
+            }
+        } finally {
+            clients.shutdown();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        logger.info("Execution mode {}: {} purchases in {} s, {} purchases/s", mode, REQUESTS,
+                String.format("%.2f", seconds), String.format("%.0f", REQUESTS / seconds));
+    }
+}
@@ -0,0 +1,36 @@
+package com.task.lottery.controllerTests;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.test.context.TestPropertySource;
+
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+@TestPropertySource(properties = {
+        "lottery.execution.mode=virtual",
+        "lottery.execution.virtual.db-pool-size=40"
+})
+public class VirtualThreadPurchaseLoadTest extends PurchaseLoadTest {
+
+    @Autowired
+    private HikariDataSource dataSource;
+
+    @Autowired
+    private TaskScheduler taskScheduler;
+
+
+    @Test
+    void testVirtualThreadMode() throws Exception {
+        assertEquals(40, dataSource.getMaximumPoolSize());
+        CompletableFuture<Boolean> virtual = new CompletableFuture<>();
+        taskScheduler.schedule(() -> virtual.complete(Thread.currentThread().isVirtual()), Instant.now());
+        assertTrue(virtual.get(10, TimeUnit.SECONDS));
+    }
+}
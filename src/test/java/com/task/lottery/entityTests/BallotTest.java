@@ -51,4 +51,21 @@ public class BallotTest {
         assertNotEquals(expectedHashCodeResult, b2.hashCode());
     }
 
+
+    @Test
+    void testGuessIsEncoded() {
+        Ballot ballot = new Ballot(3L, 2L, 1L, "012345");
+        assertEquals(12345, ballot.getGuessValue());
+        assertEquals(6, ballot.getGuessLength());
+        assertEquals("012345", ballot.getGuess());
+    }
+
+
+    @Test
+    void testInvalidGuessIsNotEncoded() {
+        Ballot ballot = new Ballot(3L, 2L, 1L, "12a456");
+        assertEquals(0, ballot.getGuessLength());
+        assertEquals("12a456", ballot.getGuess());
+    }
+
 }
@@ -0,0 +1,58 @@
+package com.task.lottery.repositoryTests;
+
+import com.task.lottery.entities.Ballot;
+import com.task.lottery.repositories.BallotRepository;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+@SpringBootTest(properties = "spring.jpa.properties.hibernate.generate_statistics=true")
+public class BallotRepositoryBatchingTest {
+
+    private static final int BALLOTS = 10_000;
+
+    @Autowired
+    private BallotRepository ballotRepository;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Value("${spring.jpa.properties.hibernate.jdbc.batch_size}")
+    private int batchSize;
+
+    @Value("${spring.jpa.properties.lottery.id.allocation_size}")
+    private int allocationSize;
+
+
+    /**
+     * Inserting many ballots must cost one sequence call per allocated block of ids and
+     * one statement per JDBC batch instead of two statements per ballot.
+     */
+    @Test
+    void testBulkInsertIsBatched() {
+        List<Ballot> ballots = new ArrayList<>(BALLOTS);
+        for (int i = 0; i < BALLOTS; i++) {
+            ballots.add(new Ballot(null, 1L, (long) i, String.format("%06d", i)));
+        }
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+
+        ballotRepository.saveAll(ballots);
+
+        assertEquals(BALLOTS, statistics.getEntityInsertCount());
+        long maxStatements = BALLOTS / batchSize + BALLOTS / allocationSize + 2;
+        assertTrue(statistics.getPrepareStatementCount() <= maxStatements,
+                "Expected at most " + maxStatements + " statements but was "
+                        + statistics.getPrepareStatementCount());
+    }
+}
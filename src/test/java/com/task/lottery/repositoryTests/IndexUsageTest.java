@@ -0,0 +1,64 @@
+package com.task.lottery.repositoryTests;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+@SpringBootTest
+public class IndexUsageTest {
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+
+    /**
+     * Test that finding the ballots of a lottery uses the lottery index instead of scanning the table.
+     */
+    @Test
+    void testBallotsByLotteryUseIndex() {
+        assertUsesIndex("select * from ballot where lottery_id = 1", "idx_ballot_lottery");
+    }
+
+
+    /**
+     * Test that finding the ballots of a participant, in any lottery or in one, uses the composite index.
+     */
+    @Test
+    void testBallotsByParticipantUseIndex() {
+        assertUsesIndex("select * from ballot where participant_id = 1 and ballot_id > 0 order by ballot_id",
+                "idx_ballot_participant_lottery");
+        assertUsesIndex("select * from ballot where participant_id = 1 and lottery_id = 2 and ballot_id > 0 " +
+                "order by ballot_id", "idx_ballot_participant_lottery");
+    }
+
+
+    /**
+     * Test that finding the lotteries of a date uses the start time index.
+     */
+    @Test
+    void testLotteriesByStartTimeUseIndex() {
+        assertUsesIndex("select * from lottery where start_time = date '2023-01-01'", "idx_lottery_start_time");
+        assertUsesIndex("select * from lottery where start_time between date '2023-01-01' and date '9999-12-31'",
+                "idx_lottery_start_time");
+    }
+
+
+    /**
+     * Test that finding a participant by email uses the unique email index.
+     */
+    @Test
+    void testParticipantByEmailUsesIndex() {
+        assertUsesIndex("select * from participant where email = 'a@lottery.test'", "uk_participant_email");
+    }
+
+
+    private void assertUsesIndex(String query, String index) {
+        String plan = jdbcTemplate.queryForObject("explain " + query, String.class);
+        assertNotNull(plan);
+        assertTrue(plan.toLowerCase().contains(index), "Expected " + index + " in the plan: " + plan);
+    }
+}
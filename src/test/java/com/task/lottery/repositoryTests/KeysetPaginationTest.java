@@ -0,0 +1,100 @@
+package com.task.lottery.repositoryTests;
+
+import com.task.lottery.dtos.BallotView;
+import com.task.lottery.dtos.KeysetPage;
+import com.task.lottery.entities.Ballot;
+import com.task.lottery.entities.Lottery;
+import com.task.lottery.repositories.BallotRepository;
+import com.task.lottery.repositories.LotteryRepository;
+import com.task.lottery.services.BallotService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+@SpringBootTest
+public class KeysetPaginationTest {
+
+    private static final long PARTICIPANT_ID = 424242L;
+
+    @Autowired
+    private BallotRepository ballotRepository;
+
+    @Autowired
+    private LotteryRepository lotteryRepository;
+
+    @Autowired
+    private BallotService ballotService;
+
+    private Lottery first;
+
+    private Lottery second;
+
+
+    @BeforeEach
+    void setup() {
+        first = lotteryRepository.save(new Lottery(null, false, LocalDate.of(2001, 1, 1), 0, null, 100.0, 5.0));
+        second = lotteryRepository.save(new Lottery(null, false, LocalDate.of(2001, 1, 2), 0, null, 100.0, 5.0));
+        List<Ballot> ballots = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            ballots.add(new Ballot(null, first.getId(), 1L, "123456"));
+        }
+        for (int i = 0; i < 5; i++) {
+            ballots.add(new Ballot(null, second.getId(), PARTICIPANT_ID, "654321"));
+        }
+        ballotRepository.saveAll(ballots);
+    }
+
+
+    /**
+     * Test that following the continuation tokens visits every ballot of a lottery once, in the order of the ids.
+     */
+    @Test
+    void testWalkAllPages() {
+        List<Long> ids = new ArrayList<>();
+        String token = null;
+        int pages = 0;
+        do {
+            KeysetPage<BallotView> page = ballotService.findPage(token, 10, first.getId(), null, null, null);
+            page.items().forEach(ballot -> ids.add(ballot.id()));
+            token = page.next();
+            pages++;
+        } while (token != null);
+
+        assertEquals(3, pages);
+        assertEquals(25, ids.size());
+        assertEquals(ids.stream().sorted().distinct().toList(), ids);
+    }
+
+
+    /**
+     * Test the participant and date range filters.
+     */
+    @Test
+    void testFilters() {
+        KeysetPage<BallotView> byParticipant = ballotService.findPage(null, 100, null, PARTICIPANT_ID, null, null);
+        assertTrue(byParticipant.items().stream().allMatch(ballot -> ballot.lotteryId().equals(second.getId())));
+        assertFalse(byParticipant.items().isEmpty());
+
+        LocalDate date = second.getStartTime();
+        KeysetPage<BallotView> byDate = ballotService.findPage(null, 100, null, null, date, date);
+        assertTrue(byDate.items().stream().allMatch(ballot -> ballot.lotteryId().equals(second.getId())));
+        assertFalse(byDate.items().isEmpty());
+
+        KeysetPage<BallotView> byParticipantAndFrom = ballotService.findPage(null, 100, null, PARTICIPANT_ID,
+                date, null);
+        assertEquals(byParticipant.items(), byParticipantAndFrom.items());
+        assertTrue(ballotService.findPage(null, 100, null, PARTICIPANT_ID, null, date.minusDays(1)).items()
+                .isEmpty());
+
+        assertTrue(ballotService.findPage(null, 100, first.getId(), null, date, null).items().isEmpty());
+        assertEquals(25, ballotService.findPage(null, 100, first.getId(), null, null, date).items().size());
+    }
+}
@@ -0,0 +1,99 @@
+package com.task.lottery.repositoryTests;
+
+import com.task.lottery.entities.Ballot;
+import com.task.lottery.entities.Lottery;
+import com.task.lottery.repositories.BallotRepository;
+import com.task.lottery.repositories.LotteryRepository;
+import com.task.lottery.services.BallotService;
+import com.task.lottery.utils.Keyset;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.lang.management.ManagementFactory;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Benchmark of the memory allocated to read a page of ballots. Run with the benchmark task.
+ */
+@Tag("benchmark")
+@SpringBootTest
+public class ProjectionAllocationTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProjectionAllocationTest.class);
+
+    private static final int BALLOTS = 1000;
+
+    private static final int REQUESTS = 50;
+
+    @Autowired
+    private BallotService ballotService;
+
+    @Autowired
+    private BallotRepository ballotRepository;
+
+    @Autowired
+    private LotteryRepository lotteryRepository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private Lottery lottery;
+
+
+    @BeforeEach
+    void setup() {
+        lottery = lotteryRepository.save(new Lottery(null, false, LocalDate.now().plusYears(30), 0,
+                null, 100.0, 5.0));
+        List<Ballot> ballots = new ArrayList<>();
+        for (int i = 0; i < BALLOTS; i++) {
+            ballots.add(new Ballot(null, lottery.getId(), 1L, "123456"));
+        }
+        ballotRepository.saveAll(ballots);
+    }
+
+
+    /**
+     * Test that a page of ballots read as views, in a read-only transaction, allocates less heap per request
+     * than the same page read as managed entities in a read-write transaction.
+     */
+    @Test
+    void testViewsAllocateLessThanEntities() {
+        TransactionTemplate readWrite = new TransactionTemplate(transactionManager);
+        Runnable entities = () -> readWrite.executeWithoutResult(status -> assertEquals(BALLOTS,
+                ballotRepository.findByLotteryIdOrderByIdAsc(lottery.getId(), Keyset.limit(BALLOTS)).size()));
+        Runnable views = () -> assertEquals(BALLOTS,
+                ballotService.findPage(null, BALLOTS, lottery.getId(), null, null, null).items().size());
+
+        long before = allocatedPerRequest(entities);
+        long after = allocatedPerRequest(views);
+
+        logger.info("Bytes allocated per request of {} ballots: entities {}, views {}", BALLOTS, before, after);
+        assertTrue(after < before, "Views allocated " + after + " bytes, entities " + before);
+    }
+
+
+    private static long allocatedPerRequest(Runnable request) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        for (int i = 0; i < REQUESTS; i++) {
+            request.run();
+        }
+        long start = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < REQUESTS; i++) {
+            request.run();
+        }
+        return (threads.getCurrentThreadAllocatedBytes() - start) / REQUESTS;
+    }
+}
@@ -0,0 +1,196 @@
+package com.task.lottery.repositoryTests;
+
+import com.task.lottery.config.ReplicaLagMonitor;
+import com.task.lottery.config.ReplicaRoutingDataSource;
+import com.task.lottery.services.LotteryService;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.CacheMode;
+import org.hibernate.Session;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+import org.springframework.orm.jpa.vendor.HibernateJpaVendorAdapter;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Routes between two local H2 databases, the second standing in for the replica. Each database holds its own
+ * name, so a query tells which one served it. The queries go through JPA transactions, as in the application.
+ */
+public class ReplicaRoutingDataSourceTest {
+
+    private static final String READER = LotteryService.class.getName() + ".findPage";
+
+    private DataSource replica;
+
+    private ReplicaLagMonitor lagMonitor;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private EntityManagerFactory entityManagerFactory;
+
+    private EntityManager entityManager;
+
+    private JpaTransactionManager transactionManager;
+
+
+    @BeforeEach
+    void setup() {
+        DataSource primary = database("primary");
+        replica = database("replica");
+        lagMonitor = new ReplicaLagMonitor(replica, "select lag_ms from replica_lag", Duration.ofSeconds(1));
+        lagMonitor.check();
+        DataSource dataSource = new LazyConnectionDataSourceProxy(
+                new ReplicaRoutingDataSource(primary, replica, lagMonitor, List.of(LotteryService.class)));
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        LocalContainerEntityManagerFactoryBean factory = new LocalContainerEntityManagerFactoryBean();
+        factory.setDataSource(dataSource);
+        factory.setJpaVendorAdapter(new HibernateJpaVendorAdapter());
+        factory.setPackagesToScan(ReplicaRoutingDataSourceTest.class.getPackageName());
+        factory.afterPropertiesSet();
+        entityManagerFactory = factory.getObject();
+        entityManager = SharedEntityManagerCreator.createSharedEntityManager(entityManagerFactory);
+        transactionManager = new JpaTransactionManager(entityManagerFactory);
+    }
+
+
+    @AfterEach
+    void tearDown() {
+        entityManagerFactory.close();
+    }
+
+
+    /**
+     * Test that the read-only transactions of a replica reader read from the replica.
+     */
+    @Test
+    void testReadOnlyReaderUsesReplica() {
+        assertEquals("replica", databaseName(READER, true));
+    }
+
+
+    /**
+     * Test that the read-write transactions of a replica reader use the primary.
+     */
+    @Test
+    void testReadWriteUsesPrimary() {
+        assertEquals("primary", databaseName(READER, false));
+    }
+
+
+    /**
+     * Test that the sessions reading from the replica don't put what they read in the second-level cache, and that
+     * the others do.
+     */
+    @Test
+    void testReplicaSessionDoesNotFillCache() {
+        assertEquals(CacheMode.GET, cacheMode(READER, true));
+        assertEquals(CacheMode.NORMAL, cacheMode(READER, false));
+    }
+
+
+    /**
+     * Test that a transaction is known to read from the replica once it got its connection, and only until it ends.
+     */
+    @Test
+    void testReplicaTransactionIsMarked() {
+        assertTrue(transaction(READER, true).execute(status -> {
+            entityManager.createNativeQuery("select name from node").getSingleResult();
+            return ReplicaRoutingDataSource.isReplicaTransaction();
+        }));
+        assertFalse(ReplicaRoutingDataSource.isReplicaTransaction());
+        assertFalse(transaction(READER, false).execute(status -> {
+            entityManager.createNativeQuery("select name from node").getSingleResult();
+            return ReplicaRoutingDataSource.isReplicaTransaction();
+        }));
+    }
+
+
+    /**
+     * Test that the read-only transactions started elsewhere, like those of the repositories, use the primary.
+     */
+    @Test
+    void testOtherReadOnlyTransactionUsesPrimary() {
+        assertEquals("primary", databaseName("org.springframework.data.jpa.repository.support." +
+                "SimpleJpaRepository.findById", true));
+        assertEquals("primary", jdbcTemplate.queryForObject("select name from node", String.class));
+    }
+
+
+    /**
+     * Test that the reads fall back to the primary while the replica lags more than tolerated, and return to the
+     * replica once it caught up.
+     */
+    @Test
+    void testLaggingReplicaFallsBackToPrimary() {
+        JdbcTemplate replicaTemplate = new JdbcTemplate(replica);
+        replicaTemplate.update("update replica_lag set lag_ms = 5000");
+        lagMonitor.check();
+        assertFalse(lagMonitor.isReplicaUsable());
+        assertEquals("primary", databaseName(READER, true));
+
+        replicaTemplate.update("update replica_lag set lag_ms = 100");
+        lagMonitor.check();
+        assertEquals("replica", databaseName(READER, true));
+    }
+
+
+    /**
+     * Test that the reads fall back to the primary when the lag of the replica cannot be read.
+     */
+    @Test
+    void testUnreadableLagFallsBackToPrimary() {
+        new JdbcTemplate(replica).execute("drop table replica_lag");
+        lagMonitor.check();
+        assertEquals("primary", databaseName(READER, true));
+    }
+
+
+    private String databaseName(String transactionName, boolean readOnly) {
+        return transaction(transactionName, readOnly).execute(status ->
+                (String) entityManager.createNativeQuery("select name from node").getSingleResult());
+    }
+
+
+    private CacheMode cacheMode(String transactionName, boolean readOnly) {
+        return transaction(transactionName, readOnly).execute(status -> {
+            entityManager.createNativeQuery("select name from node").getSingleResult();
+            return entityManager.unwrap(Session.class).getCacheMode();
+        });
+    }
+
+
+    private TransactionTemplate transaction(String transactionName, boolean readOnly) {
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setName(transactionName);
+        transactionTemplate.setReadOnly(readOnly);
+        return transactionTemplate;
+    }
+
+
+    private static DataSource database(String name) {
+        DataSource dataSource = new DriverManagerDataSource("jdbc:h2:mem:routing-" + name + ";DB_CLOSE_DELAY=-1",
+                "sa", "");
+        JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+        jdbc.execute("drop table if exists node");
+        jdbc.execute("drop table if exists replica_lag");
+        jdbc.execute("create table node (name varchar(16))");
+        jdbc.execute("create table replica_lag (lag_ms bigint)");
+        jdbc.update("insert into node values (?)", name);
+        jdbc.update("insert into replica_lag values (0)");
+        return dataSource;
+    }
+}
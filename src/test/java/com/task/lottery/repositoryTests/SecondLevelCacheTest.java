@@ -0,0 +1,111 @@
+package com.task.lottery.repositoryTests;
+
+import com.task.lottery.entities.Ballot;
+import com.task.lottery.entities.Lottery;
+import com.task.lottery.entities.Participant;
+import com.task.lottery.repositories.BallotRepository;
+import com.task.lottery.repositories.LotteryRepository;
+import com.task.lottery.repositories.ParticipantRepository;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+@SpringBootTest(properties = "spring.jpa.properties.hibernate.generate_statistics=true")
+public class SecondLevelCacheTest {
+
+    @Autowired
+    private LotteryRepository lotteryRepository;
+
+    @Autowired
+    private ParticipantRepository participantRepository;
+
+    @Autowired
+    private BallotRepository ballotRepository;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private Statistics statistics;
+
+
+    @BeforeEach
+    void setup() {
+        statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+    }
+
+
+    /**
+     * Test that a lottery read again by id comes from the second-level cache, without a query.
+     */
+    @Test
+    void testFindByIdHitsCache() {
+        Lottery lottery = lotteryRepository.save(new Lottery(null, false, LocalDate.now().plusYears(40), 0,
+                null, 100.0, 5.0));
+        entityManagerFactory.getCache().evictAll();
+        lotteryRepository.findById(lottery.getId());
+        long statements = statistics.getPrepareStatementCount();
+
+        assertTrue(lotteryRepository.findById(lottery.getId()).isPresent());
+
+        assertEquals(statements, statistics.getPrepareStatementCount());
+        assertEquals(1, statistics.getSecondLevelCacheHitCount());
+        assertTrue(meterRegistry.get("cache.hit.ratio").tag("cache", "lottery").gauge().value() > 0);
+    }
+
+
+    /**
+     * Test that the lotteries of a date read again come from the query cache, until a lottery is saved.
+     */
+    @Test
+    void testFindByStartTimeHitsQueryCache() {
+        LocalDate date = LocalDate.now().plusYears(41);
+        lotteryRepository.save(new Lottery(null, false, date, 0, null, 100.0, 5.0));
+        assertEquals(1, lotteryRepository.findByStartTime(date).size());
+        long statements = statistics.getPrepareStatementCount();
+
+        assertEquals(1, lotteryRepository.findByStartTime(date).size());
+        assertEquals(statements, statistics.getPrepareStatementCount());
+        assertEquals(1, statistics.getQueryCacheHitCount());
+
+        lotteryRepository.save(new Lottery(null, false, date, 0, null, 100.0, 5.0));
+        assertEquals(2, lotteryRepository.findByStartTime(date).size());
+    }
+
+
+    /**
+     * Test that the ballots and the participants, whose balances are changed by bulk updates, are never put in the
+     * second-level cache.
+     */
+    @Test
+    void testBallotsAndParticipantsAreNotCached() {
+        Ballot ballot = ballotRepository.save(new Ballot(null, 1L, 1L, "123456"));
+        ballotRepository.findById(ballot.getId());
+        Participant participant = new Participant();
+        participant.setEmail("l2-" + ballot.getId() + "@lottery.test");
+        participant.setBalance(10.0);
+        participant = participantRepository.save(participant);
+        participantRepository.findById(participant.getId());
+
+        assertFalse(entityManagerFactory.getCache().contains(Ballot.class, ballot.getId()));
+        assertFalse(entityManagerFactory.getCache().contains(Participant.class, participant.getId()));
+        assertEquals(0, statistics.getSecondLevelCachePutCount());
+        assertNull(meterRegistry.find("cache.hit.ratio").tag("cache", "ballot").gauge());
+        assertNull(meterRegistry.find("cache.hit.ratio").tag("cache", "participant").gauge());
+        assertNotNull(meterRegistry.find("cache.hit.ratio").tag("cache", "lottery").gauge());
+    }
+}
@@ -0,0 +1,148 @@
+package com.task.lottery.serviceTests;
+
+import com.task.lottery.dtos.ArchivedBallot;
+import com.task.lottery.dtos.BallotView;
+import com.task.lottery.repositories.BallotRepository;
+import com.task.lottery.services.BallotArchiveService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.data.domain.Pageable;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class BallotArchiveServiceTest {
+
+    private static final int BALLOTS = 10;
+
+    @Mock
+    transient BallotRepository ballotRepository;
+
+    @Mock
+    transient PlatformTransactionManager transactionManager;
+
+    @TempDir
+    Path archiveDirectory;
+
+    private BallotArchiveService archiveService;
+
+    private List<ArchivedBallot> ballots;
+
+
+    /**
+     * The ballots of lottery 1 have the even ids from 100, scattered participants and a purchase time missing on
+     * the first one. They are archived in blocks of 4 ballots and deleted 4 at a time.
+     */
+    @BeforeEach
+    void setup() throws Exception {
+        MockitoAnnotations.openMocks(this);
+        ballots = new ArrayList<>();
+        LocalDateTime time = LocalDateTime.of(2023, 5, 1, 12, 0, 0);
+        for (int i = 0; i < BALLOTS; i++) {
+            ballots.add(new ArchivedBallot(100L + 2 * i, (long) (i * 7919 % 13), 1000 * i + 42, 6,
+                    i == 0 ? null : time.minusMinutes(i * 37L)));
+        }
+        List<Long> ids = ballots.stream().map(ArchivedBallot::id).toList();
+        when(ballotRepository.streamArchiveByLotteryId(1L)).thenAnswer(invocation -> ballots.stream());
+        when(ballotRepository.findIdsByLotteryId(eq(1L), any(Pageable.class)))
+                .thenReturn(ids.subList(0, 4), ids.subList(4, 8), ids.subList(8, 10));
+        archiveService = newService();
+        archiveService.archive(1L);
+    }
+
+
+    @Test
+    void testArchive() {
+        verify(ballotRepository, times(3)).deleteAllByIdInBatch(anyIterable());
+        assertTrue(archiveService.isArchived(1L));
+        assertFalse(archiveService.isArchived(2L));
+
+        List<ArchivedBallot> archived = new ArrayList<>();
+        archiveService.forEach(1L, archived::add);
+        assertEquals(ballots, archived);
+    }
+
+
+    @Test
+    void testFindById() {
+        assertEquals(Optional.of(ballots.get(5).toView(1L)), archiveService.findById(110L));
+        assertTrue(archiveService.findById(111L).isEmpty());
+        assertTrue(archiveService.findById(99L).isEmpty());
+        assertTrue(archiveService.findById(200L).isEmpty());
+    }
+
+
+    /**
+     * Test that the archived ballots are merged with the ballots of the table in the order of their ids.
+     */
+    @Test
+    void testMergePage() {
+        List<BallotView> hot = List.of(new BallotView(103L, 2L, 1L, "000001"),
+                new BallotView(107L, 2L, 1L, "000002"));
+
+        List<BallotView> page = archiveService.mergePage(hot, 101L, lottery -> true, null, 5);
+        assertEquals(List.of(102L, 103L, 104L, 106L, 107L), page.stream().map(BallotView::id).toList());
+
+        page = archiveService.mergePage(List.of(), 0L, lottery -> true, ballots.get(3).participantId(), 5);
+        assertEquals(List.of(ballots.get(3).toView(1L)), page);
+
+        page = archiveService.mergePage(hot, 0L, lottery -> lottery != 1L, null, 5);
+        assertEquals(hot, page);
+    }
+
+
+    /**
+     * Test that the rows of the table which are archived but not deleted yet are not returned twice.
+     */
+    @Test
+    void testMergePageSkipsArchivedRows() {
+        List<BallotView> hot = List.of(ballots.get(1).toView(1L), new BallotView(103L, 2L, 1L, "000001"),
+                ballots.get(2).toView(1L));
+
+        List<BallotView> page = archiveService.mergePage(hot, 101L, lottery -> true, null, 5);
+        assertEquals(List.of(102L, 103L, 104L, 106L, 108L), page.stream().map(BallotView::id).toList());
+
+        page = archiveService.mergePage(List.of(ballots.get(3).toView(1L)), 0L, lottery -> true,
+                ballots.get(3).participantId(), 5);
+        assertEquals(List.of(ballots.get(3).toView(1L)), page);
+    }
+
+
+    @Test
+    void testReopen() throws Exception {
+        Files.createFile(archiveDirectory.resolve("lottery-2.ballots.tmp"));
+        BallotArchiveService reopened = newService();
+
+        assertTrue(reopened.isArchived(1L));
+        assertEquals(Optional.of(ballots.get(9).toView(1L)), reopened.findById(118L));
+        assertFalse(Files.exists(archiveDirectory.resolve("lottery-2.ballots.tmp")));
+    }
+
+
+    @Test
+    void testDelete() {
+        archiveService.delete(1L);
+        assertFalse(archiveService.isArchived(1L));
+        assertTrue(archiveService.findById(110L).isEmpty());
+        assertFalse(Files.exists(archiveDirectory.resolve("lottery-1.ballots")));
+    }
+
+
+    private BallotArchiveService newService() throws IOException {
+        return new BallotArchiveService(ballotRepository, transactionManager, archiveDirectory.toString(),
+                4, 4, 7);
+    }
+}
@@ -0,0 +1,107 @@
+package com.task.lottery.serviceTests;
+
+import com.task.lottery.entities.Lottery;
+import com.task.lottery.repositories.LotteryCounterRepository;
+import com.task.lottery.repositories.LotteryRepository;
+import com.task.lottery.services.BallotCounterService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+@SpringBootTest
+public class BallotCounterServiceTest {
+
+    private static final int THREADS = 8;
+
+    private static final int INCREMENTS = 250;
+
+    @Autowired
+    private BallotCounterService ballotCounterService;
+
+    @Autowired
+    private LotteryRepository lotteryRepository;
+
+    @Autowired
+    private LotteryCounterRepository lotteryCounterRepository;
+
+    @Value("${lottery.counter.stripes}")
+    private int stripes;
+
+
+    /**
+     * Test that creating the counters twice doesn't add stripes.
+     */
+    @Test
+    void testCreateCounters() {
+        Lottery lottery = newLottery(true);
+        ballotCounterService.createCounters(lottery.getId());
+        ballotCounterService.createCounters(lottery.getId());
+        assertEquals(stripes, lotteryCounterRepository.findStripesByLotteryId(lottery.getId()).size());
+    }
+
+
+    /**
+     * Test that no increment is lost when many purchases count ballots at the same time.
+     */
+    @Test
+    void testConcurrentIncrements() throws Exception {
+        Lottery lottery = newLottery(true);
+        ballotCounterService.createCounters(lottery.getId());
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < THREADS * INCREMENTS; i++) {
+                results.add(executor.submit(() -> ballotCounterService.increment(lottery.getId(), 1)));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(THREADS * INCREMENTS, lotteryCounterRepository.sumByLotteryId(lottery.getId()));
+        assertEquals(THREADS * INCREMENTS, ballotCounterService.count(lottery.getId()));
+    }
+
+
+    /**
+     * Test that a lottery without stripes, such as one saved before they were added, gets them on its first
+     * purchase.
+     */
+    @Test
+    void testIncrementCreatesMissingStripes() {
+        Lottery lottery = newLottery(true);
+        assertTrue(ballotCounterService.increment(lottery.getId(), 2));
+        assertEquals(stripes, lotteryCounterRepository.findStripesByLotteryId(lottery.getId()).size());
+        assertEquals(2, lotteryCounterRepository.sumByLotteryId(lottery.getId()));
+    }
+
+
+    /**
+     * Test that the ballots of a closed lottery are not counted.
+     */
+    @Test
+    void testIncrementClosedLottery() {
+        Lottery lottery = newLottery(false);
+        ballotCounterService.createCounters(lottery.getId());
+        assertFalse(ballotCounterService.increment(lottery.getId(), 1));
+        assertEquals(0, lotteryCounterRepository.sumByLotteryId(lottery.getId()));
+    }
+
+
+    private Lottery newLottery(boolean isOpen) {
+        return lotteryRepository.save(new Lottery(null, isOpen, LocalDate.now().plusYears(5), 0,
+                null, 100.0, 1.0));
+    }
+}
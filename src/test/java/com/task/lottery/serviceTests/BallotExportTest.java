@@ -0,0 +1,69 @@
+package com.task.lottery.serviceTests;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.task.lottery.entities.Ballot;
+import com.task.lottery.entities.Lottery;
+import com.task.lottery.repositories.BallotRepository;
+import com.task.lottery.repositories.LotteryRepository;
+import com.task.lottery.services.LotteryService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+@SpringBootTest
+public class BallotExportTest {
+
+    private static final int BALLOTS = 5_000;
+
+    @Autowired
+    private LotteryService lotteryService;
+
+    @Autowired
+    private LotteryRepository lotteryRepository;
+
+    @Autowired
+    private BallotRepository ballotRepository;
+
+
+    /**
+     * Test that every ballot of the lottery is exported once, as one JSON line, in the order of the ids.
+     */
+    @Test
+    void testExportBallots() throws Exception {
+        Lottery lottery = lotteryRepository.save(
+                new Lottery(null, false, LocalDate.of(2002, 2, 2), 0, null, 100.0, 5.0));
+        List<Ballot> ballots = new ArrayList<>(BALLOTS);
+        for (int i = 0; i < BALLOTS; i++) {
+            ballots.add(new Ballot(null, lottery.getId(), (long) i, String.format("%06d", i)));
+        }
+        ballotRepository.saveAll(ballots);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        lotteryService.exportBallots(lottery.getId(), out);
+
+        String[] lines = out.toString(StandardCharsets.UTF_8).split("\n");
+        assertEquals(BALLOTS, lines.length);
+        ObjectMapper objectMapper = new ObjectMapper();
+        long previousId = 0;
+        for (int i = 0; i < BALLOTS; i++) {
+            assertTrue(lines[i].startsWith("{"));
+            JsonNode exported = objectMapper.readTree(lines[i]);
+            long id = exported.get("id").asLong();
+            assertTrue(id > previousId);
+            assertEquals(lottery.getId(), exported.get("lotteryId").asLong());
+            assertEquals(String.format("%06d", exported.get("participantId").asLong()),
+                    exported.get("guess").asText());
+            previousId = id;
+        }
+    }
+}
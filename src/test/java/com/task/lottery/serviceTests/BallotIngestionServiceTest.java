@@ -0,0 +1,126 @@
+package com.task.lottery.serviceTests;
+
+import com.task.lottery.dtos.BallotBatchRequest;
+import com.task.lottery.dtos.BallotPurchaseResult;
+import com.task.lottery.dtos.BallotTicket;
+import com.task.lottery.entities.Ballot;
+import com.task.lottery.services.BallotIngestionService;
+import com.task.lottery.services.BallotService;
+import com.task.lottery.services.ConcurrencyRetry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class BallotIngestionServiceTest {
+
+    @Mock
+    transient BallotService ballotService;
+
+    private BallotIngestionService ingestionService;
+
+    private final ConcurrencyRetry concurrencyRetry = new ConcurrencyRetry(new SimpleMeterRegistry(), 3, 0, 0);
+
+    private static Ballot b1;
+
+
+    @BeforeEach
+    void setup() {
+        b1 = new Ballot(null, 2L, 1L, "123456");
+        MockitoAnnotations.openMocks(this);
+        when(ballotService.isValidPurchase(any(Ballot.class))).thenReturn(true);
+    }
+
+
+    @AfterEach
+    void tearDown() {
+        ingestionService.close();
+    }
+
+
+    @Test
+    void testSubmit() throws Exception {
+        when(ballotService.saveBatch(any(BallotBatchRequest.class)))
+                .thenReturn(List.of(BallotPurchaseResult.succeeded("123456", 7L)));
+        ingestionService = new BallotIngestionService(ballotService, concurrencyRetry, 16, 10, 1, 100);
+
+        BallotTicket ticket = ingestionService.submit(b1).get();
+        assertEquals(BallotTicket.Status.PENDING, ticket.status());
+
+        BallotTicket outcome = awaitOutcome(ticket.id());
+        assertEquals(BallotTicket.Status.ACCEPTED, outcome.status());
+        assertEquals(7L, (long) outcome.ballotId());
+    }
+
+
+    /**
+     * A group which can't be paid as a whole is saved ballot by ballot.
+     */
+    @Test
+    void testSubmitFallsBackToSingleSaves() throws Exception {
+        CountDownLatch submitted = new CountDownLatch(1);
+        when(ballotService.saveBatch(any(BallotBatchRequest.class))).thenAnswer(invocation -> {
+            submitted.await();
+            List<String> guesses = invocation.<BallotBatchRequest>getArgument(0).guesses();
+            return guesses.stream().map(guess -> BallotPurchaseResult.failed(guess, "No balance")).toList();
+        });
+        when(ballotService.save(any(Ballot.class))).thenReturn(new Ballot(3L, 2L, 1L, "123456"))
+                .thenThrow(new Exception());
+        ingestionService = new BallotIngestionService(ballotService, concurrencyRetry, 16, 10, 100, 100);
+
+        BallotTicket first = ingestionService.submit(b1).get();
+        BallotTicket second = ingestionService.submit(b1).get();
+        submitted.countDown();
+
+        assertEquals(BallotTicket.Status.ACCEPTED, awaitOutcome(first.id()).status());
+        assertEquals(BallotTicket.Status.REJECTED, awaitOutcome(second.id()).status());
+    }
+
+
+    @Test
+    void testSubmitBufferFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        when(ballotService.saveBatch(any(BallotBatchRequest.class))).thenAnswer(invocation -> {
+            release.await();
+            return List.of(BallotPurchaseResult.succeeded("123456", 1L));
+        });
+        ingestionService = new BallotIngestionService(ballotService, concurrencyRetry, 1, 1, 1, 100);
+
+        assertTrue(ingestionService.submit(b1).isPresent());
+        verify(ballotService, timeout(1000)).saveBatch(any(BallotBatchRequest.class));
+        assertTrue(ingestionService.submit(b1).isPresent());
+        assertTrue(ingestionService.submit(b1).isEmpty());
+        release.countDown();
+    }
+
+
+    @Test
+    void testSubmitInvalid() {
+        when(ballotService.isValidPurchase(any(Ballot.class))).thenReturn(false);
+        ingestionService = new BallotIngestionService(ballotService, concurrencyRetry, 16, 10, 1, 100);
+        assertThrows(IllegalArgumentException.class, () -> ingestionService.submit(b1));
+    }
+
+
+    private BallotTicket awaitOutcome(long ticketId) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        Optional<BallotTicket> ticket = ingestionService.findTicket(ticketId);
+        while (ticket.isPresent() && ticket.get().status() == BallotTicket.Status.PENDING
+                && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+            ticket = ingestionService.findTicket(ticketId);
+        }
+        return ticket.orElseThrow();
+    }
+}
@@ -0,0 +1,278 @@
+package com.task.lottery.serviceTests;
+
+import com.task.lottery.dtos.BallotTicket;
+import com.task.lottery.dtos.LotteryView;
+import com.task.lottery.entities.Ballot;
+import com.task.lottery.entities.JournalCheckpoint;
+import com.task.lottery.entities.Participant;
+import com.task.lottery.repositories.JournalCheckpointRepository;
+import com.task.lottery.repositories.ParticipantRepository;
+import com.task.lottery.services.BallotJournalService;
+import com.task.lottery.services.BallotService;
+import com.task.lottery.services.LotteryService;
+import com.task.lottery.services.ParticipantService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class BallotJournalServiceTest {
+
+    @Mock
+    transient BallotService ballotService;
+
+    @Mock
+    transient LotteryService lotteryService;
+
+    @Mock
+    transient ParticipantService participantService;
+
+    @Mock
+    transient ParticipantRepository participantRepository;
+
+    @Mock
+    transient JournalCheckpointRepository checkpointRepository;
+
+    @Mock
+    transient PlatformTransactionManager transactionManager;
+
+    @TempDir
+    Path journalDirectory;
+
+    private BallotJournalService journalService;
+
+    private final AtomicLong ballotIds = new AtomicLong();
+
+    private final AtomicReference<JournalCheckpoint> checkpoint = new AtomicReference<>();
+
+    private static Ballot b1;
+
+
+    @BeforeEach
+    void setup() throws Exception {
+        b1 = new Ballot(null, 2L, 1L, "123456");
+        MockitoAnnotations.openMocks(this);
+        when(ballotService.isValidPurchase(any(Ballot.class))).thenReturn(true);
+        when(lotteryService.findById(2L)).thenReturn(Optional.of(
+                new LotteryView(2L, LocalDate.now(), true, false, null, null, 100.0, 2.0)));
+        when(participantRepository.findById(1L)).thenReturn(Optional.of(
+                new Participant(1L, "p", "1", "email1", 10.0)));
+        when(ballotService.saveJournaled(anyLong(), anyLong(), anyList(), anyDouble())).thenAnswer(invocation -> {
+            List<Ballot> ballots = invocation.getArgument(2);
+            return ballots.stream().map(ballot -> new Ballot(ballotIds.incrementAndGet(), ballot.getLotteryId(),
+                    ballot.getParticipantId(), ballot.getGuess())).toList();
+        });
+        when(checkpointRepository.save(any(JournalCheckpoint.class))).thenAnswer(invocation -> {
+            checkpoint.set(invocation.getArgument(0));
+            return invocation.getArgument(0);
+        });
+        when(checkpointRepository.findById("ballots")).thenAnswer(invocation -> Optional.ofNullable(checkpoint.get()));
+    }
+
+
+    @AfterEach
+    void tearDown() {
+        if (journalService != null) {
+            journalService.close();
+        }
+    }
+
+
+    @Test
+    void testSubmit() throws Exception {
+        journalService = newService(1024);
+
+        BallotTicket ticket = journalService.submit(b1).get();
+        assertEquals(BallotTicket.Status.PENDING, ticket.status());
+
+        BallotTicket outcome = awaitOutcome(ticket.id());
+        assertEquals(BallotTicket.Status.ACCEPTED, outcome.status());
+        assertEquals(1L, (long) outcome.ballotId());
+        verify(ballotService).saveJournaled(eq(1L), eq(2L), anyList(), eq(2.0));
+        verify(checkpointRepository).save(new JournalCheckpoint("ballots", ticket.id()));
+    }
+
+
+    /**
+     * The price of a purchase which is not saved yet is kept off the balance read from the database.
+     */
+    @Test
+    void testSubmitNotEnoughBalance() throws Exception {
+        when(participantRepository.findById(1L)).thenReturn(Optional.of(
+                new Participant(1L, "p", "1", "email1", 3.0)));
+        CountDownLatch release = new CountDownLatch(1);
+        when(ballotService.saveJournaled(anyLong(), anyLong(), anyList(), anyDouble())).thenAnswer(invocation -> {
+            release.await();
+            return List.of(new Ballot(1L, 2L, 1L, "123456"));
+        });
+        journalService = newService(1024);
+
+        BallotTicket ticket = journalService.submit(b1).get();
+        assertTrue(journalService.submit(b1).isEmpty());
+        release.countDown();
+        assertEquals(BallotTicket.Status.ACCEPTED, awaitOutcome(ticket.id()).status());
+    }
+
+
+    @Test
+    void testSubmitClosedLottery() throws Exception {
+        when(lotteryService.findById(2L)).thenReturn(Optional.of(
+                new LotteryView(2L, LocalDate.now(), false, false, null, null, 100.0, 2.0)));
+        journalService = newService(1024);
+        assertTrue(journalService.submit(b1).isEmpty());
+    }
+
+
+    @Test
+    void testSubmitInvalid() throws Exception {
+        when(ballotService.isValidPurchase(any(Ballot.class))).thenReturn(false);
+        journalService = newService(1024);
+        assertThrows(IllegalArgumentException.class, () -> journalService.submit(b1));
+    }
+
+
+    @Test
+    void testSubmitRejectedWhenSaved() throws Exception {
+        when(ballotService.saveJournaled(anyLong(), anyLong(), anyList(), anyDouble())).thenReturn(List.of());
+        journalService = newService(1024);
+
+        BallotTicket ticket = journalService.submit(b1).get();
+        assertEquals(BallotTicket.Status.REJECTED, awaitOutcome(ticket.id()).status());
+    }
+
+
+    /**
+     * A record whose transaction fails is retried instead of being rejected.
+     */
+    @Test
+    void testSubmitRetriedWhenDatabaseFails() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        when(ballotService.saveJournaled(anyLong(), anyLong(), anyList(), anyDouble())).thenAnswer(invocation -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new IllegalStateException("down");
+            }
+            return List.of(new Ballot(1L, 2L, 1L, "123456"));
+        });
+        journalService = newService(1024);
+
+        BallotTicket ticket = journalService.submit(b1).get();
+        assertEquals(BallotTicket.Status.ACCEPTED, awaitOutcome(ticket.id()).status());
+        assertEquals(2, attempts.get());
+    }
+
+
+    @Test
+    void testInMemoryDatabaseRefused() {
+        assertThrows(IllegalStateException.class, () -> new BallotJournalService(ballotService, lotteryService,
+                participantService, participantRepository, checkpointRepository, transactionManager,
+                "jdbc:h2:mem:lotterydb", journalDirectory.toString(), 1024, 10, 100));
+    }
+
+
+    /**
+     * A purchase acknowledged while the database was down is saved when the service starts again.
+     */
+    @Test
+    void testReplayAfterRestart() throws Exception {
+        when(checkpointRepository.save(any(JournalCheckpoint.class))).thenThrow(new IllegalStateException("down"));
+        journalService = newService(1024);
+        BallotTicket ticket = journalService.submit(b1).get();
+        journalService.close();
+
+        reset(checkpointRepository);
+        when(checkpointRepository.findById("ballots")).thenReturn(Optional.empty());
+        journalService = newService(1024);
+        BallotTicket outcome = journalService.findTicket(ticket.id()).orElseThrow();
+        assertEquals(BallotTicket.Status.ACCEPTED, outcome.status());
+        verify(checkpointRepository).save(new JournalCheckpoint("ballots", ticket.id()));
+    }
+
+
+    @Test
+    void testSnapshotDeletesSavedSegments() throws Exception {
+        journalService = newService(2);
+        BallotTicket last = null;
+        for (int i = 0; i < 5; i++) {
+            last = journalService.submit(b1).get();
+        }
+        assertEquals(BallotTicket.Status.ACCEPTED, awaitOutcome(last.id()).status());
+        assertEquals(3, segmentCount());
+
+        journalService.snapshot();
+        assertEquals(1, segmentCount());
+
+        journalService.close();
+        journalService = newService(2);
+        assertEquals(5, ballotIds.get());
+    }
+
+
+    /**
+     * A snapshot never covers records past the checkpoint, and a database behind the snapshot is refused.
+     */
+    @Test
+    void testSnapshotBoundedByCheckpoint() throws Exception {
+        journalService = newService(2);
+        BallotTicket last = null;
+        for (int i = 0; i < 5; i++) {
+            last = journalService.submit(b1).get();
+        }
+        assertEquals(BallotTicket.Status.ACCEPTED, awaitOutcome(last.id()).status());
+        checkpoint.set(new JournalCheckpoint("ballots", 1L));
+        journalService.snapshot();
+        assertEquals(3, segmentCount());
+
+        checkpoint.set(new JournalCheckpoint("ballots", last.id()));
+        journalService.snapshot();
+        journalService.close();
+        checkpoint.set(new JournalCheckpoint("ballots", 1L));
+        journalService = null;
+        assertThrows(IllegalStateException.class, () -> newService(2));
+    }
+
+
+    private BallotJournalService newService(int segmentRecords) throws IOException {
+        return new BallotJournalService(ballotService, lotteryService, participantService, participantRepository,
+                checkpointRepository, transactionManager, "jdbc:h2:file:./data/lotterydb", journalDirectory.toString(),
+                segmentRecords, 10, 100);
+    }
+
+
+    private long segmentCount() throws IOException {
+        try (Stream<Path> files = Files.list(journalDirectory)) {
+            return files.filter(path -> path.getFileName().toString().startsWith("ballots-")).count();
+        }
+    }
+
+
+    private BallotTicket awaitOutcome(long ticketId) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        Optional<BallotTicket> ticket = journalService.findTicket(ticketId);
+        while (ticket.isPresent() && ticket.get().status() == BallotTicket.Status.PENDING
+                && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+            ticket = journalService.findTicket(ticketId);
+        }
+        return ticket.orElseThrow();
+    }
+}
@@ -0,0 +1,136 @@
+package com.task.lottery.serviceTests;
+
+import com.task.lottery.entities.Ballot;
+import com.task.lottery.entities.Lottery;
+import com.task.lottery.entities.Participant;
+import com.task.lottery.repositories.BallotRepository;
+import com.task.lottery.repositories.LotteryCounterRepository;
+import com.task.lottery.repositories.LotteryRepository;
+import com.task.lottery.repositories.ParticipantRepository;
+import com.task.lottery.services.BallotCounterService;
+import com.task.lottery.services.BallotService;
+import com.task.lottery.services.LotteryService;
+import com.task.lottery.services.ParticipantService;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Benchmark of the statements sent to the database per ballot purchase,
+ * comparing the previous read-modify-write purchase with the conditional update purchase.
+ * Run with the benchmark task.
+ */
+@Tag("benchmark")
+@SpringBootTest(properties = "spring.jpa.properties.hibernate.generate_statistics=true")
+public class BallotPurchaseRoundTripTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(BallotPurchaseRoundTripTest.class);
+
+    private static final int PURCHASES = 100;
+
+    @Autowired
+    private BallotService ballotService;
+
+    @Autowired
+    private LotteryService lotteryService;
+
+    @Autowired
+    private ParticipantService participantService;
+
+    @Autowired
+    private BallotRepository ballotRepository;
+
+    @Autowired
+    private LotteryRepository lotteryRepository;
+
+    @Autowired
+    private ParticipantRepository participantRepository;
+
+    @Autowired
+    private LotteryCounterRepository lotteryCounterRepository;
+
+    @Autowired
+    private BallotCounterService ballotCounterService;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    private Lottery lottery;
+
+    private Participant participant;
+
+
+    @BeforeEach
+    void setup() {
+        lottery = lotteryRepository.save(new Lottery(null, true, LocalDate.now(), 0,
+                null, 100.0, 1.0));
+        ballotCounterService.createCounters(lottery.getId());
+        Participant newParticipant = new Participant();
+        newParticipant.setEmail("round-trip@lottery.test");
+        newParticipant.setBalance(10 * PURCHASES);
+        participant = participantRepository.save(newParticipant);
+    }
+
+
+    @Test
+    void testRoundTripsPerPurchase() throws Exception {
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+
+        legacyPurchase(newBallot());
+        statistics.clear();
+        for (int i = 0; i < PURCHASES; i++) {
+            legacyPurchase(newBallot());
+        }
+        double before = (double) statistics.getPrepareStatementCount() / PURCHASES;
+
+        ballotService.save(newBallot());
+        statistics.clear();
+        for (int i = 0; i < PURCHASES; i++) {
+            ballotService.save(newBallot());
+        }
+        double after = (double) statistics.getPrepareStatementCount() / PURCHASES;
+
+        String statements = String.format("Statements per purchase: before %.2f, after %.2f", before, after);
+        logger.info(statements);
+        assertTrue(after < before, statements);
+        assertTrue(after < 4, statements);
+        assertEquals(10 * PURCHASES - 2 * (PURCHASES + 1) * lottery.getBallotPrice(),
+                participantRepository.findById(participant.getId()).get().getBalance());
+        assertEquals(PURCHASES + 1, lotteryCounterRepository.sumByLotteryId(lottery.getId()));
+    }
+
+
+    private Ballot newBallot() {
+        return new Ballot(null, lottery.getId(), participant.getId(), "123456");
+    }
+
+
+    /**
+     * The purchase as it was done before the conditional updates: two lookups per entity and three saves.
+     * The ballot count it sets is no longer stored, only the counters incremented by the service are.
+     */
+    private void legacyPurchase(Ballot ballot) {
+        if (lotteryRepository.findById(ballot.getLotteryId()).isPresent()
+                && participantRepository.findById(ballot.getParticipantId()).isPresent()) {
+            Lottery current = lotteryRepository.findById(ballot.getLotteryId()).get();
+            Participant buyer = participantRepository.findById(ballot.getParticipantId()).get();
+            current.setBallotCount(current.getBallotCount() + 1);
+            lotteryService.updateFields(current);
+            buyer.setBalance(buyer.getBalance() - current.getBallotPrice());
+            participantService.save(buyer);
+            ballotRepository.save(ballot);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.task.lottery.serviceTests;
+
+import com.task.lottery.entities.Ballot;
+import com.task.lottery.entities.Lottery;
+import com.task.lottery.entities.Participant;
+import com.task.lottery.repositories.BallotRepository;
+import com.task.lottery.repositories.LotteryCounterRepository;
+import com.task.lottery.repositories.LotteryRepository;
+import com.task.lottery.repositories.ParticipantRepository;
+import com.task.lottery.services.BallotCounterService;
+import com.task.lottery.services.BallotService;
+import com.task.lottery.services.ConcurrencyRetry;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Stress test of concurrent ballot purchases, interleaved with participant updates which read and save the
+ * whole entity. No purchase may be lost and no balance may be overwritten by a stale participant.
+ * Run with the benchmark task.
+ */
+@Tag("benchmark")
+@SpringBootTest
+public class BallotPurchaseStressTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(BallotPurchaseStressTest.class);
+
+    private static final int PURCHASES = 10_000;
+
+    private static final int PARTICIPANTS = 50;
+
+    private static final int PROFILE_UPDATES = 500;
+
+    private static final int THREADS = 32;
+
+    private static final double BALANCE = 1000.0;
+
+    @Autowired
+    private BallotService ballotService;
+
+    @Autowired
+    private BallotCounterService ballotCounterService;
+
+    @Autowired
+    private ConcurrencyRetry concurrencyRetry;
+
+    @Autowired
+    private BallotRepository ballotRepository;
+
+    @Autowired
+    private LotteryRepository lotteryRepository;
+
+    @Autowired
+    private LotteryCounterRepository lotteryCounterRepository;
+
+    @Autowired
+    private ParticipantRepository participantRepository;
+
+
+    @Test
+    void testConcurrentPurchases() throws Exception {
+        Lottery lottery = lotteryRepository.save(new Lottery(null, true, LocalDate.now().plusYears(10), 0,
+                null, 100.0, 1.0));
+        ballotCounterService.createCounters(lottery.getId());
+        List<Long> participantIds = new ArrayList<>();
+        for (int i = 0; i < PARTICIPANTS; i++) {
+            Participant participant = new Participant();
+            participant.setEmail("stress-" + i + "@lottery.test");
+            participant.setBalance(BALANCE);
+            participantIds.add(participantRepository.save(participant).getId());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < PURCHASES; i++) {
+                Long participantId = participantIds.get(i % PARTICIPANTS);
+                Ballot ballot = new Ballot(null, lottery.getId(), participantId, String.format("%06d", i));
+                results.add(executor.submit(() -> concurrencyRetry.execute("purchase",
+                        () -> ballotService.save(ballot))));
+                if (i % (PURCHASES / PROFILE_UPDATES) == 0) {
+                    int update = i;
+                    results.add(executor.submit(() -> concurrencyRetry.execute("profile", () -> {
+                        Participant participant = participantRepository.findById(participantId).get();
+                        participant.setEmail("stress-" + update + "@lottery.test");
+                        return participantRepository.save(participant);
+                    })));
+                }
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        logger.info("{} concurrent purchases in {} s, {} purchases/s", PURCHASES,
+                String.format("%.2f", seconds), String.format("%.0f", PURCHASES / seconds));
+
+        assertEquals(PURCHASES, ballotRepository.findByLotteryId(lottery.getId()).size());
+        assertEquals(PURCHASES, lotteryCounterRepository.sumByLotteryId(lottery.getId()));
+        double balances = participantRepository.findAllById(participantIds).stream()
+                .mapToDouble(Participant::getBalance)
+                .sum();
+        assertEquals(PARTICIPANTS * BALANCE - PURCHASES * lottery.getBallotPrice(), balances, 1e-6);
+    }
+}
@@ -1,12 +1,18 @@
 package com.task.lottery.serviceTests;
 
+import com.task.lottery.dtos.BallotBatchRequest;
+import com.task.lottery.dtos.BallotPurchaseResult;
+import com.task.lottery.dtos.BallotView;
 import com.task.lottery.entities.Ballot;
 import com.task.lottery.entities.Lottery;
 import com.task.lottery.entities.Participant;
 import com.task.lottery.repositories.BallotRepository;
 import com.task.lottery.services.BallotService;
+import com.task.lottery.services.GuessHistogramService;
 import com.task.lottery.services.LotteryService;
+import com.task.lottery.services.LotteryStatsService;
 import com.task.lottery.services.ParticipantService;
+import com.task.lottery.services.WinnerCache;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.InjectMocks;
@@ -14,10 +20,13 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.time.LocalDate;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.Mockito.*;
 
 
@@ -31,6 +40,15 @@ public class BallotServiceTest {
     @Mock
     transient ParticipantService participantService;
 
+    @Mock
+    transient WinnerCache winnerCache;
+
+    @Mock
+    transient LotteryStatsService lotteryStatsService;
+
+    @Mock
+    transient GuessHistogramService guessHistogramService;
+
     @InjectMocks
     transient BallotService ballotService;
 
@@ -61,20 +79,18 @@ public class BallotServiceTest {
      */
     @Test
     void testSaveValidBallot() {
-        when(lotteryService.findById(any(Long.class))).thenReturn(Optional.of(l1));
-        when(participantService.findById(any(Long.class))).thenReturn(Optional.of(p1));
-        when(lotteryService.updateFields(any(Lottery.class))).thenReturn(l1);
-        when(participantService.save(any(Participant.class))).thenReturn(p1);
+        when(participantService.debitBallotPrice(1L, 2L, 1)).thenReturn(true);
+        when(lotteryService.incrementBallotCount(2L, 1)).thenReturn(true);
         when(ballotRepository.save(any(Ballot.class))).thenReturn(b1);
-        double oldBalance = p1.getBalance();
-        int oldBallotCount = l1.getBallotCount();
         try{
             Ballot saved = ballotService.save(b1);
             assertNotNull(saved);
             assertEquals(1L, (long) saved.getParticipantId());
             assertEquals(2L, (long) saved.getLotteryId());
-            assertEquals(oldBalance - l1.getBallotPrice(), p1.getBalance());
-            assertEquals(oldBallotCount + l1.getBallotCount(), l1.getBallotCount());
+            verify(participantService, times(1)).debitBallotPrice(1L, 2L, 1);
+            verify(lotteryService, times(1)).incrementBallotCount(2L, 1);
+            verify(lotteryService, never()).findById(any(Long.class));
+            verify(participantService, never()).findById(any(Long.class));
         }
         catch (Exception e){
             fail("No exception should be thrown.");
@@ -84,99 +100,133 @@ public class BallotServiceTest {
 
     @Test
     void testSaveInValidBallotGuess() {
-        when(lotteryService.findById(any(Long.class))).thenReturn(Optional.of(l1));
-        when(participantService.findById(any(Long.class))).thenReturn(Optional.of(p1));
-        when(lotteryService.updateFields(any(Lottery.class))).thenReturn(l1);
-        when(participantService.save(any(Participant.class))).thenReturn(p1);
-        when(ballotRepository.save(any(Ballot.class))).thenReturn(b1);
-        double oldBalance = p1.getBalance();
-        int oldBallotCount = l1.getBallotCount();
+        when(participantService.debitBallotPrice(1L, 2L, 1)).thenReturn(true);
+        when(lotteryService.incrementBallotCount(2L, 1)).thenReturn(true);
         Ballot b2 = new Ballot(1L, 2L, 1L, "1234567");
         assertThrows(Exception.class, () -> {
             ballotService.save(b2);
         });
-        assertEquals(oldBalance, p1.getBalance());
-        assertEquals(oldBallotCount, l1.getBallotCount());
+        verify(participantService, never()).debitBallotPrice(any(Long.class), any(Long.class), any(Integer.class));
+        verify(ballotRepository, never()).save(any(Ballot.class));
     }
 
 
+    /**
+     * The conditional debit matches no row when the lottery is closed, so the ballot is not saved.
+     */
     @Test
     void testSaveClosedLottery() {
-        when(lotteryService.findById(any(Long.class))).thenReturn(Optional.of(l2));
-        when(participantService.findById(any(Long.class))).thenReturn(Optional.of(p1));
-        when(lotteryService.updateFields(any(Lottery.class))).thenReturn(l2);
-        when(participantService.save(any(Participant.class))).thenReturn(p1);
-        when(ballotRepository.save(any(Ballot.class))).thenReturn(b1);
-        double oldBalance = p1.getBalance();
+        when(participantService.debitBallotPrice(1L, 2L, 1)).thenReturn(false);
         assertThrows(Exception.class, () -> {
             ballotService.save(b1);
         });
-
-        int oldBallotCount = l1.getBallotCount();
-        assertEquals(oldBalance, p1.getBalance());
-        assertEquals(oldBallotCount, l1.getBallotCount());
+        verify(lotteryService, never()).incrementBallotCount(any(Long.class), any(Integer.class));
+        verify(ballotRepository, never()).save(any(Ballot.class));
     }
 
 
+    /**
+     * Test the case when the lottery gets closed between the debit and the ballot count increment.
+     */
     @Test
-    void testSaveNoLottery() {
-        when(lotteryService.findById(any(Long.class))).thenReturn(Optional.empty());
-        when(participantService.findById(any(Long.class))).thenReturn(Optional.of(p1));
-        when(lotteryService.updateFields(any(Lottery.class))).thenReturn(l1);
-        when(participantService.save(any(Participant.class))).thenReturn(p1);
-        when(ballotRepository.save(any(Ballot.class))).thenReturn(b1);
-        double oldBalance = p1.getBalance();
+    void testSaveLotteryClosedAfterDebit() {
+        when(participantService.debitBallotPrice(1L, 2L, 1)).thenReturn(true);
+        when(lotteryService.incrementBallotCount(2L, 1)).thenReturn(false);
         assertThrows(Exception.class, () -> {
             ballotService.save(b1);
         });
+        verify(ballotRepository, never()).save(any(Ballot.class));
+    }
+
 
-        int oldBallotCount = l1.getBallotCount();
-        assertEquals(oldBalance, p1.getBalance());
-        assertEquals(oldBallotCount, l1.getBallotCount());
+    @Test
+    void testSaveNoLottery() {
+        Ballot b2 = new Ballot(1L, null, 1L, "123456");
+        assertThrows(Exception.class, () -> {
+            ballotService.save(b2);
+        });
+        verify(participantService, never()).debitBallotPrice(any(Long.class), any(Long.class), any(Integer.class));
+        verify(ballotRepository, never()).save(any(Ballot.class));
     }
 
 
     @Test
     void testSaveNoParticipant() {
-        when(lotteryService.findById(any(Long.class))).thenReturn(Optional.of(l1));
-        when(participantService.findById(any(Long.class))).thenReturn(Optional.empty());
-        when(lotteryService.updateFields(any(Lottery.class))).thenReturn(l1);
-        when(participantService.save(any(Participant.class))).thenReturn(p1);
-        when(ballotRepository.save(any(Ballot.class))).thenReturn(b1);
-        double oldBalance = p1.getBalance();
+        Ballot b2 = new Ballot(1L, 2L, null, "123456");
         assertThrows(Exception.class, () -> {
-            ballotService.save(b1);
+            ballotService.save(b2);
         });
-
-        int oldBallotCount = l1.getBallotCount();
-        assertEquals(oldBalance, p1.getBalance());
-        assertEquals(oldBallotCount, l1.getBallotCount());
+        verify(participantService, never()).debitBallotPrice(any(Long.class), any(Long.class), any(Integer.class));
+        verify(ballotRepository, never()).save(any(Ballot.class));
     }
 
 
+    /**
+     * The conditional debit matches no row when neither the participant nor the lottery exist.
+     */
     @Test
     void testSaveNoParticipantNoLottery() {
-        when(lotteryService.findById(any(Long.class))).thenReturn(Optional.empty());
-        when(participantService.findById(any(Long.class))).thenReturn(Optional.empty());
-        when(lotteryService.updateFields(any(Lottery.class))).thenReturn(l1);
-        when(participantService.save(any(Participant.class))).thenReturn(p1);
-        when(ballotRepository.save(any(Ballot.class))).thenReturn(b1);
-        double oldBalance = p1.getBalance();
+        when(participantService.debitBallotPrice(any(Long.class), any(Long.class), any(Integer.class)))
+                .thenReturn(false);
         assertThrows(Exception.class, () -> {
             ballotService.save(b1);
         });
+        verify(ballotRepository, never()).save(any(Ballot.class));
+    }
+
+
+    /**
+     * Test the batch save when some of the guesses are invalid: the balance is debited once for the valid ones.
+     */
+    @Test
+    void testSaveBatch() {
+        Ballot b2 = new Ballot(2L, 2L, 1L, "654321");
+        when(participantService.debitBallotPrice(1L, 2L, 2)).thenReturn(true);
+        when(lotteryService.incrementBallotCount(2L, 2)).thenReturn(true);
+        when(ballotRepository.saveAll(anyList())).thenReturn(List.of(b1, b2));
+
+        List<BallotPurchaseResult> results = ballotService.saveBatch(
+                new BallotBatchRequest(1L, 2L, List.of("123456", "12a456", "654321")));
+
+        assertEquals(3, results.size());
+        assertTrue(results.get(0).success());
+        assertEquals(1L, (long) results.get(0).ballotId());
+        assertFalse(results.get(1).success());
+        assertTrue(results.get(2).success());
+        assertEquals(2L, (long) results.get(2).ballotId());
+        verify(participantService, times(1)).debitBallotPrice(1L, 2L, 2);
+        verify(lotteryService, times(1)).incrementBallotCount(2L, 2);
+    }
+
+
+    @Test
+    void testSaveBatchNotEnoughBalance() {
+        when(participantService.debitBallotPrice(1L, 2L, 2)).thenReturn(false);
+
+        List<BallotPurchaseResult> results = ballotService.saveBatch(
+                new BallotBatchRequest(1L, 2L, List.of("123456", "654321")));
 
-        int oldBallotCount = l1.getBallotCount();
-        assertEquals(oldBalance, p1.getBalance());
-        assertEquals(oldBallotCount, l1.getBallotCount());
+        assertTrue(results.stream().noneMatch(BallotPurchaseResult::success));
+        verify(lotteryService, never()).incrementBallotCount(any(Long.class), any(Integer.class));
+        verify(ballotRepository, never()).saveAll(anyList());
+    }
+
+
+    @Test
+    void testSaveBatchTooLarge() {
+        List<String> guesses = Collections.nCopies(501, "123456");
+        assertThrows(IllegalArgumentException.class, () -> {
+            ballotService.saveBatch(new BallotBatchRequest(1L, 2L, guesses));
+        });
+        verify(participantService, never()).debitBallotPrice(any(Long.class), any(Long.class), any(Integer.class));
     }
 
 
     @Test
     void testFindById() {
-        when(ballotRepository.findById(any(Long.class))).thenReturn(Optional.of(b1));
-        Ballot found = ballotService.findById(1L).get();
-        assertEquals(found, b1);
-        verify(ballotRepository, times(1)).findById(1L);
+        when(ballotRepository.findViewById(any(Long.class))).thenReturn(Optional.of(BallotView.of(b1)));
+        BallotView found = ballotService.findById(1L).get();
+        assertEquals(found, BallotView.of(b1));
+        verify(ballotRepository, times(1)).findViewById(1L);
     }
 }
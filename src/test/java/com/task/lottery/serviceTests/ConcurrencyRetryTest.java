@@ -0,0 +1,84 @@
+package com.task.lottery.serviceTests;
+
+import com.task.lottery.entities.Lottery;
+import com.task.lottery.services.ConcurrencyRetry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConcurrencyRetryTest {
+
+    private MeterRegistry meterRegistry;
+
+    private ConcurrencyRetry concurrencyRetry;
+
+
+    @BeforeEach
+    void setup() {
+        meterRegistry = new SimpleMeterRegistry();
+        concurrencyRetry = new ConcurrencyRetry(meterRegistry, 3, 1, 2);
+    }
+
+
+    /**
+     * Test that an operation which conflicts twice succeeds on its third attempt and the conflicts are counted.
+     */
+    @Test
+    void testRetriesConflicts() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        String result = concurrencyRetry.execute("test", () -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new ObjectOptimisticLockingFailureException(Lottery.class, 1L);
+            }
+            return "done";
+        });
+        assertEquals("done", result);
+        assertEquals(3, attempts.get());
+        assertEquals(2, count("lottery.concurrency.conflicts"));
+        assertEquals(2, count("lottery.concurrency.retries"));
+        assertEquals(0, count("lottery.concurrency.exhausted"));
+    }
+
+
+    /**
+     * Test that the conflict is thrown once the attempts run out.
+     */
+    @Test
+    void testGivesUpAfterMaxAttempts() {
+        AtomicInteger attempts = new AtomicInteger();
+        assertThrows(ObjectOptimisticLockingFailureException.class, () -> concurrencyRetry.execute("test", () -> {
+            attempts.incrementAndGet();
+            throw new ObjectOptimisticLockingFailureException(Lottery.class, 1L);
+        }));
+        assertEquals(3, attempts.get());
+        assertEquals(3, count("lottery.concurrency.conflicts"));
+        assertEquals(1, count("lottery.concurrency.exhausted"));
+    }
+
+
+    /**
+     * Test that other failures are not retried.
+     */
+    @Test
+    void testDoesNotRetryOtherFailures() {
+        AtomicInteger attempts = new AtomicInteger();
+        assertThrows(IllegalArgumentException.class, () -> concurrencyRetry.execute("test", () -> {
+            attempts.incrementAndGet();
+            throw new IllegalArgumentException("Invalid ballot!");
+        }));
+        assertEquals(1, attempts.get());
+        assertEquals(0, count("lottery.concurrency.conflicts"));
+    }
+
+
+    private double count(String name) {
+        var counter = meterRegistry.find(name).tag("operation", "test").counter();
+        return counter == null ? 0 : counter.count();
+    }
+}
@@ -0,0 +1,94 @@
+package com.task.lottery.serviceTests;
+
+import com.task.lottery.entities.Ballot;
+import com.task.lottery.entities.Lottery;
+import com.task.lottery.repositories.BallotRepository;
+import com.task.lottery.services.GuessDrawService;
+import com.task.lottery.services.GuessIndexService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.time.LocalDate;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class GuessDrawServiceTest {
+
+    @Mock
+    transient GuessIndexService guessIndexService;
+
+    @Mock
+    transient BallotRepository ballotRepository;
+
+    private GuessDrawService guessDrawService;
+
+    private Lottery lottery;
+
+
+    @BeforeEach
+    void setup() {
+        MockitoAnnotations.openMocks(this);
+        guessDrawService = new GuessDrawService(guessIndexService, ballotRepository, 6, "6:0.7,5:0.2,4:0.1");
+        lottery = new Lottery(2L, true, LocalDate.now(), 0, null, 1000.0, 5.0);
+    }
+
+
+    /**
+     * Test that each tier shares its part of the prize and the winner is the first ballot of the highest tier.
+     */
+    @Test
+    void testDraw() {
+        Map<Integer, List<Long>> matches = new LinkedHashMap<>();
+        matches.put(6, List.of());
+        matches.put(5, List.of(7L, 3L));
+        matches.put(4, List.of(9L));
+        when(guessIndexService.match(eq(2L), anyInt(), anyCollection())).thenReturn(matches);
+        when(ballotRepository.findAllById(List.of(7L, 3L))).thenReturn(List.of(
+                new Ballot(7L, 2L, 1L, "123450"), new Ballot(3L, 2L, 2L, "123459")));
+        when(ballotRepository.findAllById(List.of(9L))).thenReturn(List.of(new Ballot(9L, 2L, 1L, "123400")));
+
+        GuessDrawService.Draw draw = guessDrawService.draw(lottery);
+
+        assertEquals(3L, draw.winner().getId());
+        assertEquals(3L, lottery.getWinnerId());
+        assertEquals(6, lottery.getWinningNumber().length());
+        assertEquals(100.0 + 100.0, draw.payouts().get(1L), 1e-9);
+        assertEquals(100.0, draw.payouts().get(2L), 1e-9);
+    }
+
+
+    /**
+     * Test that nobody is paid when no ballot matches a tier.
+     */
+    @Test
+    void testDrawWithoutWinners() {
+        when(guessIndexService.match(eq(2L), anyInt(), anyCollection()))
+                .thenReturn(Map.of(6, List.of(), 5, List.of(), 4, List.of()));
+
+        GuessDrawService.Draw draw = guessDrawService.draw(lottery);
+
+        assertNull(draw.winner());
+        assertNull(lottery.getWinnerId());
+        assertNotNull(lottery.getWinningNumber());
+        assertTrue(draw.payouts().isEmpty());
+    }
+
+
+    /**
+     * Test that tiers sharing more than the prize are rejected.
+     */
+    @Test
+    void testInvalidTiers() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new GuessDrawService(guessIndexService, ballotRepository, 6, "6:0.7,5:0.5"));
+        assertThrows(IllegalArgumentException.class,
+                () -> new GuessDrawService(guessIndexService, ballotRepository, 6, "7:0.5"));
+    }
+}
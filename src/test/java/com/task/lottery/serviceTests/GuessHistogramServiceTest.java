@@ -0,0 +1,201 @@
+package com.task.lottery.serviceTests;
+
+import com.task.lottery.dtos.BallotGuess;
+import com.task.lottery.dtos.GuessCount;
+import com.task.lottery.dtos.GuessLiability;
+import com.task.lottery.entities.Ballot;
+import com.task.lottery.entities.Lottery;
+import com.task.lottery.repositories.BallotRepository;
+import com.task.lottery.repositories.LotteryRepository;
+import com.task.lottery.services.BallotCounterService;
+import com.task.lottery.services.GuessHistogramService;
+import com.task.lottery.services.LotteryCache;
+import com.task.lottery.utils.GuessCodec;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class GuessHistogramServiceTest {
+
+    @Mock
+    transient BallotRepository ballotRepository;
+
+    @Mock
+    transient LotteryRepository lotteryRepository;
+
+    @Mock
+    transient BallotCounterService ballotCounterService;
+
+    private GuessHistogramService guessHistogramService;
+
+
+    @BeforeEach
+    void setup() {
+        MockitoAnnotations.openMocks(this);
+        guessHistogramService = new GuessHistogramService(ballotRepository,
+                new LotteryCache(lotteryRepository, mock(PlatformTransactionManager.class), 10, Duration.ZERO),
+                ballotCounterService, mock(PlatformTransactionManager.class), 6, "6:0.7,5:0.2,4:0.1", 2, 3,
+                Duration.ZERO);
+        Lottery lottery = new Lottery(1L, true, LocalDate.now(), 0, null, 100.0, 5.0);
+        when(lotteryRepository.findById(1L)).thenReturn(Optional.of(lottery));
+    }
+
+
+    /**
+     * Test that the counts are built from the guesses of the ballot table once, then updated by the purchases,
+     * and that the top guesses follow them.
+     */
+    @Test
+    void testTopGuesses() {
+        when(ballotRepository.streamGuessesByLotteryId(1L)).thenReturn(guesses("123456", "123456", "000042"));
+        when(ballotCounterService.count(1L)).thenReturn(3);
+
+        assertEquals(List.of(new GuessCount("123456", 2), new GuessCount("000042", 1)),
+                guessHistogramService.findTop(1L, 3).get());
+
+        guessHistogramService.recordAfterCommit(List.of(new Ballot(4L, 1L, 1L, "000042"),
+                new Ballot(5L, 1L, 1L, "000042"), new Ballot(6L, 1L, 1L, "999999"),
+                new Ballot(7L, 1L, 1L, "555555")));
+        when(ballotCounterService.count(1L)).thenReturn(7);
+
+        assertEquals(List.of(new GuessCount("000042", 3), new GuessCount("123456", 2),
+                new GuessCount("555555", 1)), guessHistogramService.findTop(1L, 3).get());
+        assertEquals(List.of(new GuessCount("000042", 3)), guessHistogramService.findTop(1L, 1).get());
+        verify(ballotRepository, times(1)).streamGuessesByLotteryId(1L);
+    }
+
+
+    /**
+     * Test that the purchases which commit while the counts are built are counted once, whether the read of the
+     * guesses found them or not.
+     */
+    @Test
+    void testPurchasesDuringBuild() {
+        List<Ballot> committed = List.of(new Ballot(2L, 1L, 1L, "123456"), new Ballot(10L, 1L, 1L, "999999"));
+        when(ballotRepository.streamGuessesByLotteryId(1L)).thenReturn(guesses("123456", "123456", "000042")
+                .peek(guess -> {
+                    if (guess.id() == 1L) {
+                        guessHistogramService.recordAfterCommit(committed);
+                    }
+                }));
+        when(ballotCounterService.count(1L)).thenReturn(4);
+
+        assertEquals(List.of(new GuessCount("123456", 2), new GuessCount("000042", 1),
+                new GuessCount("999999", 1)), guessHistogramService.findTop(1L, 3).get());
+
+        guessHistogramService.recordAfterCommit(List.of(new Ballot(11L, 1L, 1L, "999999")));
+        when(ballotCounterService.count(1L)).thenReturn(5);
+        assertEquals(List.of(new GuessCount("123456", 2), new GuessCount("999999", 2)),
+                guessHistogramService.findTop(1L, 2).get());
+        verify(ballotRepository, times(1)).streamGuessesByLotteryId(1L);
+    }
+
+
+    /**
+     * Test that a purchase recorded after the read of the guesses passed its id is not counted twice.
+     */
+    @Test
+    void testPurchaseReadBeforeRecorded() {
+        when(ballotRepository.streamGuessesByLotteryId(1L)).thenReturn(guesses("123456", "123456", "000042")
+                .peek(guess -> {
+                    if (guess.id() == 3L) {
+                        guessHistogramService.recordAfterCommit(List.of(new Ballot(2L, 1L, 1L, "123456"),
+                                new Ballot(10L, 1L, 1L, "999999")));
+                    }
+                }));
+        when(ballotCounterService.count(1L)).thenReturn(4);
+
+        assertEquals(List.of(new GuessCount("123456", 2), new GuessCount("000042", 1),
+                new GuessCount("999999", 1)), guessHistogramService.findTop(1L, 3).get());
+    }
+
+
+    /**
+     * Test that the counts of a lottery built when it opens are kept up to date by the purchases, and read without
+     * reading the ballot table again.
+     */
+    @Test
+    void testOpen() {
+        when(ballotRepository.streamGuessesByLotteryId(1L)).thenReturn(Stream.empty());
+        guessHistogramService.open(1L);
+
+        guessHistogramService.recordAfterCommit(List.of(new Ballot(1L, 1L, 1L, "000042"),
+                new Ballot(2L, 1L, 1L, "000042")));
+        when(ballotCounterService.count(1L)).thenReturn(2);
+        assertEquals(List.of(new GuessCount("000042", 2)), guessHistogramService.findTop(1L, 3).get());
+        verify(ballotRepository, times(1)).streamGuessesByLotteryId(1L);
+    }
+
+
+    /**
+     * Test that the top guesses are the most played ones whatever the order of the purchases.
+     */
+    @Test
+    void testTopGuessesOrder() {
+        List<String> played = new ArrayList<>();
+        for (int guess = 0; guess < 50; guess++) {
+            for (int i = 0; i <= guess % 10; i++) {
+                played.add(GuessCodec.decode(guess, 6));
+            }
+        }
+        when(ballotRepository.streamGuessesByLotteryId(1L)).thenReturn(guesses(played.toArray(String[]::new)));
+        when(ballotCounterService.count(1L)).thenReturn(played.size());
+
+        assertEquals(List.of(new GuessCount("000009", 10), new GuessCount("000019", 10),
+                new GuessCount("000029", 10)), guessHistogramService.findTop(1L, 3).get());
+    }
+
+
+    /**
+     * Test the ballots of each prize tier and the payout for a drawn number.
+     */
+    @Test
+    void testLiability() {
+        when(ballotRepository.streamGuessesByLotteryId(1L))
+                .thenReturn(guesses("123456", "123456", "123450", "023450", "999999", "12345"));
+        when(ballotCounterService.count(1L)).thenReturn(6);
+
+        GuessLiability liability = guessHistogramService.findLiability(1L, "123456").get();
+        assertEquals(Map.of(6, 2L, 5, 1L, 4, 1L), liability.winningBallots());
+        assertEquals(100.0, liability.payout(), 1e-9);
+
+        GuessLiability partial = guessHistogramService.findLiability(1L, "123459").get();
+        assertEquals(Map.of(6, 0L, 5, 3L, 4, 1L), partial.winningBallots());
+        assertEquals(30.0, partial.payout(), 1e-9);
+    }
+
+
+    /**
+     * Test that invalid requests are rejected and that there are no counts for a lottery which doesn't exist.
+     */
+    @Test
+    void testInvalidRequests() {
+        when(lotteryRepository.findById(2L)).thenReturn(Optional.empty());
+        assertThrows(IllegalArgumentException.class, () -> guessHistogramService.findTop(1L, 4));
+        assertThrows(IllegalArgumentException.class, () -> guessHistogramService.findLiability(1L, "12a456"));
+        assertTrue(guessHistogramService.findTop(2L, 1).isEmpty());
+        verify(ballotRepository, never()).streamGuessesByLotteryId(anyLong());
+    }
+
+
+    private static Stream<BallotGuess> guesses(String... guesses) {
+        List<BallotGuess> list = new ArrayList<>();
+        for (int i = 0; i < guesses.length; i++) {
+            list.add(new BallotGuess((long) i + 1, GuessCodec.encode(guesses[i]), guesses[i].length()));
+        }
+        return list.stream();
+    }
+}
@@ -0,0 +1,166 @@
+package com.task.lottery.serviceTests;
+
+import com.task.lottery.dtos.BallotGuess;
+import com.task.lottery.entities.Ballot;
+import com.task.lottery.repositories.BallotRepository;
+import com.task.lottery.services.GuessIndexService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class GuessIndexServiceTest {
+
+    @Mock
+    transient BallotRepository ballotRepository;
+
+    @Mock
+    transient PlatformTransactionManager transactionManager;
+
+    private GuessIndexService guessIndexService;
+
+    private List<Ballot> ballots;
+
+
+    @BeforeEach
+    void setup() {
+        MockitoAnnotations.openMocks(this);
+        guessIndexService = new GuessIndexService(ballotRepository, transactionManager, 6);
+        ballots = List.of(
+                new Ballot(1L, 2L, 1L, "123456"),
+                new Ballot(2L, 2L, 1L, "123450"),
+                new Ballot(3L, 2L, 2L, "923450"),
+                new Ballot(4L, 2L, 2L, "000000"),
+                new Ballot(5L, 2L, 3L, "123456"));
+    }
+
+
+    /**
+     * Test that the ballots are grouped by the number of positions matching the winning number.
+     */
+    @Test
+    void testMatch() {
+        guessIndexService.addAfterCommit(ballots);
+        when(ballotRepository.countByLotteryId(2L)).thenReturn((long) ballots.size());
+
+        Map<Integer, List<Long>> matches = guessIndexService.match(2L, 123456, List.of(6, 5, 4));
+
+        assertEquals(List.of(6, 5, 4), List.copyOf(matches.keySet()));
+        assertEquals(List.of(1L, 5L), matches.get(6));
+        assertEquals(List.of(2L), matches.get(5));
+        assertEquals(List.of(3L), matches.get(4));
+        verify(ballotRepository, never()).streamGuessesByLotteryIdAfter(any(Long.class), any(Long.class));
+    }
+
+
+    /**
+     * Test that leading zeros are positions like any other.
+     */
+    @Test
+    void testMatchLeadingZeros() {
+        guessIndexService.addAfterCommit(ballots);
+        when(ballotRepository.countByLotteryId(2L)).thenReturn((long) ballots.size());
+
+        Map<Integer, List<Long>> matches = guessIndexService.match(2L, 0, List.of(6, 1));
+
+        assertEquals(List.of(4L), matches.get(6));
+        assertEquals(List.of(2L, 3L), matches.get(1));
+    }
+
+
+    /**
+     * Test that the index reads the ballots bought on another node from the database, without adding the ones it
+     * has twice.
+     */
+    @Test
+    void testMatchCompletesIndex() {
+        guessIndexService.addAfterCommit(ballots.subList(0, 2));
+        when(ballotRepository.countByLotteryId(2L)).thenReturn((long) ballots.size());
+        when(ballotRepository.streamGuessesByLotteryIdAfter(2L, 0L)).thenReturn(guesses(ballots));
+
+        Map<Integer, List<Long>> matches = guessIndexService.match(2L, 123456, List.of(6));
+
+        assertEquals(List.of(1L, 5L), matches.get(6));
+        verify(ballotRepository, times(1)).streamGuessesByLotteryIdAfter(2L, 0L);
+    }
+
+
+    /**
+     * Test that a later read only reads the ballots above the highest id read before.
+     */
+    @Test
+    void testMatchReadsOnlyNewBallots() {
+        when(ballotRepository.countByLotteryId(2L)).thenReturn(2L, (long) ballots.size());
+        when(ballotRepository.streamGuessesByLotteryIdAfter(2L, 0L)).thenReturn(guesses(ballots.subList(0, 2)));
+        when(ballotRepository.streamGuessesByLotteryIdAfter(2L, 2L)).thenReturn(guesses(ballots.subList(2, 5)));
+
+        assertEquals(List.of(1L), guessIndexService.match(2L, 123456, List.of(6)).get(6));
+        assertEquals(List.of(1L, 5L), guessIndexService.match(2L, 123456, List.of(6)).get(6));
+
+        verify(ballotRepository, times(1)).streamGuessesByLotteryIdAfter(2L, 0L);
+        verify(ballotRepository, times(1)).streamGuessesByLotteryIdAfter(2L, 2L);
+    }
+
+
+    /**
+     * Test that the index is rebuilt when a ballot below the highest id read was committed after the read.
+     */
+    @Test
+    void testMatchRebuildsWhenBallotCommittedLate() {
+        when(ballotRepository.countByLotteryId(2L)).thenReturn(4L, (long) ballots.size());
+        when(ballotRepository.streamGuessesByLotteryIdAfter(2L, 0L))
+                .thenReturn(guesses(ballots.subList(1, 5)), guesses(ballots));
+        when(ballotRepository.streamGuessesByLotteryIdAfter(2L, 5L)).thenReturn(Stream.empty());
+
+        assertEquals(List.of(5L), guessIndexService.match(2L, 123456, List.of(6)).get(6));
+        guessIndexService.addAfterCommit(ballots.subList(0, 1));
+        assertEquals(List.of(1L, 5L), guessIndexService.match(2L, 123456, List.of(6)).get(6));
+
+        verify(ballotRepository, times(2)).streamGuessesByLotteryIdAfter(2L, 0L);
+    }
+
+
+    /**
+     * Test that the ballots whose guess has another number of digits are counted but never match.
+     */
+    @Test
+    void testMatchCountsGuessesOfAnotherLength() {
+        guessIndexService.addAfterCommit(ballots);
+        guessIndexService.addAfterCommit(List.of(new Ballot(6L, 2L, 3L, "12345")));
+        when(ballotRepository.countByLotteryId(2L)).thenReturn((long) ballots.size() + 1);
+
+        Map<Integer, List<Long>> matches = guessIndexService.match(2L, 999999, List.of(0));
+
+        assertEquals(List.of(1L, 2L, 4L, 5L), matches.get(0));
+        verify(ballotRepository, never()).streamGuessesByLotteryIdAfter(any(Long.class), any(Long.class));
+    }
+
+
+    /**
+     * Test that a lottery without ballots has no winners.
+     */
+    @Test
+    void testMatchEmptyLottery() {
+        when(ballotRepository.countByLotteryId(3L)).thenReturn(0L);
+        when(ballotRepository.streamGuessesByLotteryIdAfter(3L, 0L)).thenReturn(Stream.empty());
+
+        Map<Integer, List<Long>> matches = guessIndexService.match(3L, 123456, List.of(6, 5));
+
+        assertTrue(matches.get(6).isEmpty());
+        assertTrue(matches.get(5).isEmpty());
+    }
+
+
+    private Stream<BallotGuess> guesses(List<Ballot> ballots) {
+        return ballots.stream()
+                .map(ballot -> new BallotGuess(ballot.getId(), ballot.getGuessValue(), ballot.getGuessLength()));
+    }
+}
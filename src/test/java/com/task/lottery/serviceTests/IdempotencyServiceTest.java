@@ -0,0 +1,231 @@
+package com.task.lottery.serviceTests;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.task.lottery.entities.Ballot;
+import com.task.lottery.entities.IdempotencyRecord;
+import com.task.lottery.repositories.IdempotencyRecordRepository;
+import com.task.lottery.services.ConcurrencyRetry;
+import com.task.lottery.services.IdempotencyService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class IdempotencyServiceTest {
+
+    @Mock
+    transient IdempotencyRecordRepository idempotencyRecordRepository;
+
+    @Mock
+    transient PlatformTransactionManager transactionManager;
+
+    private IdempotencyService idempotencyService;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static Ballot b1;
+
+
+    @BeforeEach
+    void setup() {
+        b1 = new Ballot(1L, 2L, 1L, "123456");
+        MockitoAnnotations.openMocks(this);
+        when(idempotencyRecordRepository.findById(any(String.class))).thenReturn(Optional.empty());
+        when(idempotencyRecordRepository.complete(any(), anyInt(), any(), any(), any())).thenReturn(1);
+        idempotencyService = new IdempotencyService(idempotencyRecordRepository, objectMapper,
+                new ConcurrencyRetry(new SimpleMeterRegistry(), 3, 0, 0), transactionManager, 10,
+                Duration.ofMinutes(10), Duration.ofHours(24));
+    }
+
+
+    @Test
+    void testRetryReturnsStoredResponse() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        ResponseEntity<?> first = idempotencyService.execute(1L, "key", b1, () -> {
+            calls.incrementAndGet();
+            return ResponseEntity.ok(b1);
+        });
+        ResponseEntity<?> retry = idempotencyService.execute(1L, "key", b1, () -> {
+            calls.incrementAndGet();
+            return ResponseEntity.ok(b1);
+        });
+
+        assertEquals(1, calls.get());
+        assertEquals(b1, first.getBody());
+        assertEquals(HttpStatus.OK, retry.getStatusCode());
+        assertEquals(b1, objectMapper.readValue((String) retry.getBody(), Ballot.class));
+        verify(idempotencyRecordRepository, times(1)).saveAndFlush(any(IdempotencyRecord.class));
+        verify(idempotencyRecordRepository, times(1)).complete(eq("1:key"), eq(200), any(), any(), any());
+        verify(idempotencyRecordRepository, times(1)).findById("1:key");
+    }
+
+
+    /**
+     * A key which is not in the cache anymore is found in the database.
+     */
+    @Test
+    void testRetryAfterCacheWindow() throws Exception {
+        IdempotencyRecord record = new IdempotencyRecord("1:old", hash(b1), 400, MediaType.TEXT_PLAIN_VALUE,
+                "Ballot can't be created!", Instant.now().minus(Duration.ofHours(1)));
+        when(idempotencyRecordRepository.findById("1:old")).thenReturn(Optional.of(record));
+
+        ResponseEntity<?> retry = idempotencyService.execute(1L, "old", b1,
+                () -> fail("The request should not run."));
+
+        assertEquals(HttpStatus.BAD_REQUEST, retry.getStatusCode());
+        assertEquals("Ballot can't be created!", retry.getBody());
+    }
+
+
+    @Test
+    void testExpiredRecordIsIgnored() throws Exception {
+        IdempotencyRecord record = new IdempotencyRecord("1:old", hash(b1), 400, MediaType.TEXT_PLAIN_VALUE,
+                "Ballot can't be created!", Instant.now().minus(Duration.ofDays(2)));
+        when(idempotencyRecordRepository.findById("1:old")).thenReturn(Optional.of(record));
+
+        ResponseEntity<?> response = idempotencyService.execute(1L, "old", b1, () -> ResponseEntity.ok(b1));
+
+        assertEquals(b1, response.getBody());
+    }
+
+
+    @Test
+    void testTooManyRequestsIsNotStored() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        idempotencyService.execute(1L, "key", b1, () -> {
+            calls.incrementAndGet();
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).build();
+        });
+        idempotencyService.execute(1L, "key", b1, () -> {
+            calls.incrementAndGet();
+            return ResponseEntity.ok(b1);
+        });
+
+        assertEquals(2, calls.get());
+        verify(idempotencyRecordRepository, times(2)).saveAndFlush(any(IdempotencyRecord.class));
+        verify(idempotencyRecordRepository, times(1)).deletePending("1:key");
+        verify(idempotencyRecordRepository, times(1)).complete(eq("1:key"), eq(200), any(), any(), any());
+    }
+
+
+    /**
+     * The same key sent by another participant is another request, and the same key sent by the participant with
+     * another ballot is refused.
+     */
+    @Test
+    void testKeyScopedByParticipantAndBody() throws Exception {
+        Ballot b2 = new Ballot(2L, 2L, 2L, "654321");
+        Ballot other = new Ballot(1L, 2L, 1L, "000000");
+        AtomicInteger calls = new AtomicInteger();
+        idempotencyService.execute(1L, "key", b1, () -> {
+            calls.incrementAndGet();
+            return ResponseEntity.ok(b1);
+        });
+        ResponseEntity<?> otherParticipant = idempotencyService.execute(2L, "key", b2, () -> {
+            calls.incrementAndGet();
+            return ResponseEntity.ok(b2);
+        });
+        ResponseEntity<?> otherBody = idempotencyService.execute(1L, "key", other,
+                () -> fail("The request should not run."));
+
+        assertEquals(2, calls.get());
+        assertEquals(b2, otherParticipant.getBody());
+        assertEquals(HttpStatus.UNPROCESSABLE_ENTITY, otherBody.getStatusCode());
+    }
+
+
+    /**
+     * The key is claimed in its own transaction before the request runs, the response is stored over the claim in
+     * the transaction of the request, and that transaction is retried when it conflicts.
+     */
+    @Test
+    void testRecordStoredInRequestTransaction() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        idempotencyService.execute(1L, "key", b1, () -> {
+            if (calls.incrementAndGet() == 1) {
+                throw new ObjectOptimisticLockingFailureException(Ballot.class, 1L);
+            }
+            return ResponseEntity.ok(b1);
+        });
+
+        assertEquals(2, calls.get());
+        InOrder order = inOrder(transactionManager, idempotencyRecordRepository);
+        order.verify(transactionManager).getTransaction(any(TransactionDefinition.class));
+        order.verify(idempotencyRecordRepository).saveAndFlush(any(IdempotencyRecord.class));
+        order.verify(transactionManager).commit(any());
+        order.verify(transactionManager).getTransaction(any(TransactionDefinition.class));
+        order.verify(transactionManager).rollback(any());
+        order.verify(transactionManager).getTransaction(any(TransactionDefinition.class));
+        order.verify(idempotencyRecordRepository).complete(eq("1:key"), eq(200), any(), any(), any());
+        order.verify(transactionManager).commit(any());
+    }
+
+
+    /**
+     * A request which fails changes nothing, so a retry runs it again.
+     */
+    @Test
+    void testFailedRequestIsNotStored() throws Exception {
+        assertThrows(IllegalStateException.class, () -> idempotencyService.execute(1L, "key", b1, () -> {
+            throw new IllegalStateException("Ballot not present!");
+        }));
+        ResponseEntity<?> retry = idempotencyService.execute(1L, "key", b1, () -> ResponseEntity.ok(b1));
+
+        assertEquals(b1, retry.getBody());
+        verify(idempotencyRecordRepository, times(1)).deletePending("1:key");
+        verify(idempotencyRecordRepository, times(1)).complete(eq("1:key"), eq(200), any(), any(), any());
+    }
+
+
+    /**
+     * A key claimed by a request running on another node is refused with 409 without running the request, and
+     * the retries get the response once that request stored it.
+     */
+    @Test
+    void testKeyClaimedByAnotherNode() throws Exception {
+        IdempotencyRecord pending = new IdempotencyRecord("1:key", hash(b1), IdempotencyRecord.PENDING, null, null,
+                Instant.now());
+        IdempotencyRecord done = new IdempotencyRecord("1:key", hash(b1), 200, MediaType.TEXT_PLAIN_VALUE,
+                "Ballot bought!", Instant.now());
+        when(idempotencyRecordRepository.saveAndFlush(any(IdempotencyRecord.class)))
+                .thenThrow(new DataIntegrityViolationException("Duplicate key 1:key"));
+        when(idempotencyRecordRepository.findById("1:key"))
+                .thenReturn(Optional.empty(), Optional.of(pending), Optional.of(done));
+
+        ResponseEntity<?> conflict = idempotencyService.execute(1L, "key", b1,
+                () -> fail("The request should not run."));
+        ResponseEntity<?> retry = idempotencyService.execute(1L, "key", b1,
+                () -> fail("The request should not run."));
+
+        assertEquals(HttpStatus.CONFLICT, conflict.getStatusCode());
+        assertEquals(HttpStatus.OK, retry.getStatusCode());
+        assertEquals("Ballot bought!", retry.getBody());
+        verify(idempotencyRecordRepository, never()).deletePending(any());
+    }
+
+
+    private String hash(Object body) throws Exception {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256")
+                .digest(objectMapper.writeValueAsBytes(body)));
+    }
+}
@@ -0,0 +1,164 @@
+package com.task.lottery.serviceTests;
+
+import com.task.lottery.dtos.BallotView;
+import com.task.lottery.entities.Ballot;
+import com.task.lottery.entities.Lottery;
+import com.task.lottery.repositories.BallotRepository;
+import com.task.lottery.repositories.LotteryRepository;
+import com.task.lottery.services.ConcurrencyRetry;
+import com.task.lottery.services.LotteryCache;
+import com.task.lottery.services.LotteryDrawService;
+import com.task.lottery.services.ParticipantService;
+import com.task.lottery.services.WinnerCache;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.data.domain.Pageable;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class LotteryDrawServiceTest {
+
+    @Mock
+    transient LotteryRepository lotteryRepository;
+
+    @Mock
+    transient BallotRepository ballotRepository;
+
+    @Mock
+    transient ParticipantService participantService;
+
+    private WinnerCache winnerCache;
+
+    private LotteryDrawService lotteryDrawService;
+
+    private Lottery lottery;
+
+    private Ballot ballot;
+
+
+    @BeforeEach
+    void setup() {
+        MockitoAnnotations.openMocks(this);
+        winnerCache = new WinnerCache(10);
+        lotteryDrawService = new LotteryDrawService(lotteryRepository, ballotRepository, participantService,
+                new ConcurrencyRetry(new SimpleMeterRegistry(), 3, 0, 0),
+                mock(PlatformTransactionManager.class), winnerCache,
+                new LotteryCache(lotteryRepository, mock(PlatformTransactionManager.class), 10, Duration.ZERO), 4);
+        lottery = new Lottery(1L, true, LocalDate.now(), 1, null, 100.0, 5.0);
+        ballot = new Ballot(1L, 1L, 1L, "123456");
+    }
+
+
+    @AfterEach
+    void tearDown() {
+        lotteryDrawService.close();
+    }
+
+
+    /**
+     * Test that a claimed lottery gets a winner and the prize is credited once.
+     */
+    @Test
+    void testDraw() throws Exception {
+        when(lotteryRepository.claimDraw(1L)).thenReturn(1);
+        when(lotteryRepository.findById(1L)).thenReturn(Optional.of(lottery));
+        when(ballotRepository.countByLotteryId(1L)).thenReturn(1L);
+        when(ballotRepository.findByLotteryIdOrderByIdAsc(eq(1L), any(Pageable.class))).thenReturn(List.of(ballot));
+
+        assertTrue(lotteryDrawService.draw(1L));
+
+        assertEquals(1L, lottery.getWinnerId());
+        verify(lotteryRepository, times(1)).saveAndFlush(lottery);
+        verify(participantService, times(1)).credit(1L, 100.0);
+        assertEquals(BallotView.of(ballot), winnerCache.get(lottery.getStartTime()));
+    }
+
+
+    /**
+     * Test that a lottery which was already drawn, by an earlier run or another node, is not paid again.
+     */
+    @Test
+    void testDrawAlreadyDrawn() throws Exception {
+        when(lotteryRepository.claimDraw(1L)).thenReturn(0);
+
+        assertFalse(lotteryDrawService.draw(1L));
+
+        verify(lotteryRepository, never()).findById(anyLong());
+        verify(participantService, never()).credit(anyLong(), anyDouble());
+    }
+
+
+    /**
+     * Test that a lottery without ballots is drawn without a winner.
+     */
+    @Test
+    void testDrawEmptyLottery() throws Exception {
+        when(lotteryRepository.claimDraw(1L)).thenReturn(1);
+        when(lotteryRepository.findById(1L)).thenReturn(Optional.of(lottery));
+        when(ballotRepository.countByLotteryId(1L)).thenReturn(0L);
+
+        assertTrue(lotteryDrawService.draw(1L));
+
+        assertNull(lottery.getWinnerId());
+        assertNull(winnerCache.get(lottery.getStartTime()));
+        verify(ballotRepository, never()).findByLotteryIdOrderByIdAsc(anyLong(), any(Pageable.class));
+        verify(participantService, never()).credit(anyLong(), anyDouble());
+    }
+
+
+    /**
+     * Test that a draw which conflicts with a concurrent change is retried and pays the winner once.
+     */
+    @Test
+    void testDrawRetriesOnConflict() throws Exception {
+        when(lotteryRepository.claimDraw(1L)).thenReturn(1);
+        when(lotteryRepository.findById(1L)).thenReturn(Optional.of(lottery));
+        when(ballotRepository.countByLotteryId(1L)).thenReturn(1L);
+        when(ballotRepository.findByLotteryIdOrderByIdAsc(eq(1L), any(Pageable.class))).thenReturn(List.of(ballot));
+        when(lotteryRepository.saveAndFlush(lottery))
+                .thenThrow(new ObjectOptimisticLockingFailureException(Lottery.class, 1L))
+                .thenReturn(lottery);
+
+        assertTrue(lotteryDrawService.draw(1L));
+
+        verify(lotteryRepository, times(2)).claimDraw(1L);
+        verify(participantService, times(1)).credit(1L, 100.0);
+    }
+
+
+    /**
+     * Test that several lotteries are drawn and that a failed draw doesn't stop the others.
+     */
+    @Test
+    void testDrawAll() {
+        for (long id = 1; id <= 3; id++) {
+            Lottery each = new Lottery(id, true, LocalDate.now(), 1, null, 100.0, 5.0);
+            when(lotteryRepository.claimDraw(id)).thenReturn(1);
+            when(lotteryRepository.findById(id)).thenReturn(Optional.of(each));
+            when(ballotRepository.countByLotteryId(id)).thenReturn(1L);
+            when(ballotRepository.findByLotteryIdOrderByIdAsc(eq(id), any(Pageable.class)))
+                    .thenReturn(List.of(new Ballot(id, id, id, "123456")));
+        }
+        when(lotteryRepository.claimDraw(4L)).thenThrow(new IllegalStateException("Database is down"));
+
+        assertEquals(3, lotteryDrawService.drawAll(List.of(1L, 2L, 3L, 4L)));
+
+        verify(participantService, times(3)).credit(anyLong(), eq(100.0));
+    }
+}
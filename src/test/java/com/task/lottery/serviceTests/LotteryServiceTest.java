@@ -1,18 +1,29 @@
 package com.task.lottery.serviceTests;
 
+import com.task.lottery.dtos.BallotView;
+import com.task.lottery.dtos.LotteryView;
 import com.task.lottery.entities.Ballot;
 import com.task.lottery.entities.Lottery;
-import com.task.lottery.entities.Participant;
 import com.task.lottery.repositories.BallotRepository;
 import com.task.lottery.repositories.LotteryRepository;
-import com.task.lottery.repositories.ParticipantRepository;
+import com.task.lottery.services.BallotCounterService;
+import com.task.lottery.services.GuessHistogramService;
+import com.task.lottery.services.LotteryCache;
+import com.task.lottery.services.LotteryDrawService;
 import com.task.lottery.services.LotteryService;
+import com.task.lottery.services.LotteryStatsService;
+import com.task.lottery.services.ParticipantService;
+import com.task.lottery.services.WinnerCache;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
 
+import java.time.Duration;
 import java.time.LocalDate;
 import java.util.List;
 import java.util.Optional;
@@ -29,7 +40,22 @@ public class LotteryServiceTest {
     transient BallotRepository ballotRepository;
 
     @Mock
-    transient ParticipantRepository participantRepository;
+    transient ParticipantService participantService;
+
+    @Mock
+    transient BallotCounterService ballotCounterService;
+
+    @Mock
+    transient LotteryDrawService lotteryDrawService;
+
+    @Mock
+    transient LotteryStatsService lotteryStatsService;
+
+    @Mock
+    transient GuessHistogramService guessHistogramService;
+
+    @Spy
+    transient WinnerCache winnerCache = new WinnerCache(10);
 
     @InjectMocks
     transient LotteryService lotteryService;
@@ -42,16 +68,19 @@ public class LotteryServiceTest {
         l1 = new Lottery(1L, true, LocalDate.now(), 0, null, 100.0, 5.0);
 
         MockitoAnnotations.openMocks(this);
+        ReflectionTestUtils.setField(lotteryService, "lotteryCache",
+                new LotteryCache(lotteryRepository, mock(PlatformTransactionManager.class), 100, Duration.ZERO));
     }
 
     @Test
     void testSaveValidDate() {
-        when(lotteryRepository.findByStartTime(l1.getStartTime())).thenReturn(List.of());
+        when(lotteryRepository.findViewsByStartTime(l1.getStartTime())).thenReturn(List.of());
         when(lotteryRepository.save(l1)).thenReturn(l1);
         try{
             Lottery saved = lotteryService.save(l1);
             assertNotNull(saved);
             assertTrue(saved.getIsOpen());
+            verify(ballotCounterService, times(1)).createCounters(1L);
         }
         catch (Exception e){
             fail("No exception should be thrown.");
@@ -74,7 +103,7 @@ public class LotteryServiceTest {
     void testSaveFutureDate() {
         LocalDate startDate = LocalDate.now().plusYears(1);
         Lottery l2 = new Lottery(2L, true, startDate, 0, null, 100.0, 10.0);
-        when(lotteryRepository.findByStartTime(l2.getStartTime())).thenReturn(List.of());
+        when(lotteryRepository.findViewsByStartTime(l2.getStartTime())).thenReturn(List.of());
         when(lotteryRepository.save(l2)).thenReturn(l2);
         try{
             Lottery saved = lotteryService.save(l2);
@@ -90,38 +119,35 @@ public class LotteryServiceTest {
     @Test
     void testSaveLotteryAlreadyExists() {
         Lottery l2 = new Lottery(2L, true,LocalDate.now(), 0, null, 100.0, 10.0);
-        when(lotteryRepository.findByStartTime(l1.getStartTime())).thenReturn(List.of(l2));
+        when(lotteryRepository.findViewsByStartTime(l1.getStartTime())).thenReturn(List.of(LotteryView.of(l2)));
 
         assertThrows(IllegalArgumentException.class, () -> {
             lotteryService.save(l1);
         });
 
-        verify(lotteryRepository, times(1)).findByStartTime(LocalDate.now());
+        verify(lotteryRepository, times(1)).findViewsByStartTime(LocalDate.now());
         verify(lotteryRepository, never()).save(l1);
     }
 
 
     @Test
     void pickWinner() {
-        double oldBalance = 10.0;
-        Participant p1 = new Participant(1L, "p", "1", "email1", oldBalance);
-        Participant p2 = new Participant(2L, "p", "2", "email2", 100.0);
-
-        Ballot b1 = new Ballot(1L, 1L, 1L, "123456");
-        Ballot b2 = new Ballot(1L, 1L, 2L, "463456");
-        Ballot b3 = new Ballot(1L, 1L, 2L, "123498");
-
-        List<Ballot> ballots = List.of(b1, b2, b3);
+        when(lotteryRepository.findViewsByStartTime(l1.getStartTime())).thenReturn(List.of(LotteryView.of(l1)));
+        lotteryService.pickWinner();
+        verify(lotteryDrawService, times(1)).drawAll(List.of(l1.getId()));
+    }
 
-        when(lotteryRepository.findByStartTime(l1.getStartTime())).thenReturn(List.of(l1));
-        when(ballotRepository.findByLotteryId(l1.getId())).thenReturn(ballots);
-        when(lotteryService.updateFields(l1)).thenReturn(l1);
-        when(participantRepository.findById(any(Long.class))).thenReturn(Optional.of(p1));
 
-        lotteryService.pickWinner();
-        assertNotNull(l1.getWinnerId());
-        assertFalse(l1.getIsOpen());
-        assertEquals(p1.getBalance(), (oldBalance + l1.getPrize()));
+    /**
+     * Test that the lotteries of the past which were not drawn are drawn at startup.
+     */
+    @Test
+    void testCatchUp() {
+        Lottery missed = new Lottery(2L, true, LocalDate.now().minusDays(2), 0, null, 100.0, 5.0);
+        when(lotteryRepository.findByStartTime(LocalDate.now())).thenReturn(List.of());
+        when(lotteryRepository.findByStartTimeBeforeAndIsDrawnFalse(LocalDate.now())).thenReturn(List.of(missed));
+        lotteryService.catchUp();
+        verify(lotteryDrawService, times(1)).drawAll(List.of(2L));
     }
 
 
@@ -137,12 +163,12 @@ public class LotteryServiceTest {
         LocalDate startDate = LocalDate.now().minusYears(1);
         Lottery l2 = new Lottery(2L, false, startDate, 10, 3L, 100.0, 10.0);
         Ballot winnerBallot = new Ballot(3L, 2L, 1L, "123456");
-        when(lotteryRepository.findByStartTime(l2.getStartTime())).thenReturn(List.of(l2));
-        when(ballotRepository.findById(l2.getWinnerId())).thenReturn(Optional.of(winnerBallot));
+        when(lotteryRepository.findViewsByStartTime(l2.getStartTime())).thenReturn(List.of(LotteryView.of(l2)));
+        when(ballotRepository.findViewById(l2.getWinnerId())).thenReturn(Optional.of(BallotView.of(winnerBallot)));
         try{
-            Ballot winner = lotteryService.getWinner(startDate);
+            BallotView winner = lotteryService.getWinner(startDate);
             assertNotNull(winner);
-            assertEquals(3L, (long) winner.getId());
+            assertEquals(3L, (long) winner.id());
         }
         catch (Exception e){
             fail("No exception should be thrown.");
@@ -150,6 +176,42 @@ public class LotteryServiceTest {
     }
 
 
+    /**
+     * Test that the winner of a date is read from the database once and then served from the cache.
+     */
+    @Test
+    void getWinnerCached() throws Exception {
+        LocalDate startDate = LocalDate.now().minusYears(1);
+        Lottery l2 = new Lottery(2L, false, startDate, 10, 3L, 100.0, 10.0);
+        BallotView winnerBallot = BallotView.of(new Ballot(3L, 2L, 1L, "123456"));
+        when(lotteryRepository.findViewsByStartTime(startDate)).thenReturn(List.of(LotteryView.of(l2)));
+        when(ballotRepository.findViewById(3L)).thenReturn(Optional.of(winnerBallot));
+
+        assertEquals(winnerBallot, lotteryService.getWinner(startDate));
+        assertEquals(winnerBallot, lotteryService.getWinner(startDate));
+
+        verify(lotteryRepository, times(1)).findViewsByStartTime(startDate);
+        verify(ballotRepository, times(1)).findViewById(3L);
+    }
+
+
+    /**
+     * Test that deleting a lottery forgets its cached winner.
+     */
+    @Test
+    void testDeleteEvictsWinner() {
+        LocalDate startDate = LocalDate.now().minusYears(1);
+        Lottery l2 = new Lottery(2L, false, startDate, 10, 3L, 100.0, 10.0);
+        winnerCache.put(startDate, BallotView.of(new Ballot(3L, 2L, 1L, "123456")));
+        when(lotteryRepository.findAllById(List.of(2L))).thenReturn(List.of(l2));
+
+        lotteryService.deleteById(2L);
+
+        assertNull(winnerCache.get(startDate));
+        verify(lotteryRepository, times(1)).deleteAll(List.of(l2));
+    }
+
+
     @Test
     void getWinnerInvalidDate() {
         LocalDate startDate = LocalDate.now().plusYears(1);
@@ -158,7 +220,7 @@ public class LotteryServiceTest {
         assertThrows(IllegalArgumentException.class, () -> {
             lotteryService.getWinner(startDate);
         });
-        verify(ballotRepository, never()).findById(any(Long.class));
+        verify(ballotRepository, never()).findViewById(any(Long.class));
     }
 
 
@@ -173,13 +235,13 @@ public class LotteryServiceTest {
 
     @Test
     void testLotteryExists() {
-        when(lotteryRepository.findByStartTime(LocalDate.now())).thenReturn(List.of(l1));
+        when(lotteryRepository.findViewsByStartTime(LocalDate.now())).thenReturn(List.of(LotteryView.of(l1)));
         assertTrue(lotteryService.lotteryExists(LocalDate.now()));
     }
 
     @Test
     void testLotteryDoesNotExist() {
-        when(lotteryRepository.findByStartTime(LocalDate.now())).thenReturn(List.of());
+        when(lotteryRepository.findViewsByStartTime(LocalDate.now())).thenReturn(List.of());
         assertFalse(lotteryService.lotteryExists(LocalDate.now()));
     }
 
@@ -187,9 +249,63 @@ public class LotteryServiceTest {
     @Test
     void testFindById() {
         when(lotteryRepository.findById(any(Long.class))).thenReturn(Optional.of(l1));
-        Lottery found = lotteryService.findById(1L).get();
-        assertEquals(found, l1);
+        LotteryView found = lotteryService.findById(1L).get();
+        assertEquals(found, LotteryView.of(l1));
         verify(lotteryRepository, times(1)).findById(1L);
     }
 
+
+    /**
+     * Test that a lottery is read from the database once and read again only after it is updated.
+     */
+    @Test
+    void testFindByIdCached() {
+        when(lotteryRepository.findById(1L)).thenReturn(Optional.of(l1));
+        lotteryService.findById(1L);
+        lotteryService.findById(1L);
+        verify(lotteryRepository, times(1)).findById(1L);
+
+        lotteryService.updateFields(l1);
+        lotteryService.findById(1L);
+        verify(lotteryRepository, times(2)).findById(1L);
+    }
+
+
+    /**
+     * Test that a lottery read from the database while it is being updated is not kept in the cache.
+     */
+    @Test
+    void testUpdateFieldsForgetsLotteryReadDuringSave() {
+        when(lotteryRepository.findById(1L)).thenReturn(Optional.of(l1));
+        when(lotteryRepository.save(l1)).thenAnswer(invocation -> {
+            lotteryService.findById(1L);
+            return l1;
+        });
+        lotteryService.updateFields(l1);
+        lotteryService.findById(1L);
+        verify(lotteryRepository, times(2)).findById(1L);
+    }
+
+
+    /**
+     * Test that the ballot count of a lottery is read from its counters.
+     */
+    @Test
+    void testFindByIdAppliesBallotCount() {
+        when(lotteryRepository.findById(1L)).thenReturn(Optional.of(l1));
+        when(ballotCounterService.count(1L)).thenReturn(42);
+        assertEquals(42, lotteryService.findById(1L).get().ballotCount());
+    }
+
+
+    /**
+     * Test that incrementing the ballot count goes through the counters.
+     */
+    @Test
+    void testIncrementBallotCount() {
+        when(ballotCounterService.increment(1L, 3)).thenReturn(true);
+        assertTrue(lotteryService.incrementBallotCount(1L, 3));
+        verify(ballotCounterService, times(1)).increment(1L, 3);
+    }
+
 }
@@ -0,0 +1,211 @@
+package com.task.lottery.serviceTests;
+
+import com.task.lottery.dtos.BallotActivity;
+import com.task.lottery.dtos.LotteryStats;
+import com.task.lottery.entities.Ballot;
+import com.task.lottery.entities.Lottery;
+import com.task.lottery.repositories.BallotRepository;
+import com.task.lottery.repositories.LotteryRepository;
+import com.task.lottery.services.BallotCounterService;
+import com.task.lottery.services.LotteryCache;
+import com.task.lottery.services.LotteryStatsService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+public class LotteryStatsServiceTest {
+
+    @Mock
+    transient BallotRepository ballotRepository;
+
+    @Mock
+    transient LotteryRepository lotteryRepository;
+
+    @Mock
+    transient BallotCounterService ballotCounterService;
+
+    private LotteryStatsService lotteryStatsService;
+
+    private static final LocalDateTime TEN = LocalDate.now().atTime(10, 15);
+
+
+    @BeforeEach
+    void setup() {
+        MockitoAnnotations.openMocks(this);
+        lotteryStatsService = newService(10);
+        Lottery lottery = new Lottery(1L, true, LocalDate.now(), 0, null, 100.0, 5.0);
+        when(lotteryRepository.findById(1L)).thenReturn(Optional.of(lottery));
+    }
+
+
+    /**
+     * Test that the figures are rebuilt from the ballots in one pass at startup and then read from memory.
+     */
+    @Test
+    void testRebuildAll() {
+        when(ballotRepository.streamActivity()).thenReturn(Stream.of(
+                new BallotActivity(1L, 1L, 1L, TEN),
+                new BallotActivity(2L, 1L, 1L, TEN.plusMinutes(30)),
+                new BallotActivity(3L, 1L, 2L, TEN.plusHours(1)),
+                new BallotActivity(4L, 2L, 3L, TEN)));
+        when(ballotCounterService.count(1L)).thenReturn(3);
+
+        lotteryStatsService.rebuildAll();
+        LotteryStats stats = lotteryStatsService.getStats(1L).get();
+
+        assertEquals(3, stats.ballotCount());
+        assertEquals(15.0, stats.revenue());
+        assertEquals(2, stats.uniqueParticipants());
+        assertEquals(Map.of(LocalDate.now().atTime(10, 0), 2L, LocalDate.now().atTime(11, 0), 1L),
+                stats.ballotsPerHour());
+        verify(ballotRepository, never()).streamActivityByLotteryId(1L);
+    }
+
+
+    /**
+     * Test that the purchases are added to the figures as they are saved.
+     */
+    @Test
+    void testRecord() {
+        when(ballotRepository.streamActivity()).thenReturn(Stream.of(new BallotActivity(1L, 1L, 1L, TEN)));
+        lotteryStatsService.rebuildAll();
+        lotteryStatsService.recordAfterCommit(List.of(new Ballot(1L, 1L, 1L, "123456"),
+                new Ballot(2L, 1L, 2L, "654321")));
+        when(ballotCounterService.count(1L)).thenReturn(3);
+
+        LotteryStats stats = lotteryStatsService.getStats(1L).get();
+
+        assertEquals(3, stats.ballotCount());
+        assertEquals(15.0, stats.revenue());
+        assertEquals(2, stats.uniqueParticipants());
+        verify(ballotRepository, never()).streamActivityByLotteryId(1L);
+    }
+
+
+    /**
+     * Test that the figures of a lottery are rebuilt from its ballots when its ballot count differs from the
+     * counters, after ballots were bought on another node.
+     */
+    @Test
+    void testResyncWithCounters() {
+        when(ballotRepository.streamActivity()).thenReturn(Stream.of(new BallotActivity(1L, 1L, 1L, TEN)));
+        lotteryStatsService.rebuildAll();
+        when(ballotCounterService.count(1L)).thenReturn(2);
+        when(ballotRepository.streamActivityByLotteryId(1L)).thenReturn(Stream.of(
+                new BallotActivity(1L, 1L, 1L, TEN), new BallotActivity(2L, 1L, 2L, TEN)));
+
+        assertEquals(2, lotteryStatsService.getStats(1L).get().ballotCount());
+        verify(ballotRepository, times(1)).streamActivityByLotteryId(1L);
+    }
+
+
+    /**
+     * Test that the purchases which commit while the figures of a lottery are rebuilt by a read are counted once,
+     * whether the read of the ballots found them or not.
+     */
+    @Test
+    void testPurchasesDuringRebuild() {
+        when(ballotCounterService.count(1L)).thenReturn(4);
+        when(ballotRepository.streamActivityByLotteryId(1L)).thenReturn(Stream.of(
+                new BallotActivity(1L, 1L, 1L, TEN), new BallotActivity(2L, 1L, 2L, TEN),
+                new BallotActivity(3L, 1L, 3L, TEN)).peek(ballot -> {
+                    if (ballot.id() == 1L) {
+                        lotteryStatsService.recordAfterCommit(List.of(new Ballot(2L, 1L, 2L, "123456"),
+                                new Ballot(10L, 1L, 4L, "654321")));
+                    } else if (ballot.id() == 3L) {
+                        lotteryStatsService.recordAfterCommit(List.of(new Ballot(2L, 1L, 2L, "123456")));
+                    }
+                }));
+
+        LotteryStats stats = lotteryStatsService.getStats(1L).get();
+        assertEquals(4, stats.ballotCount());
+        assertEquals(4, stats.uniqueParticipants());
+
+        lotteryStatsService.recordAfterCommit(List.of(new Ballot(11L, 1L, 4L, "111111")));
+        when(ballotCounterService.count(1L)).thenReturn(5);
+        assertEquals(5, lotteryStatsService.getStats(1L).get().ballotCount());
+        verify(ballotRepository, times(1)).streamActivityByLotteryId(1L);
+    }
+
+
+    /**
+     * Test that there are no figures for a lottery which doesn't exist.
+     */
+    @Test
+    void testUnknownLottery() {
+        when(lotteryRepository.findById(2L)).thenReturn(Optional.empty());
+        assertTrue(lotteryStatsService.getStats(2L).isEmpty());
+        verify(ballotRepository, never()).streamActivityByLotteryId(2L);
+    }
+
+
+    /**
+     * Test that the drawn lotteries are not rebuilt at startup, and that the figures rebuilt by a read during the
+     * startup pass are kept with the purchases recorded since.
+     */
+    @Test
+    void testRebuildAllKeepsFiguresRebuiltMeanwhile() {
+        Lottery drawn = new Lottery(2L, false, LocalDate.now(), 0, null, 100.0, 5.0);
+        drawn.setIsDrawn(true);
+        when(lotteryRepository.findById(2L)).thenReturn(Optional.of(drawn));
+        when(ballotCounterService.count(1L)).thenReturn(2);
+        when(ballotRepository.streamActivityByLotteryId(1L))
+                .thenReturn(Stream.of(new BallotActivity(1L, 1L, 1L, TEN)));
+        when(ballotRepository.streamActivity()).thenAnswer(invocation -> {
+            lotteryStatsService.getStats(1L);
+            lotteryStatsService.recordAfterCommit(List.of(new Ballot(2L, 1L, 2L, "654321")));
+            return Stream.of(new BallotActivity(1L, 1L, 1L, TEN), new BallotActivity(3L, 2L, 3L, TEN));
+        });
+
+        lotteryStatsService.rebuildAll();
+
+        assertEquals(2, lotteryStatsService.getStats(1L).get().ballotCount());
+        verify(ballotRepository, times(1)).streamActivityByLotteryId(1L);
+        verify(ballotRepository, never()).streamActivityByLotteryId(2L);
+        when(ballotRepository.streamActivityByLotteryId(2L))
+                .thenReturn(Stream.of(new BallotActivity(3L, 2L, 3L, TEN)));
+        assertEquals(1, lotteryStatsService.getStats(2L).get().ballotCount());
+    }
+
+
+    /**
+     * Test that at most max-lotteries figures are kept, the least recently read are rebuilt when read again.
+     */
+    @Test
+    void testBoundedLotteries() {
+        lotteryStatsService = newService(1);
+        when(lotteryRepository.findById(2L)).thenReturn(Optional.of(
+                new Lottery(2L, true, LocalDate.now(), 0, null, 100.0, 5.0)));
+        when(ballotRepository.streamActivityByLotteryId(anyLong()))
+                .thenAnswer(invocation -> Stream.of(new BallotActivity(1L, invocation.getArgument(0), 1L, TEN)));
+        when(ballotCounterService.count(anyLong())).thenReturn(1);
+
+        assertEquals(1, lotteryStatsService.getStats(1L).get().ballotCount());
+        assertEquals(1, lotteryStatsService.getStats(2L).get().ballotCount());
+        assertEquals(1, lotteryStatsService.getStats(1L).get().ballotCount());
+
+        verify(ballotRepository, times(2)).streamActivityByLotteryId(1L);
+        verify(ballotRepository, times(1)).streamActivityByLotteryId(2L);
+    }
+
+
+    private LotteryStatsService newService(int maxLotteries) {
+        return new LotteryStatsService(ballotRepository,
+                new LotteryCache(lotteryRepository, mock(PlatformTransactionManager.class), 10, Duration.ZERO),
+                ballotCounterService, mock(PlatformTransactionManager.class), 14, maxLotteries, Duration.ZERO);
+    }
+}
@@ -1,8 +1,11 @@
 package com.task.lottery.serviceTests;
 
+import com.task.lottery.dtos.KeysetPage;
+import com.task.lottery.dtos.ParticipantView;
 import com.task.lottery.entities.Participant;
 import com.task.lottery.repositories.ParticipantRepository;
 import com.task.lottery.services.ParticipantService;
+import com.task.lottery.utils.Keyset;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.InjectMocks;
@@ -37,19 +40,37 @@ public class ParticipantServiceTest {
 
     @Test
     void testFindById() {
-        when(participantRepository.findById(any(Long.class))).thenReturn(Optional.of(p1));
-        Participant found = participantService.findById(1L).get();
-        assertEquals(found, p1);
-        verify(participantRepository, times(1)).findById(1L);
+        when(participantRepository.findViewById(any(Long.class))).thenReturn(Optional.of(ParticipantView.of(p1)));
+        ParticipantView found = participantService.findById(1L).get();
+        assertEquals(found, ParticipantView.of(p1));
+        verify(participantRepository, times(1)).findViewById(1L);
     }
 
 
     @Test
-    void findAll() {
-        Participant p2 = new Participant(2L, "p", "2", "email2", 10.0);
-        Participant p3 = new Participant(3L, "p", "3", "email3", 10.0);
-        List<Participant> participants = List.of(p1, p2, p3);
-        when(participantRepository.findAll()).thenReturn(participants);
-        assertEquals(participants, participantService.findAll());
+    void findPage() {
+        ParticipantView v1 = ParticipantView.of(p1);
+        ParticipantView v2 = new ParticipantView(2L, "p", "2", "email2", 10.0);
+        ParticipantView v3 = new ParticipantView(3L, "p", "3", "email3", 10.0);
+        when(participantRepository.findPage(0L, Keyset.limit(2))).thenReturn(List.of(v1, v2, v3));
+
+        KeysetPage<ParticipantView> page = participantService.findPage(null, 2, null);
+
+        assertEquals(List.of(v1, v2), page.items());
+        assertEquals(2L, Keyset.afterId(page.next()));
+        verify(participantRepository, never()).findPageByLottery(any(), any(), any());
+    }
+
+
+    @Test
+    void findPageByLottery() {
+        ParticipantView v1 = ParticipantView.of(p1);
+        when(participantRepository.findPageByLottery(0L, 5L, Keyset.limit(2))).thenReturn(List.of(v1));
+
+        KeysetPage<ParticipantView> page = participantService.findPage(null, 2, 5L);
+
+        assertEquals(List.of(v1), page.items());
+        assertNull(page.next());
+        verify(participantRepository, never()).findPage(any(), any());
     }
 }
@@ -0,0 +1,188 @@
+package com.task.lottery.serviceTests;
+
+import com.task.lottery.dtos.ParticipantView;
+import com.task.lottery.entities.Participant;
+import com.task.lottery.repositories.ParticipantRepository;
+import com.task.lottery.services.WalletService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class WalletServiceTest {
+
+    @Mock
+    transient ParticipantRepository participantRepository;
+
+    @Mock
+    transient PlatformTransactionManager transactionManager;
+
+    @TempDir
+    Path journalDirectory;
+
+    private WalletService walletService;
+
+    private static Participant p1;
+
+
+    @BeforeEach
+    void setup() throws Exception {
+        p1 = new Participant(1L, "p", "1", "email1", 10.0);
+        MockitoAnnotations.openMocks(this);
+        when(participantRepository.findViewById(1L)).thenReturn(Optional.of(ParticipantView.of(p1)));
+        when(participantRepository.findAllById(any())).thenReturn(List.of(p1));
+        walletService = new WalletService(participantRepository, transactionManager, 2,
+                journalDirectory.toString());
+    }
+
+
+    @AfterEach
+    void tearDown() {
+        walletService.close();
+    }
+
+
+    @Test
+    void testDebit() {
+        assertTrue(walletService.debit(1L, 4.0));
+        assertTrue(walletService.debit(1L, 4.0));
+        assertFalse(walletService.debit(1L, 4.0));
+        assertEquals(2.0, walletService.balanceOf(1L));
+        verify(participantRepository, times(1)).findViewById(1L);
+        verify(participantRepository, never()).save(any(Participant.class));
+    }
+
+
+    @Test
+    void testDebitUnknownParticipant() {
+        when(participantRepository.findViewById(2L)).thenReturn(Optional.empty());
+        assertFalse(walletService.debit(2L, 1.0));
+        assertNull(walletService.balanceOf(2L));
+    }
+
+
+    @Test
+    void testCredit() {
+        assertTrue(walletService.credit(1L, 5.0));
+        assertEquals(15.0, walletService.balanceOf(1L));
+    }
+
+
+    @Test
+    void testHold() {
+        assertTrue(walletService.hold(1L, 4.0));
+        assertTrue(walletService.hold(1L, 4.0));
+        assertFalse(walletService.debit(1L, 4.0));
+        assertEquals(10.0, walletService.balanceOf(1L));
+
+        assertTrue(walletService.confirm(1L, 4.0));
+        walletService.release(1L, 4.0);
+        assertEquals(6.0, walletService.balanceOf(1L));
+        assertTrue(walletService.debit(1L, 6.0));
+    }
+
+
+    /**
+     * A held amount is not journaled, so a crash before its purchase commits leaves the balance untouched.
+     */
+    @Test
+    void testHoldIsNotReplayed() throws Exception {
+        walletService.hold(1L, 4.0);
+        walletService.debit(1L, 1.0);
+
+        WalletService restarted = new WalletService(participantRepository, transactionManager, 2,
+                journalDirectory.toString());
+        assertEquals(9.0, p1.getBalance());
+        restarted.close();
+    }
+
+
+    @Test
+    void testFlush() {
+        walletService.debit(1L, 4.0);
+        walletService.flush();
+        assertEquals(6.0, p1.getBalance());
+    }
+
+
+    /**
+     * A command sent after the wallet stopped fails instead of waiting for a writer which is gone.
+     */
+    @Test
+    void testStopped() {
+        walletService.debit(1L, 4.0);
+        walletService.close();
+        assertThrows(IllegalStateException.class, () -> walletService.credit(1L, 1.0));
+        assertEquals(6.0, p1.getBalance());
+    }
+
+
+    /**
+     * An acknowledged debit which was not flushed is saved from the journal by the next instance.
+     */
+    @Test
+    void testReplayAfterCrash() throws Exception {
+        walletService.debit(1L, 4.0);
+        assertEquals(10.0, p1.getBalance());
+
+        WalletService restarted = new WalletService(participantRepository, transactionManager, 2,
+                journalDirectory.toString());
+        assertEquals(6.0, p1.getBalance());
+        restarted.close();
+    }
+
+
+    /**
+     * Journaled balances of participants missing from the database fail the startup instead of being dropped.
+     */
+    @Test
+    void testReplayMissingParticipant() {
+        walletService.debit(1L, 4.0);
+        when(participantRepository.findAllById(any())).thenReturn(List.of());
+
+        assertThrows(IllegalStateException.class, () -> new WalletService(participantRepository,
+                transactionManager, 2, journalDirectory.toString()));
+        when(participantRepository.findAllById(any())).thenReturn(List.of(p1));
+    }
+
+
+    /**
+     * The balances of a removed participant are neither flushed nor replayed.
+     */
+    @Test
+    void testRemove() throws Exception {
+        walletService.debit(1L, 4.0);
+        walletService.remove(1L);
+        assertNull(walletService.balanceOf(1L));
+        when(participantRepository.findAllById(any())).thenReturn(List.of());
+
+        WalletService restarted = new WalletService(participantRepository, transactionManager, 2,
+                journalDirectory.toString());
+        restarted.close();
+        walletService.flush();
+        assertEquals(10.0, p1.getBalance());
+    }
+
+
+    /**
+     * A participant read from the database before it was removed is not added back to the wallet.
+     */
+    @Test
+    void testDebitRemovedParticipant() {
+        walletService.remove(1L);
+        assertFalse(walletService.debit(1L, 1.0));
+        assertFalse(walletService.credit(1L, 1.0));
+        assertNull(walletService.balanceOf(1L));
+    }
+}
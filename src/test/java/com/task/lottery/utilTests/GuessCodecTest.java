@@ -0,0 +1,57 @@
+package com.task.lottery.utilTests;
+
+import com.task.lottery.utils.GuessCodec;
+import org.junit.jupiter.api.Test;
+
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GuessCodecTest {
+
+    /**
+     * Test that only guesses made of digits with the expected length are valid.
+     */
+    @Test
+    void testIsValid() {
+        assertTrue(GuessCodec.isValid("123456", 6));
+        assertTrue(GuessCodec.isValid("000000", 6));
+        assertFalse(GuessCodec.isValid("12345", 6));
+        assertFalse(GuessCodec.isValid("12a456", 6));
+        assertFalse(GuessCodec.isValid("12 456", 6));
+        assertFalse(GuessCodec.isValid("\u0661\u0662\u0663\u0664\u0665\u0666", 6));
+        assertFalse(GuessCodec.isValid(null, 6));
+    }
+
+
+    /**
+     * Test that decoding an encoded guess gives back the guess, leading zeros included.
+     */
+    @Test
+    void testRoundTrip() {
+        for (String guess : new String[]{"000000", "000001", "012345", "999999", "123456789"}) {
+            assertEquals(guess, GuessCodec.decode(GuessCodec.encode(guess), guess.length()));
+        }
+    }
+
+
+    /**
+     * Test that guesses which don't fit into an int are not encoded.
+     */
+    @Test
+    void testEncodeRejectsLongGuesses() {
+        assertFalse(GuessCodec.isEncodable("1234567890"));
+        assertThrows(IllegalArgumentException.class, () -> GuessCodec.encode("1234567890"));
+    }
+
+
+    /**
+     * Test reading the digits of an encoded guess.
+     */
+    @Test
+    void testDigitAt() {
+        int value = GuessCodec.encode("012345");
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i, GuessCodec.digitAt(value, 6, i));
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.task.lottery.utilTests;
+
+import com.task.lottery.utils.HyperLogLog;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HyperLogLogTest {
+
+    /**
+     * Test that small counts, estimated with linear counting, are close to exact.
+     */
+    @Test
+    void testSmallCount() {
+        HyperLogLog hll = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        assertEquals(0, hll.estimate());
+        for (long id = 1; id <= 100; id++) {
+            hll.add(id);
+        }
+        assertEquals(100, hll.estimate(), 1);
+    }
+
+
+    /**
+     * Test that adding the same values again doesn't change the estimate.
+     */
+    @Test
+    void testDuplicatesAreNotCounted() {
+        HyperLogLog hll = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        for (int round = 0; round < 5; round++) {
+            for (long id = 1; id <= 10_000; id++) {
+                hll.add(id);
+            }
+        }
+        assertEquals(10_000, hll.estimate(), 10_000 * 0.03);
+    }
+
+
+    /**
+     * Test that a large count of consecutive ids, like participant ids, is estimated within a few standard errors.
+     */
+    @Test
+    void testLargeCount() {
+        HyperLogLog hll = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        for (long id = 1; id <= 1_000_000; id++) {
+            hll.add(id);
+        }
+        assertEquals(1_000_000, hll.estimate(), 1_000_000 * 0.03);
+    }
+
+
+    @Test
+    void testInvalidPrecision() {
+        assertThrows(IllegalArgumentException.class, () -> new HyperLogLog(3));
+        assertThrows(IllegalArgumentException.class, () -> new HyperLogLog(19));
+    }
+}
@@ -0,0 +1,61 @@
+package com.task.lottery.utilTests;
+
+import com.task.lottery.dtos.KeysetPage;
+import com.task.lottery.utils.Keyset;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class KeysetTest {
+
+    /**
+     * Test that a token gives back the id it was made from and that the first page starts after 0.
+     */
+    @Test
+    void testTokenRoundTrip() {
+        assertEquals(0L, Keyset.afterId(null));
+        assertEquals(0L, Keyset.afterId(""));
+        assertEquals(42L, Keyset.afterId(Keyset.token(42L)));
+        assertEquals(Long.MAX_VALUE, Keyset.afterId(Keyset.token(Long.MAX_VALUE)));
+    }
+
+
+    /**
+     * Test that tokens which were not made by Keyset are rejected.
+     */
+    @Test
+    void testInvalidToken() {
+        assertThrows(IllegalArgumentException.class, () -> Keyset.afterId("not base64!"));
+        assertThrows(IllegalArgumentException.class, () -> Keyset.afterId("MTIz"));
+        assertThrows(IllegalArgumentException.class, () -> Keyset.afterId(Keyset.token(1L) + "x"));
+    }
+
+
+    /**
+     * Test that the page size defaults, is capped and must be positive.
+     */
+    @Test
+    void testPageSize() {
+        assertEquals(Keyset.DEFAULT_PAGE_SIZE, Keyset.pageSize(null));
+        assertEquals(10, Keyset.pageSize(10));
+        assertEquals(Keyset.MAX_PAGE_SIZE, Keyset.pageSize(Keyset.MAX_PAGE_SIZE + 1));
+        assertThrows(IllegalArgumentException.class, () -> Keyset.pageSize(0));
+    }
+
+
+    /**
+     * Test that only a page followed by more rows gets a continuation token, made from its last id.
+     */
+    @Test
+    void testPage() {
+        KeysetPage<Long> last = Keyset.page(List.of(1L, 2L), 2, Long::longValue);
+        assertEquals(List.of(1L, 2L), last.items());
+        assertNull(last.next());
+
+        KeysetPage<Long> first = Keyset.page(List.of(1L, 2L, 3L), 2, Long::longValue);
+        assertEquals(List.of(1L, 2L), first.items());
+        assertEquals(2L, Keyset.afterId(first.next()));
+    }
+}
@@ -0,0 +1,102 @@
+package com.task.lottery.utilTests;
+
+import com.task.lottery.utils.SingleFlightCache;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SingleFlightCacheTest {
+
+    private static final int THREADS = 16;
+
+
+    /**
+     * Test that a burst of misses of the same key loads it once and gives every thread the loaded value.
+     */
+    @Test
+    void testConcurrentMissesLoadOnce() throws Exception {
+        SingleFlightCache<Long, String> cache = new SingleFlightCache<>(10, Duration.ZERO);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                results.add(executor.submit(() -> cache.get(1L, key -> {
+                    loads.incrementAndGet();
+                    await(release);
+                    return "lottery-" + key;
+                })));
+            }
+            Thread.sleep(100);
+            release.countDown();
+            for (Future<String> result : results) {
+                assertEquals("lottery-1", result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, loads.get());
+        assertEquals("lottery-1", cache.get(1L, key -> fail("The value should be cached.")));
+    }
+
+
+    /**
+     * Test that a value loaded while the key was invalidated is returned but not kept.
+     */
+    @Test
+    void testInvalidateDuringLoad() {
+        SingleFlightCache<Long, String> cache = new SingleFlightCache<>(10, Duration.ZERO);
+        assertEquals("old", cache.get(1L, key -> {
+            cache.invalidate(key);
+            return "old";
+        }));
+        assertEquals("new", cache.get(1L, key -> "new"));
+    }
+
+
+    /**
+     * Test that missing values are not kept and that a failed load can be retried.
+     */
+    @Test
+    void testNullAndFailedLoadsAreNotKept() {
+        SingleFlightCache<Long, String> cache = new SingleFlightCache<>(10, Duration.ZERO);
+        assertNull(cache.get(1L, key -> null));
+        assertThrows(IllegalStateException.class, () -> cache.get(1L, key -> {
+            throw new IllegalStateException("Database is down");
+        }));
+        assertEquals("loaded", cache.get(1L, key -> "loaded"));
+    }
+
+
+    /**
+     * Test that a value whose condition fails after the load is returned but not kept.
+     */
+    @Test
+    void testValueNotKeptWhenConditionFails() {
+        SingleFlightCache<Long, String> cache = new SingleFlightCache<>(10, Duration.ZERO);
+        assertEquals("replica", cache.get(1L, key -> "replica", () -> false));
+        assertNull(cache.getIfPresent(1L));
+        assertEquals("primary", cache.get(1L, key -> "primary", () -> true));
+        assertEquals("primary", cache.getIfPresent(1L));
+    }
+
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}